@@ -8,4 +8,14 @@ module myapp {
     requires java.net.http;   // Required for networking (Sockets)
     requires org.junit.jupiter.api;
     requires java.logging; // Required for JUnit 5 testing
+    requires jmh.core; // Required for JMH benchmarks
+    requires jdk.management; // Per-thread allocation counters in VoiceRelayBenchmark
+    requires java.management; // ChatServerMonitor, the server's JMX bean
+    requires jdk.jfr; // ChatEvents, the server's Flight Recorder events
+    requires jdk.httpserver; // MetricsHttpServer, the optional /metrics and health endpoint
+
+    exports myapp.chat to java.management; // JMX reads ChatServerMXBean through reflection
+
+    uses myapp.chat.ChatBot; // "#command" responders, see BotDispatcher
+    provides myapp.chat.ChatBot with myapp.chat.AutoReplyBot;
 }
@@ -0,0 +1,155 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Client-side disk cache of downloaded attachments, keyed by content hash, so opening a file again (in this session
+// or a later one) never goes back to the server. Blobs live in dir/ab/<hash> like on the server; an index file of
+// "<hash> <size>" lines, least recently used first, is all that is read at startup, so opening the cache costs the
+// same with ten files or ten thousand. When the total size goes over the limit the least recently used blobs are
+// deleted. Concurrent fetches of one hash share a single download.
+public class AttachmentCache {
+    private static final Logger logger = Logger.getLogger(AttachmentCache.class.getName()); // Catch exception errors
+    private static final String INDEX_FILE = "index.txt";
+
+    // Downloads the blob with the given hash to target, verifying it
+    public interface Fetcher {
+        void fetch(String hash, Path target) throws IOException;
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true); // Hash -> size
+    private long totalBytes; // Guarded by this, like entries
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    public AttachmentCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        loadIndex();
+    }
+
+    // The cached blob, or null; counts as a use for LRU
+    public synchronized Path get(String hash) {
+        if (entries.get(hash) == null) return null; // get, not containsKey, so the LRU order is updated
+        Path blob = blobPath(hash);
+        if (!Files.isRegularFile(blob)) {
+            totalBytes -= entries.remove(hash); // Deleted behind our back
+            return null;
+        }
+        return blob;
+    }
+
+    // The cached blob, downloading it on executor first if needed; callers asking for the same hash while it is
+    // being fetched get the same future
+    public CompletableFuture<Path> fetch(String hash, Fetcher fetcher, Executor executor) {
+        if (!AttachmentStore.isHash(hash)) {
+            return CompletableFuture.failedFuture(new IOException("Not an attachment ID: " + hash));
+        }
+        Path cached = get(hash);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        CompletableFuture<Path> running = inFlight.putIfAbsent(hash, future);
+        if (running != null) return running;
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(download(hash, fetcher));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(hash, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(hash, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Persists the current LRU order; changes in size are saved as they happen
+    public synchronized void flush() {
+        saveIndex();
+    }
+
+    private Path download(String hash, Fetcher fetcher) throws IOException {
+        Path cached = get(hash);
+        if (cached != null) return cached; // Finished by an earlier fetch after our first look
+
+        Path blob = blobPath(hash);
+        fetcher.fetch(hash, blob);
+        add(hash, Files.size(blob));
+        return blob;
+    }
+
+    private synchronized void add(String hash, long size) {
+        Long previous = entries.put(hash, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && entries.size() > 1 && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            try {
+                Files.deleteIfExists(blobPath(entry.getKey()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not delete cached attachment " + entry.getKey(), e);
+            }
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+        saveIndex();
+    }
+
+    private Path blobPath(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void loadIndex() {
+        try (BufferedReader in = Files.newBufferedReader(directory.resolve(INDEX_FILE), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2 && AttachmentStore.isHash(parts[0])) {
+                    long size = Long.parseLong(parts[1]);
+                    entries.put(parts[0], size);
+                    totalBytes += size;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // First run
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Could not read the attachment cache index, starting empty", e);
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void saveIndex() {
+        StringBuilder index = new StringBuilder();
+        entries.forEach((hash, size) -> index.append(hash).append(' ').append(size).append('\n'));
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.writeString(directory.resolve(INDEX_FILE + ".tmp"), index, StandardCharsets.UTF_8);
+            Files.move(temp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save the attachment cache index", e);
+        }
+    }
+}
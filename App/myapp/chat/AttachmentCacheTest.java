@@ -0,0 +1,99 @@
+package myapp.chat;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class AttachmentCacheTest {
+    private Path directory;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("cache-test");
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static String key(int n) {
+        return String.format("%064x", n);
+    }
+
+    // Writes size bytes, like AttachmentClient.download would after verifying them
+    private static AttachmentCache.Fetcher writing(int size, AtomicInteger calls) {
+        return (_, target) -> {
+            calls.incrementAndGet();
+            Files.createDirectories(target.getParent());
+            Files.write(target, new byte[size]);
+        };
+    }
+
+    @Test
+    public void leastRecentlyUsedBlobsAreEvictedBySize() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        AttachmentCache cache = new AttachmentCache(directory, 2500);
+        Path first = cache.fetch(key(1), writing(1000, calls), executor).get(5, TimeUnit.SECONDS);
+        cache.fetch(key(2), writing(1000, calls), executor).get(5, TimeUnit.SECONDS);
+        assertNotNull(cache.get(key(1))); // Now 2 is the least recently used
+        cache.fetch(key(3), writing(1000, calls), executor).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2000, cache.totalBytes());
+        assertNull(cache.get(key(2)));
+        assertTrue(Files.exists(first));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void indexSurvivesARestart() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        AttachmentCache cache = new AttachmentCache(directory, 1 << 20);
+        cache.fetch(key(1), writing(300, calls), executor).get(5, TimeUnit.SECONDS);
+        cache.fetch(key(2), writing(400, calls), executor).get(5, TimeUnit.SECONDS);
+        cache.flush();
+
+        AttachmentCache reopened = new AttachmentCache(directory, 1 << 20);
+        assertEquals(2, reopened.size());
+        assertEquals(700, reopened.totalBytes());
+        reopened.fetch(key(2), writing(400, calls), executor).get(5, TimeUnit.SECONDS);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void concurrentFetchesShareOneDownload() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        AttachmentCache.Fetcher slow = (hash, target) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writing(500, calls).fetch(hash, target);
+        };
+        AttachmentCache cache = new AttachmentCache(directory, 1 << 20);
+
+        List<CompletableFuture<Path>> fetches = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            fetches.add(cache.fetch(key(9), slow, executor));
+        }
+        release.countDown();
+        for (CompletableFuture<Path> fetch : fetches) {
+            assertEquals(fetches.get(0).get(5, TimeUnit.SECONDS), fetch.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertTrue(cache.fetch("../../etc/passwd", slow, executor).isCompletedExceptionally());
+    }
+}
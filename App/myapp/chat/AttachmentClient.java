@@ -0,0 +1,278 @@
+package myapp.chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.BitSet;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+
+// Client side of the attachment data channel (see AttachmentRelay for the protocol). Every call opens its own
+// connection, so transfers can run on background threads without touching the chat connection.
+public class AttachmentClient {
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MILLIS = 500; // Doubles with every further attempt
+    private final String host;
+    private final int port;
+    private final String uploadToken;
+
+    public AttachmentClient(String host, int port, String uploadToken) {
+        this.host = host;
+        this.port = port;
+        this.uploadToken = uploadToken;
+    }
+
+    // Offers the file by content hash and uploads whatever the server is missing; returns the attachment ID
+    // (the SHA-256). A broken connection is retried a few times, continuing the same upload session.
+    public String upload(Path file, LongConsumer progress) throws IOException {
+        String hash = AttachmentStore.sha256(file);
+        String sessionId = null;
+        int chunkBytes = 0;
+        IOException failure = null;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                pause(attempt);
+            }
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = source.size();
+                BitSet missing;
+                if (sessionId == null) {
+                    AttachmentRelay.writeLine(channel, "OFFER " + uploadToken + " " + hash + " " + size + " " +
+                            file.getFileName());
+                    String answer = readAnswer(channel);
+                    if (answer.startsWith("HAVE ")) {
+                        progress.accept(size);
+                        return hash;
+                    }
+                    if (answer.startsWith("ERR")) {
+                        throw new RefusedException("Server refused the transfer: " + answer);
+                    }
+                    String[] session = expect(answer, "SESSION ").split(" ");
+                    sessionId = session[0];
+                    chunkBytes = Integer.parseInt(session[1]);
+                    missing = AttachmentRelay.parseRanges(session[2]);
+                } else {
+                    AttachmentRelay.writeLine(channel, "RESUME " + sessionId);
+                    String answer = readAnswer(channel);
+                    if (answer.startsWith("ERR")) {
+                        sessionId = null; // Session expired on the server; offer the file again
+                        failure = new IOException("Upload session expired");
+                        continue;
+                    }
+                    missing = AttachmentRelay.parseRanges(expect(answer, "MISSING "));
+                }
+
+                sendChunks(channel, source, sessionId, chunkBytes, missing, progress);
+
+                AttachmentRelay.writeLine(channel, "FINISH " + sessionId);
+                String answer = readAnswer(channel);
+                if (answer.startsWith("OK ")) {
+                    return answer.substring(3).trim();
+                }
+                if (answer.startsWith("ERR")) {
+                    sessionId = null; // Whole-file check failed (file changed meanwhile?); start over
+                }
+                failure = new IOException("Server did not accept the upload: " + answer);
+            } catch (RefusedException e) {
+                throw e; // Retrying would not change the answer
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    // Opens an attachment as a stream that yields bytes as they arrive, e.g. to play audio while downloading
+    public InputStream openDownload(String attachmentId) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            AttachmentRelay.writeLine(channel, "DOWNLOAD " + attachmentId);
+            String[] range = expectOk(readAnswer(channel)).split(" ");
+            long remaining = Long.parseLong(range[range.length - 1]);
+            InputStream in = Channels.newInputStream(channel);
+            return new FilterInputStream(in) {
+                private long left = remaining;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (left <= 0) return -1;
+                    int read = super.read(buffer, offset, (int) Math.min(length, left));
+                    if (read > 0) left -= read;
+                    return read;
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Starts uploading a voice message whose bytes are still being recorded
+    public VoiceUpload openVoice(String name) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            AttachmentRelay.writeLine(channel, "VOICE " + uploadToken + " " + name);
+            expect(readAnswer(channel), "STREAMING");
+            return new VoiceUpload(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void sendChunks(SocketChannel channel, FileChannel source, String sessionId, int chunkBytes,
+                            BitSet missing, LongConsumer progress) throws IOException {
+        long size = source.size();
+        int chunkCount = (int) ((size + chunkBytes - 1) / chunkBytes);
+        long sent = size - missingBytes(missing, chunkBytes, size);
+        progress.accept(sent);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkBytes);
+        CRC32C checksum = new CRC32C();
+        for (int index = missing.nextSetBit(0); index >= 0 && index < chunkCount; index = missing.nextSetBit(index + 1)) {
+            long offset = (long) index * chunkBytes;
+            buffer.clear().limit((int) Math.min(chunkBytes, size - offset));
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("File shrank while it was being uploaded");
+                }
+            }
+            buffer.flip();
+            checksum.reset();
+            checksum.update(buffer.duplicate());
+
+            AttachmentRelay.writeLine(channel, "CHUNK " + sessionId + " " + index + " " + buffer.remaining() + " " +
+                    checksum.getValue());
+            int length = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            expect(readAnswer(channel), "ACK ");
+            sent += length;
+            progress.accept(sent);
+        }
+    }
+
+    private static long missingBytes(BitSet missing, int chunkBytes, long size) {
+        long bytes = 0;
+        for (int index = missing.nextSetBit(0); index >= 0; index = missing.nextSetBit(index + 1)) {
+            bytes += Math.max(0, Math.min(chunkBytes, size - (long) index * chunkBytes));
+        }
+        return bytes;
+    }
+
+    private static void pause(int attempt) throws IOException {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    // Downloads an attachment into target, continuing a partial download left by an earlier attempt. The file
+    // only replaces target once it is complete and matches its hash.
+    public Path download(String attachmentId, Path target, LongConsumer progress) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path partial = target.resolveSibling(target.getFileName() + "." + attachmentId.substring(0, 12) + ".part");
+        long offset = Files.exists(partial) ? Files.size(partial) : 0;
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel file = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            AttachmentRelay.writeLine(channel, "DOWNLOAD " + attachmentId + " " + offset);
+            String[] range = expectOk(readAnswer(channel)).split(" ");
+            if (range.length < 3) {
+                throw new IOException("Malformed download response");
+            }
+            long total = Long.parseLong(range[0]);
+            long position = Long.parseLong(range[1]);
+            long end = position + Long.parseLong(range[2]);
+            file.truncate(position);
+
+            while (position < end) {
+                long transferred = file.transferFrom(channel, position,
+                        Math.min(AttachmentRelay.TRANSFER_BYTES, end - position));
+                if (transferred <= 0) {
+                    throw new EOFException("Download ended after " + position + " of " + total + " bytes");
+                }
+                position += transferred;
+                progress.accept(position);
+            }
+        }
+
+        if (!AttachmentStore.sha256(partial).equals(attachmentId)) {
+            Files.delete(partial); // Corrupt; the next attempt starts over
+            throw new IOException("Downloaded file does not match its checksum");
+        }
+        return Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String expectOk(String response) throws IOException {
+        return expect(response, "OK ");
+    }
+
+    private static String expect(String response, String prefix) throws IOException {
+        if (!response.startsWith(prefix)) {
+            throw new IOException("Server refused the transfer: " + response);
+        }
+        return response.substring(prefix.length()).trim();
+    }
+
+    private static String readAnswer(SocketChannel channel) throws IOException {
+        String answer = AttachmentRelay.readLine(channel);
+        if (answer == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return answer;
+    }
+
+    // Streams parts of a recording as they are encoded; finish() returns the attachment ID
+    public static class VoiceUpload implements Closeable {
+        private final SocketChannel channel;
+
+        private VoiceUpload(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            for (int sent = 0; sent < length; sent += AttachmentRelay.UPLOAD_CHUNK_BYTES) {
+                int part = Math.min(AttachmentRelay.UPLOAD_CHUNK_BYTES, length - sent);
+                AttachmentRelay.writeLine(channel, "PART " + part);
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset + sent, part);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        public String finish() throws IOException {
+            try (channel) {
+                AttachmentRelay.writeLine(channel, "END");
+                return expectOk(readAnswer(channel));
+            }
+        }
+
+        // Abandons the upload; the server discards what it received
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static class RefusedException extends IOException {
+        RefusedException(String message) {
+            super(message);
+        }
+    }
+}
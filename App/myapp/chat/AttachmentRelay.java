@@ -0,0 +1,481 @@
+package myapp.chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.zip.CRC32C;
+import java.util.logging.Logger;
+
+
+// Server side of the attachment data channel. File bytes never travel over the chat connection: each transfer
+// opens its own socket to this listener. Files are kept in an AttachmentStore under their SHA-256, so content the
+// server already has is never uploaded twice. Uploads run as resumable sessions of fixed-size chunks, each with
+// its own CRC32C, so a broken connection only costs the chunks that had not arrived yet. Downloads are sent with
+// FileChannel.transferTo. Memory use never depends on the file size.
+//
+// Protocol (ASCII command lines, several per connection, chunk bytes follow their CHUNK line):
+//   OFFER <token> <sha256> <size> <name>          -> "HAVE <sha256>" if the content is already stored, otherwise
+//                                                    "SESSION <sessionId> <chunkBytes> <missing>"
+//   RESUME <sessionId>                            -> "MISSING <missing>"
+//   CHUNK <sessionId> <index> <length> <crc32c>   -> "ACK <index>" once the chunk is verified and written
+//   FINISH <sessionId>                            -> "OK <sha256>" once every chunk is in, else "MISSING <missing>"
+//   VOICE <token> <name>                          -> "STREAMING"; the client then sends "PART <length>" lines, each
+//                                                    followed by its bytes, while it records, and "END" to get
+//                                                    "OK <sha256>"
+//   DOWNLOAD <sha256> [<offset> [<length>]]       -> "OK <total> <offset> <length>" followed by that byte range
+// <missing> lists chunk index ranges such as "0-3,7-7", or "-" when nothing is missing. Any failure is answered
+// with "ERR <reason>".
+public class AttachmentRelay implements Closeable {
+    private static final Logger logger = Logger.getLogger(AttachmentRelay.class.getName()); // Catch exception errors
+    static final long TRANSFER_BYTES = 1L << 20; // Upper bound for a single transferTo/transferFrom call
+    static final int UPLOAD_CHUNK_BYTES = 256 * 1024; // Unit of upload verification and resumption
+    private static final int MAX_HEADER_BYTES = 1024;
+    // One chunk buffer per transfer thread bounds upload memory at threads * UPLOAD_CHUNK_BYTES
+    private static final ThreadLocal<ByteBuffer> chunkBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(UPLOAD_CHUNK_BYTES));
+
+    private final AttachmentStore store;
+    private final ServerSocketChannel listener;
+    private final int port;
+    private final ExecutorService transfers;
+    private final Map<String, String> uploaders = new ConcurrentHashMap<>(); // Upload token -> client ID
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>(); // Session ID -> upload
+    private final BiConsumer<String, Attachment> onUploaded;
+    private volatile boolean running = true;
+
+    // onUploaded receives the uploader's client ID and the stored attachment
+    public AttachmentRelay(Path directory, int port, BiConsumer<String, Attachment> onUploaded) throws IOException {
+        this.store = new AttachmentStore(directory);
+        this.onUploaded = onUploaded;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        this.port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+
+        AtomicInteger counter = new AtomicInteger();
+        transfers = Executors.newFixedThreadPool(8, r -> {
+            Thread thread = new Thread(r, "attachment-transfer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread acceptor = new Thread(this::acceptLoop, "attachment-relay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return port;
+    }
+
+    // Issues the secret a client presents when uploading, so uploads can be attributed to a chat user
+    public String registerUploader(String clientId) {
+        String token = UUID.randomUUID().toString().replace("-", "");
+        uploaders.put(token, clientId);
+        return token;
+    }
+
+    public void unregisterUploader(String token) {
+        uploaders.remove(token);
+    }
+
+    public void renameUploader(String token, String newClientId) {
+        uploaders.replace(token, newClientId);
+    }
+
+    AttachmentStore store() {
+        return store;
+    }
+
+    // Called when a message announcing an attachment goes away
+    public void release(String attachmentId) {
+        store.release(attachmentId);
+    }
+
+    // Drops every reference (used when the chat history is reset); the files are reclaimed in the background
+    public void clear() {
+        store.releaseAll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        listener.close();
+        transfers.shutdownNow();
+        for (UploadSession session : sessions.values()) {
+            session.discard();
+        }
+        store.close();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = listener.accept();
+                transfers.execute(() -> handle(channel));
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.SEVERE, "An error occurred while accepting an attachment connection", e);
+                }
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            String line;
+            while ((line = readLine(channel)) != null) {
+                String[] header = line.split(" ", 5);
+                switch (header[0]) {
+                    case "OFFER" -> {
+                        if (header.length < 5) throw new ProtocolException("OFFER <token> <sha256> <size> <name>");
+                        offer(channel, header[1], header[2], Long.parseLong(header[3]), header[4]);
+                    }
+                    case "RESUME" -> {
+                        if (header.length < 2) throw new ProtocolException("RESUME <sessionId>");
+                        UploadSession session = session(channel, header[1]);
+                        if (session != null) {
+                            writeLine(channel, "MISSING " + session.missingRanges());
+                        }
+                    }
+                    case "CHUNK" -> {
+                        if (header.length < 5) throw new ProtocolException("CHUNK <sessionId> <index> <length> <crc>");
+                        chunk(channel, header[1], Integer.parseInt(header[2]), Integer.parseInt(header[3]),
+                                Long.parseLong(header[4]));
+                    }
+                    case "FINISH" -> {
+                        if (header.length < 2) throw new ProtocolException("FINISH <sessionId>");
+                        finish(channel, header[1]);
+                    }
+                    case "VOICE" -> {
+                        String[] voice = line.split(" ", 3);
+                        if (voice.length < 3) throw new ProtocolException("VOICE <token> <name>");
+                        voice(channel, voice[1], voice[2]);
+                    }
+                    case "DOWNLOAD" -> {
+                        if (header.length < 2) throw new ProtocolException("DOWNLOAD <sha256> [<offset> [<length>]]");
+                        long offset = header.length > 2 ? Long.parseLong(header[2]) : 0;
+                        long length = header.length > 3 ? Long.parseLong(header[3]) : Long.MAX_VALUE;
+                        send(channel, header[1], offset, length);
+                    }
+                    default -> throw new ProtocolException("Unknown command " + header[0]);
+                }
+            }
+        } catch (ProtocolException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Rejected attachment request: " + e.getMessage());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Attachment transfer aborted", e);
+        }
+    }
+
+    private void offer(SocketChannel channel, String token, String hash, long size, String name) throws IOException {
+        String uploader = uploaders.get(token);
+        if (uploader == null) {
+            writeLine(channel, "ERR unknown upload token");
+            return;
+        }
+        if (!AttachmentStore.isHash(hash) || size < 0 || size / UPLOAD_CHUNK_BYTES >= Integer.MAX_VALUE) {
+            writeLine(channel, "ERR invalid offer");
+            return;
+        }
+
+        if (store.retainIfPresent(hash)) {
+            // Same content was posted before: nothing to transfer
+            writeLine(channel, "HAVE " + hash);
+            onUploaded.accept(uploader, new Attachment(hash, size, sanitizeName(name), false));
+            return;
+        }
+
+        expireIdleSessions();
+        UploadSession session = null;
+        for (UploadSession existing : sessions.values()) {
+            if (existing.uploader.equals(uploader) && existing.hash.equals(hash) && existing.size == size) {
+                session = existing; // The client lost its session ID (e.g. restarted), pick up where it left off
+                break;
+            }
+        }
+        if (session == null) {
+            session = new UploadSession(UUID.randomUUID().toString().replace("-", ""), uploader, hash, size,
+                    sanitizeName(name), store.newUpload());
+            sessions.put(session.id, session);
+        }
+        writeLine(channel, "SESSION " + session.id + " " + UPLOAD_CHUNK_BYTES + " " + session.missingRanges());
+    }
+
+    private void chunk(SocketChannel channel, String sessionId, int index, int length, long crc) throws IOException {
+        if (length < 0 || length > UPLOAD_CHUNK_BYTES) {
+            throw new ProtocolException("Chunk length " + length + " out of range");
+        }
+        ByteBuffer buffer = readChunk(channel, length);
+
+        // The bytes are always consumed first so the connection stays usable after a rejected chunk
+        UploadSession session = session(channel, sessionId);
+        if (session == null) return;
+        if (index < 0 || index >= session.chunkCount || length != session.chunkLength(index)) {
+            writeLine(channel, "ERR invalid chunk " + index);
+            return;
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(buffer.duplicate());
+        if (checksum.getValue() != crc) {
+            writeLine(channel, "ERR checksum mismatch " + index);
+            return;
+        }
+
+        session.write(index, buffer);
+        writeLine(channel, "ACK " + index);
+    }
+
+    private void finish(SocketChannel channel, String sessionId) throws IOException {
+        UploadSession session = session(channel, sessionId);
+        if (session == null) return;
+        if (!session.isComplete()) {
+            writeLine(channel, "MISSING " + session.missingRanges());
+            return;
+        }
+        if (!sessions.remove(sessionId, session)) {
+            writeLine(channel, "ERR unknown session");
+            return;
+        }
+
+        session.close();
+        try {
+            store.commit(session.file, session.hash); // Verifies the whole file against its SHA-256
+        } catch (IOException e) {
+            writeLine(channel, "ERR " + e.getMessage());
+            return;
+        }
+        store.retainIfPresent(session.hash);
+        writeLine(channel, "OK " + session.hash);
+        onUploaded.accept(session.uploader, new Attachment(session.hash, session.size, session.name, false));
+    }
+
+    // A voice message is uploaded while it is being recorded, so its size and hash are only known at the end
+    private void voice(SocketChannel channel, String token, String name) throws IOException {
+        String uploader = uploaders.get(token);
+        if (uploader == null) {
+            writeLine(channel, "ERR unknown upload token");
+            return;
+        }
+        writeLine(channel, "STREAMING");
+
+        MessageDigest digest = AttachmentStore.newDigest();
+        Path upload = store.newUpload();
+        long size = 0;
+        try (FileChannel file = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+            while (true) {
+                String line = readLine(channel);
+                if (line == null) throw new EOFException("Voice stream closed without END");
+                if (line.equals("END")) break;
+                if (!line.startsWith("PART ")) throw new ProtocolException("Expected PART <length> or END");
+                int length = Integer.parseInt(line.substring(5).trim());
+                if (length < 0 || length > UPLOAD_CHUNK_BYTES) {
+                    throw new ProtocolException("Part length " + length + " out of range");
+                }
+                ByteBuffer buffer = readChunk(channel, length);
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    size += file.write(buffer);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Files.deleteIfExists(upload);
+            throw e;
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        store.commit(upload, hash);
+        store.retainIfPresent(hash);
+        writeLine(channel, "OK " + hash);
+        onUploaded.accept(uploader, new Attachment(hash, size, sanitizeName(name), true));
+    }
+
+    // Reads exactly length bytes into this thread's chunk buffer, ready to be read
+    private static ByteBuffer readChunk(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = chunkBuffer.get();
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed in the middle of a chunk");
+            }
+        }
+        return buffer.flip();
+    }
+
+    // Looks up a session, answering ERR when it is unknown or expired
+    private UploadSession session(SocketChannel channel, String sessionId) throws IOException {
+        UploadSession session = sessions.get(sessionId);
+        if (session == null) {
+            writeLine(channel, "ERR unknown session");
+        }
+        return session;
+    }
+
+    // Sessions share the store's grace period, after which their partial file may be collected anyway
+    private void expireIdleSessions() {
+        long cutoff = System.currentTimeMillis() - store.grace().toMillis();
+        for (UploadSession session : sessions.values()) {
+            if (session.touchedAt < cutoff && sessions.remove(session.id, session)) {
+                session.discard();
+            }
+        }
+    }
+
+    private void send(SocketChannel channel, String hash, long offset, long length) throws IOException {
+        if (!store.contains(hash)) {
+            writeLine(channel, "ERR not found");
+            return;
+        }
+
+        try (FileChannel file = FileChannel.open(store.blobPath(hash), StandardOpenOption.READ)) {
+            long total = file.size();
+            if (offset < 0 || offset > total || length < 0) {
+                writeLine(channel, "ERR invalid range");
+                return;
+            }
+            long end = offset + Math.min(length, total - offset);
+            writeLine(channel, "OK " + total + " " + offset + " " + (end - offset));
+            long position = offset;
+            while (position < end) {
+                position += file.transferTo(position, Math.min(TRANSFER_BYTES, end - position), channel);
+            }
+        }
+    }
+
+    // File names end up in chat lines, so strip path separators and line breaks
+    static String sanitizeName(String name) {
+        String base = name.replace('\\', '/');
+        base = base.substring(base.lastIndexOf('/') + 1).replaceAll("[\\r\\n]", " ").trim();
+        return base.isEmpty() ? "file" : base;
+    }
+
+    // Reads a header line one byte at a time so no file bytes are consumed by accident. Returns null when the
+    // connection was closed between lines.
+    static String readLine(ReadableByteChannel channel) throws IOException {
+        ByteBuffer single = ByteBuffer.allocate(1);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (line.size() < MAX_HEADER_BYTES) {
+            single.clear();
+            if (channel.read(single) < 0) {
+                if (line.size() == 0) return null;
+                throw new EOFException("Connection closed before the header line ended");
+            }
+            byte b = single.get(0);
+            if (b == '\n') {
+                return line.toString(StandardCharsets.UTF_8).trim();
+            }
+            line.write(b);
+        }
+        throw new ProtocolException("Header line too long");
+    }
+
+    static void writeLine(WritableByteChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Chunk index ranges as "0-3,7-7", or "-" for none
+    static String formatRanges(BitSet chunks) {
+        StringJoiner ranges = new StringJoiner(",");
+        for (int start = chunks.nextSetBit(0); start >= 0; start = chunks.nextSetBit(start)) {
+            int end = chunks.nextClearBit(start);
+            ranges.add(start + "-" + (end - 1));
+            start = end;
+        }
+        return ranges.length() == 0 ? "-" : ranges.toString();
+    }
+
+    static BitSet parseRanges(String ranges) {
+        BitSet chunks = new BitSet();
+        if (ranges.equals("-")) return chunks;
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            chunks.set(Integer.parseInt(range.substring(0, dash)), Integer.parseInt(range.substring(dash + 1)) + 1);
+        }
+        return chunks;
+    }
+
+    // voice marks recordings streamed with VOICE rather than offered files
+    public record Attachment(String id, long size, String name, boolean voice) { }
+
+    // An upload in progress: chunks land directly at their offset in a file under the store's incoming folder,
+    // and a bitmap records which ones have been verified
+    private static final class UploadSession {
+        final String id;
+        final String uploader;
+        final String hash;
+        final long size;
+        final String name;
+        final Path file;
+        final int chunkCount;
+        private final FileChannel channel;
+        private final BitSet received; // Guarded by this
+        volatile long touchedAt = System.currentTimeMillis();
+
+        UploadSession(String id, String uploader, String hash, long size, String name, Path file) throws IOException {
+            this.id = id;
+            this.uploader = uploader;
+            this.hash = hash;
+            this.size = size;
+            this.name = name;
+            this.file = file;
+            this.chunkCount = (int) ((size + UPLOAD_CHUNK_BYTES - 1) / UPLOAD_CHUNK_BYTES);
+            this.received = new BitSet(chunkCount);
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(UPLOAD_CHUNK_BYTES, size - (long) index * UPLOAD_CHUNK_BYTES);
+        }
+
+        void write(int index, ByteBuffer data) throws IOException {
+            long position = (long) index * UPLOAD_CHUNK_BYTES;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+            synchronized (this) {
+                received.set(index);
+            }
+            touchedAt = System.currentTimeMillis();
+        }
+
+        synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+
+        synchronized String missingRanges() {
+            BitSet missing = new BitSet(chunkCount);
+            missing.set(0, chunkCount);
+            missing.andNot(received);
+            return formatRanges(missing);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not remove the abandoned upload " + file, e);
+            }
+        }
+    }
+
+    static class ProtocolException extends IOException {
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package myapp.chat;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class AttachmentRelayTest {
+    private Path directory;
+    private AttachmentRelay relay;
+    private final BlockingQueue<String> announced = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("attachment-test");
+        relay = new AttachmentRelay(directory.resolve("store"), 0,
+                (uploader, attachment) -> announced.add(uploader + ":" + attachment.name() + ":" + attachment.size()));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        relay.close();
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void uploadedFileCanBeDownloadedByteForByte() throws Exception {
+        byte[] content = new byte[3 * (int) AttachmentRelay.TRANSFER_BYTES + 12345]; // Spans several chunks
+        new Random(42).nextBytes(content);
+        Path source = Files.write(directory.resolve("holiday.png"), content);
+
+        String token = relay.registerUploader("Giulio");
+        AttachmentClient client = new AttachmentClient("localhost", relay.port(), token);
+        String id = client.upload(source, _ -> { });
+
+        assertEquals("Giulio:holiday.png:" + content.length, announced.poll(5, TimeUnit.SECONDS));
+
+        Path target = client.download(id, directory.resolve("downloads/holiday.png"), _ -> { });
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void sameContentIsStoredOnceAndReferencedPerPost() throws Exception {
+        Path first = Files.writeString(directory.resolve("report.pdf"), "quarterly numbers");
+        Path second = Files.writeString(directory.resolve("report-copy.pdf"), "quarterly numbers");
+        AttachmentClient client = new AttachmentClient("localhost", relay.port(), relay.registerUploader("Jude"));
+
+        List<Long> sent = new ArrayList<>();
+        String id = client.upload(first, sent::add);
+        assertEquals(id, client.upload(second, sent::add));
+
+        assertEquals(AttachmentStore.sha256(first), id);
+        assertEquals(2, relay.store().referenceCount(id));
+        assertEquals("Jude:report.pdf:17", announced.poll(5, TimeUnit.SECONDS));
+        assertEquals("Jude:report-copy.pdf:17", announced.poll(5, TimeUnit.SECONDS));
+        try (var files = Files.walk(directory.resolve("store"))) {
+            assertEquals(1, files.filter(path -> path.getFileName().toString().equals(id)).count());
+        }
+    }
+
+    @Test
+    public void downloadContinuesFromAPartialFile() throws Exception {
+        byte[] content = new byte[100_000];
+        new Random(7).nextBytes(content);
+        Path source = Files.write(directory.resolve("video.mp4"), content);
+        AttachmentClient client = new AttachmentClient("localhost", relay.port(), relay.registerUploader("Giulio"));
+        String id = client.upload(source, _ -> { });
+
+        Path target = directory.resolve("downloads/video.mp4");
+        Files.createDirectories(target.getParent());
+        Files.write(target.resolveSibling("video.mp4." + id.substring(0, 12) + ".part"),
+                Arrays.copyOf(content, 60_000)); // An earlier attempt broke off here
+
+        List<Long> progress = new ArrayList<>();
+        client.download(id, target, progress::add);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertTrue(progress.get(0) > 60_000); // Only the missing range was transferred
+    }
+
+    @Test
+    public void brokenUploadResumesWithTheMissingChunks() throws Exception {
+        int chunk = AttachmentRelay.UPLOAD_CHUNK_BYTES;
+        byte[] content = new byte[4 * chunk + 100];
+        new Random(3).nextBytes(content);
+        Path source = Files.write(directory.resolve("slides.pdf"), content);
+        String hash = AttachmentStore.sha256(source);
+        String token = relay.registerUploader("Giulio");
+
+        // First attempt delivers chunk 0 and a corrupted chunk 1, then the connection drops
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", relay.port()))) {
+            AttachmentRelay.writeLine(channel, "OFFER " + token + " " + hash + " " + content.length + " slides.pdf");
+            String[] session = AttachmentRelay.readLine(channel).split(" ");
+            assertEquals("SESSION", session[0]);
+            assertEquals("0-4", session[3]);
+
+            sendChunk(channel, session[1], 0, Arrays.copyOfRange(content, 0, chunk), false);
+            assertEquals("ACK 0", AttachmentRelay.readLine(channel));
+            sendChunk(channel, session[1], 1, Arrays.copyOfRange(content, chunk, 2 * chunk), true);
+            assertEquals("ERR checksum mismatch 1", AttachmentRelay.readLine(channel));
+
+            AttachmentRelay.writeLine(channel, "RESUME " + session[1]);
+            assertEquals("MISSING 1-4", AttachmentRelay.readLine(channel));
+        }
+
+        List<Long> progress = new ArrayList<>();
+        AttachmentClient client = new AttachmentClient("localhost", relay.port(), token);
+        assertEquals(hash, client.upload(source, progress::add));
+        assertEquals(chunk, progress.get(0)); // Picked up after the chunk that had already arrived
+        assertEquals("Giulio:slides.pdf:" + content.length, announced.poll(5, TimeUnit.SECONDS));
+        assertArrayEquals(content, Files.readAllBytes(relay.store().blobPath(hash)));
+    }
+
+    private static void sendChunk(SocketChannel channel, String sessionId, int index, byte[] data, boolean corrupt)
+            throws Exception {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        if (corrupt) {
+            data[10] ^= 1;
+        }
+        AttachmentRelay.writeLine(channel, "CHUNK " + sessionId + " " + index + " " + data.length + " " +
+                crc.getValue());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Test
+    public void unreferencedBlobsAreCollected() throws Exception {
+        try (AttachmentStore store = new AttachmentStore(directory.resolve("gc"), Duration.ZERO)) {
+            Path upload = Files.writeString(store.newUpload(), "old meme");
+            String hash = AttachmentStore.sha256(upload);
+            store.commit(upload, hash);
+            assertTrue(store.retainIfPresent(hash));
+
+            Thread.sleep(5);
+            assertEquals(0, store.collectGarbage()); // Still referenced
+            store.releaseAll();
+            assertEquals(1, store.collectGarbage());
+            assertFalse(store.contains(hash));
+        }
+    }
+
+    @Test
+    public void referenceCountsSurviveARestartAndACorruptLine() throws Exception {
+        Path root = directory.resolve("refs");
+        String hash;
+        try (AttachmentStore store = new AttachmentStore(root)) {
+            Path upload = Files.writeString(store.newUpload(), "kept meme");
+            hash = AttachmentStore.sha256(upload);
+            store.commit(upload, hash);
+            assertTrue(store.retainIfPresent(hash));
+            assertTrue(store.retainIfPresent(hash));
+            store.release(hash);
+        }
+        Files.writeString(root.resolve("refs.txt"), hash + " lots\n" + hash.substring(0, 20),
+                StandardOpenOption.APPEND); // Written by hand, then cut short by a crash
+
+        try (AttachmentStore store = new AttachmentStore(root)) {
+            assertEquals(1, store.referenceCount(hash));
+            store.release(hash);
+        }
+        try (AttachmentStore store = new AttachmentStore(root)) {
+            assertEquals(0, store.referenceCount(hash));
+        }
+    }
+
+    @Test
+    public void unknownTokenIsRejected() throws Exception {
+        Path source = Files.writeString(directory.resolve("notes.txt"), "hello");
+        AttachmentClient client = new AttachmentClient("localhost", relay.port(), "not-a-token");
+
+        try {
+            client.upload(source, _ -> { });
+            fail("Upload with an unknown token should be refused");
+        } catch (java.io.IOException expected) {
+            assertTrue(announced.isEmpty());
+        }
+    }
+
+    @Test
+    public void namesCannotEscapeIntoPathsOrNewLines() {
+        assertEquals("passwd", AttachmentRelay.sanitizeName("../../etc/passwd"));
+        assertEquals("a b.txt", AttachmentRelay.sanitizeName("C:\\temp\\a\nb.txt"));
+    }
+}
@@ -0,0 +1,264 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Content-addressed blob store for attachments. Every file is stored once under its SHA-256, sharded as
+// <root>/ab/cd/<hash> so no directory grows too large. Each chat message announcing a blob holds a reference;
+// blobs nobody references any more are deleted by a background collector after a grace period, which also
+// protects uploads that have been stored but not announced yet.
+public class AttachmentStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(AttachmentStore.class.getName()); // Catch exception errors
+    private static final String TEMP_DIR = "incoming";
+    private static final String REFS_FILE = "refs.txt";
+    private static final int HASH_BUFFER_BYTES = 64 * 1024;
+
+    private final Path root;
+    private final Path incoming; // Uploads in progress, moved into place once their hash has been verified
+    private final Duration grace; // Minimum age before an unreferenced blob or stale upload is deleted
+    private final Map<String, Integer> refs = new HashMap<>(); // Hash -> number of references, guarded by this
+    private Writer refsJournal; // Changes appended since the table was last rewritten, guarded by this
+    private int journaledChanges; // Guarded by this
+    private final ScheduledExecutorService collector;
+
+    public AttachmentStore(Path root) throws IOException {
+        this(root, Duration.ofMinutes(10));
+    }
+
+    public AttachmentStore(Path root, Duration grace) throws IOException {
+        this.root = root;
+        this.incoming = root.resolve(TEMP_DIR);
+        this.grace = grace;
+        Files.createDirectories(incoming);
+        loadRefs();
+
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "attachment-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        collector.scheduleWithFixedDelay(this::runCollector, 1, 5, TimeUnit.MINUTES);
+    }
+
+    public boolean contains(String hash) {
+        return isHash(hash) && Files.isRegularFile(blobPath(hash));
+    }
+
+    // Location of a blob; the hash must have passed isHash
+    public Path blobPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    // Adds a reference if the blob is stored, atomically with respect to garbage collection
+    public synchronized boolean retainIfPresent(String hash) {
+        if (!contains(hash)) return false;
+        refs.merge(hash, 1, Integer::sum);
+        journalRef(hash, 1);
+        return true;
+    }
+
+    public synchronized void release(String hash) {
+        Integer count = refs.get(hash);
+        if (count == null) return;
+        if (count > 1) {
+            refs.put(hash, count - 1);
+        } else {
+            refs.remove(hash);
+        }
+        journalRef(hash, -1);
+    }
+
+    // Drops every reference (used when the chat history is reset); the blobs go with the next collection
+    public synchronized void releaseAll() {
+        refs.clear();
+        saveRefs();
+    }
+
+    public Duration grace() {
+        return grace;
+    }
+
+    public synchronized int referenceCount(String hash) {
+        return refs.getOrDefault(hash, 0);
+    }
+
+    // A fresh file for an upload in progress
+    public Path newUpload() throws IOException {
+        return Files.createTempFile(incoming, "upload-", ".part");
+    }
+
+    // Verifies a finished upload against the hash the client claimed and moves it into the store
+    public Path commit(Path upload, String expectedHash) throws IOException {
+        try {
+            String actual = sha256(upload);
+            if (!actual.equals(expectedHash)) {
+                throw new IOException("Checksum mismatch: expected " + expectedHash + " but got " + actual);
+            }
+            Path target = blobPath(actual);
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(upload, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Someone else uploaded the same content meanwhile; keep theirs
+            }
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+            return target;
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    // Deletes unreferenced blobs and abandoned uploads older than the grace period; returns how many were removed.
+    // The store is walked without the lock, so retains and releases go on meanwhile; each blob found is checked
+    // again under the lock right before it is deleted.
+    public int collectGarbage() throws IOException {
+        long cutoff = System.currentTimeMillis() - grace.toMillis();
+        List<Path> candidates = new ArrayList<>();
+        try (var files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(file) || file.getParent().equals(root)) continue;
+                if (file.getParent().equals(incoming) || isHash(file.getFileName().toString())) {
+                    candidates.add(file);
+                }
+            }
+        }
+        int removed = 0;
+        for (Path file : candidates) {
+            if (file.getParent().equals(incoming) ? deleteIfOlder(file, cutoff) : deleteIfUnreferenced(file, cutoff)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private synchronized boolean deleteIfUnreferenced(Path blob, long cutoff) throws IOException {
+        return !refs.containsKey(blob.getFileName().toString()) && deleteIfOlder(blob, cutoff);
+    }
+
+    private static boolean deleteIfOlder(Path file, long cutoff) throws IOException {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() < cutoff && Files.deleteIfExists(file);
+        } catch (NoSuchFileException e) {
+            return false; // Committed over or deleted since the walk
+        }
+    }
+
+    @Override
+    public void close() {
+        collector.shutdownNow();
+        synchronized (this) {
+            closeJournal();
+        }
+    }
+
+    private void runCollector() {
+        try {
+            int removed = collectGarbage();
+            if (removed > 0) {
+                logger.info("Removed " + removed + " unreferenced attachment file(s)");
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(Level.SEVERE, "An error occurred while collecting unreferenced attachments", e);
+        }
+    }
+
+    // The refs file holds "<hash> <count>" lines, followed by "<hash> +1" and "<hash> -1" lines for every change
+    // since; adding them all up gives the counts. A line that does not parse, such as one cut short by a crash, is
+    // skipped.
+    private void loadRefs() throws IOException {
+        Path file = root.resolve(REFS_FILE);
+        if (!Files.exists(file)) return;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2 || !isHash(parts[0])) continue;
+            try {
+                refs.merge(parts[0], Integer.parseInt(parts[1]), Integer::sum);
+            } catch (NumberFormatException e) {
+                logger.warning("Skipping a corrupt line in " + file + ": " + line);
+            }
+        }
+        refs.values().removeIf(count -> count <= 0);
+        saveRefs(); // Starts the journal from a clean table
+    }
+
+    // Appends one change instead of rewriting the table; the table is rewritten once the journal has grown well
+    // past it
+    private void journalRef(String hash, int change) {
+        try {
+            if (refsJournal == null) {
+                refsJournal = Files.newBufferedWriter(root.resolve(REFS_FILE), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            refsJournal.write(hash + (change > 0 ? " +" : " ") + change + "\n");
+            refsJournal.flush();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred while saving attachment reference counts", e);
+        }
+        if (++journaledChanges > 2 * refs.size() + 1024) {
+            saveRefs();
+        }
+    }
+
+    // Rewrites the reference counts through a temporary file so a crash never leaves a half-written table
+    private void saveRefs() {
+        closeJournal();
+        StringBuilder table = new StringBuilder();
+        refs.forEach((hash, count) -> table.append(hash).append(' ').append(count).append('\n'));
+        try {
+            Path temp = Files.writeString(root.resolve(REFS_FILE + ".tmp"), table, StandardCharsets.UTF_8);
+            Files.move(temp, root.resolve(REFS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            journaledChanges = 0;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred while saving attachment reference counts", e);
+        }
+    }
+
+    private void closeJournal() {
+        if (refsJournal == null) return;
+        try {
+            refsJournal.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred while saving attachment reference counts", e);
+        }
+        refsJournal = null;
+    }
+
+    public static boolean isHash(String value) {
+        return value.length() == 64 && value.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    // Hex SHA-256 of a file, read through a fixed-size buffer
+    public static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_BYTES);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package myapp.chat;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.*;
+
+
+// In-app player for voice messages and audio attachments. Opening, decoding and feeding the SourceDataLine all
+// happen on one background thread, and playback starts as soon as the first bytes of the stream arrive, so a
+// message still being downloaded plays while the rest comes in. Only one clip plays at a time.
+public class AudioPlayer {
+    private static final Logger logger = Logger.getLogger(AudioPlayer.class.getName()); // Catch exception errors
+    private static final int BUFFER_MILLIS = 250; // Line buffer: enough to ride out network hiccups
+
+    private Thread current; // Guarded by this
+    private AtomicBoolean currentStopped; // Each playback has its own, so a new clip never un-stops the old one
+
+    // Whether the file type is something this player understands (everything else goes to the desktop)
+    public static boolean canPlay(String fileName) {
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".au") || lower.endsWith(".wav") || lower.endsWith(".aiff") || lower.endsWith(".aif");
+    }
+
+    // Stops whatever is playing and plays the stream opened by source; onError is called on the player thread
+    public synchronized void play(Callable<InputStream> source, Consumer<Exception> onError) {
+        stop();
+        AtomicBoolean stopped = new AtomicBoolean();
+        current = new Thread(() -> {
+            try (InputStream in = new BufferedInputStream(source.call())) {
+                playStream(in, stopped);
+            } catch (Exception e) {
+                if (!stopped.get()) {
+                    logger.log(Level.WARNING, "An error occurred while playing audio", e);
+                    onError.accept(e);
+                }
+            }
+        }, "audio-player");
+        currentStopped = stopped;
+        current.setDaemon(true);
+        current.start();
+    }
+
+    public synchronized void stop() {
+        if (current != null) {
+            currentStopped.set(true);
+            current.interrupt(); // Unblocks a pending network read
+            current = null;
+            currentStopped = null;
+        }
+    }
+
+    private void playStream(InputStream in, AtomicBoolean stopped) throws IOException, UnsupportedAudioFileException,
+            LineUnavailableException {
+        try (AudioInputStream encoded = AudioSystem.getAudioInputStream(in);
+             AudioInputStream pcm = toPcm(encoded)) {
+            AudioFormat format = pcm.getFormat();
+            int frameBytes = format.getFrameSize();
+            int bufferBytes = (int) (format.getFrameRate() * BUFFER_MILLIS / 1000) * frameBytes;
+
+            try (SourceDataLine line = AudioSystem.getSourceDataLine(format)) {
+                line.open(format, bufferBytes);
+                line.start();
+                byte[] block = new byte[bufferBytes / 2];
+                int read;
+                while (!stopped.get() && (read = pcm.read(block)) > 0) {
+                    line.write(block, 0, read - read % frameBytes);
+                }
+                if (stopped.get()) {
+                    line.flush();
+                } else {
+                    line.drain();
+                }
+            }
+        }
+    }
+
+    // mu-law and other encodings are decoded to signed 16-bit PCM for the line
+    private static AudioInputStream toPcm(AudioInputStream encoded) {
+        AudioFormat source = encoded.getFormat();
+        if (source.getEncoding() == AudioFormat.Encoding.PCM_SIGNED && source.getSampleSizeInBits() == 16) {
+            return encoded;
+        }
+        AudioFormat pcm = new AudioFormat(source.getSampleRate(), 16, source.getChannels(), true, false);
+        return AudioSystem.getAudioInputStream(pcm, encoded);
+    }
+}
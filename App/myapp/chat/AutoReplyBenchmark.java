@@ -0,0 +1,85 @@
+package myapp.chat;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.*;
+
+
+// Compares the old per-topic regex loop in handleAutoReply with the single-pass KeywordMatcher, and times a whole reply
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutoReplyBenchmark {
+
+    @Param({"early", "late", "none", "long"})
+    public String message;
+
+    private String text;
+    private List<Pattern> patterns; // One "\b(a|b|c...)\b" pattern per topic, as handleAutoReply used to build
+    private KeywordMatcher matcher;
+    private AutoReplyRules rules;
+
+    @Setup
+    public void setUp() {
+        rules = new AutoReplyEngine(Path.of("missing", AutoReplyEngine.BUNDLED_RULES)).current();
+        patterns = new ArrayList<>();
+        List<List<String>> keywords = new ArrayList<>();
+        for (AutoReplyRules.Rule rule : rules.rules()) {
+            StringJoiner alternatives = new StringJoiner("|", "\\b(", ")\\b");
+            rule.keywords().forEach(keyword -> alternatives.add(Pattern.quote(keyword)));
+            patterns.add(Pattern.compile(alternatives.toString(), Pattern.CASE_INSENSITIVE));
+            keywords.add(rule.keywords());
+        }
+        matcher = new KeywordMatcher(keywords);
+
+        text = switch (message) {
+            case "early" -> "what's the weather like";
+            case "late" -> "any good art galleries around";
+            case "none" -> "nothing interesting to see here at all";
+            default -> "so I was thinking about what we discussed yesterday, and honestly the plan looks fine "
+                    .repeat(8) + "but does anybody know a good museum";
+        };
+    }
+
+    @Benchmark
+    public int regexLoopFirstTopic() {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(text).find()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int automatonFirstTopic() {
+        return matcher.firstTopic(text);
+    }
+
+    @Benchmark
+    public BitSet regexLoopAllTopics() {
+        BitSet topics = new BitSet(patterns.size());
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(text).find()) {
+                topics.set(i);
+            }
+        }
+        return topics;
+    }
+
+    @Benchmark
+    public BitSet automatonAllTopics() {
+        return matcher.matchingTopics(text);
+    }
+
+    // What AutoReplyBot answers with, matching included
+    @Benchmark
+    public Optional<String> reply() {
+        return rules.reply(text);
+    }
+}
@@ -0,0 +1,18 @@
+package myapp.chat;
+
+import java.util.Optional;
+
+
+// Built-in bot answering "#keyword" messages from the auto_replies.txt topics
+public class AutoReplyBot implements ChatBot {
+
+    @Override
+    public String name() {
+        return "auto-reply";
+    }
+
+    @Override
+    public Optional<String> respond(String senderId, String command) {
+        return ChatServer.autoReplies.current().reply(command);
+    }
+}
@@ -0,0 +1,84 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Loads the auto-reply rules and keeps them current. The external rules file is watched and, when it changes,
+// parsed into a fresh AutoReplyRules that replaces the old one with a single volatile write, so readers never
+// lock. If the file is missing the rules bundled next to this class are used.
+public class AutoReplyEngine {
+    private static final Logger logger = Logger.getLogger(AutoReplyEngine.class.getName()); // Catch exception errors
+    static final String BUNDLED_RULES = "auto_replies.txt";
+
+    private final Path rulesFile;
+    private volatile AutoReplyRules current = AutoReplyRules.empty();
+
+    public AutoReplyEngine(Path rulesFile) {
+        this.rulesFile = rulesFile.toAbsolutePath();
+        reload();
+    }
+
+    // Starts an engine for rulesFile and a daemon thread that reloads it whenever it is modified
+    public static AutoReplyEngine start(Path rulesFile) {
+        AutoReplyEngine engine = new AutoReplyEngine(rulesFile);
+        Thread watcher = new Thread(engine::watch, "auto-reply-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return engine;
+    }
+
+    public AutoReplyRules current() {
+        return current;
+    }
+
+    // Parses the rules and swaps them in; a broken file keeps the previous rules active
+    public void reload() {
+        try (Reader reader = openRules()) {
+            AutoReplyRules rules = AutoReplyRules.parse(reader);
+            current = rules;
+            logger.info("Loaded " + rules.rules().size() + " auto-reply topics");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Keeping the previous auto-reply rules, could not load " + rulesFile, e);
+        }
+    }
+
+    private Reader openRules() throws IOException {
+        if (Files.isRegularFile(rulesFile)) {
+            return Files.newBufferedReader(rulesFile, StandardCharsets.UTF_8);
+        }
+        InputStream bundled = AutoReplyEngine.class.getResourceAsStream(BUNDLED_RULES);
+        if (bundled == null) {
+            throw new FileNotFoundException(rulesFile + " (and no bundled " + BUNDLED_RULES + ")");
+        }
+        return new InputStreamReader(bundled, StandardCharsets.UTF_8);
+    }
+
+    private void watch() {
+        Path directory = rulesFile.getParent();
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (rulesFile.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    reload();
+                }
+                if (!key.reset()) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Auto-reply rules will not be reloaded, cannot watch " + directory, e);
+        }
+    }
+}
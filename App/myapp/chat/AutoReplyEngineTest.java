@@ -0,0 +1,87 @@
+package myapp.chat;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class AutoReplyEngineTest {
+
+    @Nested
+    class Rules {
+        @Test
+        public void bundledRulesCoverTheBuiltInTopics() throws Exception {
+            Path missing = Files.createTempDirectory("rules-test").resolve("auto_replies.txt");
+            AutoReplyRules rules = new AutoReplyEngine(missing).current();
+
+            assertEquals(32, rules.rules().size());
+            assertEquals("weather", rules.rules().get(0).topic());
+            assertTrue(rules.reply("Is it going to RAIN today?").isPresent());
+            assertTrue(rules.reply("ping-pong tonight?").isPresent());
+            assertFalse(rules.reply("xyzzy").isPresent());
+            for (AutoReplyRules.Rule rule : rules.rules()) {
+                // The built-in topics have 5 or 10 replies; a reply wrapped onto two "- " lines breaks both
+                assertTrue(rule.responses().size() == 5 || rule.responses().size() == 10, rule.topic());
+                for (String response : rule.responses()) {
+                    assertTrue(response.trim().split("\\s+").length >= 3, rule.topic() + ": " + response);
+                }
+            }
+        }
+
+        @Test
+        public void reloadSwapsInTheNewRulesAndKeepsThemOnErrors() throws Exception {
+            Path file = Files.createTempFile("auto_replies", ".txt");
+            Files.writeString(file, "[greeting]\nkeywords = hello\n- Hi!\n");
+            AutoReplyEngine engine = new AutoReplyEngine(file);
+            assertEquals(Optional.of("Hi!"), engine.current().reply("hello there"));
+
+            Files.writeString(file, "[greeting]\nkeywords = hello, hey there\n- Hey!\n");
+            engine.reload();
+            assertEquals(Optional.of("Hey!"), engine.current().reply("oh HEY THERE"));
+
+            Files.writeString(file, "keywords without a topic\n");
+            engine.reload();
+            assertEquals(Optional.of("Hey!"), engine.current().reply("hello"));
+            Files.delete(file);
+        }
+    }
+
+    @Nested
+    class KeywordMatching {
+        @Test
+        public void agreesWithTheWordBoundaryRegex() {
+            List<List<String>> keywords = List.of(List.of("rain", "sun"), List.of("hi there", "hi"),
+                    List.of("ping-pong", "café"), List.of("sunrise"));
+            KeywordMatcher matcher = new KeywordMatcher(keywords);
+            List<Pattern> patterns = new ArrayList<>();
+            for (List<String> topic : keywords) {
+                StringJoiner alternatives = new StringJoiner("|", "\\b(", ")\\b");
+                topic.forEach(keyword -> alternatives.add(Pattern.quote(keyword)));
+                // \b is ASCII-only since JDK 19 unless asked otherwise; the matcher treats "é" as a word letter
+                patterns.add(Pattern.compile(alternatives.toString(),
+                        Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNICODE_CHARACTER_CLASS));
+            }
+
+            for (String text : List.of("Rain today", "brain", "sunrise soon", "sunny", "HI THERE!", "this",
+                    "ping-pong?", "pingpong", "un Café", "cafés", "rain_fall", "sun-rise", "")) {
+                BitSet expected = new BitSet();
+                for (int i = 0; i < patterns.size(); i++) {
+                    if (patterns.get(i).matcher(text).find()) expected.set(i);
+                }
+                assertEquals(expected, matcher.matchingTopics(text), text);
+            }
+        }
+
+        @Test
+        public void firstTopicFollowsFileOrder() {
+            KeywordMatcher matcher = new KeywordMatcher(List.of(List.of("fitness", "health"),
+                    List.of("health", "doctor")));
+            assertEquals(0, matcher.firstTopic("my health"));
+            assertEquals(1, matcher.firstTopic("see a doctor"));
+            assertEquals(-1, matcher.firstTopic("nothing"));
+        }
+    }
+}
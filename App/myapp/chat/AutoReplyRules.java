@@ -0,0 +1,104 @@
+package myapp.chat;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+// Immutable, compiled set of auto-reply topics parsed from an auto_replies.txt style file. Instances are
+// safe to share between threads; a new set is built and swapped in whenever the rules file changes.
+public final class AutoReplyRules {
+    private final List<Rule> rules;
+    private final KeywordMatcher matcher; // Finds every matching topic in a single pass
+
+    private AutoReplyRules(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+        List<List<String>> keywords = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            keywords.add(rule.keywords());
+        }
+        this.matcher = new KeywordMatcher(keywords);
+    }
+
+    public static AutoReplyRules empty() {
+        return new AutoReplyRules(List.of());
+    }
+
+    public List<Rule> rules() {
+        return rules;
+    }
+
+    // Returns a random reply from the first topic (in file order) whose keywords appear in the message
+    public Optional<String> reply(String message) {
+        int topic = matcher.firstTopic(message);
+        return topic < 0 ? Optional.empty() : Optional.of(rules.get(topic).randomResponse());
+    }
+
+    // Every matching topic, in priority order
+    public List<Rule> matchingRules(String message) {
+        List<Rule> matching = new ArrayList<>();
+        BitSet topics = matcher.matchingTopics(message);
+        for (int topic = topics.nextSetBit(0); topic >= 0; topic = topics.nextSetBit(topic + 1)) {
+            matching.add(rules.get(topic));
+        }
+        return matching;
+    }
+
+    // Format: "[topic]" starts a block, "keywords = a, b, c" lists its triggers, "- text" adds a reply.
+    // Blank lines and lines starting with '#' are ignored.
+    public static AutoReplyRules parse(Reader source) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(source);
+        String topic = null;
+        List<String> keywords = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+
+            if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+                addRule(rules, topic, keywords, responses);
+                topic = trimmed.substring(1, trimmed.length() - 1).trim();
+                keywords = new ArrayList<>();
+                responses = new ArrayList<>();
+            } else if (topic == null) {
+                throw new IOException("Line " + lineNumber + ": expected a [topic] header");
+            } else if (trimmed.startsWith("keywords")) {
+                int equals = trimmed.indexOf('=');
+                if (equals < 0) {
+                    throw new IOException("Line " + lineNumber + ": expected 'keywords = a, b, c'");
+                }
+                for (String keyword : trimmed.substring(equals + 1).split(",")) {
+                    if (!keyword.isBlank()) {
+                        keywords.add(keyword.trim());
+                    }
+                }
+            } else if (trimmed.startsWith("-")) {
+                responses.add(trimmed.substring(1).trim());
+            } else {
+                throw new IOException("Line " + lineNumber + ": unexpected content in [" + topic + "]");
+            }
+        }
+        addRule(rules, topic, keywords, responses);
+        return new AutoReplyRules(rules);
+    }
+
+    private static void addRule(List<Rule> rules, String topic, List<String> keywords, List<String> responses)
+            throws IOException {
+        if (topic == null) return;
+        if (keywords.isEmpty() || responses.isEmpty()) {
+            throw new IOException("Topic [" + topic + "] needs at least one keyword and one reply");
+        }
+        rules.add(new Rule(topic, List.copyOf(keywords), List.copyOf(responses)));
+    }
+
+    public record Rule(String topic, List<String> keywords, List<String> responses) {
+        public String randomResponse() {
+            return responses.get(ThreadLocalRandom.current().nextInt(responses.size()));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package myapp.chat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Runs "#command" messages through every ChatBot on a bounded pool. Each invocation is cancelled once it has run for
+// longer than the timeout, and when the queue is full new commands are rejected instead of piling up.
+public class BotDispatcher {
+    private static final Logger logger = Logger.getLogger(BotDispatcher.class.getName()); // Catch exception errors
+
+    private final List<ChatBot> bots;
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService watchdog;
+    private final long timeoutNanos;
+
+    public BotDispatcher(List<ChatBot> bots, int threads, int queueCapacity, long timeout, TimeUnit unit) {
+        this.bots = List.copyOf(bots);
+        for (ChatBot bot : this.bots) {
+            stats.put(bot.name(), new Stats());
+        }
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("bot-worker"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("bot-watchdog"));
+    }
+
+    // Every ChatBot found by ServiceLoader, with the default pool size, queue and timeout
+    public static BotDispatcher loadBots() {
+        List<ChatBot> bots = new ArrayList<>();
+        for (ChatBot bot : ServiceLoader.load(ChatBot.class)) {
+            bots.add(bot);
+        }
+        logger.info("Loaded bots: " + bots.stream().map(ChatBot::name).toList());
+        return new BotDispatcher(bots, Math.max(2, Runtime.getRuntime().availableProcessors()), 256, 2,
+                TimeUnit.SECONDS);
+    }
+
+    // Offers the command to every bot. Replies go to onReply; if no bot answers, onUnanswered runs once all
+    // invocations have finished. Bots the saturated pool had no room for are skipped; returns false if that was all
+    // of them and the command was dropped.
+    public boolean dispatch(String senderId, String command, Consumer<String> onReply, Runnable onUnanswered) {
+        if (bots.isEmpty()) {
+            onUnanswered.run();
+            return true;
+        }
+
+        AtomicInteger pending = new AtomicInteger(bots.size() + 1); // Plus one until every bot has been offered it
+        AtomicInteger replies = new AtomicInteger();
+        Runnable finished = () -> {
+            if (pending.decrementAndGet() == 0 && replies.get() == 0) {
+                onUnanswered.run();
+            }
+        };
+
+        boolean accepted = false;
+        for (ChatBot bot : bots) {
+            Invocation invocation = new Invocation(bot, senderId, command, reply -> {
+                replies.incrementAndGet();
+                onReply.accept(reply);
+            }, finished);
+            try {
+                pool.execute(invocation);
+                accepted = true;
+            } catch (RejectedExecutionException e) {
+                stats.get(bot.name()).rejected.increment();
+                pending.decrementAndGet(); // Never ran, so it must not trigger the unanswered fallback
+            }
+        }
+        if (accepted) {
+            finished.run(); // The other bots' silence now means nobody answered
+        }
+        return accepted;
+    }
+
+    // One line per bot: invocations, replies, latency and failure counters
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("Bots (queue %d/%d, active %d):%n",
+                pool.getQueue().size(), pool.getQueue().size() + pool.getQueue().remainingCapacity(),
+                pool.getActiveCount()));
+        stats.forEach((name, s) -> {
+            long calls = s.completed.sum();
+            report.append(String.format("  %-12s calls=%d replies=%d avg=%.2fms max=%.2fms timeouts=%d " +
+                            "errors=%d rejected=%d%n", name, calls, s.replies.sum(),
+                    calls == 0 ? 0.0 : s.totalNanos.sum() / 1e6 / calls, s.maxNanos.get() / 1e6,
+                    s.timeouts.sum(), s.errors.sum(), s.rejected.sum()));
+        });
+        return report.toString();
+    }
+
+    public int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // A single bot call; done() records the outcome whether it finished, failed or was cancelled by the watchdog,
+    // which only starts counting once the call runs so time spent queued is not held against the bot
+    private class Invocation extends FutureTask<Optional<String>> {
+        private final ChatBot bot;
+        private final Consumer<String> onReply;
+        private final Runnable onFinished;
+        private final long queuedAt = System.nanoTime();
+        private volatile ScheduledFuture<?> timeout;
+
+        Invocation(ChatBot bot, String senderId, String command, Consumer<String> onReply, Runnable onFinished) {
+            super(() -> bot.respond(senderId, command));
+            this.bot = bot;
+            this.onReply = onReply;
+            this.onFinished = onFinished;
+        }
+
+        @Override
+        public void run() {
+            timeout = watchdog.schedule(() -> cancel(true), timeoutNanos, TimeUnit.NANOSECONDS);
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            ScheduledFuture<?> pendingTimeout = timeout;
+            if (pendingTimeout != null) {
+                pendingTimeout.cancel(false);
+            }
+
+            Stats s = stats.get(bot.name());
+            long elapsed = System.nanoTime() - queuedAt;
+            s.completed.increment();
+            s.totalNanos.add(elapsed);
+            s.maxNanos.accumulateAndGet(elapsed, Math::max);
+            try {
+                if (isCancelled()) {
+                    s.timeouts.increment();
+                } else {
+                    Optional<String> reply = get();
+                    if (reply.isPresent()) {
+                        s.replies.increment();
+                        onReply.accept(reply.get());
+                    }
+                }
+            } catch (ExecutionException e) {
+                s.errors.increment();
+                logger.log(Level.WARNING, "Bot " + bot.name() + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                onFinished.run();
+            }
+        }
+    }
+
+    private static class Stats {
+        final LongAdder completed = new LongAdder();
+        final LongAdder replies = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+    }
+}
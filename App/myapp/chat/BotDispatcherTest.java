@@ -0,0 +1,98 @@
+package myapp.chat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class BotDispatcherTest {
+
+    private static ChatBot bot(String name, long delayMillis, String reply) {
+        return new ChatBot() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public Optional<String> respond(String senderId, String command) throws Exception {
+                Thread.sleep(delayMillis);
+                return Optional.ofNullable(reply);
+            }
+        };
+    }
+
+    @Nested
+    class Dispatching {
+        @Test
+        public void repliesFromEveryBotAreDelivered() throws Exception {
+            BotDispatcher dispatcher = new BotDispatcher(List.of(bot("a", 0, "from a"), bot("b", 10, "from b")),
+                    2, 8, 1, TimeUnit.SECONDS);
+            BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+            assertTrue(dispatcher.dispatch("Giulio", "weather", replies::add, () -> replies.add("unanswered")));
+            Set<String> received = Set.of(replies.poll(2, TimeUnit.SECONDS), replies.poll(2, TimeUnit.SECONDS));
+            assertEquals(Set.of("from a", "from b"), received);
+            assertNull(replies.poll(100, TimeUnit.MILLISECONDS));
+            dispatcher.shutdown();
+        }
+
+        @Test
+        public void slowBotsTimeOutAndFallBackToUnanswered() throws Exception {
+            BotDispatcher dispatcher = new BotDispatcher(List.of(bot("slow", 5_000, "too late")), 1, 8,
+                    50, TimeUnit.MILLISECONDS);
+            CountDownLatch unanswered = new CountDownLatch(1);
+
+            dispatcher.dispatch("Giulio", "anything", _ -> fail("Timed-out bot must not reply"),
+                    unanswered::countDown);
+            assertTrue(unanswered.await(2, TimeUnit.SECONDS));
+            assertTrue(dispatcher.report().contains("timeouts=1"), dispatcher.report());
+            dispatcher.shutdown();
+        }
+
+        @Test
+        public void saturatedPoolRejectsCommands() {
+            BotDispatcher dispatcher = new BotDispatcher(List.of(bot("busy", 1_000, null)), 1, 1,
+                    5, TimeUnit.SECONDS);
+
+            assertTrue(dispatcher.dispatch("Giulio", "one", _ -> { }, () -> { })); // Running
+            assertTrue(dispatcher.dispatch("Giulio", "two", _ -> { }, () -> { })); // Queued
+            assertFalse(dispatcher.dispatch("Giulio", "three", _ -> { }, () -> { })); // Rejected
+            assertTrue(dispatcher.report().contains("rejected=1"), dispatcher.report());
+            dispatcher.shutdown();
+        }
+
+        @Test
+        public void timeSpentQueuedDoesNotCountTowardsTheTimeout() throws Exception {
+            BotDispatcher dispatcher = new BotDispatcher(List.of(bot("steady", 150, "done")), 1, 8,
+                    250, TimeUnit.MILLISECONDS);
+            BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+            for (int i = 0; i < 3; i++) { // The last one waits 300 ms for the others, then runs 150 ms
+                assertTrue(dispatcher.dispatch("Giulio", "ping", replies::add, () -> replies.add("unanswered")));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals("done", replies.poll(2, TimeUnit.SECONDS));
+            }
+            assertTrue(dispatcher.report().contains("timeouts=0"), dispatcher.report());
+            dispatcher.shutdown();
+        }
+
+        @Test
+        public void aCommandSomeBotsTookIsNotDropped() throws Exception {
+            BotDispatcher dispatcher = new BotDispatcher(List.of(bot("slow", 200, null), bot("fast", 0, "from fast")),
+                    1, 2, 5, TimeUnit.SECONDS);
+            BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+            assertTrue(dispatcher.dispatch("Giulio", "one", replies::add, () -> replies.add("one unanswered")));
+            // Only slow fits in the queue now; fast is rejected
+            assertTrue(dispatcher.dispatch("Giulio", "two", replies::add, () -> replies.add("two unanswered")));
+            Set<String> received = Set.of(replies.poll(2, TimeUnit.SECONDS), replies.poll(2, TimeUnit.SECONDS));
+            assertEquals(Set.of("from fast", "two unanswered"), received);
+            assertTrue(dispatcher.report().contains("rejected=1"), dispatcher.report());
+            dispatcher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// One chat line through ClientHandler.broadcast: logged and indexed once, then written to every member. Members
+// write to a null stream, so this is the server's share of the fan-out without the kernel's.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = ServerBenchmarks.FORK_HISTORY_DIR)
+public class BroadcastBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int members;
+
+    private ChatServer.ClientHandler sender;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatServer.history.clear();
+        for (int i = 0; i < members; i++) {
+            ChatServer.ClientHandler member = new ChatServer.ClientHandler("member" + i,
+                    OutputStream.nullOutputStream());
+            ChatServer.clients.add(member);
+            if (sender == null) sender = member;
+        }
+    }
+
+    // A log that grows for the whole run would make later iterations slower than earlier ones
+    @TearDown(Level.Iteration)
+    public void clearHistory() throws IOException {
+        ChatServer.history.clear();
+        ChatServer.searchIndex.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        ChatServer.clients.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        sender.broadcast("member0: is anyone around for lunch today?");
+    }
+}
@@ -0,0 +1,16 @@
+package myapp.chat;
+
+import java.util.Optional;
+
+
+// Service provider interface for "#command" responders. Implementations are discovered with ServiceLoader
+// (see the provides clause in module-info.java) and run on the bot pool, never on a client's reader thread.
+public interface ChatBot {
+
+    // Short identifier used in statistics and logs
+    String name();
+
+    // Returns the reply for the sender, or empty if the command is not for this bot. Called concurrently from
+    // several pool threads; long-running work should respond to interruption, which is how timeouts are enforced.
+    Optional<String> respond(String senderId, String command) throws Exception;
+}
@@ -16,7 +16,17 @@ import javax.swing.Timer;
 import javax.swing.text.*;
 import javax.sound.sampled.*;
 import java.time.LocalDateTime;
-import java.util.regex.Matcher;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,39 +35,58 @@ import java.time.format.DateTimeFormatter;
 
 
 public class ChatClient {
-    private String id; // Unique identifier for the client
-    private Socket socket; // Network socket to communicate with the server
-    private BufferedReader reader; // Reader for receiving messages from the server
-    private static PrintWriter writer; // Writer for sending messages to the server
+    private volatile String id; // Unique identifier for the client
+    private ChatEventLoop io; // Drives the connection's socket
+    private ChatConnection connection; // Protocol and session; this class only shows what it reports
     private JFrame frame; // GUI window
-    private static JTextArea chatArea; // Text area for displaying chat messages
+    private MessageListModel chatModel; // Rows of the main chat view, mostly paged out to a row log
+    private MessageList chatList; // Virtualized view of chatModel
+    private static final int RESIDENT_ROWS = 2000; // Chat rows kept in memory; older ones are paged in on scroll
+    private final FrameBatcher uiBatcher = new FrameBatcher(); // Network-thread UI updates, applied once per frame
     private JTextField inputField;  // Input field for user messages
     private static final Logger logger = Logger.getLogger(ChatClient.class.getName()); // Catch exception errors
     private HashMap<String, ChatWindow> privateChats; // Stores active private chat windows
     private JPopupMenu reactionMenu; // Right-click popup menu for reactions
     private String lastSelectedMessage = null;
-    private DefaultListModel<String> userListModel;
+    private final PresenceListModel userListModel = new PresenceListModel(); // Member list, indexed by user ID
+    private final Map<String, Boolean> pendingPresence = new LinkedHashMap<>(); // Status changes for the next frame
     private final Map<Integer, String> messages = new HashMap<>();
-    private final Map<String, File> sentFiles = new HashMap<>();
+    private final Map<String, File> sentFiles = new ConcurrentHashMap<>(); // Also read by thumbnail workers
+    // File name -> attachment ID on the server; also read while painting thumbnails
+    private final Map<String, String> receivedFiles = new ConcurrentHashMap<>();
+    // FILE:/VOICE: announcement -> the row showing it, so deleting one finds the other
+    private final Map<String, String> attachmentRows = new ConcurrentHashMap<>();
+    private static final int THUMBNAIL_SIZE = 160; // Longest side of inline image previews
+    private final ThumbnailCache thumbnails = new ThumbnailCache(Path.of("thumbnails"), THUMBNAIL_SIZE, 32L << 20,
+            _ -> chatList.repaint()); // Previews of image attachments, 32 MiB in memory
+    private final ExecutorService transfers = Executors.newFixedThreadPool(2); // Downloads off the EDT
+    // Downloaded attachments by content hash, kept across sessions up to 512 MiB
+    private final AttachmentCache attachmentCache = new AttachmentCache(Path.of("attachment_cache"), 512L << 20);
+    private final UploadQueue uploads = new UploadQueue(new UploadProgress()); // Background, resumable uploads
+    private JProgressBar uploadProgress; // Shown while uploads are queued or running
+    private String serverIP;
+    private AttachmentClient attachmentClient; // Data channel for file bytes, set once the server announces it
     private File selectedFile;
     private TargetDataLine microphone;
-    private File voiceMessageFile;
+    private final AudioPlayer audioPlayer = new AudioPlayer(); // Plays voice/audio in-app, streaming if remote
+    private PushToTalkClient liveVoice; // Set while in a live voice room
+    private JButton liveVoiceButton;
+    private VoiceRecorder voiceRecorder; // Encodes and uploads the message while the button is held
     private boolean isRecording = false;
     private long voiceButtonPressTime;
 
 
     public ChatClient(String id, String serverIP, int port) {
         try {
-            socket = new Socket(serverIP, port); // Connect to the server
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));  // Read incoming messages
-            writer = new PrintWriter(socket.getOutputStream(), true); // Send messages
+            this.serverIP = serverIP;
             privateChats = new HashMap<>(); // Initialize chat windows storage
+            chatModel = MessageListModel.temporary(RESIDENT_ROWS); // Before any event can add rows
+            io = new ChatEventLoop("chat-io");
+            connection = new ChatConnection(io, serverIP, port, new Events(), openHistoryCache(serverIP, port));
 
             // Ensure the ID is unique before proceeding
             while (true) {
-                writer.println(id); // Send ID to server
-                String serverResponse = reader.readLine();
-                if ("ID_EXISTS".equals(serverResponse)) {
+                if (!connection.login(id).join()) {
                 	// Ask user for a new ID if the entered one already exists
                     id = JOptionPane.showInputDialog("ID already in use. Enter a different ID:");
                     if (id == null || id.trim().isEmpty()) {
@@ -86,7 +115,7 @@ public class ChatClient {
                             }
                         }
                     }
-                } else if ("ID_ACCEPTED".equals(serverResponse)) {
+                } else {
                     this.id = id; // Assign the accepted ID
                     break; // Exit loop when a unique ID is confirmed
                 }
@@ -94,8 +123,7 @@ public class ChatClient {
 
             frame = new JFrame("Chat Client - " + id); // Set the chat window title to include the user ID
 
-            String serverResponse = reader.readLine();
-            if (serverResponse != null && serverResponse.equals("COORDINATOR")) {
+            if (connection.coordinator()) {
             	// Notify the user if they are assigned as the coordinator
                 JOptionPane.showMessageDialog(null, "You are the coordinator.",
                         "Coordinator Assigned", JOptionPane.INFORMATION_MESSAGE);
@@ -103,9 +131,9 @@ public class ChatClient {
 
             buildGUI(); // Build the graphical user interface
             setupMessageContextMenu(); // Set up the context menu for messages
-            new MessageReceiver().start(); // Start a thread to listen for incoming messages
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "An error occurred while connecting to the server", e);
+        } catch (IOException | CompletionException e) {
+            logger.log(Level.SEVERE, "An error occurred while connecting to the server",
+                    e instanceof CompletionException ? e.getCause() : e);
         }
     }
 
@@ -175,12 +203,8 @@ public class ChatClient {
         frame.setLayout(new BorderLayout());
 
         /* ===== Chat Area Setup ===== */
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setBackground(new Color(240, 248, 255));
-        chatArea.setBorder(BorderFactory.createEmptyBorder(10, 5, 10, 5));
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
+        chatList = new MessageList(chatModel, new ImagePreviews(), THUMBNAIL_SIZE);
+        chatList.setFont(UIManager.getFont("TextArea.font"));
 
         /* ===== Font Area Setup ===== */
         String os = System.getProperty("os.name").toLowerCase();
@@ -194,7 +218,7 @@ public class ChatClient {
         }
 
         // Wrap the chat area in a scroll pane so that messages can be scrolled
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
+        JScrollPane chatScrollPane = new JScrollPane(chatList);
         chatScrollPane.setBorder(BorderFactory.createLineBorder(Color.GRAY, 1));
 
         /* ===== Input Panel (Bottom Panel) ===== */
@@ -213,6 +237,8 @@ public class ChatClient {
         JButton emojiButton = createIconButton("😀");
         JButton attachButton = createIconButton("📎");
         JButton voiceMessageButton = createIconButton("🎤");
+        liveVoiceButton = createIconButton("📞");
+        liveVoiceButton.setToolTipText("Join a live voice room (then hold 🎤 to talk)");
 
         // ===== Input Panel (With Icons and Message Field) =====
         JPanel inputContainer = new JPanel(new BorderLayout());
@@ -253,6 +279,7 @@ public class ChatClient {
         // Right Panel (Voice Message Icon)
         JPanel rightIcons = new JPanel(new GridBagLayout());
         rightIcons.setOpaque(false);
+        rightIcons.add(liveVoiceButton, gbc);
         rightIcons.add(voiceMessageButton, gbc);
 
         // Add components inside the "input field" container
@@ -362,14 +389,14 @@ public class ChatClient {
         userStatusPanel.setLayout(new BoxLayout(userStatusPanel, BoxLayout.Y_AXIS));
         userStatusPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
 
-        userListModel = new DefaultListModel<>();
-        JList<String> userList = new JList<>(userListModel);
+        JList<PresenceListModel.Member> userList = new JList<>(userListModel);
         JScrollPane userListScrollPane = new JScrollPane(userList);
 
         userListScrollPane.setBorder(BorderFactory.createLineBorder(Color.GRAY, 1));
         userListScrollPane.setPreferredSize(new Dimension(152, 800));
         userListScrollPane.setMaximumSize(new Dimension(152, 800));
         userList.setFont(getEmojiFont());
+        userList.setPrototypeCellValue(new PresenceListModel.Member("WWWWWWWWWWWW", true)); // No per-row measuring
 
         userStatusPanel.add(userListScrollPane);
         userStatusPanel.add(Box.createVerticalStrut(5));
@@ -422,7 +449,12 @@ public class ChatClient {
         JLabel typingLabel = new JLabel();
         typingLabel.setForeground(Color.GRAY);
 
+        uploadProgress = new JProgressBar(0, 100);
+        uploadProgress.setStringPainted(true);
+        uploadProgress.setVisible(false);
+
         JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(uploadProgress, BorderLayout.NORTH);
         southPanel.add(inputPanel, BorderLayout.CENTER);
         southPanel.add(typingLabel, BorderLayout.SOUTH);
 
@@ -470,15 +502,25 @@ public class ChatClient {
         voiceMessageButton.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                startVoiceRecording();
+                if (liveVoice != null) {
+                    startLiveTalking();
+                } else {
+                    startVoiceRecording();
+                }
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                stopVoiceRecording();
+                if (liveVoice != null) {
+                    stopLiveTalking();
+                } else {
+                    stopVoiceRecording();
+                }
             }
         });
 
+        liveVoiceButton.addActionListener(_ -> toggleLiveVoice());
+
         inputField.addKeyListener(new KeyAdapter() {
             private Timer typingTimer;
             private boolean isTyping = false;
@@ -487,8 +529,7 @@ public class ChatClient {
             public void keyPressed(KeyEvent e) {
                 if (!isTyping) {
                     isTyping = true;
-                    writer.println("TYPING:" + id + ":typing");
-                    writer.flush();
+                    connection.send("TYPING:" + id + ":typing");
                 }
 
                 if (typingTimer != null) {
@@ -496,8 +537,7 @@ public class ChatClient {
                 } else {
                     typingTimer = new Timer(60000, _ -> {
                         isTyping = false;
-                        writer.println("TYPING_END:" + id);
-                        writer.flush();
+                        connection.send("TYPING_END:" + id);
                         typingLabel.setText("");
                         southPanel.revalidate();
                         southPanel.repaint();
@@ -510,7 +550,7 @@ public class ChatClient {
                 if (e.getKeyCode() == KeyEvent.VK_ENTER) {
                     String inputText = inputField.getText().trim();
                     if (inputText.startsWith("#")) {
-                        writer.println(inputText); // Send chatbot message
+                        connection.send(inputText); // Send chatbot message
                     } else {
                         sendMessage(); // Send normal message
                     }
@@ -519,8 +559,7 @@ public class ChatClient {
                         typingTimer.stop();
                     }
                     isTyping = false;
-                    writer.println("TYPING_END:" + id);
-                    writer.flush();
+                    connection.send("TYPING_END:" + id);
                     typingLabel.setText("");
                     southPanel.revalidate();
                     southPanel.repaint();
@@ -538,28 +577,11 @@ public class ChatClient {
             String newId = userIdField.getText().trim();
 
             if (newId.isEmpty() || newId.equals(id) || !newId.matches("[A-Za-z0-9_]+")) {
-                chatArea.append("Invalid User ID. Please enter a different one.\n");
+                showMessage("Invalid User ID. Please enter a different one.");
                 return;
             }
 
-            try {
-                writer.println("CHANGE_ID: " + newId);
-
-                String serverResponse = reader.readLine();
-
-                if ("ID_EXISTS".equals(serverResponse)) {
-                    chatArea.append("This ID is already in use. Please choose a different one.\n");
-                } else if ("ID_ACCEPTED".equals(serverResponse)) {
-                    String oldId = id;
-                    id = newId;
-                    chatArea.append("You updated your User ID from " + oldId + " to " + id + ".\n");
-
-                    frame.setTitle("Chat Client - " + id);
-                }
-            } catch (IOException ex) {
-                chatArea.append("Error communicating with the server. Please try again.\n");
-            }
-
+            connection.changeId(newId); // Answered with onIdChanged or onIdRejected
         });
 
         /* ===== Reaction Menu Setup ===== */
@@ -577,7 +599,7 @@ public class ChatClient {
             JMenuItem menuItem = new JMenuItem(reaction);
             menuItem.addActionListener(_ -> {
                 if (lastSelectedMessage == null) {
-                    chatArea.append("⚠️ Select a message first before reacting!\n");
+                    showMessage("⚠️ Select a message first before reacting!");
                     return;
                 }
                 String userId = id;
@@ -587,36 +609,33 @@ public class ChatClient {
         }
 
         /* ===== Chat Area Right-Click Listener for Reactions ===== */
-        chatArea.addMouseListener(new MouseAdapter() {
+        chatList.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
                 if (SwingUtilities.isRightMouseButton(e)) {
-                    int offset = chatArea.viewToModel2D(e.getPoint());
-                    try {
-                        int rowStart = Utilities.getRowStart(chatArea, offset);
-                        int rowEnd = Utilities.getRowEnd(chatArea, offset);
-                        String selectedMessage = chatArea.getText(rowStart, rowEnd - rowStart).trim();
-
-                        // Extract only the actual message by splitting at ":"
-                        if (selectedMessage.contains(":")) {
-                            lastSelectedMessage = selectedMessage.substring(selectedMessage.indexOf(":") +
-                                    1).trim();
-                        } else {
-                            lastSelectedMessage = selectedMessage;
-                        }
+                    String selectedMessage = chatList.textAt(e.getPoint());
+                    if (selectedMessage == null) return;
+                    chatList.setSelectedIndex(chatList.locationToIndex(e.getPoint()));
+                    selectedMessage = selectedMessage.trim();
+
+                    // Extract only the actual message by splitting at ":"
+                    if (selectedMessage.contains(":")) {
+                        lastSelectedMessage = selectedMessage.substring(selectedMessage.indexOf(":") +
+                                1).trim();
+                    } else {
+                        lastSelectedMessage = selectedMessage;
+                    }
 
-                        if (!lastSelectedMessage.isEmpty()) {
-                            reactionMenu.show(e.getComponent(), e.getX(), e.getY());
-                        } else {
-                            chatArea.append("⚠️ No valid message selected.\n");
-                        }
-                    } catch (BadLocationException ex) {
-                        logger.log(Level.SEVERE, "An error occurred", e);
+                    if (!lastSelectedMessage.isEmpty()) {
+                        reactionMenu.show(e.getComponent(), e.getX(), e.getY());
+                    } else {
+                        showMessage("⚠️ No valid message selected.");
                     }
                 }
             }
         });
 
+        installLatencyOverlay();
         frame.setVisible(true);
     }
 
@@ -835,15 +854,21 @@ public class ChatClient {
     private void sendFile() {
         if (selectedFile == null) return; // No file selected
 
-        String fileName = selectedFile.getName();
-        String fileExtension = getFileExtension(fileName);
-        String fileIcon = getFileIcon(fileExtension);
+        File file = selectedFile;
+        String fileName = file.getName();
 
         // Store the file in sentFiles (only for the sender)
-        sentFiles.put(fileName, selectedFile);
+        sentFiles.put(fileName, file);
 
-        // Send only file name to the server, NOT the path
-        writer.println(id + " sent a file: " + fileIcon + " " + fileName);
+        if (attachmentClient == null) {
+            // Server without a data port: only the file name can be shared
+            connection.send(id + " sent a file: " + getFileIcon(getFileExtension(fileName)) + " " + fileName);
+        } else {
+            // Uploaded in the background; the server announces the file once it has arrived
+            uploads.enqueue(attachmentClient, file.toPath());
+            uploadProgress.setString("Queued " + fileName);
+            uploadProgress.setVisible(true);
+        }
 
         // Reset input field after sending
         inputField.setText("Type a message");
@@ -852,17 +877,73 @@ public class ChatClient {
         selectedFile = null; // Clear selected file
     }
 
+    // ===== Reflect Background Uploads in the Progress Bar =====
+    private class UploadProgress implements UploadQueue.Listener {
+        @Override
+        public void progress(String fileName, int percent, int waiting) {
+            SwingUtilities.invokeLater(() -> {
+                uploadProgress.setValue(percent);
+                uploadProgress.setString("Sending " + fileName + " " + percent + "%" +
+                        (waiting > 1 ? " (" + (waiting - 1) + " more queued)" : ""));
+                uploadProgress.setVisible(true);
+            });
+        }
+
+        @Override
+        public void finished(String fileName, String attachmentId, int waiting) {
+            SwingUtilities.invokeLater(() -> uploadProgress.setVisible(uploads.waiting() > 0));
+        }
+
+        @Override
+        public void failed(String fileName, IOException error, int waiting) {
+            logger.log(Level.WARNING, "An error occurred while uploading " + fileName, error);
+            SwingUtilities.invokeLater(() -> {
+                uploadProgress.setVisible(uploads.waiting() > 0);
+                JOptionPane.showMessageDialog(frame, "Could not send " + fileName + ": " + error.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            });
+        }
+    }
+
+    // ===== Fetch a File Someone Else Sent and Open It =====
+    // The cache copy is not opened directly, so an application editing the file cannot corrupt the cache
+    private void downloadAndOpen(String fileName, String attachmentId) {
+        Path target = Path.of(System.getProperty("user.home"), "Downloads", "UltimateChat", fileName);
+        cachedAttachment(attachmentId).whenCompleteAsync((cached, error) -> {
+            try {
+                if (error != null) throw error;
+                Files.createDirectories(target.getParent());
+                Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+                SwingUtilities.invokeLater(() -> openFile(target.toFile()));
+            } catch (Throwable e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                logger.log(Level.WARNING, "An error occurred while downloading " + fileName, cause);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                        "Could not download " + fileName + ": " + cause.getMessage(), "Error",
+                        JOptionPane.ERROR_MESSAGE));
+            }
+        }, transfers);
+    }
+
+    // ===== Attachment From the Local Cache, Downloading It Once if Needed =====
+    private CompletableFuture<Path> cachedAttachment(String attachmentId) {
+        AttachmentClient client = attachmentClient;
+        if (client == null) {
+            return CompletableFuture.failedFuture(new IOException("No data connection to the server"));
+        }
+        return attachmentCache.fetch(attachmentId, (hash, target) -> client.download(hash, target, _ -> { }),
+                transfers);
+    }
+
     // ===== Set Up Double-Click to Open Files or Play Voice Messages =====
     private void setupFileClickListener() {
-        chatArea.addMouseListener(new MouseAdapter() {
+        chatList.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) { // Double-click
-                    int offset = chatArea.viewToModel2D(e.getPoint());
-                    try {
-                        int rowStart = Utilities.getRowStart(chatArea, offset);
-                        int rowEnd = Utilities.getRowEnd(chatArea, offset);
-                        String selectedText = chatArea.getText(rowStart, rowEnd - rowStart).trim();
+                    String clickedRow = chatList.textAt(e.getPoint());
+                    if (clickedRow != null) {
+                        String selectedText = clickedRow.trim();
 
                         if (selectedText.contains(" sent a file: ")) {
                             // Extract file name and open it
@@ -870,8 +951,19 @@ public class ChatClient {
                                     + 1);
                             File fileToOpen = sentFiles.get(clickedFileName);
 
+                            boolean audio = AudioPlayer.canPlay(clickedFileName);
                             if (fileToOpen != null && fileToOpen.exists()) {
-                                openFile(fileToOpen);
+                                if (audio) {
+                                    playVoiceMessage(fileToOpen);
+                                } else {
+                                    openFile(fileToOpen);
+                                }
+                            } else if (receivedFiles.containsKey(clickedFileName) && attachmentClient != null) {
+                                if (audio) {
+                                    streamAudio(receivedFiles.get(clickedFileName));
+                                } else {
+                                    downloadAndOpen(clickedFileName, receivedFiles.get(clickedFileName));
+                                }
                             } else {
                                 JOptionPane.showMessageDialog(null, "File not found: " +
                                                 clickedFileName,
@@ -885,20 +977,56 @@ public class ChatClient {
 
                             if (voiceFile != null && voiceFile.exists()) {
                                 playVoiceMessage(voiceFile); // Play the voice message
+                            } else if (receivedFiles.containsKey(voiceFileName) && attachmentClient != null) {
+                                streamAudio(receivedFiles.get(voiceFileName)); // Plays while downloading
                             } else {
                                 JOptionPane.showMessageDialog(null, "Voice message not found!",
                                         "Error", JOptionPane.ERROR_MESSAGE);
                             }
                         }
-
-                    } catch (BadLocationException ex) {
-                        logger.log(Level.SEVERE, "An error occurred while processing file open request.");
                     }
                 }
             }
         });
     }
 
+    // ===== Thumbnails for Image Rows; MessageList only asks for the rows it paints =====
+    private class ImagePreviews implements MessageList.Previews {
+        @Override
+        public String imageId(String text) {
+            if (!text.contains(" sent a file: ")) return null;
+            String fileName = fileNameOf(text);
+            return ThumbnailCache.canPreview(fileName) ? receivedFiles.get(fileName) : null;
+        }
+
+        @Override
+        public BufferedImage thumbnail(String text, String imageId) {
+            BufferedImage thumbnail = thumbnails.get(imageId);
+            if (thumbnail == null) {
+                thumbnails.request(imageId, () -> openImage(fileNameOf(text), imageId));
+            }
+            return thumbnail;
+        }
+
+        private static String fileNameOf(String text) {
+            return text.substring(text.lastIndexOf(' ') + 1);
+        }
+    }
+
+    // Our own copy if we sent the image, otherwise the blob from the server
+    private InputStream openImage(String fileName, String attachmentId) throws IOException {
+        File local = sentFiles.get(fileName);
+        if (local != null && local.exists()) {
+            return new FileInputStream(local);
+        }
+        Path cached = attachmentCache.get(attachmentId);
+        if (cached != null) {
+            return Files.newInputStream(cached);
+        }
+        if (attachmentClient == null) throw new IOException("No data connection to the server");
+        return attachmentClient.openDownload(attachmentId);
+    }
+
     // ===== Open the File in the Default Application =====
     private void openFile(File file) {
         if (file == null || !file.exists()) {
@@ -938,31 +1066,42 @@ public class ChatClient {
         };
     }
 
+    // Mono is all voice needs; stereo microphones are mixed down while encoding. Returns null if unsupported.
+    private TargetDataLine openMicrophone() throws LineUnavailableException {
+        AudioFormat format = VoiceCodec.CAPTURE_FORMAT;
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+        if (!AudioSystem.isLineSupported(info)) {
+            format = new AudioFormat(VoiceCodec.SAMPLE_RATE, 16, 2, true, true);
+            info = new DataLine.Info(TargetDataLine.class, format);
+        }
+        if (!AudioSystem.isLineSupported(info)) {
+            JOptionPane.showMessageDialog(frame, "Microphone not supported!", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+
+        TargetDataLine line = (TargetDataLine) AudioSystem.getLine(info);
+        line.open(format);
+        line.start();
+        return line;
+    }
+
     private void startVoiceRecording() {
         try {
             voiceButtonPressTime = System.currentTimeMillis();
 
-            AudioFormat format = new AudioFormat(16000, 16, 2, true,
-                    true);
-            DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
-            if (!AudioSystem.isLineSupported(info)) {
-                JOptionPane.showMessageDialog(frame, "Microphone not supported!", "Error",
-                        JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-
-            microphone = (TargetDataLine) AudioSystem.getLine(info);
-            microphone.open(format);
-            microphone.start();
+            microphone = openMicrophone();
+            if (microphone == null) return;
 
             inputField.setEditable(false);
             inputField.setText("🎤 Recording...");
             inputField.setForeground(Color.RED);
             inputField.setBackground(Color.WHITE);
 
-            voiceMessageFile = new File("voice_message.wav");
+            Path voiceFile = Path.of("voice_message_" + voiceButtonPressTime + ".au");
+            voiceRecorder = new VoiceRecorder(new AudioInputStream(microphone), voiceFile, attachmentClient);
             isRecording = true;
-            new Thread(() -> writeAudioToFile(voiceMessageFile)).start();
+            voiceRecorder.start();
 
         } catch (Exception e) {
             JOptionPane.showMessageDialog(frame, "Error starting voice recording!", "Error",
@@ -982,38 +1121,100 @@ public class ChatClient {
         inputField.setForeground(Color.GRAY);
 
         long elapsed = System.currentTimeMillis() - voiceButtonPressTime;
+        VoiceRecorder recorder = voiceRecorder;
+        voiceRecorder = null;
 
-        if (elapsed >= 1000) {
-            sendVoiceMessage(voiceMessageFile);
-        } else {
-            if (!voiceMessageFile.delete()) {
-                System.err.println("⚠️ Failed to delete short voice message.");
+        // Waiting for the last block to reach the server happens off the EDT
+        transfers.execute(() -> {
+            try {
+                if (elapsed < 1000) {
+                    recorder.cancel();
+                    return;
+                }
+                VoiceRecorder.Result result = recorder.finish();
+                SwingUtilities.invokeLater(() -> sendVoiceMessage(result));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "An error occurred while saving the voice message", e);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                        "Error saving voice message!", "Error", JOptionPane.ERROR_MESSAGE));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        }
+        });
+    }
 
+    // ===== Live Voice: Join/Leave a Room and Push to Talk =====
+    private void toggleLiveVoice() {
+        if (liveVoice != null) {
+            connection.send("VOICE_LEAVE");
+            closeLiveVoice();
+            showMessage("📞 You left the live voice room");
+            return;
+        }
+        String room = (String) JOptionPane.showInputDialog(frame, "Live voice room:", "📞 Live Voice",
+                JOptionPane.QUESTION_MESSAGE, null, null, "on-call");
+        if (room != null && !room.isBlank()) {
+            connection.send("VOICE_JOIN:" + room.trim()); // Answered with VOICE_PORT
+        }
     }
 
-    private void writeAudioToFile(File file) {
-        try (AudioInputStream audioStream = new AudioInputStream(microphone)) {
-            while (isRecording) {
-                AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, file);
+    private void closeLiveVoice() {
+        if (liveVoice != null && isRecording) {
+            stopLiveTalking();
+        }
+        try {
+            if (liveVoice != null) {
+                liveVoice.close();
             }
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(frame, "Error saving voice message!", "Error",
+            logger.log(Level.WARNING, "An error occurred while leaving live voice", e);
+        }
+        liveVoice = null;
+        liveVoiceButton.setText("📞");
+    }
+
+    private void startLiveTalking() {
+        try {
+            microphone = openMicrophone();
+            if (microphone == null) return;
+            isRecording = true;
+            liveVoice.startTalking(new AudioInputStream(microphone));
+
+            inputField.setEditable(false);
+            inputField.setText("📢 Live...");
+            inputField.setForeground(Color.RED);
+        } catch (LineUnavailableException e) {
+            JOptionPane.showMessageDialog(frame, "Error starting voice recording!", "Error",
                     JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private void sendVoiceMessage(File file) {
-        if (file == null || !file.exists()) return;
+    private void stopLiveTalking() {
+        if (!isRecording) return;
 
-        String fileName = file.getName();
-        writer.println(id + " sent a voice message: " + fileName);
+        isRecording = false;
+        liveVoice.stopTalking();
+        microphone.stop();
+        microphone.close();
 
+        inputField.setEditable(true);
+        inputField.setText("Type a message");
+        inputField.setForeground(Color.GRAY);
+    }
+
+    private void sendVoiceMessage(VoiceRecorder.Result result) {
+        File file = result.file().toFile();
+        String fileName = file.getName();
         sentFiles.put(fileName, file);
+
+        if (result.attachmentId() == null) {
+            // Not uploaded (no data port or the upload failed): share the name as before
+            connection.send(id + " sent a voice message: " + fileName);
+        }
+        // Otherwise the server has already announced it with a VOICE: line
     }
 
-    // ===== Open and Play the Voice Message in Windows Media Player =====
+    // ===== Play a Local Voice Message or Audio File In-App =====
     private void playVoiceMessage(File file) {
         if (file == null || !file.exists()) {
             JOptionPane.showMessageDialog(frame, "Voice message not found!", "Error",
@@ -1021,18 +1222,26 @@ public class ChatClient {
             return;
         }
 
-        try {
-            // Open file with the system's default application (Windows Media Player, VLC, etc.)
-            Desktop.getDesktop().open(file);
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(frame, "Cannot play voice message!", "Error",
-                    JOptionPane.ERROR_MESSAGE);
-            logger.log(Level.SEVERE, "An error occurred while opening the voice message file.");
+        audioPlayer.play(() -> new FileInputStream(file), this::showPlaybackError);
+    }
+
+    // ===== Play an Attachment from the Server While It Downloads =====
+    private void streamAudio(String attachmentId) {
+        Path cached = attachmentCache.get(attachmentId);
+        if (cached != null) {
+            audioPlayer.play(() -> Files.newInputStream(cached), this::showPlaybackError);
+        } else {
+            audioPlayer.play(() -> attachmentClient.openDownload(attachmentId), this::showPlaybackError);
         }
     }
 
+    private void showPlaybackError(Exception e) {
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, "Cannot play voice message!",
+                "Error", JOptionPane.ERROR_MESSAGE));
+    }
+
     private void requestChatHistory() {
-        writer.println("REQUEST_CHAT_HISTORY");
+        connection.requestHistory();
     }
 
     private static Font getEmojiFont() {
@@ -1111,7 +1320,9 @@ public class ChatClient {
                \s
                🟡 Status Panel → Check who's online or offline. \s
                \s
-               🟡 History Log → Chat is saved in `chat_log.txt` and resets when the server shuts down. \s
+               🟡 History Log → Chat is saved in `chat_history/` and resets when the server shuts down. \s
+               \s
+               🟡 Search → Type SEARCH:words (or SEARCH:2:words for page 2, word* for prefixes). \s
                \s
                ----------------------------
                \s
@@ -1146,40 +1357,24 @@ public class ChatClient {
 
     private void sendReaction(String userId, String messageText, String reaction) {
         if (messageText == null || messageText.trim().isEmpty()) {
-            chatArea.append("⚠️ No message selected for reaction.\n");
+            showMessage("⚠️ No message selected for reaction.");
             return;
         }
 
         // Format reaction message with the actual message text
         String broadcastMessage = userId + " reacted to: \"" + messageText + "\" with " + reaction;
-        writer.println(broadcastMessage + "\n");
-    }
-
-    private void handleReactionMessage(String message) {
-        String[] parts = message.split(":", 3);
-        if (parts.length < 3) return; // Invalid reaction message format
-        String messageId = parts[1];
-        String reaction = parts[2];
-        chatArea.append("Message " + messageId + " received reaction: " + reaction + "\n");
+        connection.send(broadcastMessage + "\n");
     }
 
     private void setupMessageContextMenu() {
-        chatArea.addMouseListener(new MouseAdapter() {
+        chatList.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
                 if (SwingUtilities.isLeftMouseButton(e) && e.getClickCount() == 2) {
-                    int offset = chatArea.viewToModel2D(e.getPoint());
-                    try {
-                        int rowStart = Utilities.getRowStart(chatArea, offset);
-                        int rowEnd = Utilities.getRowEnd(chatArea, offset);
-                        String selectedText = chatArea.getText(rowStart, rowEnd - rowStart);
-                        if (isOwnMessage(selectedText)) {  // Only proceed if it's the user's message
-                            JPopupMenu contextMenu = getContextMenu(selectedText);
-                            contextMenu.show(chatArea, e.getX(), e.getY());
-                        }
-                    } catch (Exception ex) {
-                        logger.log(Level.SEVERE, "An error occurred while setting up the message context menu",
-                                ex);
+                    String selectedText = chatList.textAt(e.getPoint());
+                    if (selectedText != null && (isOwnMessage(selectedText) || ownAnnouncement(selectedText) != null)) {
+                        JPopupMenu contextMenu = getContextMenu(selectedText);
+                        contextMenu.show(chatList, e.getX(), e.getY());
                     }
                 }
             }
@@ -1195,7 +1390,9 @@ public class ChatClient {
                 // Action to delete the selected message
                 deleteItem.addActionListener(_ -> deleteMessage(selectedText));
 
-                contextMenu.add(editItem);
+                if (isOwnMessage(selectedText)) { // Files and voice messages can only be deleted
+                    contextMenu.add(editItem);
+                }
                 contextMenu.add(deleteItem);
 
                 return contextMenu;
@@ -1211,26 +1408,26 @@ public class ChatClient {
                     String updatedMessage = message.split(":")[0] + ": " + newContent;
 
                     // Send edit request to the server
-                    writer.println("EDIT_MESSAGE:" + message + ":" + updatedMessage);
+                    connection.sendReliably("EDIT_MESSAGE:" + message + ":" + updatedMessage);
 
                     replaceMessageInChatArea(message, updatedMessage);
                 }
             }
 
 
-            // Replace the old message with the new message in the chat area
+            // Replace the old message with the new message in the chat view
             private void replaceMessageInChatArea(String oldMessage, String newMessage) {
-                String chatText = chatArea.getText();
-                // Replace the old message with the new message in the entire chat text
-                chatText = chatText.replaceFirst(Pattern.quote(oldMessage), Matcher.quoteReplacement(newMessage));
-                chatArea.setText(chatText);
+                replaceRow(oldMessage, newMessage);
             }
 
-            // Delete the message by replacing it
+            // Delete the message for everyone; for a file or voice message the server gets the announcement
             private void deleteMessage(String message) {
-                String chatText = chatArea.getText();
-                chatText = chatText.replaceFirst(Pattern.quote(message) + "\n?", "");
-                chatArea.setText(chatText);
+                String announcement = ownAnnouncement(message);
+                if (announcement != null) {
+                    attachmentRows.remove(announcement);
+                }
+                connection.sendReliably("DELETE_MESSAGE:" + (announcement != null ? announcement : message));
+                removeRow(message);
             }
 
             // Check if the message belongs to the user
@@ -1246,25 +1443,6 @@ public class ChatClient {
         });
     }
 
-    public void handleTypingEvent(String message) {
-        if (message.startsWith("TYPING:")) {
-            String[] parts = message.split(":");
-            String user = parts[1];  // extract user name
-
-            // Display typing notification only if the message is not from the current user
-            if (!user.equals(id)) {
-                SwingUtilities.invokeLater(() -> chatArea.append(user + " is typing...\n"));
-            }
-        } else if (message.startsWith("TYPING_END:")) {
-            String user = message.substring(11);  // extract user ID
-
-            // Clear typing notification only if the message is not from the current user
-            if (!user.equals(id)) {
-                SwingUtilities.invokeLater(() -> chatArea.append(user + " has stopped typing.\n"));
-            }
-        }
-    }
-
     // Handles sending messages to the server
     private void sendMessage() {
         String message = inputField.getText().trim();
@@ -1273,10 +1451,11 @@ public class ChatClient {
             return; // Do nothing if empty or still contains the placeholder
         }
 
-        if (message.equals("REQUEST_MEMBER_LIST") || message.equals("ACTIVE_CHECK") || message.startsWith("@")) {
-            writer.println(message); // Send command directly
+        if (message.equals("REQUEST_MEMBER_LIST") || message.equals("ACTIVE_CHECK") || message.equals("METRICS") ||
+                message.startsWith("@") || message.startsWith("SEARCH:")) {
+            connection.sendReliably(message); // Send command directly
         } else {
-            writer.println(id + ": " + message); // Send normal chat messages
+            connection.sendChat(message); // Send normal chat messages
         }
 
         SwingUtilities.invokeLater(() -> {
@@ -1288,166 +1467,262 @@ public class ChatClient {
         });
     }
 
-    private class MessageReceiver extends Thread {
-        public void run() {
+    // The server has a single chat room, cached as "main"
+    private static ChatHistoryCache openHistoryCache(String serverIP, int port) {
+        try {
+            return ChatHistoryCache.open(Path.of("chat_cache"), serverIP, port, "main", 64L << 20);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not open the local history cache, history will come from the server", e);
+            return null;
+        }
+    }
+
+    // ===== Chat View Updates: Callable From Any Thread, Applied on the EDT =====
+    // The announcement of our own file or voice message shown in this row, or null
+    private String ownAnnouncement(String row) {
+        for (Map.Entry<String, String> entry : attachmentRows.entrySet()) {
+            if (entry.getValue().equals(row) && entry.getKey().split(":", 5)[3].equals(id)) return entry.getKey();
+        }
+        return null;
+    }
+
+    private void showMessage(String text) {
+        onChatView(() -> chatModel.append(text.stripTrailing()));
+    }
+
+    private void replaceRow(String oldText, String newText) {
+        onChatView(() -> chatModel.replace(oldText, newText));
+    }
+
+    private void removeRow(String text) {
+        onChatView(() -> chatModel.remove(text));
+    }
+
+    private interface ChatViewUpdate {
+        void apply() throws IOException;
+    }
+
+    private void onChatView(ChatViewUpdate update) {
+        Runnable task = () -> {
             try {
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    processMessage(message);
-                }
+                update.apply();
             } catch (IOException e) {
-                if (!socket.isClosed()) { // Avoid printing stack trace if the socket was closed intentionally
-                    chatArea.append("Server has closed the connection.\n");
-                }
-            } finally {
-                disableInput(); // Disable input when disconnected
+                logger.log(Level.WARNING, "An error occurred while updating the chat view", e);
             }
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            task.run();
+        } else {
+            uiBatcher.submit(task);
         }
+    }
 
-        private void processMessage(String message) {
-            if (message.startsWith("CHANGE_ID:") || message.startsWith("TYPING_END:") ||
-                    message.startsWith("REQUEST_CHAT_HISTORY")) {
-                return; // Ignore ID change and TYPING_END notifications
-            }
-
-            // Use handleTypingEvent to manage typing events
-            if (message.startsWith("TYPING:")) {
-                handleTypingEvent(message);
-            } else if (message.startsWith("EDIT_MESSAGE:")) {
-                handleEditMessage(message);
-            } else if (message.startsWith("DELETE_MESSAGE:")) {
-                handleDeleteMessage(message);
-            } else if (message.startsWith("(Private)")) {
-                handlePrivateMessage(message);
-            } else if (message.startsWith("REACTION:")) {
-                handleReactionMessage(message);
-            } else if (message.startsWith("STATUS:")) {
-                handleStatusMessage(message);
-            } else if (message.startsWith("MESSAGE_ID:")) {
-                handleNewMessage(message);
-            } else if (message.startsWith("CHAT_HISTORY:")) {
-                handleChatHistory(message);
+    // ===== Debug Overlay (Ctrl+Shift+D): How Long Incoming Updates Wait Before the EDT Applies Them =====
+    private void installLatencyOverlay() {
+        JLabel overlay = new JLabel();
+        overlay.setOpaque(true);
+        overlay.setBackground(new Color(40, 40, 40));
+        overlay.setForeground(Color.WHITE);
+        overlay.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        overlay.setBorder(BorderFactory.createEmptyBorder(4, 6, 4, 6));
+        overlay.setVisible(false);
+        JLayeredPane layers = frame.getLayeredPane();
+        layers.add(overlay, JLayeredPane.POPUP_LAYER);
+
+        Timer refresh = new Timer(500, _ -> {
+            overlay.setText(String.format("UI p50 %.1f ms  p99 %.1f ms  p999 %.1f ms | %,d updates in %,d batches"
+                            + " | queued %d", uiBatcher.percentileMicros(50) / 1000.0,
+                    uiBatcher.percentileMicros(99) / 1000.0, uiBatcher.percentileMicros(99.9) / 1000.0,
+                    uiBatcher.applied(), uiBatcher.batches(), uiBatcher.queued()));
+            Dimension size = overlay.getPreferredSize();
+            overlay.setBounds(layers.getWidth() - size.width - 10, 10, size.width, size.height);
+        });
+        refresh.setInitialDelay(0);
+        frame.getRootPane().registerKeyboardAction(_ -> {
+            overlay.setVisible(!overlay.isVisible());
+            if (overlay.isVisible()) {
+                refresh.start();
             } else {
-                chatArea.append(message + "\n");
+                refresh.stop();
             }
+        }, KeyStroke.getKeyStroke(KeyEvent.VK_D, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK),
+                JComponent.WHEN_IN_FOCUSED_WINDOW);
+    }
+
+    // ===== What the Connection Reports, Turned Into Rows and Windows =====
+    // Called on the connection's event loop thread; Swing is only touched through the frame batcher
+    private class Events implements ChatListener {
+        private long cachedHistoryStart;
+
+        @Override
+        public void onMessage(String text) {
+            showMessage(text);
         }
 
-        private void handleChatHistory(String message) {
-            String delimiter = "\n----------------------------------------------\n";
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            LocalDateTime now = LocalDateTime.now();
-            String dateTime = dtf.format(now);
+        @Override
+        public void onEdit(String oldText, String newText) {
+            replaceRow(oldText, newText); // Replace only exact matches
+        }
 
-            String[] historyMessages = message.substring(13).split("\n");
+        @Override
+        public void onDelete(String text) {
+            String row = attachmentRows.remove(text);
+            removeRow(row != null ? row : text);
+        }
 
-            chatArea.append(delimiter);
-            chatArea.append(dateTime);
-            chatArea.append(delimiter);
-            loadChatHistory();
-            for (String historyMessage : historyMessages) {
-                if (!historyMessage.startsWith("TYPING:") && !historyMessage.startsWith("TYPING_END:") &&
-                        !historyMessage.startsWith("REQUEST_CHAT_HISTORY") && !historyMessage.startsWith("STATUS:")) {
-                    chatArea.append(historyMessage);
-                }
-            }
+        @Override
+        public void onReaction(String messageId, String reaction) {
+            showMessage("Message " + messageId + " received reaction: " + reaction);
         }
 
-        private void handleEditMessage(String message) {
-            String[] parts = message.split(":", 3);
-            if (parts.length < 3) {
-                System.out.println("Invalid message format: " + message);
-                return;
-            }
+        // Remembers where the attachment is, for opening and previewing its row
+        @Override
+        public void onAttachment(String attachmentId, long size, String sender, String name, boolean voice) {
+            receivedFiles.put(name, attachmentId);
+            String row = voice ? sender + " sent a voice message: " + name
+                    : sender + " sent a file: " + getFileIcon(getFileExtension(name)) + " " + name;
+            attachmentRows.put((voice ? "VOICE:" : "FILE:") + attachmentId + ":" + size + ":" + sender + ":" + name,
+                    row);
+            showMessage(row);
+        }
 
-            String oldMessage = parts[1].trim();
-            String newMessage = parts[2].trim();
+        @Override
+        public void onPrivateMessage(String sender, String text) {
+            uiBatcher.submit(() -> {
+                // If no chat window exists for this sender, create one
+                if (!privateChats.containsKey(sender)) {
+                    privateChats.put(sender, new ChatWindow(sender, connection::sendReliably));
+                }
 
-            // If newMessage starts with extra prefix, remove it
-            if (newMessage.contains(":")) {
-                newMessage = newMessage.substring(newMessage.indexOf(":") + 1).trim();
-            }
+                // Append the message to the correct private chat
+                privateChats.get(sender).appendMessage(sender + ": " + text);
+            });
+        }
 
-            updateMessageInChat(oldMessage, newMessage);
+        @Override
+        public void onPresence(String userId, boolean online) {
+            synchronized (pendingPresence) {
+                // The roster sent on connect arrives as one line per member; apply it in one go
+                if (pendingPresence.isEmpty()) {
+                    uiBatcher.submit(ChatClient.this::applyPendingPresence);
+                }
+                pendingPresence.put(userId, online);
+            }
         }
 
-        private void updateMessageInChat(String oldMessage, String newMessage) {
-            String chatText = chatArea.getText();
-            String[] lines = chatText.split("\n");
-            StringBuilder updatedChat = new StringBuilder();
+        @Override
+        public void onTyping(String userId, boolean typing) {
+            // Display typing notification only if the message is not from the current user
+            if (typing && !userId.equals(id)) {
+                showMessage(userId + " is typing...");
+            }
+        }
 
-            for (String line : lines) {
-                if (line.trim().equals(oldMessage)) { // Replace only exact matches
-                    updatedChat.append(newMessage).append("\n");
-                } else {
-                    updatedChat.append(line).append("\n"); // Keep other messages unchanged
+        @Override
+        public void onHistoryStart(HistorySource source) {
+            if (source == HistorySource.CACHE) {
+                cachedHistoryStart = System.nanoTime();
+            } else if (source == HistorySource.REQUESTED) {
+                String delimiter = "----------------------------------------------";
+                DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+                showMessage(delimiter);
+                showMessage(dtf.format(LocalDateTime.now()));
+                showMessage(delimiter);
+                for (Map.Entry<Integer, String> entry : messages.entrySet()) {
+                    showMessage(entry.getValue());  // Display stored messages
                 }
             }
-
-            chatArea.setText(updatedChat.toString());
         }
 
-        private void handleDeleteMessage(String message) {
-            String messageToDelete = message.substring(14).trim();
-            String chatText = chatArea.getText();
-            chatText = chatText.replaceFirst(Pattern.quote(messageToDelete) + "\n?", "");
-            chatArea.setText(chatText);
+        @Override
+        public void onHistoryEnd(HistorySource source) {
+            if (source == HistorySource.CACHE) {
+                logger.info(String.format("Showed the cached history in %.1f ms",
+                        (System.nanoTime() - cachedHistoryStart) / 1e6));
+            }
         }
 
-        private void handleNewMessage(String message) {
-            String[] parts = message.split(":", 3);
-            int messageId = Integer.parseInt(parts[1]);
-            String content = parts[2];
-            messages.put(messageId, content);
-            chatArea.append(content + "\n");
+        @Override
+        public void onHistoryReset() {
+            showMessage("(The server's history was reset, messages above are from before)");
         }
 
-        private void loadChatHistory() {
-            for (Map.Entry<Integer, String> entry : messages.entrySet()) {
-                chatArea.append(entry.getValue() + "\n");  // Display stored messages
-            }
+        @Override
+        public void onHistorySkipped() {
+            showMessage("(Older messages were skipped, use History to see them)");
         }
 
+        @Override
+        public void onIdChanged(String oldId, String newId) {
+            id = newId;
+            showMessage("You updated your User ID from " + oldId + " to " + newId + ".");
+            SwingUtilities.invokeLater(() -> frame.setTitle("Chat Client - " + newId));
+        }
 
-        private void handlePrivateMessage(String message) {
-            String[] parts = message.split(": ", 2);
-            if (parts.length < 2) return;
+        @Override
+        public void onIdRejected(String rejectedId) {
+            showMessage("This ID is already in use. Please choose a different one.");
+        }
 
-            String sender = parts[0].replace("(Private)", "").trim(); // Extract sender's name
-            String privateMessage = parts[1];
+        @Override
+        public void onDataPort(int dataPort, String uploadToken) {
+            attachmentClient = new AttachmentClient(serverIP, dataPort, uploadToken);
+        }
 
-            // If no chat window exists for this sender, create one
-            if (!privateChats.containsKey(sender)) {
-                privateChats.put(sender, new ChatWindow(sender, writer));
+        // We are in a live voice room, start sending and playing
+        @Override
+        public void onVoicePort(int voicePort, int memberId, int key, String room) {
+            try {
+                PushToTalkClient.FrameSink sink;
+                try {
+                    sink = PushToTalkClient.speakerSink();
+                } catch (LineUnavailableException e) {
+                    logger.log(Level.WARNING, "No speaker available, live voice will only send", e);
+                    sink = (_, _) -> { };
+                }
+                PushToTalkClient client = new PushToTalkClient(new InetSocketAddress(serverIP, voicePort), memberId,
+                        key, 3, sink);
+                SwingUtilities.invokeLater(() -> {
+                    closeLiveVoice();
+                    liveVoice = client;
+                    liveVoiceButton.setText("📴");
+                    showMessage("📞 Live voice in " + room + ": hold 🎤 to talk, 📴 to leave");
+                });
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not join live voice", e);
             }
+        }
+
+        @Override
+        public void onConnectionLost() {
+            showMessage("⚠️ Connection lost, reconnecting...");
+        }
 
-            // Append the message to the correct private chat
-            privateChats.get(sender).appendMessage(sender + ": " + privateMessage);
+        @Override
+        public void onReconnected() {
+            SwingUtilities.invokeLater(ChatClient.this::closeLiveVoice); // The relay dropped us
+            showMessage("✅ Reconnected.");
         }
 
-        private void handleStatusMessage(String message) {
-            String[] parts = message.split(":");
-            if (parts.length == 3) {
-                String userId = parts[1];
-                String status = parts[2];
-                SwingUtilities.invokeLater(() -> updateUserStatus(userId, status));
+        @Override
+        public void onClosed(CloseReason reason) {
+            switch (reason) {
+                case SERVER_CLOSED -> showMessage("Server has closed the connection.");
+                case SESSION_EXPIRED -> showMessage("The session has expired, please restart the client to rejoin.");
+                case UNREACHABLE -> showMessage("Could not reconnect to the server.");
+                case QUIT -> { }
             }
+            disableInput(); // Disable input when disconnected
         }
     }
 
-    private void updateUserStatus(String userId, String status) {
-        String onlineUser = userId + " ✅";
-        String offlineUser = userId + " ❌";
-        if (status.equals("online")) {
-            if (!userListModel.contains(onlineUser)) {
-                userListModel.addElement(onlineUser);
-            }
-            userListModel.removeElement(offlineUser);
-        } else if (status.equals("offline")) {
-            userListModel.removeElement(onlineUser);
-            if (!userListModel.contains(offlineUser)) {
-                userListModel.addElement(offlineUser);
-            }
+    private void applyPendingPresence() {
+        Map<String, Boolean> changes;
+        synchronized (pendingPresence) {
+            changes = new LinkedHashMap<>(pendingPresence);
+            pendingPresence.clear();
         }
+        userListModel.applyAll(changes);
     }
 
     // Handles quitting the chat
@@ -1522,19 +1797,21 @@ public class ChatClient {
      */
     private void closeChat() {
         try {
-            if (socket != null) {
-                socket.close(); // Close socket connection
-            }
-        } catch (IOException e) {
+            // Ends the session and closes the history cache; waits briefly so the server hears about it
+            connection.quit().get(2, TimeUnit.SECONDS);
+            io.close();
+        } catch (Exception e) {
             logger.log(Level.SEVERE, "An error occurred while quitting the conversation", e);
         } finally {
+            attachmentCache.flush(); // Keep this session's LRU order for the next start
+            uiBatcher.shutdown();
             frame.dispose(); // Close GUI
         }
     }
 
     // Requests the list of active chat members from the server
     private void requestMemberList() {
-        writer.println("REQUEST_MEMBER_LIST");
+        connection.send("REQUEST_MEMBER_LIST");
     }
     
     // Disables the input field and send button when disconnected
@@ -1654,12 +1931,12 @@ public class ChatClient {
     public static class ChatWindow extends JFrame {
         private final JTextArea chatArea;
         private final JTextField messageField;
-        private final PrintWriter writer;
+        private final Consumer<String> sender; // Sends a line to the server
         private final String recipient;
 
-        public ChatWindow(String recipient, PrintWriter writer) {
+        public ChatWindow(String recipient, Consumer<String> sender) {
             this.recipient = recipient;
-            this.writer = writer;
+            this.sender = sender;
 
             setTitle("Private Chat - " + recipient);
             setSize(400, 400);
@@ -1683,7 +1960,7 @@ public class ChatClient {
         private void sendMessage() {
             String message = messageField.getText().trim();
             if (!message.isEmpty()) {
-                writer.println("@" + recipient + " " + message);
+                sender.accept("@" + recipient + " " + message);
                 appendMessage("Me: " + message);
                 messageField.setText("");
             }
@@ -0,0 +1,708 @@
+package myapp.chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Headless chat client: the protocol of ChatClient without any UI. It logs in, parses what the server sends into
+// ChatListener events, keeps composed lines in an Outbox until they are acknowledged, resumes its session after a
+// dropped connection and, given a ChatHistoryCache, shows cached history first and fetches only the gap. The socket
+// is non-blocking and driven by a ChatEventLoop, so a connection costs a channel and a few buffers, not a thread.
+// Public methods can be called from any thread; state is only touched on the loop thread.
+public class ChatConnection {
+    private static final Logger logger = Logger.getLogger(ChatConnection.class.getName()); // Catch exception errors
+    private static final int MAX_RECONNECT_ATTEMPTS = 10; // About two and a half minutes with the backoff
+    private static final long CONNECT_TIMEOUT_MILLIS = 10_000; // Connecting plus the resume handshake
+    private static final int IDLE_LINE_BUFFER = 256;
+    private static final int CACHED_SHOWN = 2000; // Newest cached messages replayed on login
+
+    private enum State {
+        IDLE, CONNECTING, LOGIN, WELCOME, ONLINE, WAITING, RECONNECTING, RESUMING, CLOSED
+    }
+
+    private final ChatEventLoop loop;
+    private final String host;
+    private final int port;
+    private final ChatListener listener;
+    private final ChatHistoryCache historyCache; // Null to go without
+    private final Outbox outbox = new Outbox(); // Composed lines the server has not acknowledged yet
+    private final Io io = new Io();
+    private volatile String id;
+    private volatile boolean coordinator;
+    private volatile State state = State.IDLE; // Written on the loop thread only
+
+    // Loop thread only from here on
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean writable; // Connected, so queued lines can go out
+    private final ArrayDeque<ByteBuffer> unsent = new ArrayDeque<>();
+    private byte[] lineBuffer = new byte[IDLE_LINE_BUFFER]; // Start of a line whose end has not arrived yet
+    private int lineLength;
+    private long generation; // Tells timeouts of an earlier socket apart from the current one
+    private CompletableFuture<Boolean> login;
+    private String requestedId;
+    private String pendingId; // Asked for with changeId, not answered yet
+    private String sessionToken; // Lets a dropped connection resume where it left off
+    private long lastSeenId; // Newest logged message received
+    private boolean catchingUp; // Fetching what the cache misses
+    private long catchUpTo; // Newest ID the catch-up in progress covers
+    private boolean readingHistory; // Inside the lines of a CHAT_HISTORY block
+    private final List<String> heldLive = new ArrayList<>(); // Live messages waiting for the catch-up to finish
+    private int attempt;
+    private long backoffMillis;
+
+    public ChatConnection(ChatEventLoop loop, String host, int port, ChatListener listener) {
+        this(loop, host, port, listener, null);
+    }
+
+    // The connection takes over the cache and closes it when it closes
+    public ChatConnection(ChatEventLoop loop, String host, int port, ChatListener listener,
+                          ChatHistoryCache historyCache) {
+        this.loop = loop;
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.historyCache = historyCache;
+    }
+
+    // Connects if needed and asks for the ID. Completes with true once it is accepted and false if somebody else
+    // has it, after which login can be called again with another ID; fails if the server cannot be reached.
+    public CompletableFuture<Boolean> login(String id) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        onLoop(() -> {
+            if (state != State.IDLE && (state != State.LOGIN || login != null)) {
+                result.completeExceptionally(new IllegalStateException("Cannot log in while " + state));
+                return;
+            }
+            login = result;
+            requestedId = id;
+            if (state == State.IDLE) {
+                state = State.CONNECTING;
+                open();
+                write("CAPABILITIES:resume"); // Ask for a session that survives dropped connections
+            }
+            write(id);
+        });
+        return result;
+    }
+
+    // Our ID, null before login
+    public String id() {
+        return id;
+    }
+
+    // Whether we were the first in the chat when we logged in
+    public boolean coordinator() {
+        return coordinator;
+    }
+
+    public boolean isOnline() {
+        return state == State.ONLINE;
+    }
+
+    // Sends a protocol line as it is; dropped if the connection is down
+    public void send(String line) {
+        onLoop(() -> {
+            if (state == State.ONLINE) {
+                write(line);
+            }
+        });
+    }
+
+    // Sends a line the user composed. It stays in the outbox until the server acknowledges it, waits there while the
+    // connection is down and is resent after a reconnect; the server drops copies it has already handled.
+    public void sendReliably(String line) {
+        onLoop(() -> {
+            String framed = outbox.add(line);
+            if (state == State.ONLINE) {
+                write(framed);
+            }
+        });
+    }
+
+    // A chat message from us, as "<id>: <text>"
+    public void sendChat(String text) {
+        sendReliably(id + ": " + text);
+    }
+
+    // Answered with onIdChanged or onIdRejected
+    public void changeId(String newId) {
+        onLoop(() -> {
+            if (state != State.ONLINE) return;
+            pendingId = newId;
+            write("CHANGE_ID: " + newId);
+        });
+    }
+
+    // Answered with the whole history, between onHistoryStart(REQUESTED) and onHistoryEnd
+    public void requestHistory() {
+        send("REQUEST_CHAT_HISTORY");
+    }
+
+    // Lines composed but not acknowledged by the server yet
+    public int unacknowledged() {
+        return outbox.size();
+    }
+
+    // Leaves for good: the server forgets the session, the history cache is closed and onClosed(QUIT) follows
+    public CompletableFuture<Void> quit() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onLoop(() -> {
+            if (state == State.ONLINE) {
+                write("SESSION_END"); // Nothing to resume after a clean quit
+            }
+            if (state != State.CLOSED) {
+                close(ChatListener.CloseReason.QUIT);
+            }
+            done.complete(null);
+        });
+        return done;
+    }
+
+    private void onLoop(Runnable task) {
+        if (loop.inLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    // ===== Socket =====
+
+    private void open() {
+        long current = ++generation;
+        writable = false;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(new InetSocketAddress(host, port));
+            key = loop.register(channel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, io);
+            if (connected) {
+                connected();
+            }
+        } catch (IOException e) {
+            lost(e);
+            return;
+        }
+        loop.schedule(() -> {
+            if (current == generation && (state == State.CONNECTING || state == State.RECONNECTING ||
+                    state == State.RESUMING)) {
+                lost(new SocketTimeoutException("No answer from " + host + ":" + port));
+            }
+        }, CONNECT_TIMEOUT_MILLIS);
+    }
+
+    private void connected() {
+        writable = true;
+        if (state == State.CONNECTING) {
+            state = State.LOGIN;
+        } else if (state == State.RECONNECTING) {
+            state = State.RESUMING;
+            unsent.clear(); // Whatever was queued belongs to the connection that dropped
+            write("RESUME:" + sessionToken + ":" + lastSeenId);
+        }
+        flush();
+    }
+
+    private void closeChannel() {
+        generation++;
+        writable = false;
+        unsent.clear();
+        lineLength = 0;
+        if (readingHistory) { // Cut off; a new request starts over
+            readingHistory = false;
+            listener.onHistoryEnd(ChatListener.HistorySource.REQUESTED);
+        }
+        if (lineBuffer.length > IDLE_LINE_BUFFER) {
+            lineBuffer = new byte[IDLE_LINE_BUFFER]; // Thousands of idle connections should stay small
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "An error occurred while closing a chat connection", e);
+            }
+            channel = null;
+            key = null;
+        }
+    }
+
+    private void write(String line) {
+        unsent.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        if (writable && unsent.size() == 1) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (!writable) return;
+        try {
+            while (!unsent.isEmpty()) {
+                ByteBuffer head = unsent.peek();
+                channel.write(head);
+                if (head.hasRemaining()) { // The socket buffer is full, wait until it drains
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                unsent.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    private void read() throws IOException {
+        SocketChannel reading = channel;
+        ByteBuffer buffer = loop.readBuffer();
+        if (reading.read(buffer) < 0) throw new EOFException("Closed by the server");
+        buffer.flip();
+        int start = lineLength;
+        if (lineBuffer.length - lineLength < buffer.remaining()) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + buffer.remaining()));
+        }
+        int end = lineLength + buffer.remaining();
+        buffer.get(lineBuffer, lineLength, buffer.remaining());
+
+        int lineStart = 0;
+        for (int i = start; i < end; i++) {
+            if (lineBuffer[i] != '\n') continue;
+            int lineEnd = i > lineStart && lineBuffer[i - 1] == '\r' ? i - 1 : i;
+            String line = new String(lineBuffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+            lineStart = i + 1;
+            try {
+                handleLine(line);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "An error occurred while handling " + line, e);
+            }
+            if (channel != reading) return; // Closed or replaced while handling the line
+        }
+        lineLength = end - lineStart;
+        System.arraycopy(lineBuffer, lineStart, lineBuffer, 0, lineLength);
+    }
+
+    // The socket failed or the server closed it
+    private void lost(IOException error) {
+        State was = state;
+        closeChannel();
+        switch (was) {
+            case CONNECTING, LOGIN, WELCOME -> {
+                state = State.CLOSED;
+                closeHistoryCache();
+                if (login != null) {
+                    login.completeExceptionally(error);
+                    login = null;
+                }
+            }
+            case ONLINE -> {
+                if (sessionToken == null) {
+                    close(ChatListener.CloseReason.SERVER_CLOSED);
+                    return;
+                }
+                logger.log(Level.FINE, "Connection lost, reconnecting", error);
+                attempt = 0;
+                backoffMillis = 500;
+                listener.onConnectionLost();
+                retry();
+            }
+            case RESUMING -> {
+                if (error instanceof EOFException) {
+                    close(ChatListener.CloseReason.SESSION_EXPIRED); // Hung up on the resume
+                } else {
+                    retry();
+                }
+            }
+            case RECONNECTING -> {
+                logger.log(Level.FINE, "Reconnect attempt " + attempt + " failed", error);
+                retry();
+            }
+            default -> { } // Already waiting or closed
+        }
+    }
+
+    // Tries again after an exponential backoff with jitter
+    private void retry() {
+        if (++attempt > MAX_RECONNECT_ATTEMPTS) {
+            close(ChatListener.CloseReason.UNREACHABLE);
+            return;
+        }
+        state = State.WAITING;
+        long delay = backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+        backoffMillis = Math.min(backoffMillis * 2, 30_000);
+        loop.schedule(() -> {
+            if (state == State.WAITING) {
+                state = State.RECONNECTING;
+                open();
+            }
+        }, delay);
+    }
+
+    private void close(ChatListener.CloseReason reason) {
+        flush(); // A last line such as SESSION_END, if the socket takes it right away
+        closeChannel();
+        state = State.CLOSED;
+        closeHistoryCache();
+        listener.onClosed(reason);
+    }
+
+    private void closeHistoryCache() {
+        if (historyCache == null) return;
+        try {
+            historyCache.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the local history cache", e);
+        }
+    }
+
+    private final class Io implements ChatEventLoop.Handler {
+        @Override
+        public void ready(SelectionKey readyKey) throws IOException {
+            if (readyKey != key) return; // A socket that was closed meanwhile
+            if (readyKey.isConnectable()) {
+                channel.finishConnect();
+                readyKey.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flush();
+            }
+            if (readyKey == key && readyKey.isValid() && readyKey.isReadable()) {
+                read();
+            }
+        }
+
+        @Override
+        public void failed(IOException error) {
+            lost(error);
+        }
+    }
+
+    // ===== Protocol =====
+
+    private void handleLine(String line) {
+        switch (state) {
+            case LOGIN -> {
+                if (line.equals("ID_ACCEPTED")) {
+                    id = requestedId;
+                    state = State.WELCOME;
+                } else if (line.equals("ID_EXISTS")) {
+                    CompletableFuture<Boolean> pending = login;
+                    login = null;
+                    pending.complete(false);
+                }
+            }
+            case WELCOME -> { // COORDINATOR follows ID_ACCEPTED if we are the first, anything else is a message
+                state = State.ONLINE;
+                coordinator = line.equals("COORDINATOR");
+                showCachedHistory(); // Before the server's answers are processed
+                CompletableFuture<Boolean> pending = login;
+                login = null;
+                pending.complete(true);
+                if (!coordinator) {
+                    process(line);
+                }
+            }
+            case RESUMING -> {
+                if (line.startsWith("RESUMED:")) {
+                    resumed();
+                } else {
+                    close(ChatListener.CloseReason.SESSION_EXPIRED);
+                }
+            }
+            case ONLINE -> process(line);
+            default -> { } // Nothing else expects lines
+        }
+    }
+
+    private void resumed() {
+        state = State.ONLINE;
+        attempt = 0;
+        catchingUp = false; // An unfinished catch-up is replayed from lastSeenId like the rest
+        heldLive.clear();
+        for (String line : outbox.pending()) {
+            write(line);
+        }
+        listener.onReconnected();
+    }
+
+    private void process(String message) {
+        if (readingHistory) {
+            continueChatHistory(message);
+        } else if (message.equals("PING")) {
+            write("PONG"); // The server's heartbeat on a quiet connection
+        } else if (message.startsWith("MESSAGE_ID:")) {
+            handleNewMessage(message);
+        } else if (message.startsWith("ACK:")) {
+            outbox.acknowledge(message.substring(4));
+        } else if (message.startsWith("SESSION:")) {
+            handleSession(message);
+        } else if (message.startsWith("HISTORY_ID:")) {
+            handleMissedHistory(message);
+        } else if (message.startsWith("HISTORY_START:")) {
+            handleHistoryStart(message);
+        } else if (message.equals("HISTORY_END")) {
+            handleHistoryEnd();
+        } else if (pendingId != null && (message.equals("ID_ACCEPTED") || message.equals("ID_EXISTS"))) {
+            handleIdChange(message.equals("ID_ACCEPTED"));
+        } else if (message.startsWith("STATUS:")) {
+            handleStatusMessage(message);
+        } else if (message.startsWith("TYPING:")) {
+            listener.onTyping(message.split(":")[1], true);
+        } else if (message.startsWith("TYPING_END:")) {
+            listener.onTyping(message.substring(11), false);
+        } else if (message.startsWith("CHANGE_ID:") || message.startsWith("REQUEST_CHAT_HISTORY")) {
+            return; // Our own requests echoed back
+        } else if (message.startsWith("(Private)")) {
+            handlePrivateMessage(message);
+        } else if (message.startsWith("CHAT_HISTORY:")) {
+            handleChatHistory(message);
+        } else if (message.startsWith("DATA_PORT:")) {
+            handleDataPort(message);
+        } else if (message.startsWith("VOICE_PORT:")) {
+            handleVoicePort(message);
+        } else {
+            dispatchLogged(message);
+        }
+    }
+
+    // A logged message, live or from history: only what it does to the conversation, without the live side effects
+    // (presence, typing) it had when it was first received
+    private void dispatchLogged(String message) {
+        if (message.startsWith("FILE:") || message.startsWith("VOICE:")) {
+            handleFileMessage(message);
+        } else if (message.startsWith("EDIT_MESSAGE:")) {
+            handleEditMessage(message);
+        } else if (message.startsWith("DELETE_MESSAGE:")) {
+            listener.onDelete(message.substring("DELETE_MESSAGE:".length()).trim());
+        } else if (message.startsWith("REACTION:")) {
+            String[] parts = message.split(":", 3);
+            if (parts.length < 3) return; // Invalid reaction message format
+            listener.onReaction(parts[1], parts[2]);
+        } else if (!message.startsWith("TYPING:") && !message.startsWith("TYPING_END:") &&
+                !message.startsWith("REQUEST_CHAT_HISTORY") && !message.startsWith("STATUS:")) {
+            listener.onMessage(message);
+        }
+    }
+
+    // MESSAGE_ID:<id>:<message> - a logged message; replays after a reconnect can overlap what we already have
+    private void handleNewMessage(String message) {
+        if (catchingUp) {
+            heldLive.add(message);
+            return;
+        }
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3) return;
+        long messageId = Long.parseLong(parts[1]);
+        if (messageId <= lastSeenId) return;
+        lastSeenId = messageId;
+        cacheLogged(messageId, parts[2]);
+        process(parts[2]);
+    }
+
+    // SESSION:<token>:<lastId>:<epoch> - the connection can be resumed; messages up to lastId arrived untagged
+    // or were logged before we joined, and the cache is brought up to there
+    private void handleSession(String message) {
+        String[] parts = message.split(":", 4);
+        if (parts.length < 3) return;
+        long serverLastId = Long.parseLong(parts[2]);
+        sessionToken = parts[1];
+        catchUp(serverLastId, parts.length > 3 ? parts[3] : "");
+        // Until the gap has arrived, a resume has to replay it rather than skip to serverLastId
+        lastSeenId = Math.max(lastSeenId, catchingUp ? historyCache.newestId() : serverLastId);
+    }
+
+    private void handleIdChange(boolean accepted) {
+        String newId = pendingId;
+        pendingId = null;
+        if (accepted) {
+            String oldId = id;
+            id = newId;
+            listener.onIdChanged(oldId, newId);
+        } else {
+            listener.onIdRejected(newId);
+        }
+    }
+
+    private void handleStatusMessage(String message) {
+        String[] parts = message.split(":");
+        if (parts.length == 3 && (parts[2].equals("online") || parts[2].equals("offline"))) {
+            listener.onPresence(parts[1], parts[2].equals("online"));
+        }
+    }
+
+    private void handlePrivateMessage(String message) {
+        String[] parts = message.split(": ", 2);
+        if (parts.length < 2) return;
+        listener.onPrivateMessage(parts[0].replace("(Private)", "").trim(), parts[1]);
+    }
+
+    // FILE:/VOICE:<attachmentId>:<size>:<sender>:<name>
+    private void handleFileMessage(String message) {
+        String[] parts = message.split(":", 5);
+        if (parts.length < 5 || !parts[2].matches("\\d{1,18}")) {
+            listener.onMessage(message);
+            return;
+        }
+        listener.onAttachment(parts[1], Long.parseLong(parts[2]), parts[3], parts[4], parts[0].equals("VOICE"));
+    }
+
+    private void handleEditMessage(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3) {
+            logger.fine("Invalid message format: " + message);
+            return;
+        }
+
+        String oldMessage = parts[1].trim();
+        String newMessage = parts[2].trim();
+
+        // If newMessage starts with extra prefix, remove it
+        if (newMessage.contains(":")) {
+            newMessage = newMessage.substring(newMessage.indexOf(":") + 1).trim();
+        }
+        listener.onEdit(oldMessage, newMessage);
+    }
+
+    // DATA_PORT:<port>:<uploadToken> - where file bytes are sent and how our uploads are recognised
+    private void handleDataPort(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3) return;
+        listener.onDataPort(Integer.parseInt(parts[1]), parts[2]);
+    }
+
+    // VOICE_PORT:<port>:<memberId>:<key>:<room> - we are in a live voice room
+    private void handleVoicePort(String message) {
+        String[] parts = message.split(":", 5);
+        if (parts.length < 5) return;
+        listener.onVoicePort(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                parts[4]);
+    }
+
+    // CHAT_HISTORY:<message> - the first logged line of the full history; the others follow as lines of their own
+    // up to a blank line, or there are none when the first is empty. The server writes the block in one go, so no
+    // live message can land in between.
+    private void handleChatHistory(String message) {
+        listener.onHistoryStart(ChatListener.HistorySource.REQUESTED);
+        String first = message.substring(13);
+        if (first.isEmpty()) {
+            listener.onHistoryEnd(ChatListener.HistorySource.REQUESTED);
+            return;
+        }
+        dispatchLogged(first);
+        readingHistory = true;
+    }
+
+    private void continueChatHistory(String message) {
+        if (message.isEmpty()) {
+            readingHistory = false;
+            listener.onHistoryEnd(ChatListener.HistorySource.REQUESTED);
+        } else {
+            dispatchLogged(message);
+        }
+    }
+
+    // ===== History Cache =====
+
+    // Puts the newest cached messages through the listener; what is missing is fetched once the session starts
+    private void showCachedHistory() {
+        if (historyCache == null) return;
+        List<ChatHistoryCache.Entry> cached;
+        try {
+            cached = historyCache.tail(CACHED_SHOWN);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read the local history cache", e);
+            return;
+        }
+        listener.onHistoryStart(ChatListener.HistorySource.CACHE);
+        for (ChatHistoryCache.Entry entry : cached) {
+            dispatchLogged(entry.line());
+        }
+        listener.onHistoryEnd(ChatListener.HistorySource.CACHE);
+    }
+
+    // Brings the cache up to serverLastId: starts it over if the server's IDs restarted, then asks for the gap.
+    // Live messages are held back until the gap has been handled, so they stay in order.
+    private void catchUp(long serverLastId, String epoch) {
+        if (historyCache == null) return;
+        try {
+            if (!epoch.equals(historyCache.epoch()) || historyCache.newestId() > serverLastId) {
+                if (historyCache.newestId() > 0) {
+                    listener.onHistoryReset();
+                }
+                historyCache.reset(epoch);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not reset the local history cache", e);
+            return;
+        }
+        if (historyCache.newestId() < serverLastId) {
+            catchingUp = true;
+            catchUpTo = serverLastId;
+            write("HISTORY_SINCE:" + historyCache.newestId() + ":" + serverLastId);
+        }
+    }
+
+    // HISTORY_START:<firstId> - a later first ID than asked for means the server skipped part of the gap
+    private void handleHistoryStart(String message) {
+        long firstId = Long.parseLong(message.substring(14));
+        if (historyCache != null && firstId > historyCache.newestId() + 1) {
+            try {
+                historyCache.reset(historyCache.epoch()); // Keep the cache without holes
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not reset the local history cache", e);
+            }
+            listener.onHistorySkipped();
+        }
+        listener.onHistoryStart(ChatListener.HistorySource.MISSED);
+    }
+
+    // HISTORY_ID:<id>:<message> - a message logged while this client was away
+    private void handleMissedHistory(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3) return;
+        long messageId = Long.parseLong(parts[1]);
+        lastSeenId = Math.max(lastSeenId, messageId);
+        cacheLogged(messageId, parts[2]);
+        dispatchLogged(parts[2]);
+    }
+
+    private void handleHistoryEnd() {
+        catchingUp = false;
+        lastSeenId = Math.max(lastSeenId, catchUpTo); // Including whatever the server skipped
+        listener.onHistoryEnd(ChatListener.HistorySource.MISSED);
+        try {
+            if (historyCache != null) {
+                historyCache.flush();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the local history cache", e);
+        }
+        List<String> held = new ArrayList<>(heldLive);
+        heldLive.clear();
+        for (String message : held) {
+            handleNewMessage(message);
+        }
+    }
+
+    private void cacheLogged(long messageId, String message) {
+        if (historyCache == null) return;
+        try {
+            historyCache.append(messageId, message);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the local history cache", e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package myapp.chat;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class ChatConnectionTest {
+    private ServerSocket serverSocket;
+    private int port;
+    private ChatEventLoop loop;
+
+    // Collects what a connection reports, as "<event>:<details>" strings
+    private static class Recorder implements ChatListener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessage(String text) {
+            events.add("message:" + text);
+        }
+
+        @Override
+        public void onPresence(String userId, boolean online) {
+            events.add("presence:" + userId + ":" + online);
+        }
+
+        @Override
+        public void onPrivateMessage(String sender, String text) {
+            events.add("private:" + sender + ":" + text);
+        }
+
+        @Override
+        public void onConnectionLost() {
+            events.add("lost");
+        }
+
+        @Override
+        public void onReconnected() {
+            events.add("reconnected");
+        }
+
+        // Waits for the first event starting with prefix, skipping the others
+        String await(String prefix) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (System.nanoTime() < deadline) {
+                String event = events.poll(100, TimeUnit.MILLISECONDS);
+                if (event != null && event.startsWith(prefix)) return event;
+            }
+            throw new AssertionError("No event starting with " + prefix);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 512); // Room for a crowd connecting at once
+        port = serverSocket.getLocalPort();
+        ChatServer.running = true;
+        new Thread(() -> {
+            try {
+                // Not ChatServer.running: the last client of the previous test may still be stopping the server
+                while (!serverSocket.isClosed()) {
+                    Socket clientSocket = serverSocket.accept();
+                    new Thread(new ChatServer.ClientHandler(clientSocket)).start();
+                }
+            } catch (IOException e) {
+                // Closed by tearDown
+            }
+        }).start();
+        loop = new ChatEventLoop("chat-io-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        loop.close();
+        ChatServer.stopServer();
+        serverSocket.close();
+    }
+
+    // The last client to leave stops the server from its handler thread; that must be over before the next test
+    // starts the server again, or the late stop kicks the next test's first client. A session parked by an earlier
+    // test keeps the server up, and then there is nothing to wait for.
+    private static void awaitServerStopped() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ChatServer.running && !ChatServer.sessions.hasParked() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        synchronized (ChatServer.class) { // stopServerIfEmpty holds it until the stop is done
+            assertTrue(!ChatServer.running || ChatServer.sessions.hasParked());
+        }
+    }
+
+    @Test
+    public void headlessClientsLogInAndChat() throws Exception {
+        Recorder aliceEvents = new Recorder();
+        Recorder bobEvents = new Recorder();
+        ChatConnection alice = new ChatConnection(loop, "localhost", port, aliceEvents);
+        ChatConnection bob = new ChatConnection(loop, "localhost", port, bobEvents);
+
+        assertTrue(alice.login("alice").get(10, TimeUnit.SECONDS));
+        assertTrue(alice.coordinator());
+        assertFalse(bob.login("alice").get(10, TimeUnit.SECONDS)); // Taken, try another
+        assertTrue(bob.login("bob").get(10, TimeUnit.SECONDS));
+        assertFalse(bob.coordinator());
+        aliceEvents.await("presence:bob:true");
+
+        alice.sendChat("hello from a JVM without a display");
+        assertEquals("message:alice: hello from a JVM without a display", bobEvents.await("message:alice: hello"));
+        bob.sendReliably("@alice just for you");
+        assertEquals("private:bob:just for you", aliceEvents.await("private:"));
+
+        bob.quit().get(10, TimeUnit.SECONDS);
+        aliceEvents.await("presence:bob:false");
+        alice.quit().get(10, TimeUnit.SECONDS);
+        awaitServerStopped();
+    }
+
+    @Test
+    public void manyClientsShareOneLoop() throws Exception {
+        int count = 200;
+        List<ChatConnection> connections = new ArrayList<>();
+        List<Recorder> recorders = new ArrayList<>();
+        List<CompletableFuture<Boolean>> logins = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Recorder recorder = new Recorder();
+            ChatConnection connection = new ChatConnection(loop, "localhost", port, recorder);
+            recorders.add(recorder);
+            connections.add(connection);
+            logins.add(connection.login("bot" + i));
+        }
+        for (CompletableFuture<Boolean> login : logins) {
+            assertTrue(login.get(30, TimeUnit.SECONDS));
+        }
+
+        connections.get(0).sendChat("roll call");
+        for (Recorder recorder : recorders) {
+            assertEquals("message:bot0: roll call", recorder.await("message:bot0: roll call"));
+        }
+        for (ChatConnection connection : connections) {
+            connection.quit().get(10, TimeUnit.SECONDS);
+        }
+        awaitServerStopped();
+    }
+
+    @Test
+    public void unacknowledgedLinesAreResentAfterAReconnect() throws Exception {
+        try (ServerSocket scripted = new ServerSocket(0)) { // Plays the server's side of the protocol
+            scripted.setSoTimeout(10_000);
+            Recorder events = new Recorder();
+            ChatConnection alice = new ChatConnection(loop, "localhost", scripted.getLocalPort(), events);
+            CompletableFuture<Boolean> login = alice.login("alice");
+
+            String framed;
+            try (Socket first = scripted.accept()) {
+                first.setSoTimeout(10_000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(first.getInputStream()));
+                PrintWriter out = new PrintWriter(first.getOutputStream(), true);
+                assertEquals("CAPABILITIES:resume", in.readLine());
+                assertEquals("alice", in.readLine());
+                out.println("ID_ACCEPTED");
+                out.println("COORDINATOR");
+                out.println("SESSION:token:41:epoch");
+                assertTrue(login.get(10, TimeUnit.SECONDS));
+
+                alice.sendChat("are you there?");
+                framed = in.readLine();
+                assertTrue(framed.matches("SEND:[^:]+:alice: are you there\\?"), framed);
+            } // Dropped before the ACK
+
+            events.await("lost");
+            try (Socket second = scripted.accept()) {
+                second.setSoTimeout(10_000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(second.getInputStream()));
+                PrintWriter out = new PrintWriter(second.getOutputStream(), true);
+                assertEquals("RESUME:token:41", in.readLine());
+                out.println("RESUMED:alice");
+                assertEquals(framed, in.readLine()); // Same key, so the server can drop it if it did arrive
+                events.await("reconnected");
+                assertEquals(1, alice.unacknowledged());
+
+                out.println("ACK:" + framed.split(":")[1]);
+                out.println("MESSAGE_ID:42:bob: yes");
+                assertEquals("message:bob: yes", events.await("message:"));
+                assertEquals(0, alice.unacknowledged());
+            }
+        }
+    }
+
+    @Test
+    public void aCatchUpCutOffByADropLeavesNoHoleInTheCache() throws Exception {
+        Path directory = Files.createTempDirectory("history-cache");
+        try (ServerSocket scripted = new ServerSocket(0);
+             ChatHistoryCache cache = ChatHistoryCache.open(directory, "localhost", 1, "main", 1 << 20)) {
+            scripted.setSoTimeout(10_000);
+            Recorder events = new Recorder();
+            ChatConnection alice = new ChatConnection(loop, "localhost", scripted.getLocalPort(), events, cache);
+            CompletableFuture<Boolean> login = alice.login("alice");
+
+            try (Socket first = scripted.accept()) {
+                first.setSoTimeout(10_000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(first.getInputStream()));
+                PrintWriter out = new PrintWriter(first.getOutputStream(), true);
+                assertEquals("CAPABILITIES:resume", in.readLine());
+                assertEquals("alice", in.readLine());
+                out.println("ID_ACCEPTED");
+                out.println("SESSION:token:5:epoch");
+                assertTrue(login.get(10, TimeUnit.SECONDS));
+                assertEquals("HISTORY_SINCE:0:5", in.readLine());
+                out.println("HISTORY_START:1");
+                out.println("HISTORY_ID:1:bob: one");
+                out.println("HISTORY_ID:2:bob: two");
+                assertEquals("message:bob: two", events.await("message:bob: two"));
+            } // Dropped before 3 to 5 and HISTORY_END
+
+            events.await("lost");
+            try (Socket second = scripted.accept()) {
+                second.setSoTimeout(10_000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(second.getInputStream()));
+                PrintWriter out = new PrintWriter(second.getOutputStream(), true);
+                assertEquals("RESUME:token:2", in.readLine()); // Not 5: the rest of the gap has to be replayed
+                out.println("RESUMED:alice");
+                events.await("reconnected");
+                for (int id = 3; id <= 6; id++) {
+                    out.println("MESSAGE_ID:" + id + ":bob: message " + id);
+                }
+                events.await("message:bob: message 6");
+            }
+            List<Long> ids = new ArrayList<>();
+            for (ChatHistoryCache.Entry entry : cache.tail(10)) {
+                ids.add(entry.id());
+            }
+            assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L), ids);
+        } finally {
+            try (var files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
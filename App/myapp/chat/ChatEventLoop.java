@@ -0,0 +1,153 @@
+package myapp.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// One selector thread driving any number of ChatConnections. Connections never block and own no thread, so a JVM
+// can hold thousands of them (bots, load tests) on one loop, or spread them over a few. Everything a connection
+// does runs on its loop thread: socket events, tasks handed over with execute and timers set with schedule.
+public class ChatEventLoop implements Closeable {
+    private static final Logger logger = Logger.getLogger(ChatEventLoop.class.getName()); // Catch exception errors
+    private static final int READ_BUFFER = 64 << 10;
+
+    // Called on the loop thread when a registered channel is ready
+    interface Handler {
+        void ready(SelectionKey key) throws IOException;
+
+        void failed(IOException error);
+    }
+
+    private record Timer(long dueNanos, long sequence, Runnable task) { }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) -> a.dueNanos != b.dueNanos
+            ? Long.compare(a.dueNanos, b.dueNanos) : Long.compare(a.sequence, b.sequence)); // Loop thread only
+    private long timerSequence;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER); // Shared by every connection
+    private volatile boolean running = true;
+
+    public ChatEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs the task on the loop thread, after the events being handled now
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    // Runs the task on the loop thread after delayMillis
+    public void schedule(Runnable task, long delayMillis) {
+        long due = System.nanoTime() + delayMillis * 1_000_000;
+        execute(() -> timers.add(new Timer(due, timerSequence++, task)));
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Registers a channel for the given operations; loop thread only
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    // Scratch buffer for reads, cleared before it is handed out; loop thread only
+    ByteBuffer readBuffer() {
+        return readBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (!inLoop()) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                runTasks();
+                long wait = runDueTimers();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wait);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.ready(key);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        key.cancel();
+                        handler.failed(e instanceof IOException io ? io : new IOException(e));
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "A chat connection handler failed", e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "The chat event loop stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    // Runs the timers that are due; returns how long the loop may sleep, 0 meaning until woken up
+    private long runDueTimers() {
+        while (!timers.isEmpty()) {
+            long left = timers.peek().dueNanos - System.nanoTime();
+            if (left > 0) return Math.max(1, left / 1_000_000);
+            runSafely(timers.poll().task);
+        }
+        return 0;
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "A chat event loop task failed", e);
+        }
+    }
+}
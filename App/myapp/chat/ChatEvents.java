@@ -0,0 +1,80 @@
+package myapp.chat;
+
+import jdk.jfr.*;
+
+
+// Flight Recorder events of the chat server, so a recording shows each message's path next to GC pauses and lock
+// contention. They are off unless a recording enables them (jcmd <pid> JFR.start settings=profile, or
+// -XX:StartFlightRecording); while off, creating and committing one costs about as much as a field read.
+public final class ChatEvents {
+
+    private ChatEvents() {
+    }
+
+    @Name("myapp.chat.MessageReceived")
+    @Label("Message Received")
+    @Category({"Chat", "Server"})
+    @Description("A line from a client, from dispatch to the end of its handling")
+    public static class MessageReceived extends Event {
+        @Label("Client")
+        public String clientId;
+
+        @Label("Command")
+        public String command;
+
+        @Label("Length")
+        @DataAmount(DataAmount.BYTES)
+        public int length;
+    }
+
+    @Name("myapp.chat.Broadcast")
+    @Label("Broadcast")
+    @Category({"Chat", "Server"})
+    @Description("A message logged and written to every member, including the wait for the clients lock")
+    public static class Broadcast extends Event {
+        @Label("Message ID")
+        public long messageId;
+
+        @Label("Recipients")
+        public int recipients;
+
+        @Label("Length")
+        @DataAmount(DataAmount.BYTES)
+        public int length;
+    }
+
+    @Name("myapp.chat.HistorySent")
+    @Label("History Sent")
+    @Category({"Chat", "Server"})
+    @Description("Logged messages sent to one client: the full history, or what it missed while away")
+    public static class HistorySent extends Event {
+        @Label("Client")
+        public String clientId;
+
+        @Label("Full History")
+        public boolean full;
+
+        @Label("Messages")
+        public int messages;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        public long size;
+    }
+
+    @Name("myapp.chat.Handshake")
+    @Label("Handshake")
+    @Category({"Chat", "Server"})
+    @Description("From accepting a connection to the client having joined or given up")
+    public static class Handshake extends Event {
+        @Label("Client")
+        public String clientId;
+
+        @Label("Resumed")
+        @Description("Took back a dropped session instead of logging in afresh")
+        public boolean resumed;
+
+        @Label("Completed")
+        public boolean completed;
+    }
+}
@@ -0,0 +1,215 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+
+// Client-side copy of the logged messages of one server and room, so a client can show the recent conversation the
+// moment it starts and only ask the server for what it has not seen. Records are appended as
+// [length][id][UTF-8 text][length]; the trailing length lets the tail be read backwards from the end of the file
+// without touching the rest, so startup costs the same for a thousand cached messages or a million. The epoch of
+// the server's history is kept next to the log, and the cache starts over when the server's IDs restart.
+public class ChatHistoryCache implements Closeable {
+    private static final int HEADER = 4 + 8;
+    private static final int TRAILER = 4;
+    private static final int WRITE_BUFFER = 64 << 10;
+
+    public record Entry(long id, String line) { }
+
+    private final Path logFile;
+    private final Path epochFile;
+    private final long maxBytes;
+    private FileChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocate(WRITE_BUFFER); // Appended but not written yet
+    private long newestId;
+    private String epoch;
+
+    // Cache for one room of one server under root, e.g. root/example.org_5000/main.log
+    public static ChatHistoryCache open(Path root, String server, int port, String room, long maxBytes)
+            throws IOException {
+        String safeServer = server.replaceAll("[^A-Za-z0-9.-]", "_");
+        String safeRoom = room.replaceAll("[^A-Za-z0-9.-]", "_");
+        return new ChatHistoryCache(root.resolve(safeServer + "_" + port), safeRoom, maxBytes);
+    }
+
+    ChatHistoryCache(Path directory, String name, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.logFile = directory.resolve(name + ".log");
+        this.epochFile = directory.resolve(name + ".epoch");
+        this.maxBytes = maxBytes;
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        epoch = Files.isRegularFile(epochFile) ? Files.readString(epochFile).trim() : "";
+        recover();
+        if (channel.size() > maxBytes) {
+            keepNewest(maxBytes / 2);
+        }
+        List<Entry> last = tail(1);
+        newestId = last.isEmpty() ? 0 : last.get(0).id();
+    }
+
+    // Epoch of the server history the cached IDs belong to, empty if unknown
+    public synchronized String epoch() {
+        return epoch;
+    }
+
+    // ID of the newest cached message, 0 if there is none
+    public synchronized long newestId() {
+        return newestId;
+    }
+
+    // Adds a logged message; IDs at or below the newest one are already cached and ignored
+    public synchronized void append(long id, String line) throws IOException {
+        if (id <= newestId) return;
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + text.length + TRAILER;
+        if (length > pending.remaining()) {
+            flush();
+        }
+        if (length > pending.capacity()) {
+            ByteBuffer record = ByteBuffer.allocate(length);
+            writeAt(put(record, id, text).flip(), channel.size());
+        } else {
+            put(pending, id, text);
+        }
+        newestId = id;
+    }
+
+    // Up to count of the newest messages, oldest first. Reads a window at the end of the file, doubling it until it
+    // holds enough records. A damaged record found once the window covers the whole file empties the cache, which
+    // the server then fills again like a new one.
+    public synchronized List<Entry> tail(int count) throws IOException {
+        flush();
+        long size = channel.size();
+        if (size == 0 || count <= 0) return List.of();
+        long window = Math.min(size, Math.max(64 << 10, count * 128L));
+        while (true) {
+            ByteBuffer data = ByteBuffer.allocate((int) window);
+            readAt(data, size - window);
+            ArrayDeque<Entry> entries = new ArrayDeque<>();
+            int end = data.capacity();
+            while (end > 0 && entries.size() < count) {
+                int textLength = end >= HEADER + TRAILER ? data.getInt(end - TRAILER) : -1;
+                int start = end - TRAILER - textLength - HEADER;
+                // The record begins before the window, or it is damaged
+                if (textLength < 0 || start < 0 || data.getInt(start) != textLength) break;
+                entries.addFirst(new Entry(data.getLong(start + 4), new String(data.array(), start + HEADER,
+                        textLength, StandardCharsets.UTF_8)));
+                end = start;
+            }
+            if (entries.size() == count || end == 0 && window == size) return new ArrayList<>(entries);
+            if (window == size) {
+                clear();
+                return List.of();
+            }
+            window = Math.min(size, window * 2);
+        }
+    }
+
+    // Drops everything and remembers the new epoch, when the server's IDs no longer match the cached ones
+    public synchronized void reset(String newEpoch) throws IOException {
+        clear();
+        epoch = newEpoch;
+        Files.writeString(epochFile, newEpoch);
+    }
+
+    private void clear() throws IOException {
+        pending.clear();
+        channel.truncate(0);
+        newestId = 0;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        writeAt(pending, channel.size());
+        pending.clear();
+    }
+
+    public synchronized long sizeOnDisk() throws IOException {
+        return channel.size() + pending.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private static ByteBuffer put(ByteBuffer buffer, long id, byte[] text) {
+        return buffer.putInt(text.length).putLong(id).put(text).putInt(text.length);
+    }
+
+    private void readAt(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) throw new EOFException();
+        }
+    }
+
+    private void writeAt(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    // Cuts a record torn by a crash off the end. Only when the last record does not check out is the file walked
+    // from the start to find where the good records end.
+    private void recover() throws IOException {
+        long size = channel.size();
+        if (size == 0 || lastRecordIsWhole(size)) return;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+        long good = 0;
+        while (good + HEADER + TRAILER <= size) {
+            header.clear();
+            channel.read(header, good);
+            int textLength = header.getInt(0);
+            long next = good + HEADER + textLength + TRAILER;
+            if (textLength < 0 || next > size) break;
+            trailer.clear();
+            channel.read(trailer, next - TRAILER);
+            if (trailer.getInt(0) != textLength) break;
+            good = next;
+        }
+        channel.truncate(good);
+    }
+
+    private boolean lastRecordIsWhole(long size) throws IOException {
+        if (size < HEADER + TRAILER) return false;
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+        channel.read(trailer, size - TRAILER);
+        long start = size - TRAILER - trailer.getInt(0) - HEADER;
+        if (trailer.getInt(0) < 0 || start < 0) return false;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        channel.read(header, start);
+        return header.getInt(0) == trailer.getInt(0);
+    }
+
+    // Rewrites the log with only its newest records, about keepBytes of them
+    private void keepNewest(long keepBytes) throws IOException {
+        long size = channel.size();
+        long start = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (size - start > keepBytes) {
+                int textLength = in.readInt();
+                if (textLength < 0) throw new EOFException("Damaged record at " + start);
+                in.skipNBytes(8 + textLength + TRAILER);
+                start += HEADER + textLength + TRAILER;
+            }
+        } catch (EOFException e) {
+            start = size; // Damaged, so where the records after it begin is unknown; keep none
+        }
+        Path temp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.transferTo(start, size - start, out);
+        }
+        channel.close();
+        Files.move(temp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,117 @@
+package myapp.chat;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.*;
+import java.util.*;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+
+
+// Time to first render of the chat view with a long history: pulling everything through one CHAT_HISTORY line as
+// before, against showing the tail of the local cache. Network time is left out of both, so the gap is a floor.
+// Usage: ChatHistoryCacheBenchmark [messages]
+public class ChatHistoryCacheBenchmark {
+    private static final int RESIDENT_ROWS = 2000; // Same as ChatClient
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        List<String> messages = LogEncodingBenchmark.syntheticTraffic(count);
+        StringBuilder historyLine = new StringBuilder("CHAT_HISTORY:");
+        for (String message : messages) {
+            historyLine.append(message).append("\n");
+        }
+
+        Path workDir = Files.createTempDirectory("history-cache-bench");
+        try {
+            long start = System.nanoTime();
+            try (ChatHistoryCache cache = ChatHistoryCache.open(workDir, "localhost", 5000, "main", 64L << 20)) {
+                for (int i = 0; i < messages.size(); i++) {
+                    cache.append(i + 1, messages.get(i));
+                }
+            }
+            long fillNanos = System.nanoTime() - start;
+
+            long[] full = new long[RUNS];
+            long[] cached = new long[RUNS];
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                render(Arrays.asList(historyLine.substring(13).split("\n")));
+                full[run] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                try (ChatHistoryCache cache = ChatHistoryCache.open(workDir, "localhost", 5000, "main", 64L << 20)) {
+                    List<String> tail = new ArrayList<>();
+                    for (ChatHistoryCache.Entry entry : cache.tail(RESIDENT_ROWS)) {
+                        tail.add(entry.line());
+                    }
+                    render(tail);
+                }
+                cached[run] = System.nanoTime() - start;
+            }
+
+            System.out.printf("Messages:           %,d (cache %,d bytes, filled in %d ms)%n", messages.size(),
+                    Files.size(workDir.resolve("localhost_5000").resolve("main.log")), fillNanos / 1_000_000);
+            System.out.printf("%-26s %14s%n", "Startup path", "First render");
+            System.out.printf("%-26s %11.1f ms%n", "Full CHAT_HISTORY", median(full) / 1e6);
+            System.out.printf("%-26s %11.1f ms%n", "Cached tail (" + RESIDENT_ROWS + ")", median(cached) / 1e6);
+        } finally {
+            try (var files = Files.walk(workDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // Fills a chat view with the displayable lines and paints it once, scrolled to the bottom, on the EDT
+    private static void render(List<String> lines) throws IOException {
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                try {
+                    renderNow(lines);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (InterruptedException | InvocationTargetException e) {
+            throw new IOException("Rendering failed", e);
+        }
+    }
+
+    private static void renderNow(List<String> lines) throws IOException {
+        try (MessageListModel model = MessageListModel.temporary(RESIDENT_ROWS)) {
+            for (String line : lines) {
+                if (!line.startsWith("STATUS:") && !line.startsWith("TYPING")) {
+                    model.append(line);
+                }
+            }
+            MessageList list = new MessageList(model, new MessageList.Previews() {
+                public String imageId(String text) {
+                    return null;
+                }
+
+                public BufferedImage thumbnail(String text, String imageId) {
+                    return null;
+                }
+            }, 160);
+            JScrollPane scrollPane = new JScrollPane(list);
+            scrollPane.setSize(600, 800);
+            scrollPane.doLayout();
+            scrollPane.getViewport().doLayout();
+            list.scrollToBottom();
+            BufferedImage canvas = new BufferedImage(600, 800, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = canvas.createGraphics();
+            scrollPane.paint(g);
+            g.dispose();
+        }
+    }
+
+    private static long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
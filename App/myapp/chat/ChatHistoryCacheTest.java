@@ -0,0 +1,120 @@
+package myapp.chat;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class ChatHistoryCacheTest {
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("history-cache-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private ChatHistoryCache open() throws Exception {
+        return ChatHistoryCache.open(directory, "chat.example.org", 5000, "main", 1 << 20);
+    }
+
+    private static List<String> lines(List<ChatHistoryCache.Entry> entries) {
+        List<String> lines = new ArrayList<>();
+        for (ChatHistoryCache.Entry entry : entries) {
+            lines.add(entry.line());
+        }
+        return lines;
+    }
+
+    @Test
+    public void theTailSurvivesARestart() throws Exception {
+        try (ChatHistoryCache cache = open()) {
+            cache.reset("epoch-1");
+            for (int i = 1; i <= 10_000; i++) {
+                cache.append(i, "user" + (i % 5) + ": message " + i + (i % 100 == 0 ? " 👍".repeat(50) : ""));
+            }
+            cache.append(7, "already cached"); // Replayed IDs are ignored
+        }
+
+        try (ChatHistoryCache cache = open()) {
+            assertEquals("epoch-1", cache.epoch());
+            assertEquals(10_000, cache.newestId());
+            List<ChatHistoryCache.Entry> tail = cache.tail(3);
+            assertEquals(List.of("user3: message 9998", "user4: message 9999"), lines(tail).subList(0, 2));
+            assertEquals(9_998, tail.get(0).id());
+            assertEquals(2_000, cache.tail(2_000).size());
+            assertEquals(10_000, cache.tail(50_000).size());
+        }
+    }
+
+    @Test
+    public void aTornLastRecordIsCutOff() throws Exception {
+        try (ChatHistoryCache cache = open()) {
+            cache.append(1, "alice: first");
+            cache.append(2, "alice: second");
+        }
+        Path log = directory.resolve("chat.example.org_5000").resolve("main.log");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3); // Crashed halfway through the second record
+        }
+
+        try (ChatHistoryCache cache = open()) {
+            assertEquals(1, cache.newestId());
+            cache.append(2, "alice: second again");
+            assertEquals(List.of("alice: first", "alice: second again"), lines(cache.tail(10)));
+        }
+    }
+
+    @Test
+    public void aDamagedRecordInTheMiddleEmptiesTheCache() throws Exception {
+        try (ChatHistoryCache cache = open()) {
+            cache.reset("epoch-1");
+            for (int i = 1; i <= 3; i++) {
+                cache.append(i, "alice: message " + i);
+            }
+        }
+        Path log = directory.resolve("chat.example.org_5000").resolve("main.log");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            long secondTrailer = 2 * (12 + "alice: message 1".length() + 4) - 4;
+            channel.write(java.nio.ByteBuffer.allocate(4).putInt(0, 1_000), secondTrailer);
+        }
+
+        try (ChatHistoryCache cache = open()) {
+            assertEquals(3, cache.newestId()); // The last record is whole
+            assertEquals(List.of("alice: message 3"), lines(cache.tail(1)));
+            assertTrue(cache.tail(10).isEmpty()); // Returns instead of reading the file over and over
+            assertEquals(0, cache.newestId());
+            assertEquals("epoch-1", cache.epoch());
+        }
+    }
+
+    @Test
+    public void aNewEpochStartsOverAndOldRecordsAreDroppedPastTheLimit() throws Exception {
+        try (ChatHistoryCache cache = open()) {
+            cache.reset("epoch-1");
+            cache.append(1, "from before the server restarted");
+            cache.reset("epoch-2");
+            assertEquals(0, cache.newestId());
+            assertTrue(cache.tail(10).isEmpty());
+
+            for (int i = 1; i <= 40_000; i++) {
+                cache.append(i, "user: message " + i);
+            }
+        }
+        try (ChatHistoryCache cache = open()) {
+            assertTrue(cache.sizeOnDisk() <= 1 << 19, "Kept " + cache.sizeOnDisk());
+            assertEquals(40_000, cache.newestId());
+            assertEquals("user: message 40000", cache.tail(1).get(0).line());
+        }
+    }
+}
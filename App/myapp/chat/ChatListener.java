@@ -0,0 +1,70 @@
+package myapp.chat;
+
+
+// Events of a ChatConnection. Every method is called on the connection's event loop thread, in the order the server
+// sent the lines, and must return quickly: a UI hands the work to its own thread, a bot does its work elsewhere.
+// All methods do nothing by default, so a listener only implements what it needs.
+public interface ChatListener {
+    // Where a run of logged messages between onHistoryStart and onHistoryEnd comes from
+    enum HistorySource {
+        CACHE, // The local history cache, before the server has answered
+        MISSED, // Logged while this client was away, fetched to bring the cache up to date
+        REQUESTED // Sent by the server after requestHistory
+    }
+
+    enum CloseReason {
+        QUIT, // quit was called
+        SERVER_CLOSED, // The connection dropped and there was no session to resume
+        SESSION_EXPIRED, // The server no longer knew the session when we came back
+        UNREACHABLE // Every reconnect attempt failed
+    }
+
+    // A chat line or a server notice
+    default void onMessage(String text) { }
+
+    default void onEdit(String oldText, String newText) { }
+
+    default void onDelete(String text) { }
+
+    default void onReaction(String messageId, String reaction) { }
+
+    // A file or voice message; its bytes are fetched over the data port by attachment ID
+    default void onAttachment(String attachmentId, long size, String sender, String name, boolean voice) { }
+
+    default void onPrivateMessage(String sender, String text) { }
+
+    default void onPresence(String userId, boolean online) { }
+
+    default void onTyping(String userId, boolean typing) { }
+
+    // Messages until onHistoryEnd were logged earlier; they only arrive as onMessage, onEdit, onDelete, onReaction
+    // and onAttachment, never as presence or typing
+    default void onHistoryStart(HistorySource source) { }
+
+    default void onHistoryEnd(HistorySource source) { }
+
+    // The server's history started over, so the cached messages shown so far belong to an older conversation
+    default void onHistoryReset() { }
+
+    // More was missed than the server replays; the oldest missed messages are only in the full history
+    default void onHistorySkipped() { }
+
+    default void onIdChanged(String oldId, String newId) { }
+
+    // changeId asked for an ID somebody else has
+    default void onIdRejected(String id) { }
+
+    // DATA_PORT: where attachments are uploaded and downloaded, and the token that marks our uploads
+    default void onDataPort(int port, String uploadToken) { }
+
+    // VOICE_PORT: we joined a live voice room
+    default void onVoicePort(int port, int memberId, int key, String room) { }
+
+    // The connection dropped; the connection is reconnecting and resends what the server has not acknowledged
+    default void onConnectionLost() { }
+
+    default void onReconnected() { }
+
+    // The connection is gone for good
+    default void onClosed(CloseReason reason) { }
+}
@@ -0,0 +1,389 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Drives a chat server with simulated clients and measures end-to-end delivery latency. The clients log in like
+// ChatClient does, over ChatConnections spread across a few event loops, then a driver sends a mix of traffic at a
+// fixed rate that doubles every step until the server saturates. Sends are open-loop: every operation is stamped with
+// the time it was due, not the time the driver got to it, so a stalled server shows up as latency instead of as fewer
+// samples. Each step reports throughput and p50/p99/p999 from send to receipt; the first step that leaves deliveries
+// behind or whose p99 explodes is the saturation point.
+// Without host:port the server runs in this JVM, so its log goes to chat_history in the working directory.
+// Usage: ChatLoadGenerator [clients] [seconds per step] [start rate ops/s] [max steps] [mix] [host:port]
+// Mix example: broadcast=60,private=15,typing=10,reaction=5,edit=5,history=5
+public class ChatLoadGenerator {
+    private static final String DEFAULT_MIX = "broadcast=70,private=10,typing=10,reaction=5,edit=4,history=1";
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5); // Grace period after a step to catch up
+    private static final double MIN_COMPLETE = 0.99; // Fewer deliveries than this after draining: saturated
+    private static final long P99_LIMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // Never saturated below this
+
+    enum Kind {
+        BROADCAST('b'), PRIVATE('p'), TYPING('t'), REACTION('r'), EDIT('e'), HISTORY('h');
+
+        final char tag;
+
+        Kind(char tag) {
+            this.tag = tag;
+        }
+
+        // How many of the clients receive one operation of this kind
+        int recipients(int clients) {
+            return this == PRIVATE || this == HISTORY ? 1 : clients;
+        }
+
+        static Kind ofTag(char tag) {
+            for (Kind kind : values()) {
+                if (kind.tag == tag) return kind;
+            }
+            return null;
+        }
+    }
+
+    // What one rate step sent and what came back; deliveries arrive on the event loop threads
+    private static class Step {
+        final long rate;
+        final long start;
+        final long[] sent = new long[Kind.values().length]; // Driver thread only
+        final LongAdder[] delivered = new LongAdder[Kind.values().length];
+        final LatencyHistogram[] latency = new LatencyHistogram[Kind.values().length];
+        final AtomicLong lastDelivery = new AtomicLong();
+        volatile long end;
+
+        Step(long rate, long start) {
+            this.rate = rate;
+            this.start = start;
+            for (int i = 0; i < latency.length; i++) {
+                delivered[i] = new LongAdder();
+                latency[i] = new LatencyHistogram();
+            }
+        }
+
+        void record(Kind kind, long sentAt, long now) {
+            delivered[kind.ordinal()].increment();
+            latency[kind.ordinal()].record(now - sentAt);
+            lastDelivery.accumulateAndGet(now, Math::max);
+        }
+
+        long expected(int clients) {
+            long expected = 0;
+            for (Kind kind : Kind.values()) {
+                expected += sent[kind.ordinal()] * kind.recipients(clients);
+            }
+            return expected;
+        }
+
+        long delivered() {
+            long delivered = 0;
+            for (LongAdder adder : this.delivered) {
+                delivered += adder.sum();
+            }
+            return delivered;
+        }
+
+        long sent() {
+            return Arrays.stream(sent).sum();
+        }
+
+        LatencyHistogram all() {
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram histogram : latency) {
+                all.add(histogram);
+            }
+            return all;
+        }
+    }
+
+    private static final List<Step> steps = new CopyOnWriteArrayList<>();
+    private static final long epoch = System.nanoTime(); // Stamps count from here, since nanoTime can be negative
+
+    // One simulated user; every callback runs on its connection's event loop thread
+    private static class LoadClient implements ChatListener {
+        final String id;
+        final Queue<long[]> historyRequests = new ConcurrentLinkedQueue<>(); // {step, due time}
+        ChatConnection connection;
+        private boolean inHistory; // Replayed lines carry old stamps
+
+        LoadClient(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void onMessage(String text) {
+            if (!inHistory) received(text, Kind.BROADCAST); // Also skips our "(Private to ...)" confirmations
+        }
+
+        @Override
+        public void onPrivateMessage(String sender, String text) {
+            received(text, Kind.PRIVATE);
+        }
+
+        @Override
+        public void onTyping(String userId, boolean typing) {
+            if (typing) received(userId, Kind.TYPING);
+        }
+
+        @Override
+        public void onReaction(String messageId, String reaction) {
+            if (!inHistory) received(messageId, Kind.REACTION);
+        }
+
+        @Override
+        public void onEdit(String oldText, String newText) {
+            if (!inHistory) received(oldText, Kind.EDIT);
+        }
+
+        @Override
+        public void onHistoryStart(HistorySource source) {
+            inHistory = true;
+        }
+
+        @Override
+        public void onHistoryEnd(HistorySource source) {
+            inHistory = false;
+            if (source != HistorySource.REQUESTED) return;
+            long[] request = historyRequests.poll();
+            if (request != null) {
+                steps.get((int) request[0]).record(Kind.HISTORY, request[1], System.nanoTime());
+            }
+        }
+    }
+
+    // lg.<kind>.<step>.<due nanos since epoch>, without colons so it survives every protocol split
+    static String stamp(Kind kind, int step, long due) {
+        return "lg." + kind.tag + "." + step + "." + (due - epoch);
+    }
+
+    private static void received(String text, Kind expected) {
+        long now = System.nanoTime();
+        int at = text.indexOf("lg.");
+        if (at < 0 || at + 5 >= text.length() || Kind.ofTag(text.charAt(at + 3)) != expected) return;
+        int stepEnd = text.indexOf('.', at + 5);
+        if (stepEnd < 0) return;
+        int dueEnd = stepEnd + 1;
+        while (dueEnd < text.length() && Character.isDigit(text.charAt(dueEnd))) {
+            dueEnd++;
+        }
+        try {
+            int step = Integer.parseInt(text, at + 5, stepEnd, 10);
+            long due = epoch + Long.parseLong(text, stepEnd + 1, dueEnd, 10);
+            steps.get(step).record(expected, due, now);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // Somebody else's message that happens to contain the marker
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int stepSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long startRate = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        int maxSteps = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        Kind[] mix = parseMix(args.length > 4 ? args[4] : DEFAULT_MIX);
+        String target = args.length > 5 ? args[5] : null;
+
+        ServerSocket serverSocket = null;
+        String host = "localhost";
+        int port;
+        if (target == null) {
+            serverSocket = startServer();
+            port = serverSocket.getLocalPort();
+        } else {
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        }
+
+        int loopCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        List<ChatEventLoop> loops = new ArrayList<>();
+        for (int i = 0; i < loopCount; i++) {
+            loops.add(new ChatEventLoop("load-io-" + i));
+        }
+        System.out.printf("%d clients on %d event loops against %s, mix %s%n", clientCount, loopCount,
+                target == null ? "an in-process server" : target, args.length > 4 ? args[4] : DEFAULT_MIX);
+
+        List<LoadClient> clients = logIn(clientCount, loops, host, port);
+
+        System.out.printf("%n%4s %10s %10s %13s %9s %9s %9s %9s %9s%n", "Step", "Offered/s", "Sent/s",
+                "Delivered/s", "Complete", "p50 ms", "p99 ms", "p999 ms", "Max ms");
+        Step lastHealthy = null;
+        Step saturated = null;
+        long baselineP99 = 0;
+        for (int s = 0; s < maxSteps && saturated == null; s++) {
+            Step step = runStep(s, startRate << s, stepSeconds, mix, clients);
+            drain(step, clientCount);
+
+            LatencyHistogram all = step.all();
+            double complete = step.delivered() / (double) Math.max(1, step.expected(clientCount));
+            double seconds = (Math.max(step.lastDelivery.get(), step.end) - step.start) / 1e9;
+            System.out.printf("%4d %10d %10.0f %13.0f %8.2f%% %9.2f %9.2f %9.2f %9.2f%n", s, step.rate,
+                    step.sent() / ((step.end - step.start) / 1e9), step.delivered() / seconds, 100 * complete,
+                    all.percentile(50) / 1e6, all.percentile(99) / 1e6, all.percentile(99.9) / 1e6, all.max() / 1e6);
+
+            long p99 = all.percentile(99);
+            if (s == 0) baselineP99 = p99;
+            if (complete < MIN_COMPLETE || p99 > Math.max(P99_LIMIT_NANOS, 10 * baselineP99)) {
+                saturated = step;
+            } else {
+                lastHealthy = step;
+            }
+        }
+
+        System.out.println();
+        if (saturated == null) {
+            System.out.printf("Not saturated at %d ops/s; raise the start rate or the number of steps%n",
+                    lastHealthy.rate);
+        } else if (lastHealthy == null) {
+            System.out.printf("Saturated already at %d ops/s; lower the start rate%n", saturated.rate);
+        } else {
+            System.out.printf("Saturation point: between %d and %d ops/s offered (%.0f deliveries/s sustained)%n",
+                    lastHealthy.rate, saturated.rate, lastHealthy.delivered() /
+                            ((Math.max(lastHealthy.lastDelivery.get(), lastHealthy.end) - lastHealthy.start) / 1e9));
+        }
+        printKinds(saturated == null ? steps : steps.subList(0, steps.indexOf(saturated)), clientCount);
+
+        for (LoadClient client : clients) {
+            client.connection.quit();
+        }
+        Thread.sleep(500); // Let the SESSION_ENDs go out
+        for (ChatEventLoop loop : loops) {
+            loop.close();
+        }
+        if (serverSocket != null) {
+            ChatServer.stopServer();
+            serverSocket.close();
+        }
+        System.exit(0); // The server's handler threads are not daemons
+    }
+
+    // Weighted choices as a table of 100 slots, so the driver picks with one random index
+    static Kind[] parseMix(String mix) {
+        Map<Kind, Integer> weights = new EnumMap<>(Kind.class);
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            weights.merge(Kind.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), weight, Integer::sum);
+            total += weight;
+        }
+        if (total <= 0) throw new IllegalArgumentException("Mix has no weight: " + mix);
+        List<Kind> table = new ArrayList<>();
+        for (Map.Entry<Kind, Integer> entry : weights.entrySet()) {
+            long slots = Math.round(100.0 * entry.getValue() / total);
+            for (int i = 0; i < Math.max(slots, entry.getValue() > 0 ? 1 : 0); i++) {
+                table.add(entry.getKey());
+            }
+        }
+        return table.toArray(new Kind[0]);
+    }
+
+    private static ServerSocket startServer() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 4096); // The whole crowd connects at once
+        ChatServer.running = true;
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (!serverSocket.isClosed()) {
+                    Socket clientSocket = serverSocket.accept();
+                    new Thread(new ChatServer.ClientHandler(clientSocket)).start();
+                }
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }, "load-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket;
+    }
+
+    private static List<LoadClient> logIn(int count, List<ChatEventLoop> loops, String host, int port)
+            throws Exception {
+        long start = System.nanoTime();
+        List<LoadClient> clients = new ArrayList<>();
+        List<CompletableFuture<Boolean>> logins = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LoadClient client = new LoadClient("load" + i);
+            client.connection = new ChatConnection(loops.get(i % loops.size()), host, port, client);
+            clients.add(client);
+            logins.add(client.connection.login(client.id));
+        }
+        for (int i = 0; i < count; i++) {
+            if (!logins.get(i).get(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("ID " + clients.get(i).id + " is taken on the server");
+            }
+        }
+        System.out.printf("Logged in after %.0f ms%n", (System.nanoTime() - start) / 1e6);
+        Thread.sleep(1000); // Presence updates of the late joiners are still going out
+        return clients;
+    }
+
+    // Sends for stepSeconds at the given rate; an operation that is late still carries the time it was due
+    private static Step runStep(int index, long rate, int stepSeconds, Kind[] mix, List<LoadClient> clients) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(stepSeconds);
+        Step step = new Step(rate, start);
+        steps.add(step);
+        for (long due = start; due < end; due += interval) {
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Kind kind = mix[random.nextInt(mix.length)];
+            int from = random.nextInt(clients.size());
+            LoadClient client = clients.get(from);
+            String stamp = stamp(kind, index, due);
+            switch (kind) {
+                case BROADCAST -> client.connection.sendChat(stamp);
+                case PRIVATE -> {
+                    LoadClient to = clients.get((from + 1 + random.nextInt(Math.max(1, clients.size() - 1))) %
+                            clients.size()); // Somebody else, unless we are alone
+                    client.connection.sendReliably("@" + to.id + " " + stamp);
+                }
+                case TYPING -> client.connection.send("TYPING:" + stamp);
+                case REACTION -> client.connection.send("REACTION:" + stamp + ":👍");
+                case EDIT -> client.connection.sendReliably("EDIT_MESSAGE:" + stamp + ":" + client.id + ": edited");
+                case HISTORY -> {
+                    client.historyRequests.add(new long[] {index, due});
+                    client.connection.requestHistory();
+                }
+            }
+            step.sent[kind.ordinal()]++;
+        }
+        step.end = System.nanoTime();
+        return step;
+    }
+
+    private static void drain(Step step, int clients) throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_NANOS;
+        while (step.delivered() < step.expected(clients) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void printKinds(List<Step> healthy, int clients) {
+        System.out.printf("%nPer kind, over the steps below saturation:%n%-10s %10s %12s %9s %9s %9s %9s%n", "Kind",
+                "Sent", "Delivered", "p50 ms", "p99 ms", "p999 ms", "Max ms");
+        for (Kind kind : Kind.values()) {
+            long sent = 0;
+            long delivered = 0;
+            LatencyHistogram latency = new LatencyHistogram();
+            for (Step step : healthy) {
+                sent += step.sent[kind.ordinal()];
+                delivered += step.delivered[kind.ordinal()].sum();
+                latency.add(step.latency[kind.ordinal()]);
+            }
+            if (sent == 0) continue;
+            System.out.printf("%-10s %10d %12d %9.2f %9.2f %9.2f %9.2f%n", kind.name().toLowerCase(Locale.ROOT), sent,
+                    delivered, latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+                    latency.percentile(99.9) / 1e6, latency.max() / 1e6);
+        }
+        System.out.printf("(Deliveries count every recipient: %d for broadcasts, typing, reactions and edits)%n",
+                clients);
+    }
+}
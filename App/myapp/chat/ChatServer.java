@@ -8,15 +8,16 @@ package myapp.chat;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.regex.*;
+import java.nio.file.Path;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import javax.swing.JOptionPane;
 import java.util.logging.Logger;
 
 
 public class ChatServer {
-    private static final Set<ClientHandler> clients = Collections.newSetFromMap(new ConcurrentHashMap<>()); // Set of
+    static final Set<ClientHandler> clients = Collections.newSetFromMap(new ConcurrentHashMap<>()); // Set of
     // connected clients
     private static ClientHandler coordinator; // The coordinator client (first connected)
     private static ServerSocket serverSocket; // Server socket to listen for connections
@@ -27,9 +28,30 @@ public class ChatServer {
     private static final Set<String> activeIDs = ConcurrentHashMap.newKeySet(); // Track active IDs to ensure uniqueness
     private static ScheduledFuture<?> activeCheckTask; // Store scheduled task
     static final Map<String, List<String>> messageReactions = new ConcurrentHashMap<>();
-    static Map<Pattern, List<String>> triggers = new HashMap<>();
-    private static final Map<Integer, String> messages = Collections.synchronizedMap(new HashMap<>());
-    private static final String LOG_FILE = "chat_log.txt";
+    // Auto-reply topics, reloaded from auto_replies.txt (or -Dchat.autoReplies=<file>) whenever it changes
+    static final AutoReplyEngine autoReplies = AutoReplyEngine.start(
+            Path.of(System.getProperty("chat.autoReplies", AutoReplyEngine.BUNDLED_RULES)));
+    static final BotDispatcher bots = BotDispatcher.loadBots(); // "#command" responders found via ServiceLoader
+    private static final String ATTACHMENT_DIR = "attachments";
+    // File transfers run on their own data port (-Dchat.dataPort, ephemeral by default)
+    static final AttachmentRelay attachments = openAttachmentRelay();
+    // Live push-to-talk datagrams (-Dchat.voicePort, ephemeral by default)
+    static final VoiceRelay voiceRelay = openVoiceRelay();
+    static final Map<Integer, String> messages = Collections.synchronizedMap(new HashMap<>());
+    private static final AtomicInteger nextMessageKey = new AtomicInteger(); // Keys of kept messages
+    private static final String HISTORY_DIR = "chat_history";
+    static final ServerMetrics metrics = new ServerMetrics(); // Hot-path timings and traffic, see METRICS
+    private static MetricsHttpServer httpServer; // Only with -Dchat.httpPort
+    static final HistoryStore history = openHistoryStore(); // Tiered message log (memory, mapped, compressed)
+    static final SearchIndex searchIndex = new SearchIndex(); // Full-text index over the history
+    private static final int SEARCH_PAGE_SIZE = 20;
+    // Dropped clients can resume within this many seconds (-Dchat.sessionGrace)
+    static final SessionRegistry sessions = new SessionRegistry(
+            Integer.getInteger("chat.sessionGrace", 300) * 1000L);
+    // A resumable connection quiet for this many seconds gets a PING, and is dropped and parked if it stays quiet as
+    // long again, so a peer that vanished without closing its socket can resume (-Dchat.heartbeat)
+    static int heartbeatMillis = Integer.getInteger("chat.heartbeat", 30) * 1000;
+    private static final int REPLAY_LIMIT = 5000; // Most missed messages replayed on resume or catch-up
 
     public static void main(String[] args) {
         try {
@@ -148,15 +170,25 @@ public class ChatServer {
         	    }
         	}
 
+        	// Index the existing history before accepting clients
+        	long indexStart = System.nanoTime();
+        	searchIndex.rebuild(history, Runtime.getRuntime().availableProcessors());
+        	System.out.printf("Search index rebuilt: %d terms in %d ms%n", searchIndex.termCount(),
+                    (System.nanoTime() - indexStart) / 1_000_000);
+
         	// Start active check timer
         	restartActiveCheckTimer();
+        	ChatServerMonitor.register();
+        	httpServer = MetricsHttpServer.startIfConfigured(metrics, clients::size);
 
             // Start a separate thread to listen for shutdown commands
             new Thread(ChatServer::listenForCommands).start();
 
             // Accept new client connections in a loop
             while (running) {
+                metrics.acceptLoopWaiting();
                 Socket socket = serverSocket.accept();
+                metrics.acceptLoopBusy(); // The handshake runs right here, so a stuck one blocks everybody else
                 ClientHandler clientHandler = new ClientHandler(socket);
                 clients.add(clientHandler);
                 new Thread(clientHandler).start(); // Start a new thread for each client
@@ -173,7 +205,11 @@ public class ChatServer {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
             while (running) {
                 String command = reader.readLine();
-                if ("exit".equalsIgnoreCase(command)) {
+                if ("bots".equalsIgnoreCase(command)) {
+                    System.out.print(bots.report());
+                } else if ("metrics".equalsIgnoreCase(command)) {
+                    System.out.print(metrics.report(clients.size(), sessions.size()));
+                } else if ("exit".equalsIgnoreCase(command)) {
                     System.out.println("Shutting down server...");
                     notifyClientsShutdown(); // Notify clients before shutting down
                     stopServer();
@@ -197,6 +233,17 @@ public class ChatServer {
         }
     }
 
+    // The member who gets the active checks and may use the coordinator-only commands; null when nobody is connected
+    static ClientHandler coordinator() {
+        return coordinator;
+    }
+
+    // Asks the members now and restarts the periodic check
+    static void activeCheck() {
+        restartActiveCheckTimer();
+        checkActiveMembers();
+    }
+
     // Check which members are still active
     private static void checkActiveMembers() {
         if (coordinator != null) {
@@ -211,9 +258,9 @@ public class ChatServer {
         }
     }
 
-    // Stop the server if there are no more connected clients
+    // Stop the server if there are no more connected clients and none is about to resume
     public static synchronized void stopServerIfEmpty() {
-        if (clients.isEmpty()) {
+        if (clients.isEmpty() && !sessions.hasParked()) {
             System.out.println("All clients have disconnected. Stopping server...");
             stopServer();
         }
@@ -223,7 +270,14 @@ public class ChatServer {
     public static void stopServer() {
         try {
             running = false;
+            metrics.acceptLoopStopped();
+            if (httpServer != null) {
+                httpServer.close();
+            }
             scheduler.shutdown(); // Stop periodic tasks
+            bots.shutdown();
+            attachments.close();
+            voiceRelay.close();
 
             for (ClientHandler client : clients) {
                 client.closeConnection(); // Close all client connections
@@ -248,17 +302,101 @@ public class ChatServer {
                 TimeUnit.SECONDS);
     }
 
-    private static void logMessage(String message) {
+    private static HistoryStore openHistoryStore() {
+        try {
+            return new HistoryStore(Path.of(System.getProperty("chat.historyDir", HISTORY_DIR)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the chat history", e);
+        }
+    }
+
+    private static AttachmentRelay openAttachmentRelay() {
+        try {
+            return new AttachmentRelay(Path.of(ATTACHMENT_DIR), Integer.getInteger("chat.dataPort", 0),
+                    ChatServer::announceAttachment);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the attachment data port", e);
+        }
+    }
+
+    private static VoiceRelay openVoiceRelay() {
+        try {
+            return new VoiceRelay(Integer.getInteger("chat.voicePort", 0));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the live voice port", e);
+        }
+    }
+
+    // Tells everyone about a finished upload; clients fetch the bytes over the data port when opened
+    private static void announceAttachment(String uploaderId, AttachmentRelay.Attachment attachment) {
+        for (ClientHandler client : clients) {
+            if (uploaderId.equals(client.getClientID())) { // Null while a client is still handshaking
+                String announcement = (attachment.voice() ? "VOICE:" : "FILE:") + attachment.id() + ":" +
+                        attachment.size() + ":" + uploaderId + ":" + attachment.name();
+                messages.put(nextMessageKey.getAndIncrement(), announcement); // Kept so a DELETE_MESSAGE can find it
+                client.broadcast(announcement);
+                return;
+            }
+        }
+        attachments.release(attachment.id()); // Uploader left before the file arrived, nothing refers to it
+    }
+
+    // Returns the ID the message was logged under, or -1 if it is not kept
+    static long logMessage(String message) {
         if (!message.startsWith("TYPING:") && !message.startsWith("TYPING_END:") &&
                 !message.startsWith("REQUEST_CHAT_HISTORY")) {
-            try (FileWriter fw = new FileWriter(LOG_FILE, true);
-                 BufferedWriter bw = new BufferedWriter(fw);
-                 PrintWriter out = new PrintWriter(bw)) {
-                out.println(message);
+            try {
+                // Appends and index updates happen together so posting lists see IDs in order
+                metrics.logAppendStarted(); // Lets the health check see a log writer that stalls
+                synchronized (history) {
+                    long start = System.nanoTime();
+                    long id = history.append(message);
+                    searchIndex.add(id, message);
+                    metrics.logAppended(System.nanoTime() - start);
+                    return id;
+                }
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "An error occurred while trying to load message history", e);
+            } finally {
+                metrics.logAppendEnded();
             }
         }
+        return -1;
+    }
+
+    // Edits the first kept message with this text; false if there is none
+    static boolean replaceMessage(String oldText, String newText) {
+        synchronized (messages) {
+            for (Map.Entry<Integer, String> entry : messages.entrySet()) {
+                if (entry.getValue().equals(oldText)) {
+                    messages.put(entry.getKey(), newText);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Removes every kept message with this text; false if there is none
+    static boolean removeMessage(String text) {
+        synchronized (messages) {
+            return messages.values().removeIf(value -> value.equals(text));
+        }
+    }
+
+    // The uploader of a "FILE:<id>:<size>:<uploader>:<name>" (or VOICE:) announcement, null for other messages
+    private static String attachmentUploader(String message) {
+        String[] parts = message.split(":", 5);
+        boolean announcement = parts.length == 5 && (parts[0].equals("FILE") || parts[0].equals("VOICE"));
+        return announcement ? parts[3] : null;
+    }
+
+    // The last client of a dropped session did not come back
+    private static void sessionExpired() {
+        if (clients.isEmpty() && !sessions.hasParked()) {
+            ClientHandler.clearLogFile();
+            stopServerIfEmpty();
+        }
     }
 
     // Handles each connected client in a separate thread
@@ -267,16 +405,40 @@ public class ChatServer {
         private BufferedReader reader;
         private PrintWriter writer;
         private String clientID;
+        private String uploadToken; // Identifies this client's uploads on the attachment data port
+        private VoiceRelay.Membership voiceMembership; // Live voice room this client is in, if any
+        // Set once the client asks for a resumable session; logged messages then reach it as MESSAGE_ID:<id>:<text>
+        private volatile SessionRegistry.Session session;
+        private long nextReplayId; // First history ID not replayed yet when resuming
+        private boolean closed; // Left or handed over to a resuming connection, guarded by activeIDs
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
+            metrics.handshakeStarted();
+            ChatEvents.Handshake event = new ChatEvents.Handshake();
+            event.begin();
             try {
-                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                writer = new PrintWriter(socket.getOutputStream(), true);
+                reader = new BufferedReader(new InputStreamReader(metrics.countIn(socket.getInputStream())));
+                writer = metrics.countOut(socket.getOutputStream());
 
-                // Ensure the user selects a unique ID
+                // Ensure the user selects a unique ID, or takes back the one of a dropped session
+                long resumeAfter = -1;
+                boolean resumable = false;
                 while (true) {
                     clientID = reader.readLine();
+                    if (clientID == null) {
+                        throw new EOFException("Disconnected before choosing an ID"); // E.g. a rejected resume
+                    }
+                    if (clientID.startsWith("CAPABILITIES:")) { // Sent before the ID by clients that can resume
+                        resumable = Arrays.asList(clientID.substring(13).split(",")).contains("resume");
+                        continue;
+                    }
+                    if (clientID.startsWith("RESUME:")) {
+                        resumeAfter = resumeSession(clientID);
+                        if (resumeAfter >= 0) break;
+                        writer.println("RESUME_REJECTED"); // The client logs in afresh or gives up
+                        continue;
+                    }
                     synchronized (activeIDs) {
                         if (!activeIDs.contains(clientID)) {
                             activeIDs.add(clientID);
@@ -288,15 +450,27 @@ public class ChatServer {
                     }
                 }
 
-                System.out.println(clientID + " has connected.");
+                event.resumed = resumeAfter >= 0;
+                if (resumeAfter >= 0) {
+                    System.out.println(clientID + " has reconnected.");
+                    replayMissed(resumeAfter);
+                } else {
+                    System.out.println(clientID + " has connected.");
+                }
 
                 boolean isFirstClient = false;
                 synchronized (clients) {
+                    if (resumeAfter >= 0) {
+                        replayFrom(nextReplayId, Integer.MAX_VALUE); // Logged while the bulk was being sent
+                    }
                     clients.add(this); // Add client to the list
                     if (coordinator == null) { // Assign the first client as coordinator
                         coordinator = this;
                         isFirstClient = true;
-                        writer.println("COORDINATOR");  // Send coordinator message
+                        writer.println(resumeAfter >= 0 ? "You are now the coordinator." : "COORDINATOR");
+                    }
+                    if (resumable && resumeAfter < 0) {
+                        startSession(); // Before our own join is logged, so the client sees it tagged
                     }
                 }
 
@@ -304,7 +478,8 @@ public class ChatServer {
                 broadcast("STATUS:" + clientID + ":online");
 
                 broadcast(clientID + " [" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort() +
-                        "] has joined the chat" + (isFirstClient ? " (Coordinator)" : ""));
+                        "] has " + (resumeAfter >= 0 ? "reconnected" : "joined the chat") +
+                        (isFirstClient ? " (Coordinator)" : ""));
 
                 // Send the current statuses to the new client
                 sendCurrentUserStatuses();
@@ -313,8 +488,135 @@ public class ChatServer {
                     sendMessage("The current coordinator is: " + coordinator.getClientID() + " [" +
                             coordinator.socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + "]");
                 }
+
+                uploadToken = attachments.registerUploader(clientID);
+                sendMessage("DATA_PORT:" + attachments.port() + ":" + uploadToken);
+                event.completed = true;
+            } catch (EOFException e) {
+                logger.log(Level.FINE, "A connection closed during the handshake", e);
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "An error occurred while handling the clients on the server", e);
+            } finally {
+                metrics.handshakeEnded();
+                event.clientId = clientID;
+                event.commit();
+            }
+        }
+
+        // RESUME:<token>:<lastSeenId> - takes a session back, parked or still held by a connection the client has
+        // given up on (the server may not have noticed the drop yet); returns the last ID the client saw, or -1
+        private long resumeSession(String request) {
+            String[] parts = request.split(":", 3);
+            if (parts.length < 3 || !parts[2].matches("\\d{1,18}")) return -1;
+            SessionRegistry.Session resumed;
+            ClientHandler stale = null;
+            synchronized (activeIDs) { // Same lock as closeConnection: the old connection has left or is handed over
+                resumed = sessions.resume(parts[1]);
+                if (resumed == null) return -1;
+                for (ClientHandler client : clients) {
+                    if (client.session == resumed) stale = client;
+                }
+                if (stale != null) {
+                    stale.closed = true; // Its ID and session go to this connection
+                    stale.session = null;
+                } else if (!activeIDs.add(resumed.clientId())) { // Someone else logged in with the ID meanwhile
+                    sessions.end(resumed);
+                    return -1;
+                }
+            }
+            if (stale != null) stale.handOver();
+            clientID = resumed.clientId();
+            session = resumed;
+            setHeartbeat();
+            writer.println("RESUMED:" + clientID);
+            return Long.parseLong(parts[2]);
+        }
+
+        // Closes a connection whose session was just resumed elsewhere, without the leave: nobody is told it left,
+        // the session is not parked, and coordination passes to the new connection when it joins
+        private void handOver() {
+            try {
+                socket.close(); // Its thread wakes up, finds it closed and ends
+            } catch (IOException e) {
+                logger.log(Level.FINE, "The socket of a taken over connection was already closed", e);
+            }
+            if (uploadToken != null) {
+                attachments.unregisterUploader(uploadToken);
+            }
+            leaveVoiceRoom();
+            synchronized (clients) {
+                clients.remove(this);
+                if (this == coordinator) coordinator = null;
+            }
+        }
+
+        private void setHeartbeat() {
+            try {
+                socket.setSoTimeout(heartbeatMillis);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not set the heartbeat on " + clientID + "'s connection", e);
+            }
+        }
+
+        // Sends what the client missed while it was away, most of it before joining so broadcasts are not held up
+        private void replayMissed(long lastSeenId) throws IOException {
+            long from = lastSeenId + 1;
+            long missed = history.lastId() - lastSeenId;
+            if (missed > REPLAY_LIMIT) {
+                from = history.lastId() - REPLAY_LIMIT + 1;
+                sendMessage((missed - REPLAY_LIMIT) + " earlier messages were missed, use History to see them.");
+            }
+            nextReplayId = from;
+            replayFrom(from, REPLAY_LIMIT);
+        }
+
+        private void replayFrom(long fromId, int limit) throws IOException {
+            history.read(fromId, limit, (id, line) -> {
+                writer.println("MESSAGE_ID:" + id + ":" + line);
+                nextReplayId = id + 1;
+            });
+        }
+
+        // Makes this connection resumable: SESSION:<token>:<lastId>:<epoch>, after which logged messages carry
+        // their IDs. The epoch tells the client whether IDs it cached earlier still refer to the same messages.
+        private void startSession() {
+            synchronized (clients) { // No message is logged between reading lastId and tagging
+                session = sessions.open(clientID);
+                setHeartbeat();
+                sendMessage("SESSION:" + session.token() + ":" + history.lastId() + ":" + history.epoch());
+            }
+        }
+
+        // HISTORY_SINCE:<afterId>:<upToId> - what a client's cache is missing, at most the newest REPLAY_LIMIT:
+        // HISTORY_START:<firstId>, then HISTORY_ID:<id>:<message> lines, then HISTORY_END
+        private void sendHistorySince(String range) {
+            String[] parts = range.split(":");
+            if (parts.length != 2 || !parts[0].matches("\\d{1,18}") || !parts[1].matches("\\d{1,18}")) {
+                sendMessage("Usage: HISTORY_SINCE:<afterId>:<upToId>");
+                return;
+            }
+            long upTo = Math.min(Long.parseLong(parts[1]), history.lastId());
+            long from = Math.max(Long.parseLong(parts[0]) + 1, upTo - REPLAY_LIMIT + 1);
+            sendMessage("HISTORY_START:" + from);
+            ChatEvents.HistorySent event = new ChatEvents.HistorySent();
+            event.begin();
+            long[] sent = {0, 0}; // Messages, characters
+            try {
+                if (upTo >= from) {
+                    history.read(from, (int) (upTo - from + 1), (id, line) -> {
+                        writer.println("HISTORY_ID:" + id + ":" + line);
+                        sent[0]++;
+                        sent[1] += line.length();
+                    });
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "An error occurred while sending missed history", e);
+            } finally {
+                sendMessage("HISTORY_END");
+                event.clientId = clientID;
+                event.messages = (int) sent[0];
+                event.size = sent[1];
+                event.commit();
             }
         }
 
@@ -331,6 +633,29 @@ public class ChatServer {
             }
         }
 
+        // Disconnects for good: the session ends first, so the client cannot resume it. The handler's own thread
+        // then sees the closed socket and cleans up as for any other leave.
+        void kick() {
+            SessionRegistry.Session current = session;
+            if (current != null) {
+                sessions.end(current);
+                session = null;
+            }
+            sendMessage("You have been removed from the chat by the server.");
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "The socket of a kicked client was already closed", e);
+            }
+        }
+
+        // A member that is already past the handshake and writes to the given stream; for benchmarks
+        ClientHandler(String clientID, OutputStream out) {
+            this.socket = null;
+            this.clientID = clientID;
+            this.writer = metrics.countOut(out);
+        }
+
         public String getClientID() {
             return clientID;
         }
@@ -341,74 +666,32 @@ public class ChatServer {
 
         // Main execution loop for each client
         public void run() {
+            if (clientID == null) { // The handshake failed, nothing to clean up beyond the socket
+                clients.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Already gone
+                }
+                return;
+            }
             try {
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    if (message.equals("ACTIVE_CHECK")) {
-                        if (this == coordinator) {
-                            restartActiveCheckTimer();
-                            checkActiveMembers();
-                            sendMessage("Active check restarted, next check in 120 seconds.");
-                        } else {
-                            sendMessage("Only the coordinator can request an active check.");
-                        }
-                        continue;
-                    } else if (message.equals("REQUEST_MEMBER_LIST")) {
-                        sendMemberList();
-                        continue;
-                    } else if (message.startsWith("@")) {
-                        sendPrivateMessage(message);
-                        continue;
-                    } else if (message.startsWith("CHANGE_ID:")) {
-                        String newId = message.substring(10).trim();
-                        handleIDChange(newId);
-                        continue;
-                    }  else if (message.startsWith("REACTION:")) {
-                        handleReaction(message);
-                        continue;
-                    } else if (message.startsWith("#") && handleAutoReply(message.substring(1))) {
-                        continue;
-                    } else if (message.startsWith("TYPING:")) {
-                        String[] parts = message.split(":");
-                        String userId = parts[1];
-                        broadcast("TYPING:" + userId + ":typing");
-                        continue;
-                    } else if (message.startsWith("TYPING_END:")) {
-                        String userId = message.substring(11);
-                        broadcast("TYPING_END:" + userId); // Notify all users about typing end
+                boolean pinged = false;
+                while (true) {
+                    String message;
+                    try {
+                        message = reader.readLine();
+                    } catch (SocketTimeoutException e) { // Only resumable connections have a heartbeat
+                        if (pinged) throw e; // Nothing since the ping, the peer is gone
+                        sendMessage("PING");
+                        pinged = true;
                         continue;
-                    } else if (message.startsWith("EDIT_MESSAGE:")) {
-                        String[] parts = message.split(":", 3);
-                        if (parts.length < 3) return;
-
-                        String oldMessage = parts[1].trim();
-                        String newMessage = parts[2].trim();
-
-                        boolean updated = false;
-                        synchronized (messages) {
-                            for (Map.Entry<Integer, String> entry : messages.entrySet()) {
-                                if (entry.getValue().equals(oldMessage)) {
-                                    messages.put(entry.getKey(), newMessage);
-                                    updated = true;
-                                    break;
-                                }
-                            }
-                        }
-
-                        if (updated) {
-                            broadcast("EDIT_MESSAGE:" + oldMessage + ":" + newMessage, this);
-                        }
-                    } else if (message.startsWith("DELETE_MESSAGE:")) {
-                        String messageToDelete = message.substring(14).trim();
-                        synchronized (messages) {
-                            messages.values().removeIf(value -> value.equals(messageToDelete));
-                        }
-                        broadcast("DELETE_MESSAGE:" + messageToDelete, this);
-                    } else if (message.equals("REQUEST_CHAT_HISTORY")) {
-                        sendChatHistory();
                     }
-
-                    broadcast(message);
+                    if (message == null) break;
+                    pinged = false;
+                    if (message.equals("PONG")) continue; // Answers the ping, nothing to handle
+                    metrics.messageReceived();
+                    handleLine(message);
                 }
             } catch (IOException e) {
                 System.out.println(clientID + " disconnected.");
@@ -417,378 +700,207 @@ public class ChatServer {
             }
         }
 
-        private void sendChatHistory() {
-            try (BufferedReader br = new BufferedReader(new FileReader(LOG_FILE))) {
-                StringBuilder historyBuilder = new StringBuilder("CHAT_HISTORY:");
-                String line;
-                while ((line = br.readLine()) != null) {
-                    historyBuilder.append(line).append("\n");
+        // One line from the client: a command, or a chat message to broadcast
+        void handleLine(String message) {
+            ChatEvents.MessageReceived event = new ChatEvents.MessageReceived();
+            event.begin();
+            long start = System.nanoTime();
+            ServerMetrics.Command command = dispatch(message);
+            metrics.commandHandled(command, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.clientId = clientID;
+                event.command = command.name();
+                event.length = message.length();
+                event.commit();
+            }
+        }
+
+        private ServerMetrics.Command dispatch(String message) {
+            if (message.startsWith("SEND:")) { // SEND:<idempotencyKey>:<line>
+                int separator = message.indexOf(':', 5);
+                if (separator < 0) return ServerMetrics.Command.INVALID;
+                String key = message.substring(5, separator);
+                sendMessage("ACK:" + key);
+                SessionRegistry.Session current = session;
+                if (current != null && !current.firstDelivery(key)) {
+                    return ServerMetrics.Command.DUPLICATE; // Resent after a reconnect
+                }
+                message = message.substring(separator + 1);
+            }
+
+            if (message.startsWith("HISTORY_SINCE:")) {
+                sendHistorySince(message.substring(14));
+                return ServerMetrics.Command.HISTORY_SINCE;
+            } else if (message.equals("SESSION_END")) {
+                if (session != null) {
+                    sessions.end(session); // Clean quit, nothing to resume
+                    session = null;
+                }
+                return ServerMetrics.Command.SESSION_END;
+            } else if (message.equals("ACTIVE_CHECK")) {
+                if (this == coordinator) {
+                    activeCheck();
+                    sendMessage("Active check restarted, next check in 120 seconds.");
+                } else {
+                    sendMessage("Only the coordinator can request an active check.");
                 }
+                return ServerMetrics.Command.ACTIVE_CHECK;
+            } else if (message.equals("REQUEST_MEMBER_LIST")) {
+                sendMemberList();
+                return ServerMetrics.Command.MEMBER_LIST;
+            } else if (message.startsWith("@")) {
+                sendPrivateMessage(message);
+                return ServerMetrics.Command.PRIVATE;
+            } else if (message.startsWith("CHANGE_ID:")) {
+                String newId = message.substring(10).trim();
+                handleIDChange(newId);
+                return ServerMetrics.Command.CHANGE_ID;
+            } else if (message.startsWith("SEARCH:")) {
+                handleSearch(message.substring(7));
+                return ServerMetrics.Command.SEARCH;
+            }  else if (message.startsWith("REACTION:")) {
+                handleReaction(message);
+                return ServerMetrics.Command.REACTION;
+            } else if (message.startsWith("#")) {
+                handleBotCommand(message);
+                return ServerMetrics.Command.BOT;
+            } else if (message.startsWith("VOICE_JOIN:")) {
+                joinVoiceRoom(message.substring(11).trim());
+                return ServerMetrics.Command.VOICE_JOIN;
+            } else if (message.equals("VOICE_LEAVE")) {
+                leaveVoiceRoom();
+                return ServerMetrics.Command.VOICE_LEAVE;
+            } else if (message.equals("BOT_STATS")) {
+                sendMessage(this == coordinator ? bots.report() :
+                        "Only the coordinator can request bot statistics.");
+                return ServerMetrics.Command.BOT_STATS;
+            } else if (message.equals("METRICS")) {
+                sendMessage(this == coordinator ? metrics.report(clients.size(), sessions.size()).stripTrailing() :
+                        "Only the coordinator can request server metrics.");
+                return ServerMetrics.Command.METRICS;
+            } else if (message.startsWith("TYPING:")) {
+                String[] parts = message.split(":");
+                String userId = parts[1];
+                broadcast("TYPING:" + userId + ":typing");
+                return ServerMetrics.Command.TYPING;
+            } else if (message.startsWith("TYPING_END:")) {
+                String userId = message.substring(11);
+                broadcast("TYPING_END:" + userId); // Notify all users about typing end
+                return ServerMetrics.Command.TYPING_END;
+            }
+
+            ServerMetrics.Command command = ServerMetrics.Command.CHAT;
+            if (message.startsWith("EDIT_MESSAGE:")) {
+                command = ServerMetrics.Command.EDIT;
+                String[] parts = message.split(":", 3);
+                if (parts.length < 3) return ServerMetrics.Command.INVALID;
+
+                String oldMessage = parts[1].trim();
+                String newMessage = parts[2].trim();
+
+                if (replaceMessage(oldMessage, newMessage)) {
+                    broadcast("EDIT_MESSAGE:" + oldMessage + ":" + newMessage, this);
+                }
+            } else if (message.startsWith("DELETE_MESSAGE:")) {
+                command = ServerMetrics.Command.DELETE;
+                String messageToDelete = message.substring("DELETE_MESSAGE:".length()).trim();
+                String uploader = attachmentUploader(messageToDelete);
+                if (uploader == null) {
+                    removeMessage(messageToDelete);
+                } else if (uploader.equals(clientID) && removeMessage(messageToDelete)) {
+                    // Only the uploader deleting a kept announcement gives up its reference, and only once
+                    attachments.release(messageToDelete.split(":", 3)[1]);
+                }
+                broadcast("DELETE_MESSAGE:" + messageToDelete, this);
+            } else if (message.equals("REQUEST_CHAT_HISTORY")) {
+                command = ServerMetrics.Command.HISTORY;
+                sendChatHistory();
+            }
+
+            broadcast(message);
+            return command;
+        }
+
+        void sendChatHistory() {
+            ChatEvents.HistorySent event = new ChatEvents.HistorySent();
+            event.begin();
+            try {
+                StringBuilder historyBuilder = new StringBuilder("CHAT_HISTORY:");
+                int[] sent = {0};
+                history.readAll((_, line) -> {
+                    if (!line.isEmpty()) { // A blank line ends the block for the client
+                        historyBuilder.append(line).append("\n");
+                        sent[0]++;
+                    }
+                });
                 writer.println(historyBuilder);
+                event.clientId = clientID;
+                event.full = true;
+                event.messages = sent[0];
+                event.size = historyBuilder.length();
+                event.commit();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "An error occurred while sending the chat history from the server", e);
             }
         }
 
-        private boolean handleAutoReply(String message) {
-            triggers.put(Pattern.compile("\\b(weather|forecast|temperature|rain|snow|sun|storm|cloud|wind|" +
-                                    "humidity|forecasting|forecasted|climate|barometer|precipitation)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Need a forecast? Check Google Weather! ☁️",
-                            "Weather changes fast! Try BBC Weather! 🌦️",
-                            "Want to know today’s temperature? Just ask! 🌡️",
-                            "Curious about the weather? Look it up on Weather.com! 🌤️",
-                            "Planning an outing? Don't forget to check AccuWeather! 🌧️",
-                            "Wondering if it's going to rain? Check Weather Underground! 🌦️",
-                            "Need a weather update? Try the Weather Channel! 🌞",
-                            "Want to see the forecast? Check out your local news station! 🌩️",
-                            "Is it snowing? Find out on Snow-Forecast.com! ❄️",
-                            "Looking for the latest weather news? Try MeteoGroup! 🌪️"));
-
-            triggers.put(Pattern.compile("\\b(sports|sport|score|scoring|match|game|games|team|teams|football|" +
-                                    "tennis|ping-pong|volleyball|swimming|basketball|cricket|rugby|baseball|hockey|" +
-                                    "boxing|golf|athletics|soccer|championship|olympics|track|field)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Looking for the latest sports news? Check ESPN or Sky Sports! 🏅",
-                            "Want to know the score? Try FlashScore or Livescore! 🏆",
-                            "Interested in sports updates? Check out BBC Sport or Yahoo Sports!",
-                            "Need to know the match schedule? Try the official league websites!",
-                            "Want to catch a game? Try streaming on DAZN or NBC Sports!"));
-
-            triggers.put(Pattern.compile("\\b(time|clock|hour|minute|second|watch|alarm|schedule|deadline|timer" +
-                            "|timezone|sunrise|sunset|moment|clockwise|countdown)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Check your device’s clock ⏰!",
-                            "Time flies! What do you need it for? 🕰️",
-                            "Looking for the time? It's always now!",
-                            "Curious about the time? Look at the wall! 🕒",
-                            "Time is precious! Make every second count! ⏳",
-                            "Need the current time? Try World Clock! 🕑",
-                            "Want to know the exact time? Check Time.is! 🕔",
-                            "Looking for a timer? Try your phone’s built-in clock! ⏲️",
-                            "Want to set an alarm? Use your alarm clock! 🕓",
-                            "Wondering what time it is? Just ask! 🕟"));
-
-            triggers.put(Pattern.compile("\\b(food|restaurant|recipe|meal|nutrition|cook|dine|eating|cooking|" +
-                                    "ingredient|menu|gourmet|dish|mealprep|foodie|vegetarian|vegan|bakery|snack)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Hungry? Check out recipes on AllRecipes! 🍔",
-                            "Looking for a restaurant? Try Yelp or Zomato! 🍽️",
-                            "Need a quick meal idea? Check Tasty or Food Network!",
-                            "Want to order food? Try UberEats or DoorDash! 🍕",
-                            "Curious about food nutrition? Check MyFitnessPal or CalorieKing!"));
-
-            triggers.put(Pattern.compile("\\b(hello|hi|hey|greetings|hi there|hey there|hello there|good day" +
-                            "|sup|hiya|g'day|howdy|yo|greetings friend|what's up)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Hey there! 😊 How can I help?",
-                            "Hello! Hope you're having a great day!",
-                            "Hi! What’s on your mind?",
-                            "Greetings! How can I assist you today?",
-                            "Hey! Ready to chat?",
-                            "Hiya! What can I do for you?",
-                            "Hello there! Need some help?",
-                            "Hey! How's it going?",
-                            "Hi! What’s up?",
-                            "Good day! How can I be of service?"));
-
-            triggers.put(Pattern.compile("\\b(fitness|workout|yoga|exercise|health|gym|strength|cardio|training" +
-                                    "|running|crossfit|stretching|fit|fitnessjourney|healthyliving|wellness|recovery|" +
-                                    "pushup|squat|weightlifting)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want to stay fit? Try a workout on Nike Training Club or Fitbit! 🏋️‍♂️",
-                            "Looking for fitness tips? Check out bodybuilding.com or Men’s Health!",
-                            "Need a yoga session? Try Yoga with Adriene on YouTube!",
-                            "Want to track your runs? Use Strava or Runkeeper! 🏃",
-                            "Need a fitness plan? Try MyFitnessPal or JEFIT!"));
-
-            triggers.put(Pattern.compile("\\b(bye|goodbye|see you|later|take care|farewell|catch you later|" +
-                            "peace out|see ya|good night|have a good day|until next time|talk soon|adios|ciao)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Goodbye! Have a wonderful day! 👋",
-                            "See you soon! Take care!",
-                            "Farewell! Hope to chat again!",
-                            "Bye! Stay safe and take care!",
-                            "Adios! Looking forward to our next conversation!",
-                            "See you later! Have a great day!",
-                            "Goodbye! Don’t be a stranger!",
-                            "Bye! Until next time!",
-                            "Take care! See you soon!",
-                            "Bye-bye! Have a fantastic day!"));
-
-            triggers.put(Pattern.compile("\\b(travel|trip|vacation|hotel|flight|journey|destination|tour|" +
-                                    "tripadvisor|holiday|airport|plane|explore|adventure|getaway|cruise|backpacking|" +
-                                    "wanderlust|roadtrip)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Planning a trip? Check out TripAdvisor or Lonely Planet! ✈️",
-                            "Looking for travel deals? Try Expedia or Skyscanner!",
-                            "Need a hotel booking? Check Booking.com or Hotels.com! 🏨",
-                            "Want to find local attractions? Check Google Maps or Yelp!",
-                            "Curious about travel advisories? Visit the government travel site!"));
-
-            triggers.put(Pattern.compile("\\b(help|support|assist|aid|guide|tips|assist me|help me|need help|" +
-                            "can you help|support me|guide me)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("I'm here to help! What do you need assistance with?",
-                            "How can I assist you today?",
-                            "Help is on the way! What do you need?",
-                            "Need a hand? I'm here for you!",
-                            "How can I be of service?",
-                            "What can I do for you?",
-                            "Need help? I'm ready!",
-                            "How can I assist you?",
-                            "Looking for support? I’m here!",
-                            "Need support? Just ask!"));
-
-            triggers.put(Pattern.compile("\\b(finance|money|budget|investment|stock|loan|bank|wealth|income|" +
-                                    "savings|interest|financial|credit|debt|funds|tax|financialplanning|" +
-                                    "financialadvisor)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want to manage your money? Try Mint or YNAB! 💰",
-                            "Looking for investment tips? Check out Investopedia or Motley Fool!",
-                            "Need a budget planner? Try EveryDollar or Goodbudget!",
-                            "Want to track your expenses? Use PocketGuard or Wally! 💵",
-                            "Curious about the stock market? Check Bloomberg or CNBC!"));
-
-            triggers.put(Pattern.compile("\\b(joke|funny|humor|laugh|comedy|pun|hilarious|laughter|chuckle|" +
-                            "giggle|wit|sarcasm|silly|jovial|lighthearted)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Why did the scarecrow win an award? Because he was outstanding in his field! 😆",
-                            "What do you call fake spaghetti? An impasta! 🍝",
-                            "Why don’t skeletons fight each other? They don’t have the guts! 😂",
-                            "Want to hear a joke? Why don't scientists trust atoms? Because they make up everything! " +
-                                    "🧪",
-                            "Looking for a laugh? Here's one: Why did the bicycle fall over? It was two-tired! 🚲",
-                            "Why did the computer go to the doctor? Because it had a virus! 🖥️",
-                            "How do you organize a space party? You planet! 🪐",
-                            "Why don't some couples go to the gym? Because some relationships don't work out! 💔",
-                            "What did the ocean say to the beach? Nothing, it just waved! 🌊",
-                            "Why don't eggs tell jokes? They'd crack each other up! 🥚"));
-
-            triggers.put(Pattern.compile("\\b(health|doctor|mental|fitness|medical|wellness|therapy|workout|" +
-                                    "gym|nutrition|exercise|recovery|healthcare|medication|treatment)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want health tips? Check WebMD or Mayo Clinic! 🏥",
-                            "Looking for healthy recipes? Try EatingWell or Healthline!",
-                            "Need mental health support? Check BetterHelp or Talkspace! 💬",
-                            "Want to track your health? Use Apple Health or Google Fit!",
-                            "Curious about medical news? Visit MedlinePlus or HealthDay!"));
-
-            triggers.put(Pattern.compile("\\b(news|update|headlines|breaking|current|report|headline|bulletin" +
-                            "|alert|today|coverage|reporting)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want the latest news? Check out Google News or BBC News! 📰",
-                            "Looking for updates? Try CNN or The Guardian!",
-                            "Stay informed with the latest headlines on Reuters!",
-                            "Catch up on the news with NY Times or The Washington Post!",
-                            "Get the latest updates on Al Jazeera or Sky News!",
-                            "Need breaking news? Check Fox News or NBC News!",
-                            "Want to stay updated? Try ABC News or CBS News!",
-                            "Looking for top stories? Check out Bloomberg or Financial Times!",
-                            "Interested in global news? Try DW News or France 24!",
-                            "Looking for tech news? Visit TechCrunch or Wired!"));
-
-            triggers.put(Pattern.compile("\\b(education|study|learn|course|university|school|degree|student|" +
-                                    "studyguide|exam|class|learning|academic|scholar|tutor|textbook)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want to learn something new? Check out Coursera or Udemy! 🎓",
-                            "Looking for online courses? Try edX or Khan Academy!",
-                            "Need study resources? Check Quizlet or Chegg! 📚",
-                            "Want to improve your skills? Try LinkedIn Learning or Skillshare!",
-                            "Curious about college tips? Visit CollegeBoard or Niche!"));
-
-            triggers.put(Pattern.compile("\\b(music|song|listen|album|band|playlist|concert|melody|rhythm|" +
-                            "lyrics|artist|instrument|musician|composer|musicvideo|tune)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Music is life! 🎵 Try Spotify!",
-                            "Want to discover new tunes? Try Apple Music!",
-                            "Listening to music is therapy! Check YouTube Music!",
-                            "Need a music fix? Amazon Music has you covered!",
-                            "Tune in to Pandora for some great tracks!",
-                            "Want to listen to new songs? Try SoundCloud!",
-                            "Looking for classics? Try iHeartRadio!",
-                            "Need a playlist for your mood? Check Deezer!",
-                            "Want to explore indie music? Try Bandcamp!",
-                            "Looking for live radio? Try TuneIn!"));
-
-            triggers.put(Pattern.compile("\\b(technology|tech|gadget|software|programming|coding|developer|" +
-                                    "innovation|AI|app|device|startup|electronics|robotics|web|cybersecurity)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want tech news? Check TechCrunch or Wired! 🖥️",
-                            "Looking for gadget reviews? Try CNET or The Verge!",
-                            "Need software tips? Check How-To Geek or Lifehacker! 💻",
-                            "Want to stay updated on AI? Visit OpenAI or AI News!",
-                            "Curious about programming? Check Stack Overflow or GitHub!"));
-
-            triggers.put(Pattern.compile("\\b(movie|film|watch|cinema|flick|stream|show|episode|theater|binge" +
-                            "|blockbuster|director|actor|comedy|drama)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Looking for a good movie? Check IMDb or Netflix recommendations! 🎬",
-                            "Need a movie suggestion? Try Rotten Tomatoes!",
-                            "Want to watch something? Hulu and Disney+ have great choices!",
-                            "In the mood for a film? Amazon Prime Video is a great option!",
-                            "Watch the latest flicks on HBO Max or Peacock!",
-                            "Need a film recommendation? Try Fandango!",
-                            "Looking for movie reviews? Check out Metacritic!",
-                            "Want to stream movies? Try Vudu!",
-                            "Interested in documentaries? Visit CuriosityStream!",
-                            "Want to catch up on TV shows? Try Showtime or Starz!"));
-
-            triggers.put(Pattern.compile("\\b(fashion|style|clothing|outfit|trend|accessory|wear|shoes|apparel" +
-                                    "|beauty|dress|chic|model|runway)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want fashion tips? Check Vogue or GQ! 👗",
-                            "Looking for style inspiration? Try Pinterest or Instagram!",
-                            "Need outfit ideas? Check Lookbook or Polyvore!",
-                            "Want to shop online? Try ASOS or Zara! 🛍️",
-                            "Curious about fashion trends? Visit Fashionista or Who What Wear!"));
-
-            triggers.put(Pattern.compile("\\b(quote|inspire|motivate|wisdom|motto|encourage|success|believe|" +
-                            "dream|achievement|goal|hope|positivity|ambition)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("“Believe you can and you're halfway there.” – Theodore Roosevelt",
-                            "“Your time is limited, so don’t waste it living someone else’s life.” – Steve Jobs",
-                            "“The only limit to our realization of tomorrow is our doubts of today.” – FDR",
-                            "“The best way to predict the future is to create it.” – Peter Drucker",
-                            "“Success is not the key to happiness. Happiness is the key to success.” – Albert " +
-                                    "Schweitzer",
-                            "“The journey of a thousand miles begins with one step.” – Lao Tzu",
-                            "“You miss 100% of the shots you don’t take.” – Wayne Gretzky",
-                            "“Hardships often prepare ordinary people for an extraordinary destiny.” – C.S. Lewis",
-                            "“Don’t watch the clock; do what it does. Keep going.” – Sam Levenson",
-                            "“The only way to do great work is to love what you do.” – Steve Jobs"));
-
-            triggers.put(Pattern.compile("\\b(literature|book|reading|novel|author|fiction|story|library|poetry" +
-                                    "|chapter|paper|bookworm|bookstore|literary)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want book recommendations? Check Goodreads or BookBub! 📚",
-                            "Looking for eBooks? Try Kindle or Project Gutenberg!",
-                            "Need a book summary? Check SparkNotes or CliffsNotes!",
-                            "Want to join a book club? Try Book Riot or Reader’s Circle!",
-                            "Curious about bestsellers? Visit NY Times Best Sellers or Amazon!"));
-
-            triggers.put(Pattern.compile("\\b(programming|code|developer|coding|debug|software|algorithm|tech|" +
-                            "python|javascript|html|css|computer|open-source)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Coding is fun! Need help? Try Stack Overflow or GitHub! 💻",
-                            "Programming is an art! Keep practicing!",
-                            "Want to learn coding? Check out freeCodeCamp!",
-                            "Developers unite! Visit CodePen for inspiration!",
-                            "Need coding tips? Try W3Schools or MDN Web Docs!",
-                            "Looking for coding challenges? Try HackerRank or LeetCode!",
-                            "Want to join a coding community? Try Reddit’s r/programming!",
-                            "Need a code editor? Try Visual Studio Code or Sublime Text!",
-                            "Interested in open-source projects? Visit GitHub or GitLab!",
-                            "Learning a new language? Try Codecademy or Coursera!"));
-
-            triggers.put(Pattern.compile("\\b(diy|craft|home|project|improvement|build|decorate|remodel|" +
-                                    "handmade|repair|ideas|design|tutorial)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want DIY ideas? Check Pinterest or DIY Network! 🔨",
-                            "Looking for craft projects? Try Craftsy or Instructables!",
-                            "Need home improvement tips? Check This Old House or Home Depot!",
-                            "Want to build something? Try Make: Magazine or Woodworking!",
-                            "Curious about gardening? Visit Gardeners.com or RHS!"));
-
-            triggers.put(Pattern.compile("\\b(random|surprise|guess|funny|odd|weird|fact|trivia|bizarre|" +
-                            "interesting)\\b", Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Here's something random: Did you know honey never spoils? 🍯",
-                            "Fun fact: Bananas are berries, but strawberries aren’t! 🍌🍓",
-                            "Surprise! A group of flamingos is called a 'flamboyance'! 🦩",
-                            "Guess what? Octopuses have three hearts! 🐙",
-                            "Random thought: A day on Venus is longer than a year on Venus! 🌌",
-                            "Did you know? The Eiffel Tower can be 15 cm taller during the summer! 🗼",
-                            "Fun fact: A bolt of lightning contains enough energy to toast 100,000 slices of bread! ⚡",
-                            "Did you know? The shortest war in history lasted 38 minutes! 🕒",
-                            "Random fact: A single strand of Spaghetti is called a “Spaghetto” 🍝",
-                            "Guess what? There are more stars in the universe than grains of sand on all the world’s" +
-                                    " beaches!"));
-
-            triggers.put(Pattern.compile("\\b(pets|dog|cat|animal|training|care|adopt|petlover|veterinary|" +
-                                    "health|species|petshop|petcare)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want pet care tips? Check PetMD or ASPCA! 🐶",
-                            "Looking for pet products? Try Chewy or Petco!",
-                            "Need pet training advice? Check The Spruce Pets or Cesar’s Way!",
-                            "Want to adopt a pet? Try Petfinder or Adopt-a-Pet! 🐱",
-                            "Curious about pet health? Visit VCA Hospitals or Banfield!"));
-
-            triggers.put(Pattern.compile("\\b(gaming|game|esports|score|tournament|play|console|gamer|platform|" +
-                                    "level|pc|xbox|switch|mobile)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want gaming news? Check IGN or GameSpot! 🎮",
-                            "Looking for game reviews? Try Metacritic or Kotaku!",
-                            "Need game guides? Check GameFAQs or Prima Games!",
-                            "Want to watch gaming streams? Try Twitch or YouTube Gaming!",
-                            "Curious about esports? Visit ESL or Major League Gaming!"));
-
-            triggers.put(Pattern.compile("\\b(home|decor|interior|furniture|design|apartment|livingroom|style|" +
-                                    "remodel|house|modern|organization|renovation)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want home decor ideas? Check Houzz or Apartment Therapy! 🏡",
-                            "Looking for interior design tips? Try Elle Decor or Architectural Digest!",
-                            "Need furniture shopping? Check IKEA or Wayfair!",
-                            "Want to organize your space? Try The Container Store!",
-                            "Curious about home improvement? Visit Lowe’s or Home Depot!"));
-
-            triggers.put(Pattern.compile("\\b(parenting|baby|child|family|kids|motherhood|fatherhood|mom|dad|" +
-                                    "school|children|health|pregnancy|education)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want parenting tips? Check BabyCenter or Parenting.com! 👶",
-                            "Looking for child development info? Try CDC or KidsHealth!",
-                            "Need parenting support? Check What to Expect or NCT!",
-                            "Want to find activities for kids? Try PBS Kids or Highlights!",
-                            "Curious about family health? Visit FamilyDoctor.org or WebMD!"));
-
-            triggers.put(Pattern.compile("\\b(beauty|skin|hair|makeup|cosmetic|skincare|beautycare|haircare|" +
-                                    "glam|beautytips|makeuptutorial)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want beauty tips? Check Allure or Glamour! 💄",
-                            "Looking for skincare advice? Try Dermstore or Paula’s Choice!",
-                            "Need makeup tutorials? Check YouTube or Sephora!",
-                            "Want to find beauty products? Try Ulta or Beauty Bay!",
-                            "Curious about hair care? Visit NaturallyCurly or Hair.com!"));
-
-            triggers.put(Pattern.compile("\\b(automobile|car|vehicle|maintenance|reviews|auto|mechanic|engine|" +
-                                    "repair|transport|gas|fuel|sedan|motor)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want car reviews? Check Edmunds or Car and Driver! 🚗",
-                            "Looking for car maintenance tips? Try AutoZone or Pep Boys!",
-                            "Need to buy a car? Check Kelley Blue Book or Autotrader!",
-                            "Want to sell your car? Try CarMax or Cars.com!",
-                            "Curious about car news? Visit MotorTrend or Top Gear!"));
-
-            triggers.put(Pattern.compile("\\b(history|museum|event|archive|world|timeline|civilization|heritage" +
-                                    "|ancient|chronicles|past|historylesson|documentary)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want to learn about history? Check History.com or Smithsonian! 📜",
-                            "Looking for historical documentaries? Try Netflix or History Vault!",
-                            "Need history books? Check Goodreads or Amazon!",
-                            "Want to visit historical sites? Try National Geographic or TripAdvisor!",
-                            "Curious about world history? Visit BBC History or World History Encyclopedia!"));
-
-            triggers.put(Pattern.compile("\\b(science|experiment|biology|space|research|lab|scientific|physics|" +
-                                    "chemistry|discovery|technology|environment|astronomy)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want science news? Check Scientific American or Nature! 🔬",
-                            "Looking for science experiments? Try Science Buddies or Exploratorium!",
-                            "Need science facts? Check National Geographic or Science Alert!",
-                            "Want to watch science videos? Try YouTube or Discovery Channel!",
-                            "Curious about space? Visit NASA or Space.com!"));
-
-            triggers.put(Pattern.compile("\\b(art|artist|gallery|painting|inspiration|drawing|sculpture|" +
-                                    "modernart|artistic|museum|design|visual)\\b",
-                            Pattern.CASE_INSENSITIVE),
-                    Arrays.asList("Want art inspiration? Check DeviantArt or Behance! 🎨",
-                            "Looking for art tutorials? Try YouTube or Skillshare!",
-                            "Need art supplies? Check Blick or Michaels!",
-                            "Want to visit art galleries? Try Google Arts & Culture or ArtNet!",
-                            "Curious about famous artists? Visit MoMA or The Art Story!"));
-
-            // Check each pattern and respond if a match is found
-            for (Map.Entry<Pattern, List<String>> entry : triggers.entrySet()) {
-                Matcher matcher = entry.getKey().matcher(message);
-                if (matcher.find()) {
-                    List<String> possibleResponses = entry.getValue();
-                    // Random reply
-                    String response = possibleResponses.get(new Random().nextInt(possibleResponses.size()));
-                    sendMessage(response);
+        // Puts the client in a live voice room and tells it where to send its frames:
+        // VOICE_PORT:<port>:<memberId>:<key>:<room>
+        private void joinVoiceRoom(String room) {
+            if (room.isEmpty()) {
+                sendMessage("Usage: VOICE_JOIN:<room>");
+                return;
+            }
+            leaveVoiceRoom();
+            voiceMembership = voiceRelay.join(room);
+            sendMessage("VOICE_PORT:" + voiceRelay.port() + ":" + voiceMembership.memberId() + ":" +
+                    voiceMembership.key() + ":" + room);
+            broadcast(clientID + " joined the live voice room " + room, this);
+        }
 
-                    return true;
+        private void leaveVoiceRoom() {
+            if (voiceMembership == null) return;
+            voiceRelay.leave(voiceMembership.memberId());
+            voiceMembership = null;
+        }
+
+        // SEARCH:<query> or SEARCH:<page>:<query>, where a trailing * on a term makes it a prefix query
+        private void handleSearch(String request) {
+            int page = 1;
+            String query = request.trim();
+            int separator = query.indexOf(':');
+            if (separator > 0 && query.substring(0, separator).matches("\\d+")) {
+                page = Math.max(1, Integer.parseInt(query.substring(0, separator)));
+                query = query.substring(separator + 1).trim();
+            }
+            if (query.isEmpty()) {
+                sendMessage("Usage: SEARCH:<words> or SEARCH:<page>:<words> (use word* for prefixes)");
+                return;
+            }
+
+            long start = System.nanoTime();
+            SearchIndex.Page results = searchIndex.search(query, page, SEARCH_PAGE_SIZE);
+            StringBuilder response = new StringBuilder();
+            for (long id : results.ids()) {
+                try {
+                    history.read(id, 1, (_, line) -> response.append("#").append(id).append(" ")
+                            .append(line).append("\n"));
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "An error occurred while reading a search result", e);
                 }
             }
-            return false; // No match found
+            sendMessage(String.format("Search results for \"%s\" (page %d of %d, %d matches, %.1f ms):\n%s",
+                    query, results.page(), Math.max(1, results.pageCount()), results.totalHits(),
+                    (System.nanoTime() - start) / 1e6, response));
+        }
+
+        // Bots answer off this thread; a "#..." message no bot answers is broadcast like any other message
+        private void handleBotCommand(String message) {
+            boolean accepted = bots.dispatch(clientID, message.substring(1), this::sendMessage,
+                    () -> broadcast(message));
+            if (!accepted) {
+                sendMessage("Bots are busy right now, please try again in a moment.");
+            }
         }
 
         private void handleReaction(String message) {
@@ -853,31 +965,45 @@ public class ChatServer {
             }
 
             synchronized (activeIDs) {
+                if (closed) return; // Already left, or handed over to a connection that resumed the session
+                closed = true;
                 activeIDs.remove(clientID); // Ensure the new ID is removed
+                clients.remove(this);
+                if (session != null && running) {
+                    sessions.park(session, ChatServer::sessionExpired); // Kept for a while in case it reconnects
+                }
+            }
+            if (uploadToken != null) {
+                attachments.unregisterUploader(uploadToken);
             }
-            clients.remove(this);
+            leaveVoiceRoom();
             broadcast(clientID + " has left the chat.");
 
             broadcast("STATUS:" + clientID + ":offline");
 
-            if (clients.isEmpty()) {
+            if (clients.isEmpty() && !sessions.hasParked()) {
                 clearLogFile();
             }
 
             stopServerIfEmpty();
 
-            if (this == coordinator && !clients.isEmpty()) {
-                coordinator = clients.iterator().next();
-                coordinator.sendMessage("You are now the coordinator.");
-                broadcast("New coordinator is " + coordinator.getClientID(), coordinator);
-            } else if (clients.isEmpty()) {
-                coordinator = null;
+            synchronized (clients) { // Same lock as the join, so a newcomer never sees a coordinator that left
+                if (this == coordinator && !clients.isEmpty()) {
+                    coordinator = clients.iterator().next();
+                    coordinator.sendMessage("You are now the coordinator.");
+                    broadcast("New coordinator is " + coordinator.getClientID(), coordinator);
+                } else if (coordinator != null && !clients.contains(coordinator)) {
+                    coordinator = null;
+                }
             }
         }
 
         private static void clearLogFile() {
-            try (PrintWriter writer = new PrintWriter(new FileWriter(LOG_FILE))) {
-                writer.print("");
+            try {
+                history.clear();
+                searchIndex.clear();
+                messages.clear();
+                attachments.clear();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "The request of clearing the log file has produced an unknown error", e);
             }
@@ -896,6 +1022,12 @@ public class ChatServer {
 
             String oldId = clientID;
             clientID = newId;
+            if (session != null) {
+                session.rename(newId);
+            }
+            if (uploadToken != null) {
+                attachments.renameUploader(uploadToken, newId);
+            }
 
             String notification = "User " + oldId + " has changed their ID to " + newId;
             broadcast(notification);
@@ -907,19 +1039,31 @@ public class ChatServer {
         }
 
         private void broadcast(String message, ClientHandler excludeClient) {
-            logMessage(message);
+            ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+            event.begin();
             synchronized (clients) {
+                // Logged under the same lock as the sends, so every client sees IDs in increasing order
+                long id = logMessage(message);
+                String tagged = id >= 0 ? "MESSAGE_ID:" + id + ":" + message : message;
+                long start = System.nanoTime();
+                int recipients = 0;
                 for (ClientHandler client : clients) {
                     // Broadcast the message to all clients (including the sender)
                     if (excludeClient == null || client != excludeClient) {
-                        client.writer.println(message);
+                        client.writer.println(client.session != null ? tagged : message);
+                        recipients++;
                     }
                 }
+                metrics.fannedOut(System.nanoTime() - start);
+                event.messageId = id;
+                event.recipients = recipients;
             }
+            event.length = message.length();
+            event.commit();
         }
 
         // Overloaded version for broadcasting to all clients
-        private void broadcast(String message) {
+        void broadcast(String message) {
             broadcast(message, null); // Calls the other method, passing null to send to all clients
         }
     }
@@ -0,0 +1,48 @@
+package myapp.chat;
+
+import java.util.List;
+
+
+// Management interface of a running ChatServer, registered as myapp.chat:type=ChatServer
+public interface ChatServerMXBean {
+
+    int getConnectedClients();
+
+    int getHandshakingClients();
+
+    List<String> getClientIds();
+
+    // Empty when nobody is connected
+    String getCoordinator();
+
+    // Open sessions, live or parked while their client reconnects
+    int getSessions();
+
+    // "#command" messages waiting for a bot thread
+    int getBotQueueDepth();
+
+    long getLoggedMessages();
+
+    long getLogBytesOnDisk();
+
+    int getReactedMessages();
+
+    long getReactions();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getFanOutP99Micros();
+
+    long getLogAppendP99Micros();
+
+    // Disconnects the client for good, without a session to resume; false if no such client is connected
+    boolean kick(String clientId);
+
+    // Asks every member whether it is still there and restarts the periodic check
+    void triggerActiveCheck();
+
+    // Seals the active history segment and compresses the sealed ones now instead of when they age
+    void compactLog();
+}
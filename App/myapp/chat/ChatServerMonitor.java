@@ -0,0 +1,136 @@
+package myapp.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+// The server's live state and operator actions over JMX, next to the JVM's own beans in jconsole, VisualVM or
+// any other JMX client
+public class ChatServerMonitor implements ChatServerMXBean {
+    private static final Logger logger = Logger.getLogger(ChatServerMonitor.class.getName()); // Catch exception errors
+    static final String NAME = "myapp.chat:type=ChatServer";
+
+    // Monitoring is optional, so a failure is logged and the server runs on without it
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new ChatServerMonitor(), name);
+            }
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not register the JMX monitor", e);
+        }
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return ChatServer.clients.size();
+    }
+
+    @Override
+    public int getHandshakingClients() {
+        return ChatServer.metrics.handshaking();
+    }
+
+    @Override
+    public List<String> getClientIds() {
+        List<String> ids = new ArrayList<>();
+        for (ChatServer.ClientHandler client : ChatServer.clients) {
+            String id = client.getClientID();
+            if (id != null) { // Null until the handshake is done, and for good if it failed
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public String getCoordinator() {
+        ChatServer.ClientHandler coordinator = ChatServer.coordinator();
+        return coordinator != null ? coordinator.getClientID() : "";
+    }
+
+    @Override
+    public int getSessions() {
+        return ChatServer.sessions.size();
+    }
+
+    @Override
+    public int getBotQueueDepth() {
+        return ChatServer.bots.queueDepth();
+    }
+
+    @Override
+    public long getLoggedMessages() {
+        return Math.max(0, ChatServer.history.lastId() - ChatServer.history.firstId() + 1);
+    }
+
+    @Override
+    public long getLogBytesOnDisk() {
+        return ChatServer.history.sizeOnDisk();
+    }
+
+    @Override
+    public int getReactedMessages() {
+        return ChatServer.messageReactions.size();
+    }
+
+    @Override
+    public long getReactions() {
+        long reactions = 0;
+        synchronized (ChatServer.messageReactions) {
+            for (List<String> list : ChatServer.messageReactions.values()) {
+                reactions += list.size();
+            }
+        }
+        return reactions;
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return ChatServer.metrics.messagesIn().perSecond();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return ChatServer.metrics.messagesOut().perSecond();
+    }
+
+    @Override
+    public long getFanOutP99Micros() {
+        return ChatServer.metrics.fanOut().percentile(99) / 1000;
+    }
+
+    @Override
+    public long getLogAppendP99Micros() {
+        return ChatServer.metrics.logAppend().percentile(99) / 1000;
+    }
+
+    @Override
+    public boolean kick(String clientId) {
+        for (ChatServer.ClientHandler client : ChatServer.clients) {
+            if (clientId.equals(client.getClientID())) {
+                client.kick();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void triggerActiveCheck() {
+        ChatServer.activeCheck();
+    }
+
+    @Override
+    public void compactLog() {
+        ChatServer.history.compact();
+    }
+}
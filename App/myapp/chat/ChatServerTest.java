@@ -1,8 +1,19 @@
 package myapp.chat;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
 import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.jupiter.api.Test;
@@ -15,6 +26,7 @@ import static org.junit.jupiter.api.Assertions.*;
 public class ChatServerTest {
     private int port;
     private ServerSocket serverSocket;
+    private final List<Thread> handlers = new CopyOnWriteArrayList<>();
     private static final Logger logger = Logger.getLogger(ChatServerTest.class.getName()); // Catch exception errors
 
     @BeforeEach
@@ -27,12 +39,15 @@ public class ChatServerTest {
         // Start server thread to accept clients
         new Thread(() -> {
             try {
-                while (ChatServer.running) {
+                // Not ChatServer.running: the last client of the previous test may still be stopping the server
+                while (!serverSocket.isClosed()) {
                     Socket clientSocket = serverSocket.accept();
-                    new Thread(new ChatServer.ClientHandler(clientSocket)).start();
+                    Thread handler = new Thread(new ChatServer.ClientHandler(clientSocket));
+                    handlers.add(handler);
+                    handler.start();
                 }
             } catch (IOException e) {
-                if (ChatServer.running) {
+                if (!serverSocket.isClosed()) {
                     logger.log(Level.SEVERE, "An error occurred", e);
                 }
             }
@@ -46,6 +61,11 @@ public class ChatServerTest {
         // Stop the server and close the socket after each test
         ChatServer.stopServer();
         serverSocket.close();
+        // The last handler to leave clears the shared history; that must be over before the next test logs anything
+        for (Thread handler : handlers) {
+            handler.join(10_000);
+            assertFalse(handler.isAlive(), "Client handler still running");
+        }
         System.out.println("Server stopped.");
     }
 
@@ -80,4 +100,328 @@ public class ChatServerTest {
             client2.close();
         }
     }
+
+    // Reads lines until one matches, failing after the socket timeout
+    private static String readUntil(BufferedReader in, Predicate<String> match) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (match.test(line)) return line;
+        }
+        throw new EOFException("Connection closed before the expected line");
+    }
+
+    @Nested
+    public class MetricsTests {
+        @Test
+        public void onlyTheCoordinatorSeesMetrics() throws Exception {
+            Socket alice = new Socket("localhost", port);
+            alice.setSoTimeout(5000);
+            BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+            PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true);
+            aliceOut.println("alice");
+            assertEquals("ID_ACCEPTED", aliceIn.readLine());
+            assertEquals("COORDINATOR", aliceIn.readLine());
+
+            Socket bob = new Socket("localhost", port);
+            bob.setSoTimeout(5000);
+            BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream()));
+            PrintWriter bobOut = new PrintWriter(bob.getOutputStream(), true);
+            bobOut.println("bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+            bobOut.println("METRICS");
+            readUntil(bobIn, line -> line.equals("Only the coordinator can request server metrics."));
+
+            aliceOut.println("alice: anything to report?");
+            readUntil(aliceIn, line -> line.equals("alice: anything to report?"));
+            aliceOut.println("METRICS");
+            String header = readUntil(aliceIn, line -> line.startsWith("Server metrics"));
+            assertTrue(header.startsWith("Server metrics (connected 2, "), header);
+            readUntil(aliceIn, line -> line.trim().startsWith("fan-out "));
+            String chat = readUntil(aliceIn, line -> line.trim().startsWith("chat "));
+            assertTrue(Long.parseLong(chat.trim().split("\\s+")[1]) >= 1, chat); // Count of handled chat lines
+
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Nested
+    public class AttachmentTests {
+        @Test
+        public void onlyTheUploaderReleasesAnAttachment() throws Exception {
+            AttachmentStore store = ChatServer.attachments.store();
+            Path upload = store.newUpload();
+            Files.writeString(upload, "holiday photo " + System.nanoTime());
+            String hash = AttachmentStore.sha256(upload);
+            store.commit(upload, hash);
+            assertTrue(store.retainIfPresent(hash));
+            String announcement = "FILE:" + hash + ":27:alice:photo.jpg";
+            ChatServer.messages.put(-1, announcement); // As announceAttachment keeps it
+
+            Socket alice = new Socket("localhost", port);
+            alice.setSoTimeout(5000);
+            BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+            PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true);
+            aliceOut.println("alice");
+            assertEquals("ID_ACCEPTED", aliceIn.readLine());
+
+            Socket bob = new Socket("localhost", port);
+            bob.setSoTimeout(5000);
+            BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream()));
+            PrintWriter bobOut = new PrintWriter(bob.getOutputStream(), true);
+            bobOut.println("bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+
+            bobOut.println("DELETE_MESSAGE:" + announcement);
+            bobOut.println("DELETE_MESSAGE:" + announcement);
+            bobOut.println("bob: gone?");
+            readUntil(bobIn, line -> line.equals("bob: gone?")); // Lines are handled in order, so both deletes were
+            assertEquals(1, store.referenceCount(hash));
+
+            aliceOut.println("DELETE_MESSAGE:" + announcement);
+            aliceOut.println("DELETE_MESSAGE:" + announcement); // Nothing left to release the second time
+            aliceOut.println("alice: gone now");
+            readUntil(aliceIn, line -> line.equals("alice: gone now"));
+            assertEquals(0, store.referenceCount(hash));
+            assertFalse(ChatServer.messages.containsValue(announcement));
+
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Nested
+    public class MonitoringTests {
+        @Test
+        public void jmxShowsMembersAndKicksOne() throws Exception {
+            Socket alice = new Socket("localhost", port);
+            alice.setSoTimeout(5000);
+            BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+            new PrintWriter(alice.getOutputStream(), true).println("alice");
+            assertEquals("ID_ACCEPTED", aliceIn.readLine());
+
+            Socket bob = new Socket("localhost", port);
+            bob.setSoTimeout(5000);
+            BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream()));
+            PrintWriter bobOut = new PrintWriter(bob.getOutputStream(), true);
+            bobOut.println("CAPABILITIES:resume");
+            bobOut.println("bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+            String[] session = readUntil(bobIn, line -> line.startsWith("SESSION:")).split(":");
+
+            ChatServerMonitor.register();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ChatServerMonitor.NAME);
+            assertEquals(2, server.getAttribute(name, "ConnectedClients"));
+            assertEquals("alice", server.getAttribute(name, "Coordinator"));
+
+            assertEquals(true, server.invoke(name, "kick", new Object[] {"bob"}, new String[] {"java.lang.String"}));
+            readUntil(bobIn, line -> line.equals("You have been removed from the chat by the server."));
+            readUntil(aliceIn, line -> line.equals("bob has left the chat."));
+            assertEquals(false, server.invoke(name, "kick", new Object[] {"bob"}, new String[] {"java.lang.String"}));
+
+            Socket again = new Socket("localhost", port); // The session was ended, not parked
+            again.setSoTimeout(5000);
+            BufferedReader againIn = new BufferedReader(new InputStreamReader(again.getInputStream()));
+            new PrintWriter(again.getOutputStream(), true).println("RESUME:" + session[1] + ":0");
+            assertEquals("RESUME_REJECTED", againIn.readLine());
+
+            again.close();
+            bob.close();
+            alice.close();
+        }
+
+        @Test
+        public void flightRecordingShowsTheMessagePath() throws Exception {
+            Path file = Files.createTempFile("chat-server", ".jfr");
+            try (Recording recording = new Recording()) {
+                for (String event : List.of("Handshake", "MessageReceived", "Broadcast", "HistorySent")) {
+                    recording.enable("myapp.chat." + event);
+                }
+                recording.start();
+
+                Socket alice = new Socket("localhost", port);
+                alice.setSoTimeout(5000);
+                BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+                PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true);
+                aliceOut.println("alice");
+                assertEquals("ID_ACCEPTED", aliceIn.readLine());
+                aliceOut.println("alice: on the record");
+                readUntil(aliceIn, line -> line.equals("alice: on the record"));
+                aliceOut.println("REQUEST_CHAT_HISTORY");
+                readUntil(aliceIn, line -> line.startsWith("CHAT_HISTORY:"));
+                // The handler commits HistorySent after the last history line; once it answers the next line, it has
+                aliceOut.println("alice: still here");
+                readUntil(aliceIn, line -> line.equals("alice: still here"));
+
+                recording.stop();
+                recording.dump(file);
+                alice.close();
+            }
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Files.delete(file);
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("myapp.chat.Handshake") &&
+                    "alice".equals(e.getString("clientId")) && e.getBoolean("completed")));
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("myapp.chat.MessageReceived")
+                    && "CHAT".equals(e.getString("command"))));
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("myapp.chat.Broadcast") &&
+                    e.getInt("recipients") == 1));
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("myapp.chat.HistorySent") &&
+                    e.getBoolean("full") && e.getInt("messages") >= 1));
+        }
+    }
+
+    @Nested
+    public class ResumeTests {
+        @Test
+        public void aDroppedClientResumesWithoutLosingOrRepeatingMessages() throws Exception {
+            Socket alice = new Socket("localhost", port);
+            alice.setSoTimeout(5000);
+            BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+            PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true);
+            aliceOut.println("CAPABILITIES:resume");
+            aliceOut.println("alice");
+            assertEquals("ID_ACCEPTED", aliceIn.readLine());
+            String[] session = readUntil(aliceIn, line -> line.startsWith("SESSION:")).split(":");
+            assertEquals(4, session.length); // Token, last ID and history epoch
+            readUntil(aliceIn, line -> line.matches("MESSAGE_ID:\\d+:alice .* has joined the chat.*"));
+
+            Socket bob = new Socket("localhost", port);
+            bob.setSoTimeout(5000);
+            BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream()));
+            PrintWriter bobOut = new PrintWriter(bob.getOutputStream(), true);
+            bobOut.println("bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+
+            aliceOut.println("SEND:k1:alice: before the drop");
+            readUntil(aliceIn, line -> line.equals("ACK:k1"));
+            String seen = readUntil(aliceIn, line -> line.endsWith(":alice: before the drop"));
+            long lastSeenId = Long.parseLong(seen.split(":")[1]);
+
+            alice.close(); // Dropped, not a clean quit
+            readUntil(bobIn, line -> line.equals("alice has left the chat."));
+            bobOut.println("bob: while you were away");
+
+            Socket rejected = new Socket("localhost", port);
+            rejected.setSoTimeout(5000);
+            BufferedReader rejectedIn = new BufferedReader(new InputStreamReader(rejected.getInputStream()));
+            new PrintWriter(rejected.getOutputStream(), true).println("RESUME:" + "0".repeat(32) + ":0");
+            assertEquals("RESUME_REJECTED", rejectedIn.readLine());
+            rejected.close();
+
+            Socket again = new Socket("localhost", port);
+            again.setSoTimeout(5000);
+            BufferedReader againIn = new BufferedReader(new InputStreamReader(again.getInputStream()));
+            PrintWriter againOut = new PrintWriter(again.getOutputStream(), true);
+            againOut.println("RESUME:" + session[1] + ":" + lastSeenId);
+            assertEquals("RESUMED:alice", againIn.readLine());
+            String missed = readUntil(againIn, line -> line.endsWith(":bob: while you were away"));
+            assertTrue(Long.parseLong(missed.split(":")[1]) > lastSeenId);
+
+            againOut.println("SEND:k1:alice: before the drop"); // Resent, the server already has it
+            againOut.println("SEND:k2:alice: after the drop");
+            readUntil(againIn, line -> line.equals("ACK:k1"));
+            String next = readUntil(againIn, line -> line.contains(": before the drop") ||
+                    line.contains(": after the drop"));
+            assertTrue(next.endsWith(":alice: after the drop"), next);
+
+            // A cache that stopped at the session start asks for exactly what came after
+            againOut.println("HISTORY_SINCE:" + session[2] + ":" + lastSeenId);
+            assertEquals("HISTORY_START:" + (Long.parseLong(session[2]) + 1),
+                    readUntil(againIn, line -> line.startsWith("HISTORY_START:")));
+            String last = null;
+            String line;
+            while (!(line = againIn.readLine()).equals("HISTORY_END")) {
+                if (line.startsWith("HISTORY_ID:")) last = line;
+            }
+            assertEquals("HISTORY_ID:" + lastSeenId + ":alice: before the drop", last);
+
+            again.close();
+            bob.close();
+        }
+
+        @Test
+        public void aReconnectTakesOverASessionWhoseDropWasNotNoticed() throws Exception {
+            Socket alice = new Socket("localhost", port);
+            alice.setSoTimeout(5000);
+            BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+            PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true);
+            aliceOut.println("CAPABILITIES:resume");
+            aliceOut.println("alice");
+            assertEquals("ID_ACCEPTED", aliceIn.readLine());
+            String[] session = readUntil(aliceIn, line -> line.startsWith("SESSION:")).split(":");
+            readUntil(aliceIn, line -> line.matches("MESSAGE_ID:\\d+:alice .* has joined the chat.*"));
+
+            Socket bob = new Socket("localhost", port);
+            bob.setSoTimeout(5000);
+            BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream()));
+            PrintWriter bobOut = new PrintWriter(bob.getOutputStream(), true);
+            bobOut.println("bob");
+            assertEquals("ID_ACCEPTED", bobIn.readLine());
+
+            // Alice's network changed: her old connection is still open as far as the server can tell
+            Socket again = new Socket("localhost", port);
+            again.setSoTimeout(5000);
+            BufferedReader againIn = new BufferedReader(new InputStreamReader(again.getInputStream()));
+            PrintWriter againOut = new PrintWriter(again.getOutputStream(), true);
+            againOut.println("RESUME:" + session[1] + ":" + session[2]);
+            assertEquals("RESUMED:alice", againIn.readLine());
+            assertTrue(readUntil(bobIn, line -> line.contains("alice has left") || line.contains("has reconnected"))
+                    .contains("alice ["), "The takeover is not a leave");
+            while (aliceIn.readLine() != null) {
+                // Closed by the server once the session moved
+            }
+
+            againOut.println("SEND:k1:alice: on the new connection");
+            readUntil(againIn, line -> line.equals("ACK:k1"));
+            readUntil(bobIn, line -> line.equals("alice: on the new connection"));
+            bobOut.println("REQUEST_MEMBER_LIST");
+            readUntil(bobIn, line -> line.startsWith("Active Members:"));
+            List<String> members = List.of(bobIn.readLine(), bobIn.readLine(), bobIn.readLine());
+            assertEquals(1, members.stream().filter(line -> line.startsWith("alice - ")).count(), members.toString());
+            again.close();
+            alice.close();
+            bob.close();
+        }
+
+        @Test
+        public void aPeerThatStopsAnsweringThePingIsParked() throws Exception {
+            int heartbeat = ChatServer.heartbeatMillis;
+            ChatServer.heartbeatMillis = 300;
+            try {
+                Socket bob = new Socket("localhost", port);
+                bob.setSoTimeout(5000);
+                BufferedReader bobIn = new BufferedReader(new InputStreamReader(bob.getInputStream()));
+                PrintWriter bobOut = new PrintWriter(bob.getOutputStream(), true);
+                bobOut.println("bob");
+                assertEquals("ID_ACCEPTED", bobIn.readLine());
+
+                Socket alice = new Socket("localhost", port);
+                alice.setSoTimeout(5000);
+                BufferedReader aliceIn = new BufferedReader(new InputStreamReader(alice.getInputStream()));
+                PrintWriter aliceOut = new PrintWriter(alice.getOutputStream(), true);
+                aliceOut.println("CAPABILITIES:resume");
+                aliceOut.println("alice");
+                assertEquals("ID_ACCEPTED", aliceIn.readLine());
+                String[] session = readUntil(aliceIn, line -> line.startsWith("SESSION:")).split(":");
+                readUntil(aliceIn, line -> line.equals("PING"));
+                aliceOut.println("PONG");
+                readUntil(aliceIn, line -> line.equals("PING")); // Still connected, asked again
+
+                // Alice's end goes silent without closing the socket
+                readUntil(bobIn, line -> line.equals("alice has left the chat."));
+                Socket again = new Socket("localhost", port);
+                again.setSoTimeout(5000);
+                BufferedReader againIn = new BufferedReader(new InputStreamReader(again.getInputStream()));
+                new PrintWriter(again.getOutputStream(), true).println("RESUME:" + session[1] + ":" + session[2]);
+                assertEquals("RESUMED:alice", againIn.readLine());
+                again.close();
+                alice.close();
+                bob.close();
+            } finally {
+                ChatServer.heartbeatMillis = heartbeat;
+            }
+        }
+    }
 }
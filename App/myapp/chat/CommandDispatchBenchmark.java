@@ -0,0 +1,56 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// One client line through ClientHandler.handleLine, the if-chain run calls for every line, up to and including the
+// command it picks. The sender is the only member, so broadcasts are logged but reach nobody; for the cheap commands
+// most of the time is the walk down the chain.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = ServerBenchmarks.FORK_HISTORY_DIR)
+public class CommandDispatchBenchmark {
+
+    @Param({"chat", "framedChat", "typing", "private", "edit", "botStats"})
+    public String command;
+
+    private String line;
+    private ChatServer.ClientHandler handler;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatServer.history.clear();
+        line = switch (command) {
+            case "chat" -> "bench: anyone up for a coffee?"; // Falls through every check to broadcast
+            case "framedChat" -> "SEND:k1:bench: anyone up for a coffee?"; // Acknowledged, then the same
+            case "typing" -> "TYPING:bench";
+            case "private" -> "@nobody are you there?"; // Unknown member, answered with an error
+            case "edit" -> "EDIT_MESSAGE:bench: coffee?:bench: tea?"; // Nothing kept to edit, broadcast as is
+            default -> "BOT_STATS"; // Refused, we are not the coordinator
+        };
+        handler = new ChatServer.ClientHandler("bench", OutputStream.nullOutputStream());
+        ChatServer.clients.add(handler);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearHistory() throws IOException {
+        ChatServer.history.clear();
+        ChatServer.searchIndex.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        ChatServer.clients.clear();
+    }
+
+    @Benchmark
+    public void handleLine() {
+        handler.handleLine(line);
+    }
+}
@@ -0,0 +1,101 @@
+package myapp.chat;
+
+import java.awt.EventQueue;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Stages UI updates coming from network threads and applies them on the EDT in batches, at most once per frame.
+// A burst of a thousand messages becomes a handful of EDT tasks instead of a thousand, and the list repaints once
+// per batch. A drain stops after its time budget and leaves the rest for the next frame, so input and painting
+// keep getting a turn. Records how long updates waited between submit and being applied.
+public class FrameBatcher {
+    private static final Logger logger = Logger.getLogger(FrameBatcher.class.getName()); // Catch exception errors
+    public static final long FRAME_NANOS = 16_000_000; // ~60 Hz
+    private static final long BUDGET_NANOS = 8_000_000; // Most of a frame, the rest is left for painting
+
+    private record Staged(Runnable update, long submittedNanos) { }
+
+    private final ConcurrentLinkedQueue<Staged> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile long lastDrainNanos = System.nanoTime() - FRAME_NANOS;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ui-frame");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Queues an update to run on the EDT with the next batch; safe to call from any thread
+    public void submit(Runnable update) {
+        queue.add(new Staged(update, System.nanoTime()));
+        if (scheduled.compareAndSet(false, true)) {
+            long wait = lastDrainNanos + FRAME_NANOS - System.nanoTime();
+            if (wait <= 0) {
+                EventQueue.invokeLater(this::drain);
+            } else {
+                timer.schedule(() -> EventQueue.invokeLater(this::drain), wait, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    // Updates staged but not applied yet
+    public int queued() {
+        return queue.size();
+    }
+
+    public long applied() {
+        return applied.get();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    // Submit-to-applied latency percentile, in microseconds
+    public long percentileMicros(double percentile) {
+        return latency.percentileMicros(percentile);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void drain() {
+        long start = System.nanoTime();
+        lastDrainNanos = start;
+        scheduled.set(false); // Updates submitted from here on schedule the next batch themselves
+        batches.incrementAndGet();
+
+        int count = 0;
+        long[] submitted = new long[64];
+        Staged staged;
+        while ((staged = queue.poll()) != null) {
+            try {
+                staged.update().run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "A UI update failed", e);
+            }
+            if (count == submitted.length) {
+                submitted = Arrays.copyOf(submitted, count * 2);
+            }
+            submitted[count++] = staged.submittedNanos();
+            if (System.nanoTime() - start > BUDGET_NANOS) break;
+        }
+
+        long done = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            latency.record((done - submitted[i]) / 1000);
+        }
+        applied.addAndGet(count);
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            timer.schedule(() -> EventQueue.invokeLater(this::drain), FRAME_NANOS, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package myapp.chat;
+
+import java.awt.EventQueue;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class FrameBatcherTest {
+
+    @Test
+    public void aBurstIsAppliedInOrderInAFewBatches() throws Exception {
+        FrameBatcher batcher = new FrameBatcher();
+        List<Integer> applied = new ArrayList<>(); // Only touched on the EDT
+        AtomicBoolean offEdt = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        int updates = 10_000;
+
+        Thread network = new Thread(() -> {
+            for (int i = 0; i < updates; i++) {
+                int n = i;
+                batcher.submit(() -> {
+                    if (!EventQueue.isDispatchThread()) offEdt.set(true);
+                    applied.add(n);
+                    if (n == updates - 1) done.countDown();
+                });
+            }
+        }, "test-network");
+        network.start();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        EventQueue.invokeAndWait(() -> {
+            assertEquals(updates, applied.size());
+            for (int i = 0; i < updates; i++) {
+                assertEquals(i, applied.get(i));
+            }
+        });
+        assertFalse(offEdt.get());
+        assertEquals(updates, batcher.applied());
+        assertTrue(batcher.batches() < updates / 10, "Batches: " + batcher.batches());
+        assertEquals(0, batcher.queued());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void aFailingUpdateDoesNotStopTheBatch() throws Exception {
+        FrameBatcher batcher = new FrameBatcher();
+        CountDownLatch after = new CountDownLatch(1);
+        batcher.submit(() -> {
+            throw new IllegalStateException("Broken update");
+        });
+        batcher.submit(after::countDown);
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        batcher.shutdown();
+    }
+}
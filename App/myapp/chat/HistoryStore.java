@@ -0,0 +1,459 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+// Tiered message log: the newest messages live in memory (hot), recent segments are memory-mapped (warm) and
+// older segments are gzip-compressed in the background (cold). Reads span all tiers transparently.
+public class HistoryStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(HistoryStore.class.getName()); // Catch exception errors
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String WARM_SUFFIX = ".log";
+    private static final String COLD_SUFFIX = ".log.gz";
+    private static final String EPOCH_FILE = "epoch";
+
+    private final Path directory; // Folder holding all segment files
+    private final int hotCapacity; // Number of recent messages kept in memory
+    private final long maxSegmentBytes; // Roll the active segment once it grows past this size
+    private final Duration segmentSpan; // Roll the active segment once it is older than this
+    private final Duration coldAfter; // Compress sealed segments once they are older than this
+    private final BlockCache blockCache; // Decompressed cold segments, least recently used first
+    private final LogRecordCodec.Encoder encoder = new LogRecordCodec.Encoder(); // Guarded by this
+
+    private final ArrayDeque<Entry> hot = new ArrayDeque<>(); // Guarded by this
+    private final CopyOnWriteArrayList<Segment> sealed = new CopyOnWriteArrayList<>(); // Ordered by first ID
+    private final ScheduledExecutorService tiering;
+    private FileChannel activeChannel; // Guarded by this
+    private Segment active; // Guarded by this
+    private long nextId = 1; // Guarded by this
+    private String epoch; // Changes whenever IDs restart, so clients can tell their cached IDs are stale
+
+    public HistoryStore(Path directory) throws IOException {
+        this(directory, 1000, 4L << 20, Duration.ofHours(1), Duration.ofDays(3), 8L << 20);
+    }
+
+    public HistoryStore(Path directory, int hotCapacity, long maxSegmentBytes, Duration segmentSpan,
+                        Duration coldAfter, long blockCacheBytes) throws IOException {
+        this.directory = directory;
+        this.hotCapacity = hotCapacity;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.segmentSpan = segmentSpan;
+        this.coldAfter = coldAfter;
+        this.blockCache = new BlockCache(blockCacheBytes);
+        Files.createDirectories(directory);
+        loadSegments();
+        loadEpoch();
+
+        tiering = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-tiering");
+            thread.setDaemon(true);
+            return thread;
+        });
+        tiering.scheduleWithFixedDelay(this::runTiering, 1, 1, TimeUnit.MINUTES);
+    }
+
+    // Appends a message and returns the ID assigned to it
+    public synchronized long append(String message) throws IOException {
+        long now = System.currentTimeMillis();
+        if (active != null && (active.bytes >= maxSegmentBytes ||
+                now - active.createdAt >= segmentSpan.toMillis())) {
+            sealActive();
+        }
+        if (active == null) {
+            Path path = directory.resolve(segmentName(nextId, WARM_SUFFIX));
+            activeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            active = new Segment(nextId, 0, 0, path, Tier.ACTIVE, null, now);
+            encoder.reset(); // Every segment carries its own user dictionary
+        }
+
+        ByteBuffer record = encoder.encode(message, now);
+        int recordBytes = record.remaining();
+        while (record.hasRemaining()) {
+            activeChannel.write(record);
+        }
+        active = active.grow(recordBytes);
+
+        long id = nextId++;
+        hot.addLast(new Entry(id, message));
+        if (hot.size() > hotCapacity) {
+            hot.removeFirst();
+        }
+        return id;
+    }
+
+    public synchronized long lastId() {
+        return nextId - 1;
+    }
+
+    // Identifies this run of IDs; a new one is drawn when the store starts empty or is cleared
+    public synchronized String epoch() {
+        return epoch;
+    }
+
+    public long firstId() {
+        List<Segment> segments = sealed;
+        if (!segments.isEmpty()) {
+            return segments.get(0).firstId;
+        }
+        synchronized (this) {
+            return active != null ? active.firstId : nextId;
+        }
+    }
+
+    // Streams up to limit messages with ID >= fromId, oldest first, whichever tier they live in
+    public void read(long fromId, int limit, BiConsumer<Long, String> consumer) throws IOException {
+        List<Entry> hotSnapshot;
+        Segment activeSnapshot;
+        synchronized (this) {
+            hotSnapshot = new ArrayList<>(hot);
+            activeSnapshot = active;
+        }
+
+        long hotFirstId = hotSnapshot.isEmpty() ? Long.MAX_VALUE : hotSnapshot.get(0).id;
+        int[] remaining = {limit};
+        long[] cursor = {fromId};
+
+        if (fromId < hotFirstId) {
+            List<Segment> segments = new ArrayList<>(sealed);
+            if (activeSnapshot != null) {
+                segments.add(activeSnapshot);
+            }
+            for (Segment segment : segments) {
+                if (remaining[0] <= 0 || cursor[0] >= hotFirstId) break;
+                if (segment.firstId + segment.count <= cursor[0]) continue;
+
+                scanSegment(segment, (id, message) -> {
+                    if (id >= cursor[0] && id < hotFirstId && remaining[0] > 0) {
+                        consumer.accept(id, message);
+                        cursor[0] = id + 1;
+                        remaining[0]--;
+                    }
+                });
+            }
+        }
+
+        for (Entry entry : hotSnapshot) {
+            if (remaining[0] <= 0) break;
+            if (entry.id >= cursor[0]) {
+                consumer.accept(entry.id, entry.message);
+                remaining[0]--;
+            }
+        }
+    }
+
+    // Convenience for callers that want every stored message
+    public void readAll(BiConsumer<Long, String> consumer) throws IOException {
+        read(0, Integer.MAX_VALUE, consumer);
+    }
+
+    // Drops every tier and restarts the ID sequence
+    public synchronized void clear() throws IOException {
+        Path activePath = active != null ? active.path : null;
+        closeActive();
+        if (activePath != null) {
+            deleteQuietly(activePath);
+        }
+        hot.clear();
+        blockCache.clear();
+        List<Segment> dropped = new ArrayList<>(sealed);
+        sealed.clear();
+        for (Segment segment : dropped) {
+            deleteQuietly(segment.path);
+        }
+        nextId = 1;
+        newEpoch();
+    }
+
+    // Seals the active segment and compresses every sealed segment right away
+    public void compact() {
+        synchronized (this) {
+            try {
+                sealActive();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "An error occurred while sealing the active history segment", e);
+            }
+        }
+        for (Segment segment : sealed) {
+            if (segment.tier == Tier.WARM) {
+                compress(segment);
+            }
+        }
+    }
+
+    public long sizeOnDisk() {
+        long total = 0;
+        for (Segment segment : sealed) {
+            total += segment.bytes;
+        }
+        synchronized (this) {
+            return active != null ? total + active.bytes : total;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        tiering.shutdownNow();
+        closeActive();
+    }
+
+    private void closeActive() throws IOException {
+        if (activeChannel != null) {
+            activeChannel.close();
+            activeChannel = null;
+        }
+        active = null;
+    }
+
+    private void sealActive() throws IOException {
+        if (active == null) return;
+        Segment current = active;
+        activeChannel.force(false);
+        closeActive();
+        sealed.add(openWarm(current.path, current.firstId, System.currentTimeMillis()));
+    }
+
+    // Background job moving aged segments down a tier
+    private void runTiering() {
+        try {
+            synchronized (this) {
+                if (active != null && System.currentTimeMillis() - active.createdAt >= segmentSpan.toMillis()) {
+                    sealActive();
+                }
+            }
+            long cutoff = System.currentTimeMillis() - coldAfter.toMillis();
+            for (Segment segment : sealed) {
+                if (segment.tier == Tier.WARM && segment.createdAt < cutoff) {
+                    compress(segment);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "An error occurred while tiering the chat history", e);
+        }
+    }
+
+    private void compress(Segment segment) {
+        Path target = directory.resolve(coldName(segment.firstId, segment.count));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            ByteBuffer data = segment.map.duplicate();
+            byte[] chunk = new byte[8192];
+            while (data.hasRemaining()) {
+                int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred while compressing history segment " + segment.path, e);
+            deleteQuietly(temp);
+            return;
+        }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Segment cold = new Segment(segment.firstId, segment.count, Files.size(target), target, Tier.COLD,
+                    null, segment.createdAt);
+            synchronized (this) {
+                int index = sealed.indexOf(segment);
+                if (index >= 0) {
+                    sealed.set(index, cold);
+                } else {
+                    deleteQuietly(target); // The history was cleared while compressing
+                }
+            }
+            deleteQuietly(segment.path);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred while archiving history segment " + segment.path, e);
+        }
+    }
+
+    private void scanSegment(Segment segment, BiConsumer<Long, String> consumer) throws IOException {
+        ByteBuffer data = switch (segment.tier) {
+            case WARM -> segment.map.duplicate();
+            case COLD -> ByteBuffer.wrap(blockCache.load(segment));
+            case ACTIVE -> readActive(segment);
+        };
+
+        LogRecordCodec.Decoder decoder = new LogRecordCodec.Decoder();
+        long id = segment.firstId;
+        String message;
+        while (id < segment.firstId + segment.count && (message = decoder.next(data)) != null) {
+            consumer.accept(id++, message);
+        }
+    }
+
+    // The active file keeps growing, so only the bytes that existed at snapshot time are read
+    private static ByteBuffer readActive(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(segment.bytes, channel.size()));
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(WARM_SUFFIX) || name.endsWith(COLD_SUFFIX)) {
+                    paths.add(path);
+                } else {
+                    deleteQuietly(path); // Leftover temp file from an interrupted compression
+                }
+            }
+        }
+        paths.sort(Comparator.comparingLong(HistoryStore::firstIdOf));
+
+        Set<Long> compressed = new HashSet<>();
+        for (Path path : paths) {
+            if (path.getFileName().toString().endsWith(COLD_SUFFIX)) {
+                compressed.add(firstIdOf(path));
+            }
+        }
+        for (Path path : paths) {
+            long firstId = firstIdOf(path);
+            long createdAt = Files.getLastModifiedTime(path).toMillis();
+            Segment segment;
+            if (path.getFileName().toString().endsWith(COLD_SUFFIX)) {
+                int count = countOf(path);
+                if (count < 0) { // Archived before the count was part of the name: count it once
+                    count = countRecords(ByteBuffer.wrap(decompress(path)));
+                    Path renamed = path.resolveSibling(coldName(firstId, count));
+                    Files.move(path, renamed, StandardCopyOption.ATOMIC_MOVE);
+                    path = renamed;
+                }
+                segment = new Segment(firstId, count, Files.size(path), path, Tier.COLD, null, createdAt);
+            } else if (compressed.contains(firstId)) {
+                deleteQuietly(path); // Compressed, but the original could not be deleted while it was mapped
+                continue;
+            } else {
+                segment = openWarm(path, firstId, createdAt);
+            }
+            sealed.add(segment);
+            nextId = segment.firstId + segment.count;
+        }
+    }
+
+    private void loadEpoch() throws IOException {
+        Path file = directory.resolve(EPOCH_FILE);
+        if (!sealed.isEmpty() && Files.isRegularFile(file)) {
+            epoch = Files.readString(file).trim();
+        } else {
+            newEpoch();
+        }
+    }
+
+    private void newEpoch() throws IOException {
+        epoch = Long.toHexString(new SecureRandom().nextLong());
+        Files.writeString(directory.resolve(EPOCH_FILE), epoch);
+    }
+
+    private static Segment openWarm(Path path, long firstId, long createdAt) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Segment(firstId, countRecords(map.duplicate()), channel.size(), path, Tier.WARM, map,
+                    createdAt);
+        }
+    }
+
+    private static int countRecords(ByteBuffer data) {
+        LogRecordCodec.Decoder decoder = new LogRecordCodec.Decoder();
+        int count = 0;
+        while (decoder.next(data) != null) { // Stops early at a torn write at the end of the file
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] decompress(Path path) throws IOException {
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String segmentName(long firstId, String suffix) {
+        return SEGMENT_PREFIX + String.format("%019d", firstId) + suffix;
+    }
+
+    // Cold segments carry their record count in the name, so loading them does not mean decompressing them
+    private static String coldName(long firstId, int count) {
+        return SEGMENT_PREFIX + String.format("%019d", firstId) + "-" + count + COLD_SUFFIX;
+    }
+
+    // -1 for a cold segment named without its count
+    private static int countOf(Path path) {
+        String name = path.getFileName().toString();
+        int start = SEGMENT_PREFIX.length() + 19;
+        if (name.charAt(start) != '-') return -1;
+        return Integer.parseInt(name.substring(start + 1, name.length() - COLD_SUFFIX.length()));
+    }
+
+    private static long firstIdOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), SEGMENT_PREFIX.length() + 19));
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete history file " + path, e);
+        }
+    }
+
+    enum Tier { ACTIVE, WARM, COLD }
+
+    private record Entry(long id, String message) { }
+
+    private record Segment(long firstId, int count, long bytes, Path path, Tier tier, MappedByteBuffer map,
+                           long createdAt) {
+        Segment grow(int recordBytes) {
+            return new Segment(firstId, count + 1, bytes + recordBytes, path, tier, map, createdAt);
+        }
+    }
+
+    // Small LRU cache of decompressed cold segments, bounded by total decompressed bytes
+    private static class BlockCache {
+        private final long maxBytes;
+        private final LinkedHashMap<Path, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+        private long currentBytes;
+
+        BlockCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] load(Segment segment) throws IOException {
+            byte[] block = blocks.get(segment.path);
+            if (block != null) {
+                return block;
+            }
+
+            block = decompress(segment.path);
+            blocks.put(segment.path, block);
+            currentBytes += block.length;
+
+            Iterator<Map.Entry<Path, byte[]>> eldest = blocks.entrySet().iterator();
+            while (currentBytes > maxBytes && blocks.size() > 1) {
+                currentBytes -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+            return block;
+        }
+
+        synchronized void clear() {
+            blocks.clear();
+            currentBytes = 0;
+        }
+    }
+}
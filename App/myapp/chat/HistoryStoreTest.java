@@ -0,0 +1,160 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class HistoryStoreTest {
+    private Path directory;
+    private HistoryStore store;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("history-test");
+        // Tiny segments so a few messages already span several warm segments
+        store = new HistoryStore(directory, 5, 64, Duration.ofHours(1), Duration.ofDays(3), 1024);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.close();
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private List<String> readFrom(HistoryStore history, long fromId, int limit) throws IOException {
+        List<String> result = new ArrayList<>();
+        history.read(fromId, limit, (_, message) -> result.add(message));
+        return result;
+    }
+
+    @Nested
+    class TieredReads {
+        @Test
+        public void readsSpanHotWarmAndColdTiers() throws Exception {
+            for (int i = 1; i <= 40; i++) {
+                assertEquals(i, store.append("Giulio: message " + i));
+            }
+
+            store.compact(); // Push every sealed segment into the compressed tier
+            for (int i = 41; i <= 50; i++) {
+                store.append("Jude: message " + i);
+            }
+
+            List<String> all = readFrom(store, 0, Integer.MAX_VALUE);
+            assertEquals(50, all.size());
+            assertEquals("Giulio: message 1", all.get(0));
+            assertEquals("Jude: message 50", all.get(49));
+
+            List<String> page = readFrom(store, 38, 5);
+            assertEquals(List.of("Giulio: message 38", "Giulio: message 39", "Giulio: message 40",
+                    "Jude: message 41", "Jude: message 42"), page);
+        }
+
+        @Test
+        public void reopensExistingSegments() throws Exception {
+            for (int i = 1; i <= 20; i++) {
+                store.append("message " + i);
+            }
+            store.compact();
+            String epoch = store.epoch();
+            store.close();
+
+            store = new HistoryStore(directory, 5, 64, Duration.ofHours(1), Duration.ofDays(3), 1024);
+            assertEquals(20, store.lastId());
+            assertEquals(epoch, store.epoch()); // Same IDs, same epoch
+            assertEquals(21, store.append("message 21"));
+            assertEquals(21, readFrom(store, 0, Integer.MAX_VALUE).size());
+        }
+
+        @Test
+        public void reopensColdSegmentsWithoutDecompressingThem() throws Exception {
+            for (int i = 1; i <= 20; i++) {
+                store.append("message " + i);
+            }
+            store.compact();
+            store.close();
+
+            List<Path> cold = new ArrayList<>();
+            try (var files = Files.list(directory)) {
+                files.filter(path -> path.toString().endsWith(".log.gz")).sorted().forEach(cold::add);
+            }
+            assertFalse(cold.isEmpty());
+            Path first = cold.get(0);
+            assertTrue(first.getFileName().toString().matches("segment-0{18}1-\\d+\\.log\\.gz"), first.toString());
+            // A warm copy the compression could not delete (a mapped file on Windows) must not load twice
+            Files.write(directory.resolve("segment-0000000000000000001.log"), new byte[] {1, 2, 3});
+            byte[] archived = Files.readAllBytes(first);
+            Files.write(first, new byte[] {0}); // Not gzip any more: opening the store must not read it
+
+            store = new HistoryStore(directory, 5, 64, Duration.ofHours(1), Duration.ofDays(3), 1024);
+            assertEquals(20, store.lastId());
+            assertFalse(Files.exists(directory.resolve("segment-0000000000000000001.log")));
+            Files.write(first, archived);
+            List<String> all = readFrom(store, 0, Integer.MAX_VALUE);
+            assertEquals(20, all.size());
+            assertEquals("message 1", all.get(0));
+        }
+
+        @Test
+        public void clearRestartsTheSequence() throws Exception {
+            store.append("first");
+            store.append("second");
+            String epoch = store.epoch();
+            store.clear();
+
+            assertTrue(readFrom(store, 0, Integer.MAX_VALUE).isEmpty());
+            assertEquals(1, store.append("again"));
+            assertNotEquals(epoch, store.epoch()); // Cached IDs from before the clear mean something else now
+        }
+    }
+
+    @Nested
+    class BinaryRecords {
+        @Test
+        public void roundTripsEveryRecordKind() {
+            List<String> messages = List.of("STATUS:Giulio:online",
+                    "Giulio [127.0.0.1:50412] has joined the chat (Coordinator)",
+                    "Jude [10.0.0.7:50413] has joined the chat",
+                    "Giulio: hello 👋",
+                    "Jude:no space after the colon",
+                    "Active Members:\nGiulio - 127.0.0.1:50412\n",
+                    "Jude has left the chat.",
+                    "STATUS:Jude:offline");
+
+            LogRecordCodec.Encoder encoder = new LogRecordCodec.Encoder();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long timestamp = 1_700_000_000_000L;
+            for (String message : messages) {
+                ByteBuffer record = encoder.encode(message, timestamp += 250);
+                out.write(record.array(), record.position(), record.remaining());
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+            LogRecordCodec.Decoder decoder = new LogRecordCodec.Decoder();
+            for (String message : messages) {
+                assertEquals(message, decoder.next(data));
+            }
+            assertEquals(timestamp, decoder.timestamp());
+            assertNull(decoder.next(data));
+        }
+
+        @Test
+        public void stopsAtATornTrailingRecord() {
+            LogRecordCodec.Encoder encoder = new LogRecordCodec.Encoder();
+            ByteBuffer record = encoder.encode("Giulio: a message that gets cut off", 1L);
+            ByteBuffer torn = ByteBuffer.wrap(record.array(), 0, record.remaining() - 4);
+
+            assertNull(new LogRecordCodec.Decoder().next(torn));
+        }
+    }
+}
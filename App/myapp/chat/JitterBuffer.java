@@ -0,0 +1,127 @@
+package myapp.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+// Receive-side reordering buffer for one live voice speaker. Frames are stored by sequence number in a fixed ring
+// and played out in order once targetDepth frames have been buffered. A frame missing at its playout slot is
+// concealed (and counted lost) when later frames are already waiting; an empty buffer means the speaker paused,
+// so playout stops and re-buffers. Frames that arrive after their slot has been played are dropped as late.
+// All storage is preallocated; put and poll never allocate.
+final class JitterBuffer {
+    private final int mask;
+    private final int targetDepth;
+    private final byte[][] payloads;
+    private final int[] lengths;
+    private final int[] sequences;
+    private final long[] captureMicros;
+    private final boolean[] filled;
+
+    private boolean started;
+    private boolean playing;
+    private int nextSequence; // Next frame to play out
+    private int highestSequence;
+    private int buffered;
+    private long received;
+    private long late;
+    private long concealed;
+    private int firstSequence;
+    private long expectedBefore; // Frames expected from earlier streams
+
+    // capacity must be a power of two larger than targetDepth
+    JitterBuffer(int capacity, int targetDepth, int maxPayload) {
+        if (Integer.bitCount(capacity) != 1 || capacity <= targetDepth) {
+            throw new IllegalArgumentException("Capacity must be a power of two above the target depth");
+        }
+        this.mask = capacity - 1;
+        this.targetDepth = targetDepth;
+        this.payloads = new byte[capacity][maxPayload];
+        this.lengths = new int[capacity];
+        this.sequences = new int[capacity];
+        this.captureMicros = new long[capacity];
+        this.filled = new boolean[capacity];
+    }
+
+    // Copies the payload (from position to limit) of the frame with the given sequence number
+    synchronized void put(int sequence, long capturedAt, ByteBuffer payload) {
+        if (!started || nextSequence - sequence > mask) {
+            // First frame, or a new stream from a recycled member ID
+            if (started) {
+                expectedBefore += highestSequence - firstSequence + 1;
+            }
+            Arrays.fill(filled, false);
+            buffered = 0;
+            playing = false;
+            started = true;
+            nextSequence = sequence;
+            firstSequence = sequence;
+            highestSequence = sequence;
+        } else if (sequence - nextSequence < 0) {
+            late++;
+            return;
+        } else if (sequence - nextSequence > mask) {
+            // Far ahead (long outage): skip to the new position
+            Arrays.fill(filled, false);
+            buffered = 0;
+            playing = false;
+            nextSequence = sequence;
+        }
+
+        int slot = sequence & mask;
+        if (filled[slot] && sequences[slot] == sequence) return; // Duplicate
+        int length = Math.min(payload.remaining(), payloads[slot].length);
+        payload.get(payloads[slot], 0, length);
+        lengths[slot] = length;
+        sequences[slot] = sequence;
+        captureMicros[slot] = capturedAt;
+        filled[slot] = true;
+        buffered++;
+        received++;
+        if (sequence - highestSequence > 0) {
+            highestSequence = sequence;
+        }
+    }
+
+    // Next frame for playout: its length (copied into out, capture time into capturedAt[0]), 0 when a lost frame
+    // has to be concealed, or -1 when there is nothing to play (buffering or the speaker paused)
+    synchronized int poll(byte[] out, long[] capturedAt) {
+        if (!playing) {
+            if (buffered < targetDepth) return -1;
+            playing = true;
+        }
+        if (buffered == 0) {
+            playing = false; // Talk spurt over; re-buffer before playing the next one
+            return -1;
+        }
+
+        int slot = nextSequence & mask;
+        nextSequence++;
+        if (filled[slot] && sequences[slot] == nextSequence - 1) {
+            filled[slot] = false;
+            buffered--;
+            System.arraycopy(payloads[slot], 0, out, 0, lengths[slot]);
+            capturedAt[0] = captureMicros[slot];
+            return lengths[slot];
+        }
+        concealed++;
+        return 0;
+    }
+
+    synchronized long received() {
+        return received;
+    }
+
+    // Frames that never arrived, judged against the highest sequence number seen
+    synchronized long lost() {
+        return started ? Math.max(0, expectedBefore + (highestSequence - firstSequence + 1) - received - late) : 0;
+    }
+
+    synchronized long late() {
+        return late;
+    }
+
+    synchronized long concealed() {
+        return concealed;
+    }
+}
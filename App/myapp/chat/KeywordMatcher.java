@@ -0,0 +1,166 @@
+package myapp.chat;
+
+import java.util.*;
+
+
+// Aho-Corasick automaton over the keywords of every auto-reply topic. One left-to-right pass over a message finds
+// all topics whose keywords occur as whole words (case-insensitive), independent of how many topics there are.
+// Topics are identified by their index, so priority is simply "lowest index wins".
+public final class KeywordMatcher {
+    private static final int ASCII = 128;
+
+    private final int[] asciiNext; // Full DFA transitions for ASCII input: asciiNext[state * ASCII + c]
+    private final Map<Long, Integer> otherEdges; // Trie edges on non-ASCII characters
+    private final int[] fail; // Failure link for every state
+    private final int[][] outputLengths; // Lengths of the keywords ending in each state (incl. via fail links)
+    private final int[][] outputTopics; // Topic index for each entry in outputLengths
+    private final int topicCount;
+
+    // keywordsByTopic.get(i) holds the keywords of topic i
+    public KeywordMatcher(List<List<String>> keywordsByTopic) {
+        topicCount = keywordsByTopic.size();
+
+        // 1. Build the trie
+        List<int[]> asciiEdges = new ArrayList<>();
+        Map<Long, Integer> other = new HashMap<>();
+        List<List<int[]>> outputs = new ArrayList<>();
+        asciiEdges.add(newAsciiRow());
+        outputs.add(new ArrayList<>());
+
+        for (int topic = 0; topic < keywordsByTopic.size(); topic++) {
+            for (String keyword : keywordsByTopic.get(topic)) {
+                String lower = keyword.toLowerCase(Locale.ROOT);
+                if (lower.isEmpty()) continue;
+                int state = 0;
+                for (int i = 0; i < lower.length(); i++) {
+                    char c = lower.charAt(i);
+                    int next = c < ASCII ? asciiEdges.get(state)[c] : other.getOrDefault(edgeKey(state, c), -1);
+                    if (next < 0) {
+                        next = asciiEdges.size();
+                        asciiEdges.add(newAsciiRow());
+                        outputs.add(new ArrayList<>());
+                        if (c < ASCII) {
+                            asciiEdges.get(state)[c] = next;
+                        } else {
+                            other.put(edgeKey(state, c), next);
+                        }
+                    }
+                    state = next;
+                }
+                outputs.get(state).add(new int[]{lower.length(), topic});
+            }
+        }
+
+        // 2. Breadth-first pass computing failure links, completing the ASCII DFA and merging outputs
+        int states = asciiEdges.size();
+        fail = new int[states];
+        asciiNext = new int[states * ASCII];
+        Map<Integer, List<int[]>> otherChildren = new HashMap<>();
+        for (Map.Entry<Long, Integer> edge : other.entrySet()) {
+            int parent = (int) (edge.getKey() >>> 16);
+            otherChildren.computeIfAbsent(parent, _ -> new ArrayList<>())
+                    .add(new int[]{(int) (edge.getKey() & 0xFFFF), edge.getValue()});
+        }
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ASCII; c++) {
+            int child = asciiEdges.get(0)[c];
+            asciiNext[c] = Math.max(child, 0);
+            if (child > 0) queue.add(child);
+        }
+        for (int[] edge : otherChildren.getOrDefault(0, List.of())) {
+            queue.add(edge[1]);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            outputs.get(state).addAll(outputs.get(fail[state]));
+            for (int c = 0; c < ASCII; c++) {
+                int child = asciiEdges.get(state)[c];
+                if (child > 0) {
+                    fail[child] = asciiNext[fail[state] * ASCII + c];
+                    asciiNext[state * ASCII + c] = child;
+                    queue.add(child);
+                } else {
+                    asciiNext[state * ASCII + c] = asciiNext[fail[state] * ASCII + c];
+                }
+            }
+            for (int[] edge : otherChildren.getOrDefault(state, List.of())) {
+                fail[edge[1]] = followOther(other, fail[state], (char) edge[0]);
+                queue.add(edge[1]);
+            }
+        }
+        otherEdges = Map.copyOf(other);
+
+        outputLengths = new int[states][];
+        outputTopics = new int[states][];
+        for (int state = 0; state < states; state++) {
+            List<int[]> out = outputs.get(state);
+            outputLengths[state] = new int[out.size()];
+            outputTopics[state] = new int[out.size()];
+            for (int i = 0; i < out.size(); i++) {
+                outputLengths[state][i] = out.get(i)[0];
+                outputTopics[state][i] = out.get(i)[1];
+            }
+        }
+    }
+
+    // Every topic with at least one whole-word keyword match in text
+    public BitSet matchingTopics(String text) {
+        BitSet topics = new BitSet(topicCount);
+        scan(text, topics, false);
+        return topics;
+    }
+
+    // The highest-priority (lowest index) matching topic, or -1
+    public int firstTopic(String text) {
+        BitSet topics = new BitSet(topicCount);
+        scan(text, topics, true);
+        return topics.nextSetBit(0);
+    }
+
+    private void scan(String text, BitSet topics, boolean stopAtTopicZero) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            state = c < ASCII ? asciiNext[state * ASCII + c] : followOther(otherEdges, state, c);
+
+            int[] lengths = outputLengths[state];
+            if (lengths.length == 0) continue;
+            boolean boundaryAfter = i + 1 >= text.length() || !isWordChar(text.charAt(i + 1));
+            if (!boundaryAfter) continue;
+            for (int k = 0; k < lengths.length; k++) {
+                int start = i - lengths[k] + 1;
+                if (start == 0 || !isWordChar(text.charAt(start - 1))) {
+                    topics.set(outputTopics[state][k]);
+                }
+            }
+            if (stopAtTopicZero && topics.get(0)) return; // Nothing can outrank the first topic
+        }
+    }
+
+    // Non-ASCII transitions are rare, so they follow failure links instead of a precomputed table
+    private int followOther(Map<Long, Integer> edges, int state, char c) {
+        while (true) {
+            Integer next = edges.get(edgeKey(state, c));
+            if (next != null) return next;
+            if (state == 0) return 0;
+            state = fail[state];
+        }
+    }
+
+    // Unicode letters and digits, like \b with UNICODE_CHARACTER_CLASS, so "café" is not found inside "cafés"
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static long edgeKey(int state, char c) {
+        return ((long) state << 16) | c;
+    }
+
+    private static int[] newAsciiRow() {
+        int[] row = new int[ASCII];
+        Arrays.fill(row, -1);
+        return row;
+    }
+}
@@ -0,0 +1,114 @@
+package myapp.chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Log-linear latency histogram in nanoseconds, in the spirit of HdrHistogram: exact below 256 ns, then 128 buckets
+// per power of two, so any value is kept within 1% from nanoseconds up to hours. Recording is one atomic increment
+// and never allocates or locks, so it can sit on hot paths and be shared by many threads; reads walk the buckets.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Per power of two
+    private static final int LINEAR = 2 * SUB_BUCKETS; // Values below this have a bucket of their own
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.getAndIncrement(bucket(Math.max(0, nanos)));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    // Highest value of the bucket holding the given percentile (0-100), 0 when nothing was recorded
+    public long percentile(double percentile) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for (long bucketCount : snapshot) {
+            count += bucketCount;
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highestValue(i);
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) return highestValue(i);
+        }
+        return 0;
+    }
+
+    // Mean of the bucket midpoints
+    public double mean() {
+        long count = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = counts.get(i);
+            if (bucketCount == 0) continue;
+            count += bucketCount;
+            sum += bucketCount * ((lowestValue(i) + highestValue(i)) / 2.0);
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    // Adds the counts of another histogram to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount > 0) {
+                counts.getAndAdd(i, bucketCount);
+            }
+        }
+    }
+
+    // Copies the counts and clears them, so intervals can be reported without losing concurrent records
+    public LatencyHistogram takeInterval() {
+        LatencyHistogram interval = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = counts.getAndSet(i, 0);
+            if (bucketCount > 0) {
+                interval.counts.set(i, bucketCount);
+            }
+        }
+        return interval;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // Leaves the top 8 bits
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return sub << shift;
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        return lowestValue(bucket) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,40 @@
+package myapp.chat;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinOnePercent() {
+        long[] values = {0, 1, 255, 256, 257, 1_000, 65_535, 1_000_000, 123_456_789, 3_600_000_000_000L,
+                Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucket(value);
+            long low = LatencyHistogram.lowestValue(bucket);
+            long high = LatencyHistogram.highestValue(bucket);
+            assertTrue(low <= value && value <= high, value + " outside [" + low + ", " + high + "]");
+            assertTrue(high - low <= Math.max(0, value / 100), "Bucket of " + value + " is too wide");
+        }
+        assertEquals(LatencyHistogram.highestValue(LatencyHistogram.bucket(999)) + 1,
+                LatencyHistogram.lowestValue(LatencyHistogram.bucket(999) + 1)); // No gaps between buckets
+    }
+
+    @Test
+    public void percentilesOfAKnownDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(micros * 1_000); // 1 µs .. 10 ms, evenly
+        }
+        assertEquals(10_000, histogram.count());
+        assertEquals(5_000_000, histogram.percentile(50), 50_000);
+        assertEquals(9_900_000, histogram.percentile(99), 99_000);
+        assertEquals(9_990_000, histogram.percentile(99.9), 99_900);
+        assertEquals(10_000_000, histogram.max(), 100_000);
+
+        LatencyHistogram interval = histogram.takeInterval();
+        assertEquals(0, histogram.count());
+        assertEquals(10_000, interval.count());
+    }
+}
@@ -0,0 +1,32 @@
+package myapp.chat;
+
+
+// Latency histogram with fixed 100 µs buckets up to one second, so recording never allocates. Used for
+// mouth-to-ear latency in live voice and for the time the UI takes to show incoming messages.
+final class LatencyRecorder {
+    private static final int BUCKET_MICROS = 100;
+    private final long[] buckets = new long[10_001];
+    private long count;
+
+    synchronized void record(long micros) {
+        int bucket = (int) Math.min(buckets.length - 1, Math.max(0, micros / BUCKET_MICROS));
+        buckets[bucket]++;
+        count++;
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    // Upper edge of the bucket holding the given percentile, 0 when nothing was recorded
+    synchronized long percentileMicros(double percentile) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) return (long) (bucket + 1) * BUCKET_MICROS;
+        }
+        return (long) buckets.length * BUCKET_MICROS;
+    }
+}
@@ -0,0 +1,39 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// Appends per second through ChatServer.logMessage: the history append and the search index update that every
+// logged broadcast pays for under the clients lock
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = ServerBenchmarks.FORK_HISTORY_DIR)
+public class LogAppendBenchmark {
+    private static final int MESSAGES = 4096; // Power of two, for the index mask
+
+    private List<String> messages;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        messages = LogEncodingBenchmark.syntheticTraffic(MESSAGES);
+        ChatServer.history.clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearHistory() throws IOException {
+        ChatServer.history.clear();
+        ChatServer.searchIndex.clear();
+    }
+
+    @Benchmark
+    public long logMessage() {
+        return ChatServer.logMessage(messages.get(next++ & (MESSAGES - 1)));
+    }
+}
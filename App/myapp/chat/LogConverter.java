@@ -0,0 +1,40 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+
+// Converts a plaintext chat_log.txt (one message per line) into binary history segments
+public class LogConverter {
+
+    public static void main(String[] args) throws IOException {
+        Path input = Path.of(args.length > 0 ? args[0] : "chat_log.txt");
+        Path output = Path.of(args.length > 1 ? args[1] : "chat_history");
+
+        if (!Files.exists(input)) {
+            System.err.println("Input log not found: " + input);
+            System.exit(1);
+        }
+
+        long converted = convert(input, output);
+        System.out.printf("Converted %d messages from %s (%d bytes) into %s%n", converted, input,
+                Files.size(input), output);
+    }
+
+    // Appends every line of the text log to the store at output and returns the number of messages written
+    static long convert(Path input, Path output) throws IOException {
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             HistoryStore store = new HistoryStore(output)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    store.append(line);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,97 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+
+// Compares the old plaintext log with the binary history segments: disk bytes per message and append throughput.
+// Usage: LogEncodingBenchmark [messages] [existing chat_log.txt to replay instead of synthetic traffic]
+public class LogEncodingBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<String> messages = args.length > 1 ? Files.readAllLines(Path.of(args[1]), StandardCharsets.UTF_8)
+                : syntheticTraffic(count);
+
+        Path workDir = Files.createTempDirectory("log-encoding-bench");
+        try {
+            // Same open/append/close per message that ChatServer.logMessage used for chat_log.txt
+            Path textLog = workDir.resolve("chat_log.txt");
+            long start = System.nanoTime();
+            for (String message : messages) {
+                try (FileWriter fw = new FileWriter(textLog.toFile(), StandardCharsets.UTF_8, true);
+                     BufferedWriter bw = new BufferedWriter(fw);
+                     PrintWriter out = new PrintWriter(bw)) {
+                    out.println(message);
+                }
+            }
+            long textNanos = System.nanoTime() - start;
+            long textBytes = Files.size(textLog);
+
+            Path binaryDir = workDir.resolve("chat_history");
+            start = System.nanoTime();
+            try (HistoryStore store = new HistoryStore(binaryDir)) {
+                for (String message : messages) {
+                    store.append(message);
+                }
+            }
+            long binaryNanos = System.nanoTime() - start;
+            long binaryBytes = directorySize(binaryDir);
+
+            System.out.printf("Messages:          %,d%n", messages.size());
+            System.out.printf("%-18s %12s %14s %16s%n", "Format", "Bytes", "Bytes/message", "Appends/second");
+            report("Plaintext", textBytes, textNanos, messages.size());
+            report("Binary records", binaryBytes, binaryNanos, messages.size());
+            System.out.printf("Size ratio:        %.2fx smaller%n", (double) textBytes / binaryBytes);
+        } finally {
+            try (var files = Files.walk(workDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void report(String format, long bytes, long nanos, int messages) {
+        System.out.printf("%-18s %,12d %14.1f %,16.0f%n", format, bytes, (double) bytes / messages,
+                messages / (nanos / 1e9));
+    }
+
+    // Mix of joins, status changes, chat lines and leaves similar to what ChatServer logs
+    static List<String> syntheticTraffic(int count) {
+        Random random = new Random(42);
+        String[] users = new String[50];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = "user_" + i;
+        }
+        String[] words = {"hello", "meeting", "deploy", "lunch", "ok", "thanks", "see", "you", "later", "the",
+                "build", "is", "green", "again", "ship", "it", "😂", "👍"};
+
+        List<String> messages = new ArrayList<>(count);
+        while (messages.size() < count) {
+            String user = users[random.nextInt(users.length)];
+            int kind = random.nextInt(100);
+            if (kind < 5) {
+                messages.add("STATUS:" + user + ":online");
+                messages.add(user + " [192.168.1." + random.nextInt(255) + ":" + (49152 + random.nextInt(16000)) +
+                        "] has joined the chat");
+            } else if (kind < 10) {
+                messages.add(user + " has left the chat.");
+                messages.add("STATUS:" + user + ":offline");
+            } else {
+                StringBuilder text = new StringBuilder();
+                for (int i = 0, n = 1 + random.nextInt(12); i < n; i++) {
+                    text.append(i > 0 ? " " : "").append(words[random.nextInt(words.length)]);
+                }
+                messages.add(user + ": " + text);
+            }
+        }
+        return messages.subList(0, count);
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package myapp.chat;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// Compact binary encoding for history records. Each record is an opcode byte, a zigzag varint timestamp delta
+// and an opcode-specific payload. User IDs are interned per segment through inline DEFINE_USER records, so every
+// segment can be decoded on its own (which is what the cold tier needs).
+public final class LogRecordCodec {
+    static final byte DEFINE_USER = 0x00; // [varint length][name] - next dictionary slot
+    static final byte CHAT = 0x01;        // [varint user][varint length][text] -> "<user>: <text>"
+    static final byte STATUS = 0x02;      // [varint user][0 offline | 1 online] -> "STATUS:<user>:<status>"
+    static final byte JOINED = 0x03;      // [varint user][varint length][address][0 | 1 coordinator]
+    static final byte LEFT = 0x04;        // [varint user] -> "<user> has left the chat."
+    static final byte RAW = 0x05;         // [varint length][text] - anything else, stored verbatim
+
+    private static final Pattern CHAT_LINE = Pattern.compile("([A-Za-z0-9_]+): (.*)", Pattern.DOTALL);
+    private static final Pattern JOINED_LINE =
+            Pattern.compile("([A-Za-z0-9_]+) \\[([^\\]]+)] has joined the chat( \\(Coordinator\\))?");
+    private static final Pattern LEFT_LINE = Pattern.compile("([A-Za-z0-9_]+) has left the chat\\.");
+    private static final Pattern STATUS_LINE = Pattern.compile("STATUS:([A-Za-z0-9_]+):(online|offline)");
+
+    private LogRecordCodec() {
+    }
+
+    // Stateful writer for one segment: call reset() whenever a new segment is started
+    public static final class Encoder {
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private byte[] buffer = new byte[256];
+        private int size;
+        private long lastTimestamp;
+
+        public void reset() {
+            dictionary.clear();
+            lastTimestamp = 0;
+        }
+
+        // Encodes one message; the returned buffer is only valid until the next call
+        public ByteBuffer encode(String message, long timestamp) {
+            size = 0;
+            Matcher matcher;
+            if ((matcher = STATUS_LINE.matcher(message)).matches()) {
+                int user = intern(matcher.group(1), timestamp);
+                header(STATUS, timestamp);
+                writeVarint(user);
+                writeByte(matcher.group(2).equals("online") ? 1 : 0);
+            } else if ((matcher = JOINED_LINE.matcher(message)).matches()) {
+                int user = intern(matcher.group(1), timestamp);
+                header(JOINED, timestamp);
+                writeVarint(user);
+                writeString(matcher.group(2));
+                writeByte(matcher.group(3) != null ? 1 : 0);
+            } else if ((matcher = LEFT_LINE.matcher(message)).matches()) {
+                int user = intern(matcher.group(1), timestamp);
+                header(LEFT, timestamp);
+                writeVarint(user);
+            } else if ((matcher = CHAT_LINE.matcher(message)).matches()) {
+                int user = intern(matcher.group(1), timestamp);
+                header(CHAT, timestamp);
+                writeVarint(user);
+                writeString(matcher.group(2));
+            } else {
+                header(RAW, timestamp);
+                writeString(message);
+            }
+            return ByteBuffer.wrap(buffer, 0, size);
+        }
+
+        // Emits a DEFINE_USER record ahead of the message the first time a user shows up in this segment
+        private int intern(String user, long timestamp) {
+            Integer index = dictionary.get(user);
+            if (index != null) {
+                return index;
+            }
+            index = dictionary.size();
+            dictionary.put(user, index);
+            header(DEFINE_USER, timestamp);
+            writeString(user);
+            return index;
+        }
+
+        private void header(byte opcode, long timestamp) {
+            writeByte(opcode);
+            writeVarint(zigzag(timestamp - lastTimestamp));
+            lastTimestamp = timestamp;
+        }
+
+        private void writeString(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+
+    // Stateful reader for one segment, mirroring the encoder's dictionary and timestamp base
+    public static final class Decoder {
+        private final List<String> dictionary = new ArrayList<>();
+        private long lastTimestamp;
+
+        // Returns the next message, or null at the end of the data or at a torn trailing record
+        public String next(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                int start = data.position();
+                try {
+                    byte opcode = data.get();
+                    lastTimestamp += unzigzag(readVarint(data));
+                    switch (opcode) {
+                        case DEFINE_USER -> dictionary.add(readString(data));
+                        case CHAT -> {
+                            String user = dictionary.get((int) readVarint(data));
+                            return user + ": " + readString(data);
+                        }
+                        case STATUS -> {
+                            String user = dictionary.get((int) readVarint(data));
+                            return "STATUS:" + user + ":" + (data.get() == 1 ? "online" : "offline");
+                        }
+                        case JOINED -> {
+                            String user = dictionary.get((int) readVarint(data));
+                            String address = readString(data);
+                            return user + " [" + address + "] has joined the chat" +
+                                    (data.get() == 1 ? " (Coordinator)" : "");
+                        }
+                        case LEFT -> {
+                            return dictionary.get((int) readVarint(data)) + " has left the chat.";
+                        }
+                        case RAW -> {
+                            return readString(data);
+                        }
+                        default -> throw new IllegalStateException("Unknown history opcode " + opcode);
+                    }
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    data.position(start); // Leave the torn record for the caller to inspect
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        // Timestamp of the record returned by the last call to next()
+        public long timestamp() {
+            return lastTimestamp;
+        }
+    }
+
+    static long readVarint(ByteBuffer data) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint in history record");
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = (int) readVarint(data);
+        if (length > data.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
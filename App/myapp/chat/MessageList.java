@@ -0,0 +1,293 @@
+package myapp.chat;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.plaf.basic.BasicListUI;
+
+
+// Virtualized chat view over a MessageListModel. Rows wrap like the old text area, but only rows intersecting the
+// viewport are rendered: row heights are measured once per row and width and cached on the row, so adding a
+// message or scrolling never lays out the rest of the history. Image rows show their thumbnail, which is only
+// asked for when the row is painted. Scrolling to either end pages rows in from the model's log, and new rows
+// keep the view pinned to the bottom when it already was.
+public class MessageList extends JList<MessageListModel.Row> {
+    private static final Logger logger = Logger.getLogger(MessageList.class.getName()); // Catch exception errors
+    private static final int PAGE_ROWS = 200; // Rows paged in at a time when scrolling past the resident window
+    private static final int PADDING = 2; // Above and below each row
+
+    // Where image rows get their pictures from
+    public interface Previews {
+        // Attachment ID of the image a row shows, or null for plain text
+        String imageId(String text);
+
+        // The thumbnail for a row's image if it is ready, otherwise null after asking for it
+        BufferedImage thumbnail(String text, String imageId);
+    }
+
+    private final MessageListModel model;
+    private final Previews previews;
+    private final int thumbnailSize;
+    private final RowRenderer renderer = new RowRenderer();
+    private boolean paging; // Guards against re-entrant paging while the scroll position is being restored
+    private boolean scrollPending; // A scroll to the bottom is already queued
+
+    public MessageList(MessageListModel model, Previews previews, int thumbnailSize) {
+        super(model);
+        this.model = model;
+        this.previews = previews;
+        this.thumbnailSize = thumbnailSize;
+        setCellRenderer(renderer);
+        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        setBackground(new Color(240, 248, 255));
+        setBorder(BorderFactory.createEmptyBorder(10, 5, 10, 5));
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                if (e.getIndex1() == model.getSize() - 1 && !paging && !scrollPending && isAtBottom()) {
+                    scrollPending = true; // One scroll for a whole batch of appended rows
+                    SwingUtilities.invokeLater(() -> {
+                        scrollPending = false;
+                        scrollToBottom();
+                    });
+                }
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) { }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) { }
+        });
+    }
+
+    // Rows are measured again as soon as the width changes, not when the resize event comes round, so the first
+    // paint after the viewport sizes the list already uses real heights
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        boolean resized = width != getWidth();
+        super.setBounds(x, y, width, height);
+        if (resized && getUI() instanceof HeightCachingUI ui) {
+            ui.widthChanged();
+        }
+    }
+
+    @Override
+    public void updateUI() {
+        setUI(new HeightCachingUI());
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true; // Rows wrap to the viewport instead of scrolling sideways
+    }
+
+    // Text of the row under a point, or null when the point is below the last row
+    public String textAt(Point point) {
+        int index = locationToIndex(point);
+        if (index < 0 || !getCellBounds(index, index).contains(point)) return null;
+        return model.getElementAt(index).text();
+    }
+
+    public void scrollToBottom() {
+        int last = model.getSize() - 1;
+        if (last >= 0) {
+            ensureIndexIsVisible(last);
+        }
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+        if (scrollPane != null) {
+            scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+                if (!e.getValueIsAdjusting() || e.getAdjustmentType() == AdjustmentEvent.TRACK) {
+                    SwingUtilities.invokeLater(this::pageIfAtEdge);
+                }
+            });
+        }
+    }
+
+    private boolean isAtBottom() {
+        Rectangle visible = getVisibleRect();
+        return visible.y + visible.height >= getHeight() - 4;
+    }
+
+    // Pages older rows in when the top is visible, newer ones when the bottom is, keeping the rows on screen where
+    // they were
+    private void pageIfAtEdge() {
+        if (paging || model.getSize() == 0) return;
+        Rectangle visible = getVisibleRect();
+        boolean older = visible.y == 0 && model.hasOlder();
+        boolean newer = !older && isAtBottom() && model.hasNewer();
+        if (!older && !newer) return;
+
+        int anchor = locationToIndex(new Point(0, visible.y));
+        MessageListModel.Row anchorRow = model.getElementAt(anchor);
+        int offset = visible.y - getCellBounds(anchor, anchor).y;
+        paging = true;
+        try {
+            int moved = older ? model.loadOlder(PAGE_ROWS) : -model.loadNewer(PAGE_ROWS);
+            int index = anchor + moved;
+            if (index < 0 || index >= model.getSize() || model.getElementAt(index) != anchorRow) return;
+
+            JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+            if (scrollPane != null) {
+                revalidate();
+                scrollPane.validate(); // Resize the list now so the new position is in range
+                scrollPane.getViewport().setViewPosition(new Point(visible.x, getCellBounds(index, index).y + offset));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not page chat rows in", e);
+        } finally {
+            paging = false;
+        }
+    }
+
+    // BasicListUI with the per-row height pass replaced: heights come from the rows' cache and are only measured for
+    // rows that are new or were edited since the list last had this width
+    private final class HeightCachingUI extends BasicListUI {
+        private int lastWidth = -1;
+
+        void widthChanged() {
+            if (rowWidth() != lastWidth) {
+                updateLayoutStateNeeded = modelChanged;
+                revalidate();
+                repaint();
+            }
+        }
+
+        @Override
+        protected void updateLayoutState() {
+            int width = rowWidth();
+            int size = model.getSize();
+            int[] heights = new int[size];
+            for (int i = 0; i < size; i++) {
+                // Until the list has been given a width every row counts as one line; measuring at a made-up
+                // width would wrap every row and be thrown away once the real width arrives
+                heights[i] = width > 0 ? renderer.height(model.getElementAt(i), width)
+                        : renderer.estimate(model.getElementAt(i));
+            }
+            cellHeights = heights;
+            cellHeight = -1;
+            cellWidth = Math.max(width, 50);
+            lastWidth = width;
+        }
+
+        // Width rows wrap at, or 0 before the list has been laid out
+        private int rowWidth() {
+            Insets insets = list.getInsets();
+            Container parent = list.getParent();
+            int available = parent instanceof JViewport ? parent.getWidth() : list.getWidth();
+            return available <= 0 ? 0 : Math.max(50, available - insets.left - insets.right);
+        }
+    }
+
+    // Text rows are a wrapping text area; image rows add the thumbnail (or an outline while it loads) under it
+    private final class RowRenderer extends JPanel implements ListCellRenderer<MessageListModel.Row> {
+        private final JTextArea text = new JTextArea();
+        private final JLabel image = new JLabel();
+        private final JTextArea measure = new JTextArea();
+        private Font lineFont; // Font singleLineHeight was measured with
+        private int singleLineHeight;
+        private final Color selection = new Color(208, 228, 250);
+
+        RowRenderer() {
+            super(new BorderLayout());
+            for (JTextArea area : new JTextArea[]{text, measure}) {
+                area.setLineWrap(true);
+                area.setWrapStyleWord(true);
+                area.setOpaque(false);
+                area.setBorder(BorderFactory.createEmptyBorder(PADDING, 0, PADDING, 0));
+            }
+            image.setBorder(BorderFactory.createEmptyBorder(0, 20, PADDING, 0));
+            image.setVerticalAlignment(SwingConstants.TOP);
+            add(text, BorderLayout.NORTH);
+            add(image, BorderLayout.CENTER);
+        }
+
+        // Height of a one-line text row in the list's font
+        int lineHeight() {
+            Font font = MessageList.this.getFont();
+            if (!font.equals(lineFont)) {
+                measure.setFont(font);
+                measure.setText("X");
+                singleLineHeight = measure.getPreferredSize().height;
+                lineFont = font;
+            }
+            return singleLineHeight;
+        }
+
+        // Height of a row assuming its text fits on one line
+        int estimate(MessageListModel.Row row) {
+            return previews.imageId(row.text) != null ? lineHeight() + thumbnailSize + PADDING : lineHeight();
+        }
+
+        // Row height at the given width, measured once per width and text. Most chat lines fit on one line, which
+        // font metrics can tell without laying the text out; only longer rows go through the text area.
+        int height(MessageListModel.Row row, int width) {
+            if (row.measuredWidth != width) {
+                Font font = MessageList.this.getFont();
+                int lineHeight = lineHeight();
+                measure.setFont(font);
+                int textHeight;
+                if (row.text.length() < width / 2 && row.text.indexOf('\n') < 0 &&
+                        measure.getFontMetrics(font).stringWidth(row.text) < width) {
+                    textHeight = lineHeight;
+                } else {
+                    measure.setText(row.text);
+                    measure.setSize(width, Short.MAX_VALUE);
+                    textHeight = measure.getPreferredSize().height;
+                }
+                row.measuredHeight = previews.imageId(row.text) != null ? textHeight + thumbnailSize + PADDING
+                        : textHeight;
+                row.measuredWidth = width;
+            }
+            return row.measuredHeight;
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends MessageListModel.Row> list,
+                                                      MessageListModel.Row row, int index, boolean selected,
+                                                      boolean focused) {
+            text.setFont(list.getFont());
+            text.setText(row.text);
+            String imageId = previews.imageId(row.text);
+            if (imageId == null) {
+                image.setIcon(null);
+                image.setVisible(false);
+            } else {
+                BufferedImage thumbnail = previews.thumbnail(row.text, imageId);
+                image.setIcon(thumbnail != null ? new ImageIcon(thumbnail) : placeholder);
+                image.setVisible(true);
+            }
+            setBackground(selected ? selection : list.getBackground());
+            setOpaque(selected);
+            return this;
+        }
+
+        private final Icon placeholder = new Icon() {
+            @Override
+            public void paintIcon(Component c, Graphics g, int x, int y) {
+                g.setColor(Color.LIGHT_GRAY);
+                g.drawRect(x, y, thumbnailSize - 1, thumbnailSize * 3 / 4 - 1);
+            }
+
+            @Override
+            public int getIconWidth() {
+                return thumbnailSize;
+            }
+
+            @Override
+            public int getIconHeight() {
+                return thumbnailSize * 3 / 4;
+            }
+        };
+    }
+}
@@ -0,0 +1,289 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import javax.swing.AbstractListModel;
+
+
+// Rows of the main chat view. Every row ever shown is appended to a row log on disk, and only a window of at most
+// maxResident rows is kept in memory; the view pages older or newer rows back in from the log as the user scrolls
+// towards them. Edits and deletes touch one row and fire a one-row event instead of rebuilding the whole text.
+// Confined to the EDT, like any Swing model.
+public class MessageListModel extends AbstractListModel<MessageListModel.Row> implements Closeable {
+    private final int maxResident;
+    private final RowLog log;
+    private final ArrayList<Row> rows = new ArrayList<>(); // The resident window, oldest first
+    private long windowStart; // Log positions covered by the window: [windowStart, windowEnd)
+    private long windowEnd;
+
+    public static final class Row {
+        final long seq; // Position in the row log, increasing
+        String text;
+        int measuredWidth = -1; // Layout cache kept by MessageList
+        int measuredHeight;
+
+        Row(long seq, String text) {
+            this.seq = seq;
+            this.text = text;
+        }
+
+        public long seq() {
+            return seq;
+        }
+
+        public String text() {
+            return text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    public MessageListModel(Path logFile, int maxResident) throws IOException {
+        this.maxResident = maxResident;
+        this.log = new RowLog(logFile);
+    }
+
+    // Temporary row log, deleted when the JVM exits
+    public static MessageListModel temporary(int maxResident) throws IOException {
+        Path file = Files.createTempFile("chat-rows", ".log");
+        file.toFile().deleteOnExit();
+        return new MessageListModel(file, maxResident);
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public Row getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    // Adds a row at the bottom; it only becomes resident if the window is showing the newest rows
+    public void append(String text) throws IOException {
+        boolean atNewest = windowEnd == log.nextSeq();
+        long seq = log.append(text);
+        if (!atNewest) return;
+        rows.add(new Row(seq, text));
+        windowEnd = seq + 1;
+        fireIntervalAdded(this, rows.size() - 1, rows.size() - 1);
+        if (rows.size() > maxResident) {
+            dropOldest(rows.size() - maxResident);
+        }
+    }
+
+    // Replaces the newest row reading exactly oldText, resident or not; false if there is none
+    public boolean replace(String oldText, String newText) throws IOException {
+        long seq = log.findBackwards(oldText, log.nextSeq());
+        if (seq < 0) return false;
+        log.rewrite(seq, newText);
+        int i = residentIndex(seq);
+        if (i >= 0) {
+            Row row = rows.get(i);
+            row.text = newText;
+            row.measuredWidth = -1;
+            fireContentsChanged(this, i, i);
+        }
+        return true;
+    }
+
+    // Removes the newest row reading exactly text, resident or not; false if there is none
+    public boolean remove(String text) throws IOException {
+        long seq = log.findBackwards(text, log.nextSeq());
+        if (seq < 0) return false;
+        log.delete(seq);
+        int i = residentIndex(seq);
+        if (i >= 0) {
+            rows.remove(i);
+            fireIntervalRemoved(this, i, i);
+        }
+        return true;
+    }
+
+    public boolean hasOlder() {
+        return log.previous(windowStart) >= 0;
+    }
+
+    public boolean hasNewer() {
+        return log.next(windowEnd - 1) >= 0;
+    }
+
+    // Pages up to count older rows in at the top, dropping rows at the bottom to stay within the limit.
+    // Returns how many rows were inserted at index 0.
+    public int loadOlder(int count) throws IOException {
+        List<Row> older = new ArrayList<>();
+        for (long seq = log.previous(windowStart); seq >= 0 && older.size() < count; seq = log.previous(seq)) {
+            older.add(new Row(seq, log.read(seq)));
+        }
+        if (older.isEmpty()) return 0;
+        Collections.reverse(older);
+        rows.addAll(0, older);
+        windowStart = older.get(0).seq;
+        fireIntervalAdded(this, 0, older.size() - 1);
+        if (rows.size() > maxResident) {
+            int from = maxResident;
+            int to = rows.size() - 1;
+            windowEnd = rows.get(from).seq;
+            rows.subList(from, to + 1).clear();
+            fireIntervalRemoved(this, from, to);
+        }
+        return older.size();
+    }
+
+    // Pages up to count newer rows in at the bottom, dropping rows at the top. Returns how many rows were dropped.
+    public int loadNewer(int count) throws IOException {
+        int first = rows.size();
+        for (long seq = log.next(windowEnd - 1); seq >= 0 && rows.size() - first < count; seq = log.next(seq)) {
+            rows.add(new Row(seq, log.read(seq)));
+            windowEnd = seq + 1;
+        }
+        if (rows.size() == first) {
+            windowEnd = log.nextSeq(); // Only deleted rows were left
+            return 0;
+        }
+        fireIntervalAdded(this, first, rows.size() - 1);
+        int excess = rows.size() - maxResident;
+        if (excess > 0) {
+            dropOldest(excess);
+        }
+        return Math.max(0, excess);
+    }
+
+    // Rows in the log, including the ones not resident
+    public long totalRows() {
+        return log.liveRows();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    // Index of the resident row at seq, or -1 if it is outside the window
+    private int residentIndex(long seq) {
+        if (seq < windowStart || seq >= windowEnd) return -1;
+        int low = 0;
+        int high = rows.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midSeq = rows.get(mid).seq;
+            if (midSeq == seq) return mid;
+            if (midSeq < seq) low = mid + 1;
+            else high = mid - 1;
+        }
+        return -1;
+    }
+
+    private void dropOldest(int count) {
+        windowStart = count < rows.size() ? rows.get(count).seq : windowEnd;
+        rows.subList(0, count).clear();
+        fireIntervalRemoved(this, 0, count - 1);
+    }
+
+    // Append-only file of length-prefixed UTF-8 rows with an in-memory offset and text hash per row (12 bytes each).
+    // Edits append the new text and move the row's offset; deletes mark it -1. Searching compares the hashes and
+    // only reads rows from disk when one matches.
+    static final class RowLog implements Closeable {
+        private final FileChannel channel;
+        private long[] offsets = new long[1024];
+        private int[] hashes = new int[1024];
+        private long count; // Rows appended, including deleted ones
+        private long live;
+        private long end;
+
+        RowLog(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        long append(String text) throws IOException {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            offsets[(int) count] = write(text);
+            hashes[(int) count] = text.hashCode();
+            live++;
+            return count++;
+        }
+
+        void rewrite(long seq, String text) throws IOException {
+            if (offsets[(int) seq] >= 0) {
+                offsets[(int) seq] = write(text);
+                hashes[(int) seq] = text.hashCode();
+            }
+        }
+
+        void delete(long seq) {
+            if (offsets[(int) seq] >= 0) {
+                offsets[(int) seq] = -1;
+                live--;
+            }
+        }
+
+        String read(long seq) throws IOException {
+            long offset = offsets[(int) seq];
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, offset);
+            ByteBuffer bytes = ByteBuffer.allocate(length.flip().getInt());
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset + 4 + bytes.position()) < 0) throw new EOFException();
+            }
+            return new String(bytes.array(), StandardCharsets.UTF_8);
+        }
+
+        // Newest live row before seq that reads exactly text, or -1
+        long findBackwards(String text, long before) throws IOException {
+            int hash = text.hashCode();
+            for (long seq = previous(before); seq >= 0; seq = previous(seq)) {
+                if (hashes[(int) seq] == hash && read(seq).equals(text)) return seq;
+            }
+            return -1;
+        }
+
+        long previous(long seq) {
+            for (long i = Math.min(seq, count) - 1; i >= 0; i--) {
+                if (offsets[(int) i] >= 0) return i;
+            }
+            return -1;
+        }
+
+        long next(long seq) {
+            for (long i = seq + 1; i < count; i++) {
+                if (offsets[(int) i] >= 0) return i;
+            }
+            return -1;
+        }
+
+        long nextSeq() {
+            return count;
+        }
+
+        long liveRows() {
+            return live;
+        }
+
+        private long write(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes).flip();
+            long offset = end;
+            while (record.hasRemaining()) {
+                end += channel.write(record, end);
+            }
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
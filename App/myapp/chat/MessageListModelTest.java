@@ -0,0 +1,154 @@
+package myapp.chat;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class MessageListModelTest {
+
+    private static MessageListModel filled(int rows, int resident) throws Exception {
+        MessageListModel model = MessageListModel.temporary(resident);
+        for (int i = 0; i < rows; i++) {
+            model.append("user" + (i % 7) + ": message " + i);
+        }
+        return model;
+    }
+
+    @Nested
+    class Window {
+        @Test
+        public void onlyTheNewestRowsStayResident() throws Exception {
+            try (MessageListModel model = filled(10_000, 500)) {
+                assertEquals(500, model.getSize());
+                assertEquals(10_000, model.totalRows());
+                assertEquals("user1: message 9500", model.getElementAt(0).text());
+                assertTrue(model.hasOlder());
+                assertFalse(model.hasNewer());
+            }
+        }
+
+        @Test
+        public void pagingBackAndForthRestoresTheRows() throws Exception {
+            try (MessageListModel model = filled(1_000, 300)) {
+                assertEquals(200, model.loadOlder(200));
+                assertEquals("user3: message 500", model.getElementAt(0).text());
+                assertEquals(300, model.getSize()); // The newest rows made room
+                assertTrue(model.hasNewer());
+
+                model.append("late: arrives while scrolled back"); // Logged, shown when paging forward
+                assertEquals(300, model.getSize());
+
+                while (model.hasNewer()) {
+                    model.loadNewer(200);
+                }
+                assertEquals("late: arrives while scrolled back", model.getElementAt(299).text());
+                assertEquals("user1: message 701", model.getElementAt(0).text());
+            }
+        }
+    }
+
+    @Nested
+    class Edits {
+        @Test
+        public void editsAndDeletesChangeOneRow() throws Exception {
+            try (MessageListModel model = filled(50, 100)) {
+                AtomicInteger changed = new AtomicInteger();
+                model.addListDataListener(new javax.swing.event.ListDataListener() {
+                    public void intervalAdded(javax.swing.event.ListDataEvent e) { }
+
+                    public void intervalRemoved(javax.swing.event.ListDataEvent e) {
+                        changed.addAndGet(e.getIndex1() - e.getIndex0() + 1);
+                    }
+
+                    public void contentsChanged(javax.swing.event.ListDataEvent e) {
+                        changed.addAndGet(e.getIndex1() - e.getIndex0() + 1);
+                    }
+                });
+
+                assertTrue(model.replace("user3: message 10", "user3: edited"));
+                assertTrue(model.remove("user4: message 11"));
+                assertFalse(model.remove("nobody: never said this"));
+
+                assertEquals(2, changed.get());
+                assertEquals("user3: edited", model.getElementAt(10).text());
+                assertEquals("user5: message 12", model.getElementAt(11).text());
+                assertEquals(49, model.totalRows());
+            }
+        }
+
+        @Test
+        public void editsReachRowsThatArePagedOut() throws Exception {
+            try (MessageListModel model = filled(1_000, 100)) {
+                assertTrue(model.replace("user1: message 8", "user1: edited while paged out"));
+                assertTrue(model.remove("user2: message 9"));
+
+                while (model.hasOlder()) {
+                    model.loadOlder(100);
+                }
+                assertEquals("user1: edited while paged out", model.getElementAt(8).text());
+                assertEquals("user3: message 10", model.getElementAt(9).text());
+            }
+        }
+
+        @Test
+        public void editsReachRowsNewerThanTheWindow() throws Exception {
+            try (MessageListModel model = filled(20, 5)) {
+                model.loadOlder(5); // Scrolled up, so new rows stay on disk
+                model.append("u: latest");
+                assertTrue(model.hasNewer());
+                assertTrue(model.replace("u: latest", "u: edited"));
+                assertTrue(model.remove("user5: message 19"));
+                assertEquals(20, model.totalRows());
+
+                while (model.hasNewer()) {
+                    model.loadNewer(5);
+                }
+                assertEquals("u: edited", model.getElementAt(model.getSize() - 1).text());
+                assertEquals("user4: message 18", model.getElementAt(model.getSize() - 2).text());
+            }
+        }
+    }
+
+    @Nested
+    class View {
+        @Test
+        public void onlyVisibleRowsAreRendered() throws Exception {
+            AtomicInteger previewed = new AtomicInteger();
+            MessageList.Previews previews = new MessageList.Previews() {
+                public String imageId(String text) {
+                    return text.endsWith(".png") ? String.format("%064x", text.hashCode()) : null;
+                }
+
+                public BufferedImage thumbnail(String text, String imageId) {
+                    previewed.incrementAndGet();
+                    return null;
+                }
+            };
+            try (MessageListModel model = MessageListModel.temporary(2_000)) {
+                for (int i = 0; i < 2_000; i++) {
+                    model.append(i % 2 == 0 ? "user: message " + i : "user sent a file: 🖼 photo" + i + ".png");
+                }
+                MessageList list = new MessageList(model, previews, 160);
+                JScrollPane scrollPane = new JScrollPane(list);
+                scrollPane.setSize(400, 600);
+                scrollPane.doLayout();
+                scrollPane.getViewport().doLayout();
+                list.scrollToBottom();
+
+                BufferedImage canvas = new BufferedImage(400, 600, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = canvas.createGraphics();
+                scrollPane.paint(g);
+                g.dispose();
+
+                assertTrue(list.getPreferredSize().height > 2_000 * 160 / 2); // Every image row has its height
+                assertTrue(previewed.get() > 0 && previewed.get() <= 6, "Rendered " + previewed.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package myapp.chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// EDIT_MESSAGE and DELETE_MESSAGE find their message by text, scanning the kept messages under the map's lock
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = ServerBenchmarks.FORK_HISTORY_DIR)
+public class MessageLookupBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int kept;
+
+    private String middle;
+
+    @Setup
+    public void setUp() {
+        ChatServer.messages.clear();
+        for (int i = 0; i < kept; i++) {
+            ChatServer.messages.put(i, "user_" + (i % 50) + ": message number " + i);
+        }
+        middle = ChatServer.messages.get(kept / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ChatServer.messages.clear();
+    }
+
+    // Edited to the same text, so every invocation finds it in the same place
+    @Benchmark
+    public boolean editFound() {
+        return ChatServer.replaceMessage(middle, middle);
+    }
+
+    @Benchmark
+    public boolean editMissing() {
+        return ChatServer.replaceMessage("user_1: never said this", "user_1: or this");
+    }
+
+    @Benchmark
+    public boolean deleteMissing() {
+        return ChatServer.removeMessage("user_1: never said this");
+    }
+}
@@ -0,0 +1,181 @@
+package myapp.chat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Optional HTTP endpoint for scrapers and orchestrators, on when the server runs with -Dchat.httpPort=<port>:
+// /metrics in the Prometheus text format, /health/live and /health/ready. Requests are served on a thread of its own
+// and only read counters, histograms and volatile fields, so a scrape never waits for a lock the chat threads take
+// (which is why the JMX bean's sessions, history and reaction figures are not here).
+public class MetricsHttpServer implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(MetricsHttpServer.class.getName()); // Catch exception errors
+
+    static final long READY_LIMIT_NANOS = 1_000_000_000L; // Longer and new clients notice the wait
+    static final long LIVE_LIMIT_NANOS = 30_000_000_000L; // Longer and the accept loop or log writer is stuck
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ServerMetrics metrics;
+    private final IntSupplier connectedClients;
+
+    MetricsHttpServer(InetSocketAddress address, ServerMetrics metrics, IntSupplier connectedClients)
+            throws IOException {
+        this.metrics = metrics;
+        this.connectedClients = connectedClients;
+        server = HttpServer.create(address, 0);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", exchange -> respond(exchange, 200, prometheusText(),
+                "text/plain; version=0.0.4; charset=utf-8"));
+        server.createContext("/health/live", exchange -> health(exchange, LIVE_LIMIT_NANOS));
+        server.createContext("/health/ready", exchange -> health(exchange, READY_LIMIT_NANOS));
+        server.start();
+    }
+
+    // Monitoring is optional, so a port we cannot bind is logged and the server runs on without it
+    static MetricsHttpServer startIfConfigured(ServerMetrics metrics, IntSupplier connectedClients) {
+        Integer port = Integer.getInteger("chat.httpPort");
+        if (port == null) return null;
+        String host = System.getProperty("chat.httpHost"); // Loopback unless a scraper elsewhere needs it
+        try {
+            InetSocketAddress address = host != null ? new InetSocketAddress(host, port)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            MetricsHttpServer httpServer = new MetricsHttpServer(address, metrics, connectedClients);
+            System.out.println("Metrics and health checks on http://" + address.getHostString() + ":"
+                    + httpServer.port() + "/metrics");
+            return httpServer;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not open the metrics HTTP port " + port, e);
+            return null;
+        }
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // Live while the accept loop runs and neither it nor the log writer has been stuck for long; ready under the
+    // tighter limit, when a new client would get in and its messages logged without a noticeable wait
+    String healthProblem(long limitNanos) {
+        if (!metrics.acceptLoopRunning()) return "accept loop not running";
+        long busy = metrics.acceptLoopBusyNanos();
+        if (busy > limitNanos) return String.format("accept loop busy with one handshake for %d ms", busy / 1_000_000);
+        long lag = metrics.logWriterLagNanos();
+        if (lag > limitNanos) return String.format("log writer stalled for %d ms", lag / 1_000_000);
+        return null;
+    }
+
+    private void health(HttpExchange exchange, long limitNanos) throws IOException {
+        String problem = healthProblem(limitNanos);
+        respond(exchange, problem == null ? 200 : 503, problem == null ? "OK\n" : problem + "\n",
+                "text/plain; charset=utf-8");
+    }
+
+    String prometheusText() {
+        StringBuilder text = new StringBuilder();
+        gauge(text, "chat_connected_clients", "Clients that finished the handshake", connectedClients.getAsInt());
+        gauge(text, "chat_handshaking_clients", "Connections still in the handshake", metrics.handshaking());
+        counter(text, "chat_messages_received_total", "Lines read from clients", metrics.messagesIn().total());
+        counter(text, "chat_received_bytes_total", "Bytes read from clients", metrics.bytesIn().total());
+        counter(text, "chat_messages_sent_total", "Lines written to clients", metrics.messagesOut().total());
+        counter(text, "chat_sent_bytes_total", "Bytes written to clients", metrics.bytesOut().total());
+        gauge(text, "chat_accept_loop_up", "1 while the accept loop runs", metrics.acceptLoopRunning() ? 1 : 0);
+        gauge(text, "chat_accept_loop_busy_seconds", "Time spent on the connection being accepted, 0 when waiting",
+                metrics.acceptLoopBusyNanos() / 1e9);
+        gauge(text, "chat_log_writer_lag_seconds", "Age of the log append in progress, 0 when idle",
+                metrics.logWriterLagNanos() / 1e9);
+
+        summaryHeader(text, "chat_broadcast_fanout_seconds", "Writing one broadcast to every member");
+        summary(text, "chat_broadcast_fanout_seconds", "", metrics.fanOut());
+        summaryHeader(text, "chat_log_append_seconds", "History append plus search index update");
+        summary(text, "chat_log_append_seconds", "", metrics.logAppend());
+        summaryHeader(text, "chat_command_seconds", "Handling one client line, by the command it turned out to be");
+        for (ServerMetrics.Command command : ServerMetrics.Command.values()) {
+            LatencyHistogram histogram = metrics.commandTime(command);
+            if (histogram.count() == 0) continue;
+            summary(text, "chat_command_seconds", "command=\"" + command.name().toLowerCase() + "\"", histogram);
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summaryHeader(StringBuilder text, String name, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+    }
+
+    // Quantiles since the server started, NaN before the first sample; the sum comes from the histogram's mean, so
+    // it is within the same 1% error
+    private static void summary(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long count = histogram.count();
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(labels).append(separator).append("quantile=\"").append(quantile)
+                    .append("\"} ").append(count == 0 ? "NaN" : format(histogram.percentile(quantile * 100) / 1e9))
+                    .append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        text.append(name).append("_sum").append(braces).append(' ').append(format(histogram.mean() * count / 1e9))
+                .append('\n');
+        text.append(name).append("_count").append(braces).append(' ').append(count).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body, String contentType)
+            throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package myapp.chat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class MetricsHttpServerTest {
+    private final HttpClient http = HttpClient.newHttpClient();
+    private ServerMetrics metrics;
+    private MetricsHttpServer server;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        metrics = new ServerMetrics();
+        server = new MetricsHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), metrics, () -> 3);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path)).build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    public void healthFollowsTheAcceptLoopAndTheLogWriter() throws Exception {
+        assertEquals(503, get("/health/live").statusCode()); // The accept loop has not started yet
+        metrics.acceptLoopWaiting();
+        assertEquals(200, get("/health/live").statusCode());
+        assertEquals(200, get("/health/ready").statusCode());
+
+        metrics.logAppendStarted();
+        Thread.sleep(MetricsHttpServer.READY_LIMIT_NANOS / 1_000_000 + 100);
+        HttpResponse<String> ready = get("/health/ready");
+        assertEquals(503, ready.statusCode());
+        assertTrue(ready.body().startsWith("log writer stalled"), ready.body());
+        assertEquals(200, get("/health/live").statusCode()); // Slow, but not stuck
+        metrics.logAppendEnded();
+        assertEquals(200, get("/health/ready").statusCode());
+
+        metrics.acceptLoopStopped();
+        assertEquals(503, get("/health/live").statusCode());
+    }
+
+    @Test
+    public void logWriterLagFollowsTheOldestAppend() throws Exception {
+        metrics.acceptLoopWaiting();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Thread stalled = new Thread(() -> { // Holds the history lock and stalls
+            metrics.logAppendStarted();
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            metrics.logAppendEnded();
+        });
+        stalled.start();
+        started.await();
+
+        metrics.logAppendStarted(); // Overlaps it and finishes first
+        metrics.logAppendEnded();
+        Thread.sleep(MetricsHttpServer.READY_LIMIT_NANOS / 1_000_000 + 100);
+        assertTrue(metrics.logWriterLagNanos() > MetricsHttpServer.READY_LIMIT_NANOS);
+        assertTrue(get("/health/ready").body().startsWith("log writer stalled"));
+
+        finish.countDown();
+        stalled.join();
+        assertEquals(0, metrics.logWriterLagNanos());
+    }
+
+    @Test
+    public void metricsAreInThePrometheusTextFormat() throws Exception {
+        metrics.commandHandled(ServerMetrics.Command.CHAT, 200); // Exact, below the first bucket that rounds
+        metrics.messageReceived();
+        HttpResponse<String> response = get("/metrics");
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+        String body = response.body();
+        assertTrue(body.contains("# TYPE chat_connected_clients gauge\nchat_connected_clients 3\n"), body);
+        assertTrue(body.contains("chat_messages_received_total 1\n"), body);
+        assertTrue(body.contains("chat_command_seconds{command=\"chat\",quantile=\"0.99\"} 2.0E-7\n"), body);
+        assertTrue(body.contains("chat_command_seconds_count{command=\"chat\"} 1\n"), body);
+        assertFalse(body.contains("command=\"private\""), body); // Commands never seen are left out
+        assertTrue(body.contains("chat_broadcast_fanout_seconds{quantile=\"0.5\"} NaN\n"), body); // Nothing yet
+        assertTrue(body.contains("chat_broadcast_fanout_seconds_count 0\n"), body);
+
+        HttpRequest post = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/metrics"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build();
+        assertEquals(405, http.send(post, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+}
@@ -0,0 +1,39 @@
+package myapp.chat;
+
+import java.security.SecureRandom;
+import java.util.*;
+
+
+// Lines the user composed that the server has not acknowledged yet. Each is sent framed as SEND:<key>:<line> with
+// an idempotency key; the server answers ACK:<key>. Whatever is still pending when the connection drops (or was
+// written while it was down) is sent again after the reconnect, and the server drops copies it already handled.
+public class Outbox {
+    private final String prefix; // Keeps keys unique across client runs
+    private long nextKey;
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<>(); // Key -> framed line, oldest first
+
+    public Outbox() {
+        prefix = Long.toHexString(new SecureRandom().nextLong());
+    }
+
+    // Adds a line and returns it framed for the wire
+    public synchronized String add(String line) {
+        String key = prefix + "-" + nextKey++;
+        String framed = "SEND:" + key + ":" + line;
+        pending.put(key, framed);
+        return framed;
+    }
+
+    public synchronized void acknowledge(String key) {
+        pending.remove(key);
+    }
+
+    // Framed lines not acknowledged yet, oldest first
+    public synchronized List<String> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,113 @@
+package myapp.chat;
+
+import java.util.*;
+import javax.swing.AbstractListModel;
+
+
+// Roster of the member list, sorted by user ID with one row per user. A hash index finds a user's row without
+// scanning the list and a status change fires a one-row event, so a join in a room of thousands costs a lookup and
+// a binary search instead of a walk over every row. Snapshots of many changes are applied with a single sort and one
+// event. Confined to the EDT, like any Swing model.
+public class PresenceListModel extends AbstractListModel<PresenceListModel.Member> {
+    private static final int BULK_THRESHOLD = 32; // Batches larger than this rebuild the list instead of inserting
+    private static final Comparator<Member> ORDER = Comparator.comparing(Member::userId, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(Member::userId);
+
+    public record Member(String userId, boolean online) {
+        @Override
+        public String toString() {
+            return userId + (online ? " ✅" : " ❌");
+        }
+    }
+
+    private final ArrayList<Member> rows = new ArrayList<>(); // Sorted by ORDER
+    private final HashMap<String, Member> index = new HashMap<>(); // User ID -> current row
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public Member getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    // The user's current entry, or null if they are not listed
+    public Member get(String userId) {
+        return index.get(userId);
+    }
+
+    // Row of the user, or -1
+    public int indexOf(String userId) {
+        Member member = index.get(userId);
+        return member == null ? -1 : Collections.binarySearch(rows, member, ORDER);
+    }
+
+    // Adds the user or updates their status; false if nothing changed
+    public boolean setStatus(String userId, boolean online) {
+        Member previous = index.get(userId);
+        if (previous != null && previous.online() == online) return false;
+
+        Member member = new Member(userId, online);
+        index.put(userId, member);
+        int position = Collections.binarySearch(rows, member, ORDER);
+        if (previous != null) {
+            rows.set(position, member);
+            fireContentsChanged(this, position, position);
+        } else {
+            int insertAt = -position - 1;
+            rows.add(insertAt, member);
+            fireIntervalAdded(this, insertAt, insertAt);
+        }
+        return true;
+    }
+
+    // Takes the user off the list; false if they were not on it
+    public boolean remove(String userId) {
+        Member member = index.remove(userId);
+        if (member == null) return false;
+        int position = Collections.binarySearch(rows, member, ORDER);
+        rows.remove(position);
+        fireIntervalRemoved(this, position, position);
+        return true;
+    }
+
+    // Applies a batch of status changes, user ID -> online. Small batches go row by row; large ones (a roster
+    // snapshot on connect) are merged with one sort and announced with one event.
+    public void applyAll(Map<String, Boolean> changes) {
+        if (changes.size() <= BULK_THRESHOLD) {
+            changes.forEach(this::setStatus);
+            return;
+        }
+        int oldSize = rows.size();
+        boolean changed = false;
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            Member previous = index.get(change.getKey());
+            if (previous == null || previous.online() != change.getValue()) {
+                index.put(change.getKey(), new Member(change.getKey(), change.getValue()));
+                changed = true;
+            }
+        }
+        if (!changed) return;
+
+        rows.clear();
+        rows.addAll(index.values());
+        rows.sort(ORDER);
+        if (oldSize > 0) {
+            fireContentsChanged(this, 0, oldSize - 1);
+        }
+        if (rows.size() > oldSize) {
+            fireIntervalAdded(this, oldSize, rows.size() - 1);
+        }
+    }
+
+    // Users currently shown as online
+    public int onlineCount() {
+        int online = 0;
+        for (Member member : rows) {
+            if (member.online()) online++;
+        }
+        return online;
+    }
+}
@@ -0,0 +1,104 @@
+package myapp.chat;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class PresenceListModelTest {
+
+    // Counts events and the rows they cover
+    private static final class Events implements ListDataListener {
+        int events;
+        int rows;
+
+        public void intervalAdded(ListDataEvent e) {
+            count(e);
+        }
+
+        public void intervalRemoved(ListDataEvent e) {
+            count(e);
+        }
+
+        public void contentsChanged(ListDataEvent e) {
+            count(e);
+        }
+
+        private void count(ListDataEvent e) {
+            events++;
+            rows += e.getIndex1() - e.getIndex0() + 1;
+        }
+    }
+
+    private static List<String> names(PresenceListModel model) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            names.add(model.getElementAt(i).toString());
+        }
+        return names;
+    }
+
+    @Test
+    public void statusChangesKeepOneSortedRowPerUser() {
+        PresenceListModel model = new PresenceListModel();
+        model.setStatus("carol", true);
+        model.setStatus("Alice", true);
+        model.setStatus("bob", true);
+        model.setStatus("Alice", false);
+        assertFalse(model.setStatus("Alice", false));
+
+        assertEquals(List.of("Alice ❌", "bob ✅", "carol ✅"), names(model));
+        assertEquals(1, model.indexOf("bob"));
+        assertEquals(2, model.onlineCount());
+
+        assertTrue(model.remove("bob"));
+        assertEquals(-1, model.indexOf("bob"));
+        assertEquals(List.of("Alice ❌", "carol ✅"), names(model));
+    }
+
+    @Test
+    public void aStatusChangeFiresOneRowEvent() {
+        PresenceListModel model = new PresenceListModel();
+        Map<String, Boolean> roster = new LinkedHashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            roster.put("user" + i, true);
+        }
+        model.applyAll(roster);
+
+        Events events = new Events();
+        model.addListDataListener(events);
+        model.setStatus("user2500", false);
+        model.setStatus("newcomer", true);
+
+        assertEquals(2, events.events);
+        assertEquals(2, events.rows);
+        assertFalse(model.get("user2500").online());
+        assertEquals(5_001, model.getSize());
+    }
+
+    @Test
+    public void aRosterSnapshotIsMergedWithOneSort() {
+        PresenceListModel model = new PresenceListModel();
+        model.setStatus("user7", false);
+        Map<String, Boolean> roster = new LinkedHashMap<>();
+        for (int i = 99; i >= 0; i--) {
+            roster.put("user" + i, i % 2 == 0);
+        }
+
+        Events events = new Events();
+        model.addListDataListener(events);
+        model.applyAll(roster);
+
+        assertEquals(2, events.events); // The existing row changed, the rest were added
+        assertEquals(100, model.getSize());
+        assertEquals(50, model.onlineCount());
+        for (int i = 1; i < model.getSize(); i++) {
+            assertTrue(String.CASE_INSENSITIVE_ORDER.compare(model.getElementAt(i - 1).userId(),
+                    model.getElementAt(i).userId()) < 0);
+        }
+        assertEquals(model.getElementAt(model.indexOf("user42")), model.get("user42"));
+    }
+}
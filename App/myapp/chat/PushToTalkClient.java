@@ -0,0 +1,221 @@
+package myapp.chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.*;
+
+
+// Client side of live push-to-talk (see VoiceRelay for the datagram layout). While talking, 20 ms frames from the
+// microphone are mu-law encoded and sent as they are captured. Incoming frames go into one JitterBuffer per
+// speaker; a playout tick every 20 ms takes the next frame of every speaker, mixes them and hands 16-bit PCM to
+// the sink. Sending, receiving and playout reuse their buffers, so steady-state audio allocates nothing.
+public class PushToTalkClient implements Closeable {
+    private static final Logger logger = Logger.getLogger(PushToTalkClient.class.getName()); // Catch exception errors
+    private static final int JITTER_CAPACITY = 16; // Frames per speaker ring (320 ms)
+    private static final int MAX_SPEAKERS = 256; // Member IDs are small, recycled indexes
+
+    // Receives 20 ms of mixed little-endian 16-bit mono PCM per call
+    public interface FrameSink {
+        void play(byte[] pcm, int length);
+    }
+
+    private final DatagramChannel channel;
+    private final int memberId;
+    private final int key;
+    private final int jitterFrames;
+    private final FrameSink sink;
+    // By member ID, created by the receive thread on a speaker's first frame
+    private final AtomicReferenceArray<JitterBuffer> speakers = new AtomicReferenceArray<>(MAX_SPEAKERS);
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final ScheduledExecutorService playout;
+    private final Thread receiver;
+    private volatile boolean running = true;
+    private volatile Thread talker;
+    private int sequence; // Used by the talking thread only
+
+    // Playout buffers, used by the playout thread only
+    private final byte[] frame = new byte[VoiceRelay.FRAME_SAMPLES];
+    private final long[] capturedAt = new long[1];
+    private final int[] mix = new int[VoiceRelay.FRAME_SAMPLES];
+    private final byte[] pcm = new byte[2 * VoiceRelay.FRAME_SAMPLES];
+
+    // jitterFrames is how many frames each speaker buffers before playout (3 = 60 ms)
+    public PushToTalkClient(InetSocketAddress relay, int memberId, int key, int jitterFrames, FrameSink sink)
+            throws IOException {
+        this.memberId = memberId;
+        this.key = key;
+        this.jitterFrames = jitterFrames;
+        this.sink = sink;
+        channel = DatagramChannel.open();
+        channel.connect(relay);
+
+        sendHello(); // Lets the relay learn our address before we talk
+        receiver = new Thread(this::receiveLoop, "voice-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+        playout = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "voice-playout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        playout.scheduleAtFixedRate(this::playoutTick, VoiceRelay.FRAME_MILLIS, VoiceRelay.FRAME_MILLIS,
+                TimeUnit.MILLISECONDS);
+        playout.scheduleWithFixedDelay(this::sendHelloQuietly, 15, 15, TimeUnit.SECONDS); // Keeps NAT mappings
+    }
+
+    // Sink playing through the default speaker; the line buffer holds a few frames on top of the jitter buffer
+    public static FrameSink speakerSink() throws LineUnavailableException {
+        AudioFormat format = new AudioFormat(VoiceCodec.SAMPLE_RATE, 16, 1, true, false);
+        SourceDataLine line = AudioSystem.getSourceDataLine(format);
+        line.open(format, 8 * 2 * VoiceRelay.FRAME_SAMPLES);
+        line.start();
+        return (data, length) -> line.write(data, 0, Math.min(length, line.available()));
+    }
+
+    // Starts sending frames read from source (16 kHz, 16-bit) until stopTalking
+    public synchronized void startTalking(AudioInputStream source) {
+        stopTalking();
+        Thread thread = new Thread(() -> talk(source), "voice-talk");
+        thread.setDaemon(true);
+        talker = thread;
+        thread.start();
+    }
+
+    // The talking thread notices within one frame; it is not interrupted, which would close the channel
+    public synchronized void stopTalking() {
+        talker = null;
+    }
+
+    public Stats stats() {
+        long received = 0, lost = 0, late = 0;
+        for (int i = 0; i < MAX_SPEAKERS; i++) {
+            JitterBuffer speaker = speakers.get(i);
+            if (speaker == null) continue;
+            received += speaker.received();
+            lost += speaker.lost();
+            late += speaker.late();
+        }
+        return new Stats(received, lost, late, latency.percentileMicros(50), latency.percentileMicros(99));
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        stopTalking();
+        playout.shutdownNow();
+        channel.close();
+    }
+
+    private void talk(AudioInputStream source) {
+        AudioFormat format = source.getFormat();
+        byte[] captured = new byte[VoiceRelay.FRAME_SAMPLES * format.getFrameSize()];
+        ByteBuffer packet = ByteBuffer.allocateDirect(VoiceRelay.MAX_PACKET_BYTES);
+        byte[] encoded = new byte[VoiceRelay.FRAME_SAMPLES];
+        try {
+            while (talker == Thread.currentThread()) {
+                int read = source.readNBytes(captured, 0, captured.length);
+                if (read <= 0) break;
+                int samples = VoiceCodec.encode(captured, read, format, encoded);
+                sendFrame(packet, sequence++, encoded, samples, VoiceRelay.clockMicros());
+            }
+        } catch (IOException e) {
+            if (talker == Thread.currentThread()) {
+                logger.log(Level.WARNING, "Live voice stopped sending", e);
+            }
+        }
+    }
+
+    // Sends one encoded frame; exposed for synthetic sources that produce (or drop) frames themselves
+    void sendFrame(ByteBuffer packet, int sequence, byte[] encoded, int length, long captureMicros)
+            throws IOException {
+        packet.clear();
+        packet.put(VoiceRelay.AUDIO).putInt(memberId).putInt(key).putInt(sequence).putLong(captureMicros);
+        packet.put(encoded, 0, length).flip();
+        channel.write(packet);
+    }
+
+    private void sendHello() throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(VoiceRelay.HEADER_BYTES);
+        packet.put(VoiceRelay.HELLO).putInt(memberId).putInt(key).putInt(0).putLong(0).flip();
+        channel.write(packet);
+    }
+
+    private void sendHelloQuietly() {
+        try {
+            sendHello();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Voice keep-alive failed", e);
+        }
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(VoiceRelay.MAX_PACKET_BYTES);
+        while (running) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < VoiceRelay.HEADER_BYTES || buffer.get(0) != VoiceRelay.AUDIO) continue;
+                int speaker = buffer.getInt(1);
+                if (speaker < 0 || speaker >= MAX_SPEAKERS || speaker == memberId) continue;
+
+                JitterBuffer jitter = speakers.get(speaker);
+                if (jitter == null) {
+                    jitter = new JitterBuffer(JITTER_CAPACITY, jitterFrames, VoiceRelay.FRAME_SAMPLES);
+                    speakers.set(speaker, jitter);
+                }
+                int sequence = buffer.getInt(9);
+                long captureMicros = buffer.getLong(13);
+                buffer.position(VoiceRelay.HEADER_BYTES);
+                jitter.put(sequence, captureMicros, buffer);
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.WARNING, "An error occurred while receiving live voice", e);
+                }
+            }
+        }
+    }
+
+    private void playoutTick() {
+        Arrays.fill(mix, 0);
+        boolean audible = false;
+        long now = VoiceRelay.clockMicros();
+        for (int i = 0; i < MAX_SPEAKERS; i++) {
+            JitterBuffer speaker = speakers.get(i);
+            if (speaker == null) continue;
+            int length = speaker.poll(frame, capturedAt);
+            if (length < 0) continue;
+            if (length == 0) {
+                continue; // Lost frame: concealed with silence for this speaker
+            }
+            latency.record(now - capturedAt[0]);
+            for (int sample = 0; sample < length; sample++) {
+                mix[sample] += VoiceCodec.decode(frame[sample]);
+            }
+            audible = true;
+        }
+        if (!audible) return;
+
+        for (int i = 0; i < mix.length; i++) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        sink.play(pcm, pcm.length);
+    }
+
+    // received/lost/late count frames from all speakers; latencies are capture-to-playout (mouth to ear)
+    public record Stats(long received, long lost, long late, long p50Micros, long p99Micros) {
+        public double lossPercent() {
+            long expected = received + lost + late;
+            return expected == 0 ? 0 : 100.0 * (lost + late) / expected;
+        }
+    }
+}
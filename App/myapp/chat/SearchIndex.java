@@ -0,0 +1,251 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+// Inverted index over the chat history: term -> posting list of message IDs. Posting lists are stored as
+// delta-encoded varints, which works because message IDs only ever grow. Queries are AND-ed terms, and a
+// trailing '*' turns a term into a prefix query.
+public class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+    // Protocol lines that get logged but are not something a user would search for
+    private static final List<String> IGNORED_PREFIXES = List.of("STATUS:", "EDIT_MESSAGE:", "DELETE_MESSAGE:",
+            "REACTION:", "CHAT_HISTORY:");
+
+    private final ConcurrentSkipListMap<String, PostingList> postings = new ConcurrentSkipListMap<>();
+
+    // Indexes one message; IDs must be added in increasing order
+    public void add(long id, String message) {
+        for (String term : tokenize(message)) {
+            postings.computeIfAbsent(term, _ -> new PostingList()).add(id);
+        }
+    }
+
+    public void clear() {
+        postings.clear();
+    }
+
+    public int termCount() {
+        return postings.size();
+    }
+
+    // Rebuilds the index from the history, splitting the ID range across threads and merging the partial
+    // indexes back in ID order
+    public void rebuild(HistoryStore history, int threads) throws IOException {
+        clear();
+        long firstId = history.firstId();
+        long lastId = history.lastId();
+        if (lastId < firstId) return;
+
+        long total = lastId - firstId + 1;
+        int parts = (int) Math.max(1, Math.min(threads, total / 10_000 + 1));
+        long chunk = (total + parts - 1) / parts;
+
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            List<Future<Map<String, long[]>>> partials = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                long from = firstId + i * chunk;
+                int limit = (int) Math.min(chunk, lastId - from + 1);
+                partials.add(pool.submit(() -> indexRange(history, from, limit)));
+            }
+            for (Future<Map<String, long[]>> partial : partials) {
+                for (Map.Entry<String, long[]> entry : partial.get().entrySet()) {
+                    PostingList list = postings.computeIfAbsent(entry.getKey(), _ -> new PostingList());
+                    for (long id : entry.getValue()) {
+                        list.add(id);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rebuilding the search index", e);
+        } catch (ExecutionException e) {
+            throw new IOException("An error occurred while rebuilding the search index", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Map<String, long[]> indexRange(HistoryStore history, long from, int limit) throws IOException {
+        Map<String, LongArray> local = new HashMap<>();
+        history.read(from, limit, (id, message) -> {
+            for (String term : tokenize(message)) {
+                local.computeIfAbsent(term, _ -> new LongArray()).add(id);
+            }
+        });
+        Map<String, long[]> result = new HashMap<>(local.size());
+        local.forEach((term, ids) -> result.put(term, ids.toArray()));
+        return result;
+    }
+
+    // Returns one page of matching message IDs, newest first, together with the total hit count. Query words go
+    // through the same split as messages, so "user_1" is the terms "user" and "1"; in "user_1*" only the last of
+    // them is a prefix.
+    public Page search(String query, int page, int pageSize) {
+        List<String> terms = new ArrayList<>();
+        for (String token : query.trim().split("\\s+")) {
+            boolean prefix = token.endsWith("*");
+            List<String> words = new ArrayList<>();
+            splitWords(prefix ? token.substring(0, token.length() - 1) : token, words);
+            for (int i = 0; i < words.size(); i++) {
+                terms.add(prefix && i == words.size() - 1 ? words.get(i) + "*" : words.get(i));
+            }
+        }
+        if (terms.isEmpty()) {
+            return new Page(List.of(), 0, page, pageSize);
+        }
+
+        long[] matches = null;
+        for (String term : terms) {
+            long[] ids = term.endsWith("*") ? prefixIds(term.substring(0, term.length() - 1)) : termIds(term);
+            matches = matches == null ? ids : intersect(matches, ids);
+            if (matches.length == 0) break;
+        }
+
+        int from = Math.max(0, (page - 1) * pageSize);
+        List<Long> ids = new ArrayList<>(pageSize);
+        for (int i = matches.length - 1 - from; i >= 0 && ids.size() < pageSize; i--) {
+            ids.add(matches[i]);
+        }
+        return new Page(ids, matches.length, page, pageSize);
+    }
+
+    private long[] termIds(String term) {
+        PostingList list = postings.get(term);
+        return list != null ? list.decode() : new long[0];
+    }
+
+    private long[] prefixIds(String prefix) {
+        LongArray union = new LongArray();
+        for (PostingList list : postings.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            for (long id : list.decode()) {
+                union.add(id);
+            }
+        }
+        long[] ids = union.toArray();
+        Arrays.sort(ids);
+        return distinct(ids);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static long[] distinct(long[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    // Lower-cased letter/digit runs, each term reported once per message
+    static Set<String> tokenize(String message) {
+        for (String prefix : IGNORED_PREFIXES) {
+            if (message.startsWith(prefix)) {
+                return Set.of();
+            }
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        splitWords(message, terms);
+        return terms;
+    }
+
+    private static void splitWords(String text, Collection<String> words) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    public record Page(List<Long> ids, int totalHits, int page, int pageSize) {
+        public int pageCount() {
+            return (totalHits + pageSize - 1) / pageSize;
+        }
+    }
+
+    // Append-only, delta + varint compressed list of increasing IDs
+    static final class PostingList {
+        private byte[] data = new byte[8];
+        private int size;
+        private int count;
+        private long lastId;
+
+        synchronized void add(long id) {
+            if (count > 0 && id <= lastId) return; // Already indexed (term repeated or replayed ID)
+            long delta = id - lastId;
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7FL) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+            lastId = id;
+            count++;
+        }
+
+        synchronized long[] decode() {
+            long[] ids = new long[count];
+            long id = 0;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    // Minimal growable long array used while building partial indexes
+    private static final class LongArray {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
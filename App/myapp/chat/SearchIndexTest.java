@@ -0,0 +1,90 @@
+package myapp.chat;
+
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class SearchIndexTest {
+
+    @Nested
+    class Queries {
+        @Test
+        public void matchesAllTermsNewestFirst() {
+            SearchIndex index = new SearchIndex();
+            index.add(1, "Giulio: deploy the build");
+            index.add(2, "Jude: lunch?");
+            index.add(3, "Giulio: build is green, deploy again");
+            index.add(4, "STATUS:Giulio:online"); // Protocol lines are not indexed
+
+            SearchIndex.Page page = index.search("BUILD deploy", 1, 10);
+            assertEquals(List.of(3L, 1L), page.ids());
+            assertEquals(2, page.totalHits());
+            assertEquals(0, index.search("online", 1, 10).totalHits());
+        }
+
+        @Test
+        public void supportsPrefixQueriesAndPagination() {
+            SearchIndex index = new SearchIndex();
+            for (int i = 1; i <= 45; i++) {
+                index.add(i, "Giulio: " + (i % 2 == 0 ? "deployment " : "deploying ") + i);
+            }
+
+            SearchIndex.Page first = index.search("deploy*", 1, 20);
+            assertEquals(45, first.totalHits());
+            assertEquals(3, first.pageCount());
+            assertEquals(45L, first.ids().get(0));
+
+            SearchIndex.Page last = index.search("deploy*", 3, 20);
+            assertEquals(List.of(5L, 4L, 3L, 2L, 1L), last.ids());
+        }
+
+        @Test
+        public void splitsQueryWordsLikeMessages() {
+            SearchIndex index = new SearchIndex();
+            index.add(1, "user_1: sun-rise at Jude's");
+            index.add(2, "user_12: sunrise, user 1");
+            index.add(3, "user_2: rise and shine");
+
+            assertEquals(List.of(1L), index.search("sun-rise", 1, 10).ids());
+            assertEquals(List.of(2L, 1L), index.search("user_1", 1, 10).ids()); // "user" and "1", in any order
+            assertEquals(List.of(2L, 1L), index.search("user_1*", 1, 10).ids());
+            assertEquals(List.of(1L), index.search("jude's", 1, 10).ids());
+            assertEquals(0, index.search("- _ '", 1, 10).totalHits());
+        }
+    }
+
+    @Nested
+    class Rebuild {
+        @Test
+        public void parallelRebuildMatchesIncrementalIndex() throws Exception {
+            Path directory = Files.createTempDirectory("search-test");
+            try (HistoryStore history = new HistoryStore(directory, 100, 4096, Duration.ofHours(1),
+                    Duration.ofDays(3), 1 << 20)) {
+                SearchIndex incremental = new SearchIndex();
+                Random random = new Random(7);
+                String[] words = {"alpha", "beta", "gamma", "delta", "epsilon"};
+                for (int i = 0; i < 25_000; i++) {
+                    String message = "user_" + random.nextInt(20) + ": " + words[random.nextInt(words.length)] +
+                            " " + words[random.nextInt(words.length)];
+                    incremental.add(history.append(message), message);
+                }
+
+                SearchIndex rebuilt = new SearchIndex();
+                rebuilt.rebuild(history, 4);
+                for (String query : List.of("alpha", "beta gamma", "user_1*", "eps* delta")) {
+                    SearchIndex.Page expected = incremental.search(query, 2, 50);
+                    assertEquals(50, expected.ids().size(), query);
+                    assertEquals(expected, rebuilt.search(query, 2, 50), query);
+                }
+            } finally {
+                try (var files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// Answering REQUEST_CHAT_HISTORY with a long log: every stored message is read back, from the hot tail, the mapped
+// segments and the compressed ones, and written as one CHAT_HISTORY block
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = ServerBenchmarks.FORK_HISTORY_DIR)
+public class SendHistoryBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int logged;
+
+    private ChatServer.ClientHandler requester;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatServer.history.clear();
+        for (String message : LogEncodingBenchmark.syntheticTraffic(logged)) {
+            ChatServer.history.append(message);
+        }
+        requester = new ChatServer.ClientHandler("requester", OutputStream.nullOutputStream());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ChatServer.history.clear();
+    }
+
+    @Benchmark
+    public void sendChatHistory() {
+        requester.sendChatHistory();
+    }
+}
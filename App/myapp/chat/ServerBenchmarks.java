@@ -0,0 +1,30 @@
+package myapp.chat;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+// Runs the JMH benchmarks of the server's hot paths and writes the scores as JMH JSON, one entry per benchmark and
+// parameter set, so a run can be diffed against an earlier one or loaded into any JMH result viewer.
+// Usage: ServerBenchmarks [result file] [benchmark regex]
+public class ServerBenchmarks {
+    // Forks log into their own history, never the chat_history of a real server in the same directory
+    static final String FORK_HISTORY_DIR = "-Dchat.historyDir=benchmark_history";
+
+    private static final String SUITE =
+            "myapp\\.chat\\.(Broadcast|LogAppend|SendHistory|MessageLookup|CommandDispatch|AutoReply)Benchmark";
+
+    public static void main(String[] args) throws RunnerException {
+        String result = args.length > 0 ? args[0] : "jmh-result.json";
+        Options options = new OptionsBuilder()
+                .include(args.length > 1 ? args[1] : SUITE)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+        System.out.println("Results written to " + result);
+    }
+}
@@ -0,0 +1,255 @@
+package myapp.chat;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Counters and latency histograms for the server's hot paths. Recording is a LongAdder add or a LatencyHistogram
+// increment plus the nanoTime calls around the timed work, tens of nanoseconds, and never takes a lock; reading
+// walks the histograms and is meant for an operator, not for every message.
+public class ServerMetrics {
+    private static final int RATE_WINDOW_SECONDS = 10;
+    private static final long IDLE = Long.MIN_VALUE; // No handshake in the accept loop
+
+    // What a client line turned out to be, as ClientHandler.handleLine dispatched it
+    public enum Command {
+        CHAT, PRIVATE, TYPING, TYPING_END, EDIT, DELETE, REACTION, HISTORY, HISTORY_SINCE, SEARCH, BOT, MEMBER_LIST,
+        CHANGE_ID, ACTIVE_CHECK, BOT_STATS, METRICS, VOICE_JOIN, VOICE_LEAVE, SESSION_END, DUPLICATE, INVALID
+    }
+
+    // A total plus its average rate over the last RATE_WINDOW_SECONDS, sampled once a second off the hot path
+    public static final class Rate {
+        private final LongAdder total = new LongAdder();
+        private final long[] samples = new long[RATE_WINDOW_SECONDS + 1]; // Guarded by this
+        private int samplesTaken;
+
+        public void add(long amount) {
+            total.add(amount);
+        }
+
+        public long total() {
+            return total.sum();
+        }
+
+        public synchronized double perSecond() {
+            if (samplesTaken < 2) return 0;
+            int newest = (samplesTaken - 1) % samples.length;
+            int span = Math.min(samplesTaken - 1, RATE_WINDOW_SECONDS);
+            int oldest = (samplesTaken - 1 - span) % samples.length;
+            return (samples[newest] - samples[oldest]) / (double) span;
+        }
+
+        private synchronized void sample() {
+            samples[samplesTaken++ % samples.length] = total.sum();
+        }
+    }
+
+    private final LatencyHistogram[] commandTimes = new LatencyHistogram[Command.values().length];
+    private final LatencyHistogram fanOut = new LatencyHistogram(); // Writing one broadcast to every member
+    private final LatencyHistogram logAppend = new LatencyHistogram(); // History append plus search index update
+    private final Rate messagesIn = new Rate();
+    private final Rate bytesIn = new Rate();
+    private final Rate messagesOut = new Rate();
+    private final Rate bytesOut = new Rate();
+    private final AtomicInteger handshaking = new AtomicInteger();
+    private volatile boolean acceptLoopRunning;
+    private volatile long acceptLoopBusySince = IDLE; // The accept loop does the handshakes itself
+    // Start of each log append in progress, by the thread doing it; includes the wait for the history lock, so
+    // appenders queued behind a stalled one keep the lag growing until the oldest of them is done
+    private final ConcurrentHashMap<Thread, Long> logAppendsSince = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sampler;
+
+    public ServerMetrics() {
+        for (int i = 0; i < commandTimes.length; i++) {
+            commandTimes[i] = new LatencyHistogram();
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            messagesIn.sample();
+            bytesIn.sample();
+            messagesOut.sample();
+            bytesOut.sample();
+        }, 0, 1, TimeUnit.SECONDS);
+    }
+
+    public void commandHandled(Command command, long nanos) {
+        commandTimes[command.ordinal()].record(nanos);
+    }
+
+    public void fannedOut(long nanos) {
+        fanOut.record(nanos);
+    }
+
+    public void logAppended(long nanos) {
+        logAppend.record(nanos);
+    }
+
+    // Between two of these the accept loop is waiting in accept
+    public void acceptLoopWaiting() {
+        acceptLoopBusySince = IDLE;
+        acceptLoopRunning = true;
+    }
+
+    public void acceptLoopBusy() {
+        acceptLoopBusySince = System.nanoTime();
+    }
+
+    public void acceptLoopStopped() {
+        acceptLoopRunning = false;
+    }
+
+    public void logAppendStarted() {
+        logAppendsSince.put(Thread.currentThread(), System.nanoTime());
+    }
+
+    public void logAppendEnded() {
+        logAppendsSince.remove(Thread.currentThread());
+    }
+
+    public void messageReceived() {
+        messagesIn.add(1);
+    }
+
+    public void handshakeStarted() {
+        handshaking.incrementAndGet();
+    }
+
+    public void handshakeEnded() {
+        handshaking.decrementAndGet();
+    }
+
+    public LatencyHistogram commandTime(Command command) {
+        return commandTimes[command.ordinal()];
+    }
+
+    public LatencyHistogram fanOut() {
+        return fanOut;
+    }
+
+    public LatencyHistogram logAppend() {
+        return logAppend;
+    }
+
+    public Rate messagesIn() {
+        return messagesIn;
+    }
+
+    public Rate bytesIn() {
+        return bytesIn;
+    }
+
+    public Rate messagesOut() {
+        return messagesOut;
+    }
+
+    public Rate bytesOut() {
+        return bytesOut;
+    }
+
+    public int handshaking() {
+        return handshaking.get();
+    }
+
+    public boolean acceptLoopRunning() {
+        return acceptLoopRunning;
+    }
+
+    // How long the accept loop has been busy with one connection, 0 while it waits for the next
+    public long acceptLoopBusyNanos() {
+        long since = acceptLoopBusySince;
+        return since == IDLE ? 0 : System.nanoTime() - since;
+    }
+
+    // How long the oldest log append in progress has taken so far, 0 when the log writer is idle
+    public long logWriterLagNanos() {
+        long now = System.nanoTime();
+        long lag = 0;
+        for (long since : logAppendsSince.values()) {
+            lag = Math.max(lag, now - since);
+        }
+        return lag;
+    }
+
+    // Counts the bytes a client sends us
+    public InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.add(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) bytesIn.add(read);
+                return read;
+            }
+        };
+    }
+
+    // A writer for a client that counts the lines and bytes we send it
+    public PrintWriter countOut(OutputStream out) {
+        OutputStream counting = new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.add(1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length); // FilterOutputStream would write byte by byte
+                bytesOut.add(length);
+            }
+        };
+        return new PrintWriter(counting, true) {
+            @Override
+            public void println(String line) {
+                super.println(line);
+                messagesOut.add(1);
+            }
+
+            @Override
+            public void println(Object line) {
+                super.println(line);
+                messagesOut.add(1);
+            }
+        };
+    }
+
+    public String report(int connected, int sessions) {
+        StringBuilder report = new StringBuilder(String.format(
+                "Server metrics (connected %d, handshaking %d, sessions %d):\n", connected, handshaking(), sessions));
+        report.append(String.format("  in   %8.1f msg/s %10.1f KB/s   total %d messages, %.1f MB\n",
+                messagesIn.perSecond(), bytesIn.perSecond() / 1024, messagesIn.total(), bytesIn.total() / 1e6));
+        report.append(String.format("  out  %8.1f msg/s %10.1f KB/s   total %d messages, %.1f MB\n",
+                messagesOut.perSecond(), bytesOut.perSecond() / 1024, messagesOut.total(), bytesOut.total() / 1e6));
+        report.append(String.format("  %-14s %10s %10s %10s %10s %10s\n", "(µs)", "count", "p50", "p99", "p999",
+                "max"));
+        appendLatency(report, "fan-out", fanOut);
+        appendLatency(report, "log append", logAppend);
+        for (Command command : Command.values()) {
+            appendLatency(report, command.name().toLowerCase(), commandTimes[command.ordinal()]);
+        }
+        return report.toString();
+    }
+
+    private static void appendLatency(StringBuilder report, String name, LatencyHistogram histogram) {
+        long count = histogram.count();
+        if (count == 0) return;
+        report.append(String.format("  %-14s %10d %10.1f %10.1f %10.1f %10.1f\n", name, count,
+                histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+                histogram.max() / 1e3));
+    }
+}
@@ -0,0 +1,111 @@
+package myapp.chat;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+// Resumable client sessions. A client that asks for one gets a random token; when its connection drops the session
+// is parked for a grace period, and a reconnect presenting the token takes it back under the same ID and picks up
+// from the last message it saw. Sessions also remember recent idempotency keys, so a line resent after a reconnect
+// is only handled once even if the first copy did arrive.
+public class SessionRegistry {
+    private static final int REMEMBERED_KEYS = 1024; // Per session, far more than a client sends while offline
+
+    public static final class Session {
+        private final String token;
+        private volatile String clientId;
+        private ScheduledFuture<?> expiry; // Set while parked, guarded by the registry
+        private final LinkedHashMap<String, Boolean> seenKeys = new LinkedHashMap<>(64, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > REMEMBERED_KEYS;
+            }
+        };
+
+        private Session(String token, String clientId) {
+            this.token = token;
+            this.clientId = clientId;
+        }
+
+        public String token() {
+            return token;
+        }
+
+        public String clientId() {
+            return clientId;
+        }
+
+        public void rename(String clientId) {
+            this.clientId = clientId;
+        }
+
+        // True the first time a key is seen, false for a resent copy
+        public synchronized boolean firstDelivery(String key) {
+            return seenKeys.put(key, Boolean.TRUE) == null;
+        }
+    }
+
+    private final Map<String, Session> sessions = new HashMap<>(); // Token -> session, guarded by this
+    private final Set<Session> parked = new HashSet<>(); // Guarded by this
+    private final long graceMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SessionRegistry(long graceMillis) {
+        this.graceMillis = graceMillis;
+    }
+
+    public synchronized Session open(String clientId) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        Session session = new Session(HexFormat.of().formatHex(bytes), clientId);
+        sessions.put(session.token, session);
+        return session;
+    }
+
+    // Parks a session whose connection dropped; onExpiry runs if nobody resumes it within the grace period
+    public synchronized void park(Session session, Runnable onExpiry) {
+        if (sessions.get(session.token) != session) return; // Ended
+        parked.add(session);
+        session.expiry = timer.schedule(() -> {
+            synchronized (this) {
+                if (!parked.remove(session)) return; // Resumed in the meantime
+                sessions.remove(session.token);
+            }
+            onExpiry.run();
+        }, graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Takes a session back, or null if the token is unknown or expired. A session that is not parked is taken over
+    // from its connection, which the caller closes: a client only resumes once it has given up on that connection.
+    public synchronized Session resume(String token) {
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        if (parked.remove(session)) {
+            session.expiry.cancel(false);
+            session.expiry = null;
+        }
+        return session;
+    }
+
+    // Forgets a session for good, on a clean quit
+    public synchronized void end(Session session) {
+        sessions.remove(session.token);
+        if (parked.remove(session)) {
+            session.expiry.cancel(false);
+        }
+    }
+
+    public synchronized boolean hasParked() {
+        return !parked.isEmpty();
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+}
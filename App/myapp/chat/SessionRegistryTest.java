@@ -0,0 +1,55 @@
+package myapp.chat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class SessionRegistryTest {
+
+    @Test
+    public void parkedAndConnectedSessionsCanBeResumed() throws Exception {
+        SessionRegistry registry = new SessionRegistry(50);
+        SessionRegistry.Session session = registry.open("alice");
+        assertEquals(32, session.token().length());
+        assertSame(session, registry.resume(session.token())); // Taken over from a connection not yet seen to drop
+
+        registry.park(session, () -> fail("Expired"));
+        assertTrue(registry.hasParked());
+        assertSame(session, registry.resume(session.token()));
+        assertFalse(registry.hasParked());
+        Thread.sleep(200); // Past the grace period, the expiry was cancelled
+        assertEquals(1, registry.size());
+
+        registry.end(session);
+        assertNull(registry.resume(session.token()));
+        registry.park(session, () -> fail("Expired"));
+        assertFalse(registry.hasParked());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void parkedSessionsExpire() throws Exception {
+        SessionRegistry registry = new SessionRegistry(50);
+        SessionRegistry.Session session = registry.open("alice");
+        CountDownLatch expired = new CountDownLatch(1);
+        registry.park(session, expired::countDown);
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertNull(registry.resume(session.token()));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void resentKeysAreRecognised() {
+        SessionRegistry.Session session = new SessionRegistry(60_000).open("alice");
+        assertTrue(session.firstDelivery("k1"));
+        assertTrue(session.firstDelivery("k2"));
+        assertFalse(session.firstDelivery("k1"));
+        for (int i = 0; i < 5_000; i++) {
+            session.firstDelivery("flood" + i);
+        }
+        assertTrue(session.firstDelivery("k1")); // Long forgotten
+    }
+}
@@ -0,0 +1,190 @@
+package myapp.chat;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+
+
+// Inline previews for image attachments. Thumbnails are made on background threads: large images are subsampled
+// while they are decoded (so a 6000 px photo is never fully in memory) and then halved step by step down to the
+// thumbnail size, which looks much better than one big bilinear jump. Finished thumbnails are kept in memory, LRU
+// by pixel bytes, and as PNGs on disk keyed by the attachment's content hash, so the next session reads a few KiB
+// instead of fetching the original. get never blocks; request schedules the work and onReady fires on the EDT.
+public class ThumbnailCache {
+    private static final Logger logger = Logger.getLogger(ThumbnailCache.class.getName()); // Catch exception errors
+    private static final int BYTES_PER_PIXEL = 4; // Thumbnails are INT_ARGB
+
+    private final Path directory;
+    private final int size; // Longest side of a thumbnail, in pixels
+    private final long maxMemoryBytes;
+    private final Consumer<String> onReady;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet(); // Requested, not finished yet
+    private final Set<String> failed = ConcurrentHashMap.newKeySet(); // Not an image we can read; never retried
+    // Access-ordered, so iteration starts at the least recently painted thumbnail; guarded by this
+    private final LinkedHashMap<String, BufferedImage> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes; // Guarded by this
+    private final ExecutorService workers = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private int count;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "thumbnail-" + count++);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); // Previews must never compete with the UI
+            return thread;
+        }
+    });
+
+    public ThumbnailCache(Path directory, int size, long maxMemoryBytes, Consumer<String> onReady) {
+        this.directory = directory;
+        this.size = size;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.onReady = onReady;
+    }
+
+    // Whether the file name looks like an image we can preview
+    public static boolean canPreview(String fileName) {
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg") ||
+                lower.endsWith(".gif") || lower.endsWith(".bmp");
+    }
+
+    // The thumbnail if it is in memory, otherwise null; safe to call while painting
+    public synchronized BufferedImage get(String key) {
+        return memory.get(key);
+    }
+
+    // Loads the thumbnail from disk or makes it from the original opened by source, unless that is already done or
+    // under way. The key must be the attachment's content hash.
+    public void request(String key, Callable<InputStream> source) {
+        if (!AttachmentStore.isHash(key) || failed.contains(key) || get(key) != null || !pending.add(key)) return;
+        workers.execute(() -> {
+            try {
+                BufferedImage thumbnail = loadOrCreate(key, source);
+                if (thumbnail == null) {
+                    failed.add(key);
+                    return;
+                }
+                remember(key, thumbnail);
+                EventQueue.invokeLater(() -> onReady.accept(key));
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not make a thumbnail for " + key, e);
+            } finally {
+                pending.remove(key);
+            }
+        });
+    }
+
+    public synchronized long memoryBytes() {
+        return memoryBytes;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private BufferedImage loadOrCreate(String key, Callable<InputStream> source) throws Exception {
+        Path cached = directory.resolve(key + "-" + size + ".png");
+        if (Files.isRegularFile(cached)) {
+            BufferedImage image = ImageIO.read(cached.toFile());
+            if (image != null) return image;
+        }
+
+        BufferedImage thumbnail;
+        try (InputStream in = new BufferedInputStream(source.call())) {
+            thumbnail = createThumbnail(in, size);
+        }
+        if (thumbnail != null) {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                ImageIO.write(thumbnail, "png", temp.toFile());
+                Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return thumbnail;
+    }
+
+    private synchronized void remember(String key, BufferedImage thumbnail) {
+        BufferedImage previous = memory.put(key, thumbnail);
+        if (previous != null) {
+            memoryBytes -= weight(previous);
+        }
+        memoryBytes += weight(thumbnail);
+        Iterator<Map.Entry<String, BufferedImage>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && memory.size() > 1 && eldest.hasNext()) {
+            memoryBytes -= weight(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long weight(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * BYTES_PER_PIXEL;
+    }
+
+    // Decodes the image at most about twice the target size, then scales it so its longest side is maxSide.
+    // Returns null when the stream is not an image ImageIO can read.
+    static BufferedImage createThumbnail(InputStream in, int maxSide) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(in)) {
+            if (input == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(width, height) / (2 * maxSide));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return downscale(reader.read(0, param), maxSide);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Halves the image with bilinear filtering until one more halving would overshoot, then does the last step
+    static BufferedImage downscale(BufferedImage image, int maxSide) {
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        double scale = Math.min(1.0, (double) maxSide / longest);
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        while (width / 2 >= targetWidth && height / 2 >= targetHeight) {
+            width /= 2;
+            height /= 2;
+            current = scaled(current, width, height);
+        }
+        if (width != targetWidth || height != targetHeight || current.getType() != BufferedImage.TYPE_INT_ARGB) {
+            current = scaled(current, targetWidth, targetHeight);
+        }
+        return current;
+    }
+
+    private static BufferedImage scaled(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,96 @@
+package myapp.chat;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class ThumbnailCacheTest {
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("thumbnail-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.ORANGE);
+        g.fillRect(0, 0, width / 2, height);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static String key(int n) {
+        return String.format("%064x", n);
+    }
+
+    @Test
+    public void largeImagesKeepTheirAspectRatio() throws Exception {
+        BufferedImage thumbnail = ThumbnailCache.createThumbnail(new ByteArrayInputStream(png(3000, 1500)), 160);
+
+        assertEquals(160, thumbnail.getWidth());
+        assertEquals(80, thumbnail.getHeight());
+        assertNull(ThumbnailCache.createThumbnail(new ByteArrayInputStream("not an image".getBytes()), 160));
+        assertEquals(40, ThumbnailCache.downscale(new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB), 160)
+                .getWidth()); // Never upscaled
+    }
+
+    @Test
+    public void memoryIsBoundedByPixelBytes() throws Exception {
+        byte[] image = png(640, 640);
+        CountDownLatch ready = new CountDownLatch(3);
+        ThumbnailCache cache = new ThumbnailCache(directory, 100, 2 * 100 * 100 * 4, _ -> ready.countDown());
+        for (int i = 0; i < 3; i++) {
+            cache.request(key(i), () -> new ByteArrayInputStream(image));
+            Thread.sleep(100); // Finish in order, so key 0 is the least recently used
+        }
+        assertTrue(ready.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2 * 100 * 100 * 4, cache.memoryBytes());
+        assertNull(cache.get(key(0)));
+        assertNotNull(cache.get(key(2)));
+        cache.shutdown();
+    }
+
+    @Test
+    public void diskCacheSkipsTheOriginalNextSession() throws Exception {
+        byte[] image = png(800, 600);
+        BlockingQueue<String> ready = new LinkedBlockingQueue<>();
+        ThumbnailCache first = new ThumbnailCache(directory, 120, 1 << 20, ready::add);
+        first.request(key(7), () -> new ByteArrayInputStream(image));
+        assertEquals(key(7), ready.poll(10, TimeUnit.SECONDS));
+        first.shutdown();
+
+        AtomicInteger opened = new AtomicInteger();
+        ThumbnailCache second = new ThumbnailCache(directory, 120, 1 << 20, ready::add);
+        second.request(key(7), () -> {
+            opened.incrementAndGet();
+            return new ByteArrayInputStream(image);
+        });
+        assertEquals(key(7), ready.poll(10, TimeUnit.SECONDS));
+
+        assertEquals(0, opened.get());
+        assertEquals(90, second.get(key(7)).getHeight());
+        second.shutdown();
+    }
+}
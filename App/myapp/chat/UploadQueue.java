@@ -0,0 +1,62 @@
+package myapp.chat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// Client-side queue that uploads attachments one after another on a background thread, so picking a file never
+// blocks the UI. The listener is called from that thread; progress is only reported when the percentage changes.
+public class UploadQueue {
+    public interface Listener {
+        void progress(String fileName, int percent, int waiting);
+
+        void finished(String fileName, String attachmentId, int waiting);
+
+        void failed(String fileName, IOException error, int waiting);
+    }
+
+    private final Listener listener;
+    private final AtomicInteger waiting = new AtomicInteger(); // Queued or running uploads
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "attachment-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public UploadQueue(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void enqueue(AttachmentClient client, Path file) {
+        waiting.incrementAndGet();
+        worker.execute(() -> upload(client, file));
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    private void upload(AttachmentClient client, Path file) {
+        String fileName = file.getFileName().toString();
+        try {
+            long total = Math.max(1, file.toFile().length());
+            int[] lastPercent = {-1};
+            String id = client.upload(file, sent -> {
+                int percent = (int) Math.min(100, sent * 100 / total);
+                if (percent != lastPercent[0]) {
+                    lastPercent[0] = percent;
+                    listener.progress(fileName, percent, waiting.get());
+                }
+            });
+            listener.finished(fileName, id, waiting.decrementAndGet());
+        } catch (IOException e) {
+            listener.failed(fileName, e, waiting.decrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package myapp.chat;
+
+import java.nio.ByteBuffer;
+import javax.sound.sampled.AudioFormat;
+
+
+// G.711 mu-law coding for voice messages: 16-bit PCM samples become one byte each, and stereo input is mixed
+// down to mono, so a 16 kHz recording needs 16 KB/s instead of the 64 KB/s of the old stereo WAV files. Encoded
+// voice is stored as a Sun .au stream, whose header allows an unknown length, so it can be written (and played)
+// while the recording is still going on.
+public final class VoiceCodec {
+    public static final float SAMPLE_RATE = 16000f;
+    // What the microphone is asked for; stereo lines are accepted too and mixed down while encoding
+    public static final AudioFormat CAPTURE_FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+    public static final AudioFormat ENCODED_FORMAT = new AudioFormat(AudioFormat.Encoding.ULAW, SAMPLE_RATE, 8, 1,
+            1, SAMPLE_RATE, true);
+    public static final int AU_HEADER_BYTES = 24;
+
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+    private static final short[] DECODE_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int value = ~i & 0xFF;
+            int exponent = (value >> 4) & 0x07;
+            int mantissa = value & 0x0F;
+            int magnitude = ((mantissa << 3) + BIAS) << exponent;
+            DECODE_TABLE[i] = (short) ((value & 0x80) != 0 ? BIAS - magnitude : magnitude - BIAS);
+        }
+    }
+
+    private VoiceCodec() {
+    }
+
+    public static byte encode(int sample) {
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0) sample = -sample;
+        if (sample > CLIP) sample = CLIP;
+        sample += BIAS;
+        int exponent = Math.max(0, 31 - Integer.numberOfLeadingZeros(sample) - 7); // Segment = top bit - 7
+        int mantissa = (sample >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    public static short decode(byte encoded) {
+        return DECODE_TABLE[encoded & 0xFF];
+    }
+
+    // Encodes length bytes of 16-bit PCM in the given format into out; returns the number of bytes written
+    public static int encode(byte[] pcm, int length, AudioFormat format, byte[] out) {
+        int channels = format.getChannels();
+        boolean bigEndian = format.isBigEndian();
+        int frameBytes = 2 * channels;
+        int frames = length / frameBytes;
+        for (int frame = 0; frame < frames; frame++) {
+            int mixed = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                int offset = frame * frameBytes + channel * 2;
+                mixed += bigEndian ? (short) ((pcm[offset] << 8) | (pcm[offset + 1] & 0xFF))
+                        : (short) ((pcm[offset + 1] << 8) | (pcm[offset] & 0xFF));
+            }
+            out[frame] = encode(mixed / channels);
+        }
+        return frames;
+    }
+
+    // Decodes mu-law bytes into little-endian 16-bit mono PCM; out must hold 2 * length bytes
+    public static void decode(byte[] encoded, int length, byte[] out) {
+        for (int i = 0; i < length; i++) {
+            short sample = DECODE_TABLE[encoded[i] & 0xFF];
+            out[2 * i] = (byte) sample;
+            out[2 * i + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    // .au header announcing mono mu-law at SAMPLE_RATE with an unknown data length
+    public static byte[] auHeader() {
+        return ByteBuffer.allocate(AU_HEADER_BYTES)
+                .putInt(0x2e736e64) // ".snd"
+                .putInt(AU_HEADER_BYTES) // Data offset
+                .putInt(0xFFFFFFFF) // Data size unknown
+                .putInt(1) // 8-bit G.711 mu-law
+                .putInt((int) SAMPLE_RATE)
+                .putInt(1) // Channels
+                .array();
+    }
+}
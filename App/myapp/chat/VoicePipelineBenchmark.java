@@ -0,0 +1,138 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.sampled.*;
+
+
+// Compares the old voice message path (stereo 16-bit WAV written while recording, uploaded after release) with
+// the streaming mu-law pipeline: bytes per message and the delay between releasing the button and the message
+// being available on the server. A synthetic, real-time paced source stands in for the microphone.
+// Usage: VoicePipelineBenchmark [seconds per message] [rounds]
+public class VoicePipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        AudioFormat wavFormat = new AudioFormat(VoiceCodec.SAMPLE_RATE, 16, 2, true, true); // Old capture format
+
+        Path workDir = Files.createTempDirectory("voice-bench");
+        BlockingQueue<Long> available = new LinkedBlockingQueue<>();
+        try (AttachmentRelay relay = new AttachmentRelay(workDir.resolve("server"), 0,
+                (_, _) -> available.add(System.nanoTime()))) {
+            AttachmentClient client = new AttachmentClient("localhost", relay.port(), relay.registerUploader("bench"));
+
+            long wavBytes = 0, streamBytes = 0;
+            List<Double> wavMillis = new ArrayList<>(), streamMillis = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                // Old: AudioSystem.write the WAV while recording, then upload the whole file
+                Path wav = workDir.resolve("voice_message_" + round + ".wav");
+                PacedStream wavSource = new PacedStream(syntheticVoice(seconds, wavFormat, round), wavFormat);
+                AudioSystem.write(new AudioInputStream(wavSource, wavFormat, AudioSystem.NOT_SPECIFIED),
+                        AudioFileFormat.Type.WAVE, wav.toFile());
+                client.upload(wav, _ -> { });
+                wavMillis.add((available.take() - wavSource.releasedAt) / 1e6);
+                wavBytes += Files.size(wav);
+
+                // New: mono mu-law blocks streamed while recording
+                AudioFormat format = VoiceCodec.CAPTURE_FORMAT;
+                PacedStream source = new PacedStream(syntheticVoice(seconds, format, round), format);
+                VoiceRecorder recorder = new VoiceRecorder(
+                        new AudioInputStream(source, format, AudioSystem.NOT_SPECIFIED),
+                        workDir.resolve("voice_message_" + round + ".au"), client);
+                recorder.start();
+                VoiceRecorder.Result result = recorder.finish();
+                streamMillis.add((available.take() - source.releasedAt) / 1e6);
+                streamBytes += Files.size(result.file());
+            }
+
+            System.out.printf("Messages:          %d x %d s%n", rounds, seconds);
+            System.out.printf("%-22s %12s %12s %22s%n", "Pipeline", "Bytes/msg", "Bytes/s", "Release->available ms");
+            report("WAV 16-bit stereo", wavBytes / rounds, seconds, wavMillis);
+            report("Streamed mu-law mono", streamBytes / rounds, seconds, streamMillis);
+            System.out.printf("Size ratio:        %.2fx smaller%n", (double) wavBytes / streamBytes);
+        } finally {
+            try (var files = Files.walk(workDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void report(String pipeline, long bytes, int seconds, List<Double> millis) {
+        double median = millis.stream().sorted().toList().get(millis.size() / 2);
+        System.out.printf("%-22s %,12d %,12d %22.1f%n", pipeline, bytes, bytes / seconds, median);
+    }
+
+    // Speech-like test signal: a wandering fundamental with a few harmonics, syllable-rate envelope and noise
+    static byte[] syntheticVoice(int seconds, AudioFormat format, long seed) {
+        Random random = new Random(seed);
+        int channels = format.getChannels();
+        int frames = (int) (format.getSampleRate() * seconds);
+        byte[] pcm = new byte[frames * channels * 2];
+        double phase = 0;
+        for (int i = 0; i < frames; i++) {
+            double t = i / format.getSampleRate();
+            double pitch = 140 + 30 * Math.sin(2 * Math.PI * 0.7 * t);
+            phase += 2 * Math.PI * pitch / format.getSampleRate();
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 4 * t));
+            double value = envelope * (0.6 * Math.sin(phase) + 0.25 * Math.sin(2 * phase) + 0.1 * Math.sin(3 * phase))
+                    + 0.02 * random.nextGaussian();
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value * 12000));
+            for (int channel = 0; channel < channels; channel++) {
+                int offset = (i * channels + channel) * 2;
+                if (format.isBigEndian()) {
+                    pcm[offset] = (byte) (sample >> 8);
+                    pcm[offset + 1] = (byte) sample;
+                } else {
+                    pcm[offset] = (byte) sample;
+                    pcm[offset + 1] = (byte) (sample >> 8);
+                }
+            }
+        }
+        return pcm;
+    }
+
+    // Hands out PCM no faster than a microphone would and remembers when the "button" was released
+    static final class PacedStream extends InputStream {
+        private final byte[] data;
+        private final double bytesPerNano;
+        private final long startedAt = System.nanoTime();
+        private int position;
+        volatile long releasedAt;
+
+        PacedStream(byte[] data, AudioFormat format) {
+            this.data = data;
+            this.bytesPerNano = format.getFrameRate() * format.getFrameSize() / 1e9;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= data.length) {
+                if (releasedAt == 0) releasedAt = System.nanoTime();
+                return -1;
+            }
+            int count = Math.min(length, data.length - position);
+            long due = startedAt + (long) ((position + count) / bytesPerNano);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
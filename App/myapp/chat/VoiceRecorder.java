@@ -0,0 +1,123 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+
+// Records one voice message on a background thread. PCM from the microphone (or any 16 kHz AudioInputStream) is
+// mixed down and mu-law encoded in 100 ms blocks, and every block goes to a local .au copy and to the server as
+// soon as it is encoded, so when recording stops only the last block is still in flight.
+public class VoiceRecorder {
+    private static final Logger logger = Logger.getLogger(VoiceRecorder.class.getName()); // Catch exception errors
+    static final int BLOCK_MILLIS = 100;
+
+    private final AudioInputStream source;
+    private final Path localCopy;
+    private final AttachmentClient client; // Null when the server has no data port
+    private final Thread thread;
+    private volatile boolean cancelled;
+    private String attachmentId; // Written by the recording thread, read after join
+    private long encodedBytes;
+    private IOException failure;
+
+    public VoiceRecorder(AudioInputStream source, Path localCopy, AttachmentClient client) {
+        this.source = source;
+        this.localCopy = localCopy;
+        this.client = client;
+        this.thread = new Thread(this::record, "voice-recorder");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Waits for the source to run dry (stop and close the line first) and for the server to accept the upload
+    public Result finish() throws IOException, InterruptedException {
+        thread.join();
+        if (failure != null) {
+            throw failure;
+        }
+        return new Result(localCopy, attachmentId, encodedBytes);
+    }
+
+    // Drops the recording, e.g. when the button was only tapped
+    public void cancel() throws InterruptedException {
+        cancelled = true;
+        thread.join();
+        try {
+            Files.deleteIfExists(localCopy);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete the cancelled voice message " + localCopy, e);
+        }
+    }
+
+    private void record() {
+        AttachmentClient.VoiceUpload upload = null;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(localCopy))) {
+            if (client != null) {
+                try {
+                    upload = client.openVoice(localCopy.getFileName().toString());
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Voice message will only be kept locally", e);
+                }
+            }
+
+            byte[] header = VoiceCodec.auHeader();
+            out.write(header);
+            upload = send(upload, header, header.length);
+
+            AudioFormat format = source.getFormat();
+            int frameBytes = format.getFrameSize();
+            byte[] pcm = new byte[(int) (format.getFrameRate() * BLOCK_MILLIS / 1000) * frameBytes];
+            byte[] encoded = new byte[pcm.length / frameBytes];
+            int read;
+            while (!cancelled && (read = source.read(pcm)) > 0) {
+                int length = VoiceCodec.encode(pcm, read, format, encoded);
+                out.write(encoded, 0, length);
+                upload = send(upload, encoded, length);
+                encodedBytes += length;
+            }
+            out.flush();
+
+            if (upload != null && !cancelled) {
+                attachmentId = upload.finish();
+                upload = null;
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            if (upload != null) {
+                try {
+                    upload.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Could not close the voice upload", e);
+                }
+            }
+        }
+    }
+
+    // A failed upload must not stop the recording; the local copy is still written
+    private AttachmentClient.VoiceUpload send(AttachmentClient.VoiceUpload upload, byte[] data, int length) {
+        if (upload == null) return null;
+        try {
+            upload.write(data, 0, length);
+            return upload;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Voice upload interrupted, keeping the recording locally", e);
+            try {
+                upload.close();
+            } catch (IOException ignored) {
+                // Already broken
+            }
+            return null;
+        }
+    }
+
+    // attachmentId is null when the message could not be uploaded
+    public record Result(Path file, String attachmentId, long encodedBytes) { }
+}
@@ -0,0 +1,100 @@
+package myapp.chat;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.sampled.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class VoiceRecorderTest {
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("voice-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Nested
+    class MuLaw {
+        @Test
+        public void roundTripStaysWithinTheCompanderStep() {
+            for (int sample = -32768; sample < 32768; sample += 7) {
+                int clipped = Math.max(-32635, Math.min(32635, sample));
+                int decoded = VoiceCodec.decode(VoiceCodec.encode(sample));
+                assertTrue(Math.abs(decoded - clipped) <= Math.max(8, Math.abs(clipped) / 16),
+                        "Sample " + sample + " came back as " + decoded);
+            }
+        }
+
+        @Test
+        public void stereoIsMixedDownToOneBytePerFrame() {
+            AudioFormat stereo = new AudioFormat(VoiceCodec.SAMPLE_RATE, 16, 2, true, true);
+            byte[] pcm = VoicePipelineBenchmark.syntheticVoice(1, stereo, 1);
+            byte[] encoded = new byte[pcm.length / 4];
+
+            assertEquals(16000, VoiceCodec.encode(pcm, pcm.length, stereo, encoded));
+        }
+    }
+
+    @Nested
+    class Streaming {
+        @Test
+        public void recordingIsUploadedWhileItIsEncoded() throws Exception {
+            BlockingQueue<AttachmentRelay.Attachment> announced = new LinkedBlockingQueue<>();
+            try (AttachmentRelay relay = new AttachmentRelay(directory.resolve("server"), 0,
+                    (_, attachment) -> announced.add(attachment))) {
+                AttachmentClient client = new AttachmentClient("localhost", relay.port(),
+                        relay.registerUploader("Giulio"));
+                AudioFormat format = VoiceCodec.CAPTURE_FORMAT;
+                byte[] pcm = VoicePipelineBenchmark.syntheticVoice(2, format, 2);
+
+                VoiceRecorder recorder = new VoiceRecorder(new AudioInputStream(new ByteArrayInputStream(pcm),
+                        format, pcm.length / format.getFrameSize()), directory.resolve("voice.au"), client);
+                recorder.start();
+                VoiceRecorder.Result result = recorder.finish();
+
+                assertEquals(32000, result.encodedBytes());
+                assertEquals(AttachmentStore.sha256(result.file()), result.attachmentId());
+                AttachmentRelay.Attachment attachment = announced.poll(5, TimeUnit.SECONDS);
+                assertTrue(attachment.voice());
+                assertEquals(VoiceCodec.AU_HEADER_BYTES + 32000, attachment.size());
+            }
+        }
+
+        @Test
+        public void downloadedVoiceDecodesWhileStreaming() throws Exception {
+            try (AttachmentRelay relay = new AttachmentRelay(directory.resolve("server"), 0, (_, _) -> { })) {
+                AttachmentClient client = new AttachmentClient("localhost", relay.port(),
+                        relay.registerUploader("Jude"));
+                AudioFormat format = VoiceCodec.CAPTURE_FORMAT;
+                byte[] pcm = VoicePipelineBenchmark.syntheticVoice(1, format, 3);
+                VoiceRecorder recorder = new VoiceRecorder(new AudioInputStream(new ByteArrayInputStream(pcm),
+                        format, pcm.length / format.getFrameSize()), directory.resolve("voice.au"), client);
+                recorder.start();
+                String id = recorder.finish().attachmentId();
+
+                // The same decoding path AudioPlayer feeds into its SourceDataLine
+                try (InputStream in = new BufferedInputStream(client.openDownload(id));
+                     AudioInputStream encoded = AudioSystem.getAudioInputStream(in);
+                     AudioInputStream decoded = AudioSystem.getAudioInputStream(
+                             new AudioFormat(VoiceCodec.SAMPLE_RATE, 16, 1, true, false), encoded)) {
+                    assertEquals(AudioFormat.Encoding.ULAW, encoded.getFormat().getEncoding());
+                    assertEquals(pcm.length, decoded.readAllBytes().length);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package myapp.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Live push-to-talk relay. Clients join a room over the chat connection and get a member ID and key; after that
+// they send small encoded audio frames as UDP datagrams, and one relay thread forwards every frame to the other
+// members of the sender's room. Mixing happens on the receivers, so the relay only rewrites the key field and
+// resends the same direct buffer: the per-packet path does no allocation, no hashing and no locking. Member and
+// room tables are copy-on-write arrays that only change on join and leave.
+//
+// Datagram layout (big-endian):
+//   [0] type (AUDIO or HELLO)  [1..4] member ID  [5..8] key  [9..12] sequence  [13..20] capture time (micros)
+//   [21..] mu-law payload
+// The relay learns each member's address from its packets (so NAT mappings work); HELLO packets only do that.
+public class VoiceRelay implements Closeable {
+    private static final Logger logger = Logger.getLogger(VoiceRelay.class.getName()); // Catch exception errors
+    public static final byte AUDIO = 1;
+    public static final byte HELLO = 2;
+    public static final int HEADER_BYTES = 21;
+    public static final int FRAME_MILLIS = 20;
+    public static final int FRAME_SAMPLES = (int) (VoiceCodec.SAMPLE_RATE * FRAME_MILLIS / 1000);
+    public static final int MAX_PACKET_BYTES = HEADER_BYTES + 4 * FRAME_SAMPLES;
+    static final int KEY_OFFSET = 5;
+    private static final long CLOCK_BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long CLOCK_BASE_NANOS = System.nanoTime();
+
+    private final DatagramChannel channel;
+    private final int port;
+    private final Thread thread;
+    private final Map<String, Room> rooms = new HashMap<>(); // Guarded by this
+    private volatile Member[] members = new Member[16]; // Indexed by member ID, replaced on join/leave
+    private volatile boolean running = true;
+    private volatile long relayed; // Written by the relay thread only
+    private volatile long rejected; // Written by the relay thread only
+
+    public VoiceRelay(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        thread = new Thread(this::relayLoop, "voice-relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int port() {
+        return port;
+    }
+
+    // Adds a member to a room and returns its credentials for the datagrams
+    public synchronized Membership join(String room) {
+        Member[] table = members;
+        int id = 0;
+        while (id < table.length && table[id] != null) id++;
+        if (id == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        } else {
+            table = table.clone();
+        }
+
+        Room target = rooms.computeIfAbsent(room, Room::new);
+        Member member = new Member(id, ThreadLocalRandom.current().nextInt() | 1, target);
+        target.add(member);
+        table[id] = member;
+        members = table;
+        return new Membership(id, member.key, room);
+    }
+
+    public synchronized void leave(int memberId) {
+        Member[] table = members;
+        if (memberId < 0 || memberId >= table.length || table[memberId] == null) return;
+        Member member = table[memberId];
+        member.room.remove(member);
+        if (member.room.members.length == 0) {
+            rooms.remove(member.room.name);
+        }
+        table = table.clone();
+        table[memberId] = null;
+        members = table;
+    }
+
+    public long relayedPackets() {
+        return relayed;
+    }
+
+    public long rejectedPackets() {
+        return rejected;
+    }
+
+    // Wall-clock microseconds with nanoTime resolution, used for the capture times in the datagrams
+    public static long clockMicros() {
+        return CLOCK_BASE_MICROS + (System.nanoTime() - CLOCK_BASE_NANOS) / 1000;
+    }
+
+    Thread relayThread() {
+        return thread;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        channel.close();
+    }
+
+    private void relayLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_BYTES);
+        while (running) {
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < HEADER_BYTES) continue;
+
+                Member[] table = members;
+                int id = buffer.getInt(1);
+                Member sender = id >= 0 && id < table.length ? table[id] : null;
+                if (sender == null || sender.key != buffer.getInt(KEY_OFFSET)) {
+                    rejected++;
+                    continue;
+                }
+                if (!from.equals(sender.address)) {
+                    sender.address = from; // First packet, or the client's address changed
+                }
+                if (buffer.get(0) != AUDIO) continue;
+
+                buffer.putInt(KEY_OFFSET, 0); // Other members never see the sender's key
+                for (Member member : sender.room.members) {
+                    SocketAddress target = member.address;
+                    if (member == sender || target == null) continue;
+                    buffer.position(0);
+                    channel.send(buffer, target);
+                    relayed++;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.WARNING, "An error occurred while relaying voice", e);
+                }
+            }
+        }
+    }
+
+    public record Membership(int memberId, int key, String room) { }
+
+    private static final class Member {
+        final int id;
+        final int key;
+        final Room room;
+        volatile SocketAddress address; // Learned from the member's datagrams
+
+        Member(int id, int key, Room room) {
+            this.id = id;
+            this.key = key;
+            this.room = room;
+        }
+    }
+
+    private static final class Room {
+        final String name;
+        volatile Member[] members = new Member[0]; // Replaced on join/leave, read by the relay thread
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        void add(Member member) {
+            Member[] updated = Arrays.copyOf(members, members.length + 1);
+            updated[updated.length - 1] = member;
+            members = updated;
+        }
+
+        void remove(Member member) {
+            members = Arrays.stream(members).filter(other -> other != member).toArray(Member[]::new);
+        }
+    }
+}
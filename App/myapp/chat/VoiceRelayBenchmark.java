@@ -0,0 +1,111 @@
+package myapp.chat;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+
+
+// Live push-to-talk over localhost: one synthetic talker, several listeners, all through a VoiceRelay. Reports
+// packet loss, mouth-to-ear latency (capture to playout, including the jitter buffer) and how many bytes the
+// relay thread allocated per forwarded packet. Network loss and jitter can be simulated on the sending side.
+// Usage: VoiceRelayBenchmark [listeners] [seconds] [loss %] [max jitter ms] [jitter buffer frames]
+public class VoiceRelayBenchmark {
+    // Catch exception errors
+    private static final Logger logger = Logger.getLogger(VoiceRelayBenchmark.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double lossPercent = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        int jitterMillis = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int jitterFrames = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        AudioFormat format = VoiceCodec.CAPTURE_FORMAT;
+        byte[] pcm = VoicePipelineBenchmark.syntheticVoice(seconds, format, 1);
+        int frames = pcm.length / (2 * VoiceRelay.FRAME_SAMPLES);
+
+        try (VoiceRelay relay = new VoiceRelay(0)) {
+            InetSocketAddress address = new InetSocketAddress("localhost", relay.port());
+            List<PushToTalkClient> clients = new ArrayList<>();
+            VoiceRelay.Membership talkerId = relay.join("on-call");
+            PushToTalkClient talker = new PushToTalkClient(address, talkerId.memberId(), talkerId.key(),
+                    jitterFrames, (_, _) -> { });
+            clients.add(talker);
+            for (int i = 0; i < listeners; i++) {
+                VoiceRelay.Membership member = relay.join("on-call");
+                clients.add(new PushToTalkClient(address, member.memberId(), member.key(), jitterFrames,
+                        (_, _) -> { }));
+            }
+            Thread.sleep(200); // Let the HELLOs register every address
+
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long relayThread = relay.relayThread().threadId();
+            long allocatedBefore = threads.getThreadAllocatedBytes(relayThread);
+            long relayedBefore = relay.relayedPackets();
+
+            // One frame every 20 ms, as a microphone would deliver them; loss and jitter are applied per datagram
+            ScheduledExecutorService sender = Executors.newScheduledThreadPool(2);
+            Random random = new Random(42);
+            CountDownLatch done = new CountDownLatch(frames);
+            for (int frame = 0; frame < frames; frame++) {
+                int sequence = frame;
+                long due = (long) frame * VoiceRelay.FRAME_MILLIS;
+                sender.schedule(() -> {
+                    long captured = VoiceRelay.clockMicros();
+                    byte[] encoded = new byte[VoiceRelay.FRAME_SAMPLES];
+                    int offset = sequence * 2 * VoiceRelay.FRAME_SAMPLES;
+                    byte[] frameBytes = Arrays.copyOfRange(pcm, offset, offset + 2 * VoiceRelay.FRAME_SAMPLES);
+                    VoiceCodec.encode(frameBytes, frameBytes.length, format, encoded);
+                    boolean dropped;
+                    int delay;
+                    synchronized (random) {
+                        dropped = random.nextDouble() * 100 < lossPercent;
+                        delay = jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0;
+                    }
+                    if (dropped) {
+                        done.countDown();
+                        return;
+                    }
+                    sender.schedule(() -> {
+                        try {
+                            talker.sendFrame(ByteBuffer.allocateDirect(VoiceRelay.MAX_PACKET_BYTES), sequence,
+                                    encoded, encoded.length, captured);
+                        } catch (Exception e) {
+                            logger.log(Level.SEVERE, "Could not send frame " + sequence, e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }, due, TimeUnit.MILLISECONDS);
+            }
+            done.await();
+            Thread.sleep(500); // Drain the jitter buffers
+            sender.shutdown();
+
+            long relayedPackets = relay.relayedPackets() - relayedBefore;
+            long allocated = threads.getThreadAllocatedBytes(relayThread) - allocatedBefore;
+
+            System.out.printf("Talker frames:     %,d x %d ms (%d listeners, %.1f%% loss, 0-%d ms jitter, " +
+                    "%d frame buffer)%n", frames, VoiceRelay.FRAME_MILLIS, listeners, lossPercent, jitterMillis,
+                    jitterFrames);
+            System.out.printf("Relayed packets:   %,d (%.1f allocated bytes/packet on the relay thread)%n",
+                    relayedPackets, (double) allocated / Math.max(1, relayedPackets));
+            System.out.printf("%-10s %10s %8s %8s %8s %14s %14s%n", "Listener", "Received", "Lost", "Late", "Loss %",
+                    "p50 ms", "p99 ms");
+            for (int i = 1; i < clients.size(); i++) {
+                PushToTalkClient.Stats stats = clients.get(i).stats();
+                System.out.printf("%-10d %,10d %,8d %,8d %8.2f %14.1f %14.1f%n", i, stats.received(), stats.lost(),
+                        stats.late(), stats.lossPercent(), stats.p50Micros() / 1000.0, stats.p99Micros() / 1000.0);
+            }
+            for (PushToTalkClient client : clients) {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package myapp.chat;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Nested;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class VoiceRelayTest {
+
+    private static ByteBuffer payload(int sequence) {
+        return ByteBuffer.wrap(new byte[]{(byte) sequence, 1, 2, 3});
+    }
+
+    @Nested
+    class Jitter {
+        @Test
+        public void reordersFramesAndConcealsLostOnes() {
+            JitterBuffer buffer = new JitterBuffer(8, 2, 4);
+            byte[] out = new byte[4];
+            long[] capturedAt = new long[1];
+
+            buffer.put(10, 100, payload(10));
+            assertEquals(-1, buffer.poll(out, capturedAt)); // Still filling to the target depth
+            buffer.put(12, 120, payload(12)); // 11 is lost, 12 arrives early
+            buffer.put(13, 130, payload(13));
+
+            assertEquals(4, buffer.poll(out, capturedAt));
+            assertEquals(10, out[0]);
+            assertEquals(0, buffer.poll(out, capturedAt)); // 11 concealed
+            buffer.put(11, 110, payload(11)); // Too late now
+            assertEquals(4, buffer.poll(out, capturedAt));
+            assertEquals(12, out[0]);
+            assertEquals(130, (buffer.poll(out, capturedAt) > 0 ? capturedAt[0] : -1));
+            assertEquals(-1, buffer.poll(out, capturedAt)); // Speaker paused
+
+            assertEquals(3, buffer.received());
+            assertEquals(1, buffer.late());
+            assertEquals(0, buffer.lost());
+        }
+    }
+
+    @Nested
+    class Relay {
+        @Test
+        public void forwardsFramesToTheRestOfTheRoomOnly() throws Exception {
+            try (VoiceRelay relay = new VoiceRelay(0)) {
+                InetSocketAddress address = new InetSocketAddress("localhost", relay.port());
+                VoiceRelay.Membership talker = relay.join("on-call");
+                VoiceRelay.Membership listener = relay.join("on-call");
+                VoiceRelay.Membership elsewhere = relay.join("lobby");
+                AtomicInteger heard = new AtomicInteger();
+                AtomicInteger heardElsewhere = new AtomicInteger();
+
+                try (PushToTalkClient talking = new PushToTalkClient(address, talker.memberId(), talker.key(), 2,
+                        (_, _) -> { });
+                     PushToTalkClient listening = new PushToTalkClient(address, listener.memberId(), listener.key(),
+                             2, (_, _) -> heard.incrementAndGet());
+                     PushToTalkClient other = new PushToTalkClient(address, elsewhere.memberId(), elsewhere.key(),
+                             2, (_, _) -> heardElsewhere.incrementAndGet());
+                     PushToTalkClient impostor = new PushToTalkClient(address, talker.memberId(), talker.key() + 2,
+                             2, (_, _) -> { })) {
+                    Thread.sleep(100); // HELLOs register the addresses
+
+                    ByteBuffer packet = ByteBuffer.allocateDirect(VoiceRelay.MAX_PACKET_BYTES);
+                    byte[] frame = new byte[VoiceRelay.FRAME_SAMPLES];
+                    for (int sequence = 0; sequence < 20; sequence++) {
+                        talking.sendFrame(packet, sequence, frame, frame.length, VoiceRelay.clockMicros());
+                        impostor.sendFrame(packet, 100 + sequence, frame, frame.length, VoiceRelay.clockMicros());
+                        Thread.sleep(VoiceRelay.FRAME_MILLIS);
+                    }
+                    Thread.sleep(200);
+
+                    assertEquals(20, listening.stats().received());
+                    assertEquals(0, listening.stats().lost());
+                    assertEquals(20, heard.get());
+                    assertEquals(0, heardElsewhere.get());
+                    assertEquals(0, other.stats().received()); // Another room
+                    assertEquals(20, relay.relayedPackets());
+                    assertTrue(relay.rejectedPackets() >= 20);
+                }
+            }
+        }
+    }
+}